@@ -33,6 +33,33 @@ CREATE TABLE IF NOT EXISTS `kafkapartition` (
   PRIMARY KEY (`id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_bin;
 
+# Data exporting was unselected.
+
+
+# Dumping structure for table accountservice.partitionshard
+CREATE TABLE IF NOT EXISTS `partitionshard` (
+  `partitionId` int(10) unsigned NOT NULL,
+  `shard` int(10) unsigned NOT NULL,
+  `shardsNum` int(10) unsigned NOT NULL,
+  `offset` bigint(20) unsigned NOT NULL,
+  PRIMARY KEY (`partitionId`,`shard`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_bin;
+
+# Data exporting was unselected.
+
+
+# Dumping structure for table accountservice.quarantine
+CREATE TABLE IF NOT EXISTS `quarantine` (
+  `id` bigint(20) unsigned NOT NULL AUTO_INCREMENT,
+  `partitionId` int(10) unsigned NOT NULL,
+  `messageOffset` bigint(20) unsigned NOT NULL,
+  `payload` longblob NOT NULL,
+  `reason` varchar(1000) DEFAULT NULL,
+  `quarantineTime` bigint(20) NOT NULL,
+  PRIMARY KEY (`id`),
+  KEY `partitionOffset` (`partitionId`,`messageOffset`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8 COLLATE=utf8_bin;
+
 # Data exporting was unselected.
 /*!40101 SET SQL_MODE=@OLD_SQL_MODE */;
 /*!40014 SET FOREIGN_KEY_CHECKS=@OLD_FOREIGN_KEY_CHECKS */;
@@ -0,0 +1,551 @@
+package com.nestos.accountservice.cache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.apache.commons.lang3.Validate.inclusiveBetween;
+import static org.apache.commons.lang3.Validate.isInstanceOf;
+import static org.apache.commons.lang3.Validate.notNull;
+import org.springframework.cache.Cache;
+import org.springframework.cache.support.SimpleValueWrapper;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Account balances cache. Balances are stored as primitive int key and long value pairs in open
+ * addressing hash tables (linear probing), so cache holds no objects per entry and puts don't
+ * need object graph size calculation. Table is split to segments with own locks. When segment
+ * is full, entry is evicted by CLOCK algorithm: recently read entries get second chance.
+ * Tables may be allocated out of Java heap.
+ * <p>
+ * Each balance carries version - offset of its Kafka partition, which balance reflects.
+ * putIfNewer() replaces balance only by newer version, so balance read from database before
+ * concurrent batch commit can't overwrite balance put after the commit. Entry version lives only
+ * while entry is cached, so each partition also has watermark - offset of its last committed
+ * batch. putReadAmount() rejects balance read before the watermark, even if committed entry was
+ * evicted meanwhile.
+ * <p>
+ * Implements Spring Cache with Integer keys and Long values, negative keys are not supported.
+ * Spring Cache methods are not versioned: put() replaces balance and keeps its version,
+ * putIfAbsent() adds balance with NO_VERSION.
+ *
+ * @author Roman Osipov
+ */
+@ManagedResource(objectName = "accountService:name=BalanceCache")
+public class BalanceCache implements Cache {
+
+    //-------------------Logger---------------------------------------------------
+    //-------------------NestedClasses--------------------------------------------
+    /**
+     * Selects balances to evict.
+     */
+    public interface IdFilter {
+
+        /**
+         * Returns true if balance must be evicted.
+         *
+         * @param id balance identifier.
+         * @return true if balance matches filter.
+         */
+        boolean matches(int id);
+    }
+
+    private enum PutMode {
+
+        REPLACE, IF_ABSENT, IF_NEWER
+    }
+
+    // Hash table part, guarded by its monitor. Slot layout: key (int), reference bit (int),
+    // value (long), version (long).
+    private static final class Segment {
+
+        private final ByteBuffer slots;
+        private final int mask;
+        private final int maxSize;
+        private int size;
+        private int clockHand;
+
+        // Statistic.
+        private long hitCount;
+        private long missCount;
+        private long evictionCount;
+
+        public Segment(int slotsNum, int maxSize, boolean offHeap) {
+            this.slots = offHeap ? ByteBuffer.allocateDirect(slotsNum * SLOT_SIZE)
+                    : ByteBuffer.allocate(slotsNum * SLOT_SIZE);
+            this.mask = slotsNum - 1;
+            this.maxSize = maxSize;
+            clear();
+        }
+
+        // Returns slot of key or -1.
+        private int find(int key, int hash) {
+            int slot = hash & mask;
+            while (true) {
+                int slotKey = keyAt(slot);
+                if (slotKey == key) {
+                    return slot;
+                }
+                if (slotKey == EMPTY_KEY) {
+                    return -1;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private int findEmpty(int hash) {
+            int slot = hash & mask;
+            while (keyAt(slot) != EMPTY_KEY) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        public synchronized boolean get(int key, int hash, long[] value) {
+            int slot = find(key, hash);
+            if (slot < 0) {
+                missCount++;
+                return false;
+            }
+            hitCount++;
+            slots.putInt(slot * SLOT_SIZE + REFERENCE_OFFSET, 1);
+            value[0] = slots.getLong(slot * SLOT_SIZE + VALUE_OFFSET);
+            return true;
+        }
+
+        // Returns false if present value is kept, then value[0] is present value. Version below
+        // watermark, if it is not null, is rejected.
+        public synchronized boolean put(int key, int hash, long[] value, long version,
+                PutMode mode, AtomicLong watermark) {
+            // checked under segment lock: committer advances watermark before its put
+            if (watermark != null && version < watermark.get()) {
+                return false;
+            }
+            int slot = find(key, hash);
+            if (slot >= 0) {
+                int offset = slot * SLOT_SIZE;
+                if (mode == PutMode.IF_ABSENT || (mode == PutMode.IF_NEWER
+                        && slots.getLong(offset + VERSION_OFFSET) >= version)) {
+                    value[0] = slots.getLong(offset + VALUE_OFFSET);
+                    return false;
+                }
+                slots.putLong(offset + VALUE_OFFSET, value[0]);
+                if (mode == PutMode.IF_NEWER) {
+                    slots.putLong(offset + VERSION_OFFSET, version);
+                }
+                return true;
+            }
+            if (size == maxSize) {
+                evictOne();
+            }
+            int offset = findEmpty(hash) * SLOT_SIZE;
+            slots.putInt(offset, key);
+            slots.putInt(offset + REFERENCE_OFFSET, 0);
+            slots.putLong(offset + VALUE_OFFSET, value[0]);
+            slots.putLong(offset + VERSION_OFFSET, version);
+            size++;
+            return true;
+        }
+
+        public synchronized void evict(int key, int hash) {
+            int slot = find(key, hash);
+            if (slot >= 0) {
+                remove(slot);
+            }
+        }
+
+        // Returns number of evicted entries.
+        public synchronized int evictIf(IdFilter filter) {
+            int evicted = 0;
+            int slot = 0;
+            while (slot <= mask) {
+                int key = keyAt(slot);
+                if (key != EMPTY_KEY && filter.matches(key)) {
+                    // shifted entry takes evicted slot, so slot is checked again
+                    remove(slot);
+                    evicted++;
+                } else {
+                    slot++;
+                }
+            }
+            return evicted;
+        }
+
+        public synchronized void clear() {
+            for (int slot = 0; slot <= mask; slot++) {
+                slots.putInt(slot * SLOT_SIZE, EMPTY_KEY);
+            }
+            size = 0;
+            clockHand = 0;
+        }
+
+        public synchronized int size() {
+            return size;
+        }
+
+        public synchronized long[] statistic() {
+            return new long[]{hitCount, missCount, evictionCount};
+        }
+
+        public synchronized void resetStatistic() {
+            hitCount = 0;
+            missCount = 0;
+            evictionCount = 0;
+        }
+
+        // Segment must not be empty.
+        private void evictOne() {
+            while (true) {
+                int offset = clockHand * SLOT_SIZE;
+                if (slots.getInt(offset) != EMPTY_KEY) {
+                    if (slots.getInt(offset + REFERENCE_OFFSET) == 0) {
+                        // shifted entry takes evicted slot, so hand stays
+                        remove(clockHand);
+                        evictionCount++;
+                        return;
+                    }
+                    slots.putInt(offset + REFERENCE_OFFSET, 0);
+                }
+                clockHand = (clockHand + 1) & mask;
+            }
+        }
+
+        // Backward shift deletion keeps probe sequences without tombstones.
+        private void remove(int slot) {
+            int hole = slot;
+            int next = (hole + 1) & mask;
+            while (true) {
+                int nextKey = keyAt(next);
+                if (nextKey == EMPTY_KEY) {
+                    break;
+                }
+                int home = hash(nextKey) & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    copySlot(next, hole);
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            slots.putInt(hole * SLOT_SIZE, EMPTY_KEY);
+            size--;
+        }
+
+        private void copySlot(int from, int to) {
+            slots.putInt(to * SLOT_SIZE, slots.getInt(from * SLOT_SIZE));
+            slots.putInt(to * SLOT_SIZE + REFERENCE_OFFSET,
+                    slots.getInt(from * SLOT_SIZE + REFERENCE_OFFSET));
+            slots.putLong(to * SLOT_SIZE + VALUE_OFFSET,
+                    slots.getLong(from * SLOT_SIZE + VALUE_OFFSET));
+            slots.putLong(to * SLOT_SIZE + VERSION_OFFSET,
+                    slots.getLong(from * SLOT_SIZE + VERSION_OFFSET));
+        }
+
+        private int keyAt(int slot) {
+            return slots.getInt(slot * SLOT_SIZE);
+        }
+    }
+
+    //-------------------Constants------------------------------------------------
+    public static final String NAME_NPE_MESSAGE = "name can't be null.";
+    public static final String MAX_ENTRIES_IAE_MESSAGE = "maxEntries must be positive.";
+    public static final String KEY_NPE_MESSAGE = "key can't be null.";
+    public static final String KEY_IAE_MESSAGE = "key must be not negative Integer.";
+    public static final String VALUE_IAE_MESSAGE = "value must be Long.";
+    public static final String FILTER_NPE_MESSAGE = "filter can't be null.";
+    public static final int DEFAULT_MAX_ENTRIES = 1000000;
+    // Version of balances put without version.
+    public static final long NO_VERSION = -1;
+    private static final int SEGMENTS_NUM = 64;
+    private static final int SEGMENT_SHIFT = 32 - Integer.numberOfTrailingZeros(SEGMENTS_NUM);
+    private static final int SLOT_SIZE = 24;
+    private static final int REFERENCE_OFFSET = 4;
+    private static final int VALUE_OFFSET = 8;
+    private static final int VERSION_OFFSET = 16;
+    private static final int EMPTY_KEY = -1;
+    // Maximum ratio of used slots.
+    private static final double LOAD_FACTOR = 0.75;
+
+    //-------------------Fields---------------------------------------------------
+    private final String name;
+    private final int maxEntries;
+    private final boolean offHeap;
+    private final Segment[] segments = new Segment[SEGMENTS_NUM];
+    // Offsets of last committed batches by partition.
+    private final ConcurrentMap<Integer, AtomicLong> watermarks = new ConcurrentHashMap<>();
+
+    //-------------------Constructors---------------------------------------------
+    /**
+     * Creates cache.
+     *
+     * @param name cache name.
+     * @param maxEntries maximum number of cached balances.
+     * @param offHeap if true, tables are allocated in direct memory.
+     */
+    public BalanceCache(String name, int maxEntries, boolean offHeap) {
+        notNull(name, NAME_NPE_MESSAGE);
+        inclusiveBetween(1, Integer.MAX_VALUE, maxEntries, MAX_ENTRIES_IAE_MESSAGE);
+        this.name = name;
+        this.maxEntries = maxEntries;
+        this.offHeap = offHeap;
+        // rounded up without overflow of maxEntries near Integer.MAX_VALUE
+        int segmentMaxSize = maxEntries / SEGMENTS_NUM + (maxEntries % SEGMENTS_NUM == 0 ? 0 : 1);
+        int slotsNum = Integer.highestOneBit((int) (segmentMaxSize / LOAD_FACTOR)) << 1;
+        for (int i = 0; i < SEGMENTS_NUM; i++) {
+            segments[i] = new Segment(slotsNum, segmentMaxSize, offHeap);
+        }
+    }
+
+    //-------------------Getters and setters--------------------------------------
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Object getNativeCache() {
+        return this;
+    }
+
+    @ManagedAttribute(description = "Maximum number of cached balances.")
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @ManagedAttribute(description = "Tables are allocated out of Java heap.")
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    @ManagedAttribute(description = "Number of cached balances.")
+    public int getSize() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    @ManagedAttribute(description = "Number of reads of cached balances.")
+    public long getHitCount() {
+        return sumStatistic(0);
+    }
+
+    @ManagedAttribute(description = "Number of reads of not cached balances.")
+    public long getMissCount() {
+        return sumStatistic(1);
+    }
+
+    @ManagedAttribute(description = "Number of evicted balances.")
+    public long getEvictionCount() {
+        return sumStatistic(2);
+    }
+
+    //-------------------Methods--------------------------------------------------
+    /**
+     * Reads cached balance.
+     *
+     * @param id balance identifier.
+     * @param absentValue value returned if balance is not cached.
+     * @return cached balance or absentValue.
+     */
+    public long getAmount(int id, long absentValue) {
+        inclusiveBetween(0, Integer.MAX_VALUE, id, KEY_IAE_MESSAGE);
+        long[] value = new long[1];
+        int hash = hash(id);
+        return segmentFor(hash).get(id, hash, value) ? value[0] : absentValue;
+    }
+
+    /**
+     * Caches balance. Replaces cached balance, keeps its version.
+     *
+     * @param id balance identifier.
+     * @param amount balance.
+     */
+    public void putAmount(int id, long amount) {
+        inclusiveBetween(0, Integer.MAX_VALUE, id, KEY_IAE_MESSAGE);
+        int hash = hash(id);
+        segmentFor(hash).put(id, hash, new long[]{amount}, NO_VERSION, PutMode.REPLACE,
+                null);
+    }
+
+    /**
+     * Caches balance, if balance is not cached or cached balance has older version.
+     *
+     * @param id balance identifier.
+     * @param amount balance.
+     * @param version offset of balance partition, which balance reflects.
+     * @return true if balance is cached.
+     */
+    public boolean putIfNewer(int id, long amount, long version) {
+        inclusiveBetween(0, Integer.MAX_VALUE, id, KEY_IAE_MESSAGE);
+        int hash = hash(id);
+        return segmentFor(hash).put(id, hash, new long[]{amount}, version, PutMode.IF_NEWER,
+                null);
+    }
+
+    /**
+     * Caches balance read from database, if it isn't older than partition watermark and than
+     * cached balance.
+     *
+     * @param partition partition of balance.
+     * @param id balance identifier.
+     * @param amount balance.
+     * @param version offset of balance partition, which read balance reflects.
+     * @return true if balance is cached.
+     */
+    public boolean putReadAmount(int partition, int id, long amount, long version) {
+        inclusiveBetween(0, Integer.MAX_VALUE, id, KEY_IAE_MESSAGE);
+        int hash = hash(id);
+        return segmentFor(hash).put(id, hash, new long[]{amount}, version, PutMode.IF_NEWER,
+                watermarkFor(partition));
+    }
+
+    /**
+     * Raises partition watermark. Committer calls it after commit and before it caches
+     * committed balances.
+     *
+     * @param partition partition number.
+     * @param offset offset of the last committed batch of partition.
+     */
+    public void advanceWatermark(int partition, long offset) {
+        AtomicLong watermark = watermarkFor(partition);
+        long current = watermark.get();
+        while (current < offset && !watermark.compareAndSet(current, offset)) {
+            current = watermark.get();
+        }
+    }
+
+    /**
+     * Removes balance from cache.
+     *
+     * @param id balance identifier.
+     */
+    public void evictAmount(int id) {
+        inclusiveBetween(0, Integer.MAX_VALUE, id, KEY_IAE_MESSAGE);
+        int hash = hash(id);
+        segmentFor(hash).evict(id, hash);
+    }
+
+    /**
+     * Removes balances, which match filter. Filter is called under segment locks, so it must not
+     * use cache.
+     *
+     * @param filter selects balances to remove.
+     * @return number of removed balances.
+     */
+    public int evictIf(IdFilter filter) {
+        notNull(filter, FILTER_NPE_MESSAGE);
+        int evicted = 0;
+        for (Segment segment : segments) {
+            evicted += segment.evictIf(filter);
+        }
+        return evicted;
+    }
+
+    @Override
+    public ValueWrapper get(Object key) {
+        int id = toId(key);
+        long[] value = new long[1];
+        int hash = hash(id);
+        return segmentFor(hash).get(id, hash, value) ? new SimpleValueWrapper(value[0]) : null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Class<T> type) {
+        ValueWrapper valueWrapper = get(key);
+        if (valueWrapper == null) {
+            return null;
+        }
+        Object value = valueWrapper.get();
+        if (type != null && !type.isInstance(value)) {
+            throw new IllegalStateException("Cached value is not of required type ["
+                    + type.getName() + "]: " + value);
+        }
+        return (T) value;
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        isInstanceOf(Long.class, value, VALUE_IAE_MESSAGE);
+        putAmount(toId(key), (Long) value);
+    }
+
+    @Override
+    public ValueWrapper putIfAbsent(Object key, Object value) {
+        isInstanceOf(Long.class, value, VALUE_IAE_MESSAGE);
+        int id = toId(key);
+        long[] amount = new long[]{(Long) value};
+        int hash = hash(id);
+        return segmentFor(hash).put(id, hash, amount, NO_VERSION, PutMode.IF_ABSENT, null) ? null
+                : new SimpleValueWrapper(amount[0]);
+    }
+
+    @Override
+    public void evict(Object key) {
+        evictAmount(toId(key));
+    }
+
+    @Override
+    @ManagedOperation(description = "Remove all cached balances.")
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * Reset statistic.
+     */
+    @ManagedOperation(description = "Reset statistic.")
+    public void reset() {
+        for (Segment segment : segments) {
+            segment.resetStatistic();
+        }
+    }
+
+    private Segment segmentFor(int hash) {
+        return segments[hash >>> SEGMENT_SHIFT];
+    }
+
+    private AtomicLong watermarkFor(int partition) {
+        AtomicLong watermark = watermarks.get(partition);
+        if (watermark == null) {
+            AtomicLong created = new AtomicLong(NO_VERSION);
+            watermark = watermarks.putIfAbsent(partition, created);
+            if (watermark == null) {
+                watermark = created;
+            }
+        }
+        return watermark;
+    }
+
+    private long sumStatistic(int index) {
+        long sum = 0;
+        for (Segment segment : segments) {
+            sum += segment.statistic()[index];
+        }
+        return sum;
+    }
+
+    private static int toId(Object key) {
+        notNull(key, KEY_NPE_MESSAGE);
+        isInstanceOf(Integer.class, key, KEY_IAE_MESSAGE);
+        int id = (Integer) key;
+        inclusiveBetween(0, Integer.MAX_VALUE, id, KEY_IAE_MESSAGE);
+        return id;
+    }
+
+    // Murmur3 finalizer, spreads sequential ids over segments and slots.
+    private static int hash(int key) {
+        int hash = key;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
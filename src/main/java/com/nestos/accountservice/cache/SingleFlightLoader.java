@@ -0,0 +1,181 @@
+package com.nestos.accountservice.cache;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.apache.commons.lang3.Validate.inclusiveBetween;
+import static org.apache.commons.lang3.Validate.notNull;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Collapses concurrent loads of the same key. First caller runs the load, callers which
+ * request the same key meanwhile wait for its result instead of loading again. Number of
+ * concurrent loads is bounded, waiting for load result or for free load slot is limited by
+ * timeout.
+ *
+ * @param <K> key type.
+ * @param <V> value type.
+ * @author Roman Osipov
+ */
+@ManagedResource(objectName = "accountService:name=SingleFlightLoader")
+public class SingleFlightLoader<K, V> {
+
+    //-------------------Logger---------------------------------------------------
+    //-------------------Constants------------------------------------------------
+    public static final String KEY_NPE_MESSAGE = "key can't be null.";
+    public static final String LOADER_NPE_MESSAGE = "loader can't be null.";
+    public static final String MAX_LOADS_IAE_MESSAGE = "maxConcurrentLoads must be positive.";
+    public static final String TIMEOUT_IAE_MESSAGE = "timeoutMs can't be negative.";
+    public static final String TIMEOUT_MESSAGE = "Can't load value in time.";
+    public static final int DEFAULT_MAX_CONCURRENT_LOADS = 50;
+    public static final long DEFAULT_TIMEOUT_MS = 5000;
+
+    //-------------------Fields---------------------------------------------------
+    private final ConcurrentMap<K, FutureTask<V>> loads = new ConcurrentHashMap<>();
+    private final Semaphore loadPermits;
+    private final int maxConcurrentLoads;
+    private volatile long timeoutMs = DEFAULT_TIMEOUT_MS;
+
+    // Statistic.
+    private final AtomicLong loadCount = new AtomicLong();
+    private final AtomicLong collapsedCount = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    //-------------------Constructors---------------------------------------------
+    public SingleFlightLoader() {
+        this(DEFAULT_MAX_CONCURRENT_LOADS);
+    }
+
+    /**
+     * Creates loader.
+     *
+     * @param maxConcurrentLoads maximum number of keys loaded at once.
+     */
+    public SingleFlightLoader(int maxConcurrentLoads) {
+        inclusiveBetween(1, Integer.MAX_VALUE, maxConcurrentLoads, MAX_LOADS_IAE_MESSAGE);
+        this.maxConcurrentLoads = maxConcurrentLoads;
+        this.loadPermits = new Semaphore(maxConcurrentLoads);
+    }
+
+    //-------------------Getters and setters--------------------------------------
+    @ManagedAttribute(description = "Maximum number of keys loaded at once.")
+    public int getMaxConcurrentLoads() {
+        return maxConcurrentLoads;
+    }
+
+    @ManagedAttribute(description = "Maximum time (ms) to wait for load result or load slot.")
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    @ManagedAttribute
+    public void setTimeoutMs(long timeoutMs) {
+        inclusiveBetween(0, Long.MAX_VALUE, timeoutMs, TIMEOUT_IAE_MESSAGE);
+        this.timeoutMs = timeoutMs;
+    }
+
+    @ManagedAttribute(description = "Number of keys loaded now.")
+    public int getActiveLoads() {
+        return loads.size();
+    }
+
+    @ManagedAttribute(description = "Number of performed loads.")
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of loads collapsed into loads in flight.")
+    public long getCollapsedCount() {
+        return collapsedCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of loads failed by timeout.")
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    //-------------------Methods--------------------------------------------------
+    /**
+     * Loads value of key, or waits for result of its load in flight.
+     *
+     * @param key key.
+     * @param loader loads value of key, invoked in caller thread.
+     * @return loaded value.
+     * @throws RuntimeException if load or load slot is not available within timeout.
+     */
+    public V load(K key, Callable<V> loader) {
+        notNull(key, KEY_NPE_MESSAGE);
+        notNull(loader, LOADER_NPE_MESSAGE);
+        FutureTask<V> load = new FutureTask<>(loader);
+        FutureTask<V> loadInFlight = loads.putIfAbsent(key, load);
+        if (loadInFlight != null) {
+            collapsedCount.incrementAndGet();
+            return await(loadInFlight);
+        }
+        try {
+            acquireLoadPermit();
+            try {
+                loadCount.incrementAndGet();
+                load.run();
+            } finally {
+                loadPermits.release();
+            }
+        } catch (RuntimeException ex) {
+            // release callers, which wait for this load
+            load.cancel(false);
+            throw ex;
+        } finally {
+            loads.remove(key, load);
+        }
+        return await(load);
+    }
+
+    /**
+     * Reset statistic.
+     */
+    @ManagedOperation(description = "Reset statistic.")
+    public void reset() {
+        loadCount.set(0);
+        collapsedCount.set(0);
+        timeoutCount.set(0);
+    }
+
+    private void acquireLoadPermit() {
+        try {
+            if (!loadPermits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+                timeoutCount.incrementAndGet();
+                throw new RuntimeException(TIMEOUT_MESSAGE);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(TIMEOUT_MESSAGE);
+        }
+    }
+
+    private V await(FutureTask<V> load) {
+        try {
+            return load.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            timeoutCount.incrementAndGet();
+            throw new RuntimeException(TIMEOUT_MESSAGE);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(TIMEOUT_MESSAGE);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw (cause instanceof RuntimeException) ? (RuntimeException) cause
+                    : new RuntimeException(cause);
+        } catch (CancellationException ex) {
+            throw new RuntimeException(TIMEOUT_MESSAGE);
+        }
+    }
+}
@@ -1,10 +1,9 @@
 package com.nestos.accountservice.domain;
 
 import java.io.Serializable;
+import java.util.Objects;
 import javax.persistence.Entity;
 import javax.persistence.Id;
-import org.apache.commons.lang3.builder.EqualsBuilder;
-import org.apache.commons.lang3.builder.HashCodeBuilder;
 import static org.apache.commons.lang3.Validate.*;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 
@@ -55,14 +54,22 @@ public class Account implements Serializable {
     }
 
     //-------------------Methods--------------------------------------------------
+    // Field-based: accounts of batches are hashed and compared without reflection.
     @Override
     public int hashCode() {
-        return HashCodeBuilder.reflectionHashCode(this);
+        return 31 * Objects.hashCode(id) + Objects.hashCode(amount);
     }
 
     @Override
     public boolean equals(Object that) {
-        return EqualsBuilder.reflectionEquals(this, that);
+        if (this == that) {
+            return true;
+        }
+        if (!(that instanceof Account)) {
+            return false;
+        }
+        Account account = (Account) that;
+        return Objects.equals(id, account.getId()) && Objects.equals(amount, account.getAmount());
     }
 
     @Override
@@ -1,8 +1,12 @@
 package com.nestos.accountservice.domain;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
 import org.apache.commons.lang3.SerializationUtils;
 import static org.apache.commons.lang3.Validate.inclusiveBetween;
+import static org.apache.commons.lang3.Validate.isTrue;
 import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
@@ -10,20 +14,49 @@ import org.apache.commons.lang3.builder.ToStringBuilder;
 /**
  * Add value operation. Immutable.
  *
+ * Binary wire format (big-endian, 13 bytes): format tag (1 byte), id (4 bytes), value (8 bytes).
+ * Envelope wire format packs several operations into one record: format tag (1 byte),
+ * operations count (4 bytes), then id (4 bytes) and value (8 bytes) of each operation.
+ * Java serialization stream always starts with 0xACED, so decoder distinguishes binary records
+ * from records written by previous service versions by first byte.
+ *
  * @author Roman Osipov
  */
 public final class AddOperation implements Serializable {
 
     //-------------------Logger---------------------------------------------------
+    //-------------------NestedClasses--------------------------------------------
+    /**
+     * Wire format used to encode operations.
+     */
+    public enum WireFormat {
+
+        // Fixed-width binary record.
+        BINARY,
+        // Java serialization. Readable by previous service versions.
+        SERIALIZED
+    }
+
     //-------------------Constants------------------------------------------------
+    // Must match computed UID of previous versions, otherwise legacy records can't be decoded.
+    private static final long serialVersionUID = 7043261831813347731L;
 
     public static final String ID_IAE_MESSAGE = "id can't be negative.";
+    public static final String FORMAT_IAE_MESSAGE = "unknown wire format.";
+
+    public static final byte BINARY_FORMAT_TAG = 0x01;
+    public static final int BINARY_SIZE = 1 + 4 + 8;
+    public static final byte ENVELOPE_FORMAT_TAG = 0x02;
+    public static final int ENVELOPE_HEADER_SIZE = 1 + 4;
+    public static final int ENVELOPE_ITEM_SIZE = 4 + 8;
+    // First byte of java serialization stream magic 0xACED.
+    private static final byte SERIALIZED_FORMAT_TAG = (byte) 0xAC;
 
     //-------------------Fields---------------------------------------------------
-    // Balance identifier.  
+    // Balance identifier.
     private final int id;
 
-    // Amount to add. 
+    // Amount to add.
     private final long value;
 
     //-------------------Constructors---------------------------------------------
@@ -43,7 +76,7 @@ public final class AddOperation implements Serializable {
     }
 
    //-------------------Methods--------------------------------------------------
-    
+
     @Override
     public int hashCode() {
         return HashCodeBuilder.reflectionHashCode(this);
@@ -57,22 +90,169 @@ public final class AddOperation implements Serializable {
     @Override
     public String toString() {
         return ToStringBuilder.reflectionToString(this);
-    } 
-    
+    }
+
    /**
-    * Encode instance to byte array.
+    * Encode instance to byte array in binary wire format.
     * @return byte array instance representation.
-    */ 
+    */
    public byte[] toByteArray() {
-       return SerializationUtils.serialize(this);
+       ByteBuffer buffer = ByteBuffer.allocate(BINARY_SIZE);
+       writeTo(buffer);
+       return buffer.array();
     }
-    
+
    /**
-    * Decode instance from byte array.
+    * Encode instance to byte array in specified wire format.
+    * @param wireFormat target wire format.
+    * @return byte array instance representation.
+    */
+   public byte[] toByteArray(WireFormat wireFormat) {
+       return (wireFormat == WireFormat.SERIALIZED)
+               ? SerializationUtils.serialize(this) : toByteArray();
+   }
+
+   /**
+    * Encode instance in binary wire format into buffer, starting at buffer current position.
+    * Position advances by {@link #BINARY_SIZE}.
+    * @param buffer target buffer.
+    */
+   public void writeTo(ByteBuffer buffer) {
+       buffer.put(BINARY_FORMAT_TAG);
+       buffer.putInt(id);
+       buffer.putLong(value);
+   }
+
+   /**
+    * Decode instance from byte array. Both binary and serialized formats are supported.
     * @param data source byte array.
-    * @return created AddOperation instance. 
+    * @return created AddOperation instance.
     */
     public static AddOperation valueOf(byte[] data) {
-       return (AddOperation) SerializationUtils.deserialize(data); 
-    } 
+       return valueOf(ByteBuffer.wrap(data));
+    }
+
+   /**
+    * Decode instance from buffer remaining bytes. Both binary and serialized formats are supported.
+    * Buffer position is not changed.
+    * @param buffer source buffer.
+    * @return created AddOperation instance.
+    */
+    public static AddOperation valueOf(ByteBuffer buffer) {
+        isTrue(buffer.hasRemaining(), FORMAT_IAE_MESSAGE);
+        int start = buffer.position();
+        byte tag = buffer.get(start);
+        if (tag == BINARY_FORMAT_TAG) {
+            isTrue(buffer.remaining() >= BINARY_SIZE, FORMAT_IAE_MESSAGE);
+            return new AddOperation(buffer.getInt(start + 1), buffer.getLong(start + 5));
+        }
+        if (tag == SERIALIZED_FORMAT_TAG) {
+            // legacy record, written by previous service version
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            return (AddOperation) SerializationUtils.deserialize(bytes);
+        }
+        throw new IllegalArgumentException(FORMAT_IAE_MESSAGE);
+    }
+
+   /**
+    * Returns size of envelope record for specified number of operations.
+    * @param count number of operations.
+    * @return envelope size in bytes.
+    */
+    public static int envelopeSize(int count) {
+        return ENVELOPE_HEADER_SIZE + count * ENVELOPE_ITEM_SIZE;
+    }
+
+   /**
+    * Encode operations sublist into buffer as single envelope record, starting at buffer current
+    * position. Position advances by {@link #envelopeSize(int) envelopeSize(toIndex - fromIndex)}.
+    * @param addOperations source operations.
+    * @param fromIndex index of first encoded operation, inclusive.
+    * @param toIndex index of last encoded operation, exclusive.
+    * @param buffer target buffer.
+    */
+    public static void writeEnvelope(List<AddOperation> addOperations, int fromIndex, int toIndex,
+            ByteBuffer buffer) {
+        buffer.put(ENVELOPE_FORMAT_TAG);
+        buffer.putInt(toIndex - fromIndex);
+        for (int i = fromIndex; i < toIndex; i++) {
+            AddOperation addOperation = addOperations.get(i);
+            buffer.putInt(addOperation.id);
+            buffer.putLong(addOperation.value);
+        }
+    }
+
+   /**
+    * Encode operations of array into buffer as single envelope record, starting at buffer current
+    * position. Position advances by {@link #envelopeSize(int) envelopeSize(addOperations.size())}.
+    * @param addOperations source operations.
+    * @param buffer target buffer.
+    */
+    public static void writeEnvelope(AddOperationArray addOperations, ByteBuffer buffer) {
+        buffer.put(ENVELOPE_FORMAT_TAG);
+        buffer.putInt(addOperations.size());
+        for (int i = 0; i < addOperations.size(); i++) {
+            buffer.putInt(addOperations.getId(i));
+            buffer.putLong(addOperations.getValue(i));
+        }
+    }
+
+   /**
+    * Decode all operations from record of any supported format and add them to target collection.
+    * Buffer position is not changed.
+    * @param buffer source buffer.
+    * @param target collection for decoded operations.
+    */
+    public static void decodeAll(ByteBuffer buffer, Collection<AddOperation> target) {
+        isTrue(buffer.hasRemaining(), FORMAT_IAE_MESSAGE);
+        int start = buffer.position();
+        if (buffer.get(start) != ENVELOPE_FORMAT_TAG) {
+            target.add(valueOf(buffer));
+            return;
+        }
+        isTrue(buffer.remaining() >= ENVELOPE_HEADER_SIZE, FORMAT_IAE_MESSAGE);
+        int count = buffer.getInt(start + 1);
+        isTrue(count >= 0
+                && count <= (buffer.remaining() - ENVELOPE_HEADER_SIZE) / ENVELOPE_ITEM_SIZE,
+                FORMAT_IAE_MESSAGE);
+        int position = start + ENVELOPE_HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            target.add(new AddOperation(buffer.getInt(position), buffer.getLong(position + 4)));
+            position += ENVELOPE_ITEM_SIZE;
+        }
+    }
+
+   /**
+    * Decode all operations from record of any supported format into primitive array. Binary and
+    * envelope records are decoded without creating operation objects. Buffer position is not
+    * changed.
+    * @param buffer source buffer.
+    * @param target array for decoded operations.
+    */
+    public static void decodeAll(ByteBuffer buffer, AddOperationArray target) {
+        isTrue(buffer.hasRemaining(), FORMAT_IAE_MESSAGE);
+        int start = buffer.position();
+        byte tag = buffer.get(start);
+        if (tag == BINARY_FORMAT_TAG) {
+            isTrue(buffer.remaining() >= BINARY_SIZE, FORMAT_IAE_MESSAGE);
+            target.add(buffer.getInt(start + 1), buffer.getLong(start + 5));
+            return;
+        }
+        if (tag != ENVELOPE_FORMAT_TAG) {
+            AddOperation addOperation = valueOf(buffer);
+            target.add(addOperation.id, addOperation.value);
+            return;
+        }
+        isTrue(buffer.remaining() >= ENVELOPE_HEADER_SIZE, FORMAT_IAE_MESSAGE);
+        int count = buffer.getInt(start + 1);
+        isTrue(count >= 0
+                && count <= (buffer.remaining() - ENVELOPE_HEADER_SIZE) / ENVELOPE_ITEM_SIZE,
+                FORMAT_IAE_MESSAGE);
+        int position = start + ENVELOPE_HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            target.add(buffer.getInt(position), buffer.getLong(position + 4));
+            position += ENVELOPE_ITEM_SIZE;
+        }
+    }
 }
@@ -0,0 +1,181 @@
+package com.nestos.accountservice.domain;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import static org.apache.commons.lang3.Validate.inclusiveBetween;
+import static org.apache.commons.lang3.Validate.isTrue;
+import static org.apache.commons.lang3.Validate.notNull;
+
+/**
+ * Add operations kept in parallel primitive arrays of account ids and values. Fetched batch is
+ * decoded and applied without object per operation. Array grows on add and keeps its capacity,
+ * when cleared, so it can be reused by the next batch.
+ *
+ * @author Roman Osipov
+ */
+public class AddOperationArray {
+
+    //-------------------Logger---------------------------------------------------
+    //-------------------Constants------------------------------------------------
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final String CAPACITY_IAE_MESSAGE = "capacity can't be negative.";
+    public static final String ADD_OPERATIONS_NPE_MESSAGE = "addOperations can't be null.";
+    public static final String INDEX_IAE_MESSAGE = "Index out of range.";
+
+    //-------------------Fields---------------------------------------------------
+    private int[] ids;
+    private long[] values;
+    private int size;
+
+    //-------------------Constructors---------------------------------------------
+    public AddOperationArray() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public AddOperationArray(int capacity) {
+        inclusiveBetween(0, Integer.MAX_VALUE, capacity, CAPACITY_IAE_MESSAGE);
+        this.ids = new int[capacity];
+        this.values = new long[capacity];
+    }
+
+    /**
+     * Creates array of operations from list.
+     *
+     * @param addOperations source operations.
+     * @return array of the same operations.
+     */
+    public static AddOperationArray of(List<AddOperation> addOperations) {
+        notNull(addOperations, ADD_OPERATIONS_NPE_MESSAGE);
+        AddOperationArray array = new AddOperationArray(addOperations.size());
+        for (AddOperation addOperation : addOperations) {
+            array.add(addOperation.getId(), addOperation.getValue());
+        }
+        return array;
+    }
+
+    //-------------------Getters and setters--------------------------------------
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    public long getValue(int index) {
+        return values[index];
+    }
+
+    //-------------------Methods--------------------------------------------------
+    /**
+     * Appends operation.
+     *
+     * @param id account id.
+     * @param value added value.
+     */
+    public void add(int id, long value) {
+        if (size == ids.length) {
+            int capacity = Math.max(DEFAULT_CAPACITY, 2 * size);
+            ids = Arrays.copyOf(ids, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        ids[size] = id;
+        values[size] = value;
+        size++;
+    }
+
+    /**
+     * Drops operations from specified index, capacity is kept.
+     *
+     * @param newSize number of kept operations.
+     */
+    public void truncate(int newSize) {
+        inclusiveBetween(0, size, newSize, INDEX_IAE_MESSAGE);
+        size = newSize;
+    }
+
+    /**
+     * Drops all operations, capacity is kept.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Copies operations fromIndex..toIndex-1 into new array.
+     *
+     * @param fromIndex index of the first operation, inclusive.
+     * @param toIndex index of the last operation, exclusive.
+     * @return new array.
+     */
+    public AddOperationArray copyOfRange(int fromIndex, int toIndex) {
+        isTrue(0 <= fromIndex && fromIndex <= toIndex && toIndex <= size, INDEX_IAE_MESSAGE);
+        AddOperationArray copy = new AddOperationArray(0);
+        copy.ids = Arrays.copyOfRange(ids, fromIndex, toIndex);
+        copy.values = Arrays.copyOfRange(values, fromIndex, toIndex);
+        copy.size = toIndex - fromIndex;
+        return copy;
+    }
+
+    /**
+     * Returns list view of operations. Each get creates new operation, so view is for callers,
+     * which aren't on processing path.
+     *
+     * @return unmodifiable list view.
+     */
+    public List<AddOperation> asList() {
+        return new AbstractList<AddOperation>() {
+
+            @Override
+            public AddOperation get(int index) {
+                isTrue(index < size, INDEX_IAE_MESSAGE);
+                return new AddOperation(ids[index], values[index]);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        for (int i = 0; i < size; i++) {
+            hash = 31 * hash + ids[i];
+            hash = 31 * hash + (int) (values[i] ^ (values[i] >>> 32));
+        }
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof AddOperationArray)) {
+            return false;
+        }
+        AddOperationArray that = (AddOperationArray) obj;
+        if (size != that.size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (ids[i] != that.ids[i] || values[i] != that.values[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return asList().toString();
+    }
+}
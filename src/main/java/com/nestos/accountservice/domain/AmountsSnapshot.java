@@ -0,0 +1,64 @@
+package com.nestos.accountservice.domain;
+
+import java.util.Map;
+import static org.apache.commons.lang3.Validate.notNull;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * Account balances read together with Kafka partition offsets. Partition offsets are read
+ * before balances, so each balance reflects at least offset of its partition. Offset is used
+ * as balance version in account cache.
+ *
+ * @author Roman Osipov
+ */
+public class AmountsSnapshot {
+
+    //-------------------Logger---------------------------------------------------
+    //-------------------Constants------------------------------------------------
+    public static final String AMOUNTS_NPE_MESSAGE = "amounts can't be null.";
+    public static final String OFFSETS_NPE_MESSAGE = "partitionOffsets can't be null.";
+
+    //-------------------Fields---------------------------------------------------
+    // Key - account id, value - balance. Not stored accounts are absent.
+    private final Map<Integer, Long> amounts;
+
+    // Key - partition id, value - offset. Not processed partitions are absent.
+    private final Map<Integer, Long> partitionOffsets;
+
+    //-------------------Constructors---------------------------------------------
+    public AmountsSnapshot(Map<Integer, Long> amounts, Map<Integer, Long> partitionOffsets) {
+        notNull(amounts, AMOUNTS_NPE_MESSAGE);
+        notNull(partitionOffsets, OFFSETS_NPE_MESSAGE);
+        this.amounts = amounts;
+        this.partitionOffsets = partitionOffsets;
+    }
+
+    //-------------------Getters and setters--------------------------------------
+    //-------------------Methods--------------------------------------------------
+    /**
+     * Returns account balance.
+     *
+     * @param id account id.
+     * @return balance or zero if account is not stored.
+     */
+    public long getAmount(int id) {
+        Long amount = amounts.get(id);
+        return (amount == null) ? 0 : amount;
+    }
+
+    /**
+     * Returns partition offset.
+     *
+     * @param partitionId partition id.
+     * @return offset or zero if partition is not processed yet.
+     */
+    public long getOffset(int partitionId) {
+        Long offset = partitionOffsets.get(partitionId);
+        return (offset == null) ? 0 : offset;
+    }
+
+    @Override
+    public String toString() {
+        return ToStringBuilder.reflectionToString(this);
+    }
+}
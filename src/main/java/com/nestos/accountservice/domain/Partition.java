@@ -1,12 +1,11 @@
 package com.nestos.accountservice.domain;
 
 import java.io.Serializable;
+import java.util.Objects;
 import javax.persistence.Entity;
 import javax.persistence.Id;
 import javax.persistence.Table;
 import static org.apache.commons.lang3.Validate.inclusiveBetween;
-import org.apache.commons.lang3.builder.EqualsBuilder;
-import org.apache.commons.lang3.builder.HashCodeBuilder;
 import org.apache.commons.lang3.builder.ToStringBuilder;
 
 /**
@@ -58,12 +57,20 @@ public class Partition implements Serializable {
     
     @Override
     public int hashCode() {
-        return HashCodeBuilder.reflectionHashCode(this);
+        return 31 * Objects.hashCode(id) + Objects.hashCode(offset);
     }
 
     @Override
     public boolean equals(Object that) {
-        return EqualsBuilder.reflectionEquals(this, that);
+        if (this == that) {
+            return true;
+        }
+        if (!(that instanceof Partition)) {
+            return false;
+        }
+        Partition partition = (Partition) that;
+        return Objects.equals(id, partition.getId())
+                && Objects.equals(offset, partition.getOffset());
     }
 
     @Override
@@ -0,0 +1,179 @@
+package com.nestos.accountservice.domain;
+
+import java.io.Serializable;
+import java.util.Objects;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.Table;
+import static org.apache.commons.lang3.Validate.inclusiveBetween;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * Offset of account shard of Kafka partition. Batch applied in parallel commits each shard of
+ * its accounts in own transaction together with shard offset, then partition offset. Shard
+ * offset greater than partition offset means, that shard of batch is applied and must be
+ * skipped, when batch is applied again.
+ *
+ * @author Roman Osipov
+ */
+@Entity
+@Table(name = "partitionshard")
+@IdClass(PartitionShard.Key.class)
+public class PartitionShard implements Serializable {
+
+    //-------------------NestedClasses--------------------------------------------
+    /**
+     * Partition shard primary key.
+     */
+    public static class Key implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private Integer partitionId;
+        private Integer shard;
+
+        public Key() {
+        }
+
+        public Key(Integer partitionId, Integer shard) {
+            this.partitionId = partitionId;
+            this.shard = shard;
+        }
+
+        public Integer getPartitionId() {
+            return partitionId;
+        }
+
+        public Integer getShard() {
+            return shard;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Objects.hashCode(partitionId) + Objects.hashCode(shard);
+        }
+
+        @Override
+        public boolean equals(Object that) {
+            if (this == that) {
+                return true;
+            }
+            if (!(that instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) that;
+            return Objects.equals(partitionId, key.getPartitionId())
+                    && Objects.equals(shard, key.getShard());
+        }
+    }
+
+    //-------------------Logger---------------------------------------------------
+    //-------------------Constants------------------------------------------------
+    private static final long serialVersionUID = 1L;
+    public static final String PARTITION_ID_IAE_MESSAGE = "partitionId can't be negative.";
+    public static final String SHARD_IAE_MESSAGE = "shard can't be negative.";
+    public static final String SHARDS_NUM_IAE_MESSAGE = "shardsNum must be positive.";
+    public static final String OFFSET_IAE_MESSAGE = "offset can't be negative.";
+
+    //-------------------Fields---------------------------------------------------
+    @Id
+    private Integer partitionId;
+
+    @Id
+    private Integer shard;
+
+    // Number of shards, which batch was split into: it defines shard of account.
+    private Integer shardsNum;
+
+    // Offset of the next message after batch, which shard is applied up to.
+    private Long offset = 0L;
+
+    //-------------------Constructors---------------------------------------------
+    public PartitionShard() {
+    }
+
+    public PartitionShard(int partitionId, int shard, int shardsNum, long offset) {
+        setPartitionId(partitionId);
+        setShard(shard);
+        setShardsNum(shardsNum);
+        setOffset(offset);
+    }
+
+    //-------------------Getters and setters--------------------------------------
+    public Integer getPartitionId() {
+        return partitionId;
+    }
+
+    public void setPartitionId(Integer partitionId) {
+        inclusiveBetween(0, Integer.MAX_VALUE, partitionId, PARTITION_ID_IAE_MESSAGE);
+        this.partitionId = partitionId;
+    }
+
+    public Integer getShard() {
+        return shard;
+    }
+
+    public void setShard(Integer shard) {
+        inclusiveBetween(0, Integer.MAX_VALUE, shard, SHARD_IAE_MESSAGE);
+        this.shard = shard;
+    }
+
+    public Integer getShardsNum() {
+        return shardsNum;
+    }
+
+    public void setShardsNum(Integer shardsNum) {
+        inclusiveBetween(1, Integer.MAX_VALUE, shardsNum, SHARDS_NUM_IAE_MESSAGE);
+        this.shardsNum = shardsNum;
+    }
+
+    public Long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(Long offset) {
+        inclusiveBetween(0, Long.MAX_VALUE, offset, OFFSET_IAE_MESSAGE);
+        this.offset = offset;
+    }
+
+    //-------------------Methods--------------------------------------------------
+    /**
+     * Returns shard of account. Shards don't follow partitioning of accounts, so accounts of one
+     * partition are spread over all shards.
+     *
+     * @param id account id.
+     * @param shardsNum number of shards.
+     * @return shard number 0..shardsNum-1.
+     */
+    public static int shardFor(int id, int shardsNum) {
+        // Fibonacci hashing takes high bits of product, partitions are chosen by murmur2
+        return (int) ((((id * 0x9E3779B9L) & 0xFFFFFFFFL) * shardsNum) >>> 32);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * Objects.hashCode(partitionId) + Objects.hashCode(shard))
+                + Objects.hashCode(shardsNum)) + Objects.hashCode(offset);
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        if (this == that) {
+            return true;
+        }
+        if (!(that instanceof PartitionShard)) {
+            return false;
+        }
+        PartitionShard partitionShard = (PartitionShard) that;
+        return Objects.equals(partitionId, partitionShard.getPartitionId())
+                && Objects.equals(shard, partitionShard.getShard())
+                && Objects.equals(shardsNum, partitionShard.getShardsNum())
+                && Objects.equals(offset, partitionShard.getOffset());
+    }
+
+    @Override
+    public String toString() {
+        return ToStringBuilder.reflectionToString(this);
+    }
+}
@@ -0,0 +1,130 @@
+package com.nestos.accountservice.domain;
+
+import java.io.Serializable;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import static org.apache.commons.lang3.Validate.inclusiveBetween;
+import static org.apache.commons.lang3.Validate.notNull;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * Kafka message, which can't be decoded or applied. Message is stored in quarantine together
+ * with partition offset commit, which skips it, and may be replayed later.
+ *
+ * @author Roman Osipov
+ */
+@Entity
+@Table(name = "quarantine")
+public class QuarantinedMessage implements Serializable {
+
+    //-------------------Logger---------------------------------------------------
+    //-------------------Constants------------------------------------------------
+    private static final long serialVersionUID = 1L;
+    public static final String PARTITION_ID_IAE_MESSAGE = "partitionId can't be negative.";
+    public static final String MESSAGE_OFFSET_IAE_MESSAGE = "messageOffset can't be negative.";
+    public static final String PAYLOAD_NPE_MESSAGE = "payload can't be null.";
+    // Maximum stored length of failure reason.
+    public static final int MAX_REASON_LENGTH = 1000;
+
+    //-------------------Fields---------------------------------------------------
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // Kafka partition and offset of message.
+    private Integer partitionId;
+
+    private Long messageOffset;
+
+    // Message value: raw record, if it can't be decoded, otherwise envelope of its operations.
+    @Lob
+    private byte[] payload;
+
+    // Failure description.
+    @Column(length = MAX_REASON_LENGTH)
+    private String reason;
+
+    // Quarantine time (ms since epoch).
+    private Long quarantineTime;
+
+    //-------------------Constructors---------------------------------------------
+    public QuarantinedMessage() {
+    }
+
+    public QuarantinedMessage(int partitionId, long messageOffset, byte[] payload,
+            String reason) {
+        setPartitionId(partitionId);
+        setMessageOffset(messageOffset);
+        setPayload(payload);
+        setReason(reason);
+        this.quarantineTime = System.currentTimeMillis();
+    }
+
+    //-------------------Getters and setters--------------------------------------
+    public Long getId() {
+        return id;
+    }
+
+    public Integer getPartitionId() {
+        return partitionId;
+    }
+
+    public void setPartitionId(Integer partitionId) {
+        inclusiveBetween(0, Integer.MAX_VALUE, partitionId, PARTITION_ID_IAE_MESSAGE);
+        this.partitionId = partitionId;
+    }
+
+    public Long getMessageOffset() {
+        return messageOffset;
+    }
+
+    public void setMessageOffset(Long messageOffset) {
+        inclusiveBetween(0, Long.MAX_VALUE, messageOffset, MESSAGE_OFFSET_IAE_MESSAGE);
+        this.messageOffset = messageOffset;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public void setPayload(byte[] payload) {
+        notNull(payload, PAYLOAD_NPE_MESSAGE);
+        this.payload = payload;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public void setReason(String reason) {
+        this.reason = (reason != null && reason.length() > MAX_REASON_LENGTH)
+                ? reason.substring(0, MAX_REASON_LENGTH) : reason;
+    }
+
+    public Long getQuarantineTime() {
+        return quarantineTime;
+    }
+
+    //-------------------Methods--------------------------------------------------
+    @Override
+    public int hashCode() {
+        return HashCodeBuilder.reflectionHashCode(this);
+    }
+
+    @Override
+    public boolean equals(Object that) {
+        return EqualsBuilder.reflectionEquals(this, that);
+    }
+
+    @Override
+    public String toString() {
+        return ToStringBuilder.reflectionToString(this);
+    }
+}
@@ -1,12 +1,24 @@
 package com.nestos.accountservice.javaconfig;
 
 import com.nestos.accountservice.aspect.StatisticHandler;
+import com.nestos.accountservice.cache.BalanceCache;
+import com.nestos.accountservice.cache.SingleFlightLoader;
+import com.nestos.accountservice.domain.AddOperation;
+import com.nestos.accountservice.jpa.AccountServiceImpl;
+import com.nestos.accountservice.jpa.ParallelApplyPool;
+import com.nestos.accountservice.kafka.GroupCommitWriter;
 import com.nestos.accountservice.kafka.KafkaClient;
+import com.nestos.accountservice.processor.PartitionCoordinator;
+import com.nestos.accountservice.processor.PartitionProcessor;
 import com.nestos.accountservice.processor.PartitionProcessorPool;
+import com.nestos.accountservice.processor.GroupCommitCoordinator;
+import com.nestos.accountservice.processor.WriteBehindTable;
+import com.nestos.accountservice.service.BatchAccountService;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cache.annotation.EnableCaching;
-import org.springframework.cache.ehcache.EhCacheCacheManager;
-import org.springframework.cache.ehcache.EhCacheManagerFactoryBean;
+import org.springframework.cache.support.SimpleCacheManager;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
@@ -16,7 +28,6 @@ import org.springframework.context.annotation.ImportResource;
 import org.springframework.context.annotation.Profile;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.core.env.Environment;
-import org.springframework.core.io.ClassPathResource;
 
 /**
  * Spring java config class.
@@ -29,7 +40,7 @@ import org.springframework.core.io.ClassPathResource;
 @EnableMBeanExport
 @ImportResource({"classpath:datasource-tx-jpa.xml", "classpath:rmi.xml"})
 @ComponentScan("com.nestos.accountservice.jpa")
-@PropertySource("classpath:kafka.properties")
+@PropertySource({"classpath:kafka.properties", "classpath:service.properties"})
 public class ServiceConfig {
     //-------------------Logger---------------------------------------------------
     //-------------------Constants------------------------------------------------
@@ -43,16 +54,29 @@ public class ServiceConfig {
     //-------------------Methods--------------------------------------------------
     //-------------------Beans----------------------------------------------------
     @Bean
-    public EhCacheCacheManager cacheManager() {
-        return new EhCacheCacheManager(ehcache().getObject());
+    public SimpleCacheManager cacheManager() {
+        SimpleCacheManager cacheManager = new SimpleCacheManager();
+        cacheManager.setCaches(Collections.singletonList(balanceCache()));
+        return cacheManager;
     }
 
     @Bean
-    public EhCacheManagerFactoryBean ehcache() {
-        EhCacheManagerFactoryBean ecf = new EhCacheManagerFactoryBean();
-        ecf.setConfigLocation(new ClassPathResource("service-ehcache.xml"));
-        ecf.setCacheManagerName("accountServiceCacheManager");
-        return ecf;
+    public BalanceCache balanceCache() {
+        return new BalanceCache(AccountServiceImpl.ACCOUNT_CACHE_NAME,
+                env.getProperty("cache.maxEntries", Integer.class,
+                        BalanceCache.DEFAULT_MAX_ENTRIES),
+                env.getProperty("cache.offHeap", Boolean.class, false));
+    }
+
+    // Collapses concurrent loads of not cached balances.
+    @Bean
+    public SingleFlightLoader<Integer, Long> amountLoader() {
+        SingleFlightLoader<Integer, Long> amountLoader = new SingleFlightLoader<>(
+                env.getProperty("cache.maxConcurrentLoads", Integer.class,
+                        SingleFlightLoader.DEFAULT_MAX_CONCURRENT_LOADS));
+        amountLoader.setTimeoutMs(env.getProperty("cache.loadTimeoutMs", Long.class,
+                SingleFlightLoader.DEFAULT_TIMEOUT_MS));
+        return amountLoader;
     }
 
     // Aspect for collect statistics.
@@ -68,7 +92,23 @@ public class ServiceConfig {
         int zooPort = env.getProperty("zookeeper.port", Integer.class);
         String kafkaHost = env.getProperty("kafka.host");
         int kafkaPort = env.getProperty("kafka.port", Integer.class);
-        return new KafkaClient(zooHost, zooPort, kafkaHost, kafkaPort, "accountTopic");
+        KafkaClient kafkaClient = new KafkaClient(zooHost, zooPort, kafkaHost, kafkaPort,
+                "accountTopic");
+        kafkaClient.setWireFormat(env.getProperty("kafka.wireFormat",
+                AddOperation.WireFormat.class, AddOperation.WireFormat.BINARY));
+        kafkaClient.setFetchMaxWaitMs(env.getProperty("kafka.fetch.maxWaitMs",
+                Integer.class, KafkaClient.DEFAULT_FETCH_MAX_WAIT_MS));
+        kafkaClient.setFetchMinBytes(env.getProperty("kafka.fetch.minBytes",
+                Integer.class, KafkaClient.DEFAULT_FETCH_MIN_BYTES));
+        kafkaClient.setPartitionsNum(env.getProperty("kafka.partitions",
+                Integer.class, KafkaClient.DEFAULT_PARTITIONS_NUM));
+        kafkaClient.setMinFetchSize(env.getProperty("kafka.fetch.minSize",
+                Integer.class, KafkaClient.MIN_FETCH_SIZE));
+        kafkaClient.setMaxFetchSize(env.getProperty("kafka.fetch.maxSize",
+                Integer.class, KafkaClient.DEFAULT_MAX_FETCH_SIZE));
+        kafkaClient.setTargetApplyLatencyMs(env.getProperty("kafka.fetch.targetApplyLatencyMs",
+                Long.class, KafkaClient.DEFAULT_TARGET_APPLY_LATENCY_MS));
+        return kafkaClient;
     }
     
     @Bean
@@ -78,12 +118,113 @@ public class ServiceConfig {
         int zooPort = env.getProperty("zookeeper.port", Integer.class);
         String kafkaHost = env.getProperty("kafka.host");
         int kafkaPort = env.getProperty("kafka.port", Integer.class);
-        return new KafkaClient(zooHost, zooPort, kafkaHost, kafkaPort, "testAccountTopic");
+        KafkaClient kafkaClient = new KafkaClient(zooHost, zooPort, kafkaHost, kafkaPort,
+                "testAccountTopic");
+        kafkaClient.setWireFormat(env.getProperty("kafka.wireFormat",
+                AddOperation.WireFormat.class, AddOperation.WireFormat.BINARY));
+        kafkaClient.setFetchMaxWaitMs(env.getProperty("kafka.fetch.maxWaitMs",
+                Integer.class, KafkaClient.DEFAULT_FETCH_MAX_WAIT_MS));
+        kafkaClient.setFetchMinBytes(env.getProperty("kafka.fetch.minBytes",
+                Integer.class, KafkaClient.DEFAULT_FETCH_MIN_BYTES));
+        kafkaClient.setPartitionsNum(env.getProperty("kafka.partitions",
+                Integer.class, KafkaClient.DEFAULT_PARTITIONS_NUM));
+        kafkaClient.setMinFetchSize(env.getProperty("kafka.fetch.minSize",
+                Integer.class, KafkaClient.MIN_FETCH_SIZE));
+        kafkaClient.setMaxFetchSize(env.getProperty("kafka.fetch.maxSize",
+                Integer.class, KafkaClient.DEFAULT_MAX_FETCH_SIZE));
+        kafkaClient.setTargetApplyLatencyMs(env.getProperty("kafka.fetch.targetApplyLatencyMs",
+                Long.class, KafkaClient.DEFAULT_TARGET_APPLY_LATENCY_MS));
+        return kafkaClient;
     }
     
+    @Bean
+    public GroupCommitWriter groupCommitWriter(KafkaClient kafkaClient) {
+        GroupCommitWriter groupCommitWriter = new GroupCommitWriter(kafkaClient);
+        groupCommitWriter.setMaxBatchSize(env.getProperty("kafka.groupCommit.maxBatchSize",
+                Integer.class, GroupCommitWriter.DEFAULT_MAX_BATCH_SIZE));
+        groupCommitWriter.setMaxWaitMs(env.getProperty("kafka.groupCommit.maxWaitMs",
+                Long.class, GroupCommitWriter.DEFAULT_MAX_WAIT_MS));
+        groupCommitWriter.setCoalescing(env.getProperty("kafka.groupCommit.coalescing",
+                Boolean.class, false));
+        return groupCommitWriter;
+    }
+
+    // Shares partitions with other nodes of the same topic through ZooKeeper.
+    @Bean
+    public PartitionCoordinator partitionCoordinator(KafkaClient kafkaClient) {
+        if (!env.getProperty("processor.coordination", Boolean.class, false)) {
+            return new PartitionCoordinator();
+        }
+        String nodeId = env.getProperty("processor.nodeId",
+                ManagementFactory.getRuntimeMXBean().getName());
+        return new PartitionCoordinator(kafkaClient.getZkClient(),
+                "/accountService/" + kafkaClient.getTopicName(), nodeId);
+    }
+
+    // Applies account shards of large batches concurrently.
+    @Bean
+    public ParallelApplyPool parallelApplyPool() {
+        ParallelApplyPool parallelApplyPool = new ParallelApplyPool(
+                env.getProperty("apply.shards", Integer.class,
+                        ParallelApplyPool.DEFAULT_SHARDS_NUM),
+                env.getProperty("apply.threads", Integer.class,
+                        Runtime.getRuntime().availableProcessors()));
+        parallelApplyPool.setMinAccounts(env.getProperty("apply.minAccounts", Integer.class,
+                ParallelApplyPool.DEFAULT_MIN_ACCOUNTS));
+        return parallelApplyPool;
+    }
+
+    // Balances applied in write-behind mode, empty if mode is off.
+    @Bean
+    public WriteBehindTable writeBehindTable(BatchAccountService batchAccountService) {
+        WriteBehindTable writeBehindTable = new WriteBehindTable(batchAccountService,
+                balanceCache());
+        writeBehindTable.setMaxDirtyAccounts(env.getProperty(
+                "processor.writeBehind.maxDirtyAccounts", Integer.class,
+                WriteBehindTable.DEFAULT_MAX_DIRTY_ACCOUNTS));
+        writeBehindTable.setMaxFlushFailures(env.getProperty(
+                "processor.writeBehind.maxFlushFailures", Integer.class,
+                WriteBehindTable.DEFAULT_MAX_FLUSH_FAILURES));
+        return writeBehindTable;
+    }
+
+    // Commits batches of several partitions in one transaction, idle if group commit is off.
+    @Bean
+    public GroupCommitCoordinator groupCommitCoordinator(
+            BatchAccountService batchAccountService) {
+        GroupCommitCoordinator groupCommitCoordinator
+                = new GroupCommitCoordinator(batchAccountService);
+        groupCommitCoordinator.setMaxWaitMs(env.getProperty("processor.groupCommit.maxWaitMs",
+                Long.class, GroupCommitCoordinator.DEFAULT_MAX_WAIT_MS));
+        groupCommitCoordinator.setMaxOperations(env.getProperty(
+                "processor.groupCommit.maxOperations", Integer.class,
+                GroupCommitCoordinator.DEFAULT_MAX_OPERATIONS));
+        return groupCommitCoordinator;
+    }
+
     @Bean
     public PartitionProcessorPool partitionProcessorPool() {
-       return new PartitionProcessorPool();
+        PartitionProcessorPool partitionProcessorPool = new PartitionProcessorPool();
+        partitionProcessorPool.setWorkerThreads(env.getProperty("processor.workerThreads",
+                Integer.class, 0));
+        partitionProcessorPool.setCatchUpLag(env.getProperty("processor.catchUp.lag",
+                Long.class, PartitionProcessor.DEFAULT_CATCH_UP_LAG));
+        partitionProcessorPool.setCatchUpMaxOperations(env.getProperty(
+                "processor.catchUp.maxOperations", Integer.class,
+                PartitionProcessor.DEFAULT_CATCH_UP_MAX_OPERATIONS));
+        partitionProcessorPool.setTransientRetries(env.getProperty("processor.transientRetries",
+                Integer.class, PartitionProcessor.DEFAULT_TRANSIENT_RETRIES));
+        partitionProcessorPool.setQuarantineAttempts(env.getProperty(
+                "processor.quarantine.attempts", Integer.class,
+                PartitionProcessor.DEFAULT_QUARANTINE_ATTEMPTS));
+        partitionProcessorPool.setWriteBehind(env.getProperty("processor.writeBehind",
+                Boolean.class, false));
+        partitionProcessorPool.setFlushIntervalMs(env.getProperty(
+                "processor.writeBehind.flushIntervalMs", Long.class,
+                PartitionProcessorPool.DEFAULT_FLUSH_INTERVAL_MS));
+        partitionProcessorPool.setGroupCommit(env.getProperty("processor.groupCommit",
+                Boolean.class, false));
+        return partitionProcessorPool;
     }
    
 }
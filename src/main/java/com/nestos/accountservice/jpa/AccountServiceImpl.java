@@ -1,18 +1,38 @@
 package com.nestos.accountservice.jpa;
 
-import com.nestos.accountservice.domain.Account;
+import com.nestos.accountservice.cache.BalanceCache;
+import com.nestos.accountservice.cache.SingleFlightLoader;
 import com.nestos.accountservice.domain.AddOperation;
+import com.nestos.accountservice.domain.AmountsSnapshot;
+import com.nestos.accountservice.kafka.GroupCommitWriter;
 import com.nestos.accountservice.kafka.KafkaClient;
-import com.nestos.accountservice.repository.AccountRepository;
-import com.nestos.accountservice.service.AccountService;
+import com.nestos.accountservice.processor.PartitionCoordinator;
+import com.nestos.accountservice.processor.WriteBehindTable;
+import com.nestos.accountservice.service.AddAmountCallback;
+import com.nestos.accountservice.service.AsyncAccountService;
+import com.nestos.accountservice.service.BatchAccountService;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 import static org.apache.commons.lang3.Validate.*;
-import org.springframework.cache.Cache;
-import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.Cacheable;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
 
 /**
  * Account service.
@@ -20,51 +40,117 @@ import org.springframework.cache.annotation.Cacheable;
  * @author Roman Osipov
  */
 @Service("accountService")
-public class AccountServiceImpl implements AccountService {
+public class AccountServiceImpl implements AsyncAccountService {
 
     //-------------------Logger---------------------------------------------------
+    private final static Logger logger = Logger.getLogger(AccountServiceImpl.class.getName());
+
     //-------------------Constants------------------------------------------------
     public static final String ACCOUNT_CACHE_NAME = "accountServiceCache";
     public static final String ID_NPE_MESSAGE = "id can't be null.";
     public static final String VALUE_NPE_MESSAGE = "value can't be null.";
     public static final String ID_IAE_MESSAGE = "id can't be negative.";
+    public static final String CALLBACK_NPE_MESSAGE = "callback can't be null.";
+    public static final String IDS_NPE_MESSAGE = "ids can't be null.";
+    public static final String VALUES_NPE_MESSAGE = "values can't be null.";
+    public static final String LENGTH_IAE_MESSAGE = "ids and values must have the same length.";
+    // Maximum number of ids in one findByIdIn() query.
+    private static final int MAX_IN_IDS_NUM = 1000;
+    // Marks not cached balance. Cached Long.MIN_VALUE balance is read as not cached.
+    private static final long ABSENT_AMOUNT = Long.MIN_VALUE;
+    // Threads, which notify remote callbacks.
+    private static final int CALLBACK_THREADS_NUM = 4;
 
     //-------------------Fields---------------------------------------------------
     @Autowired
-    private AccountRepository accountRepository;
+    private BatchAccountService batchAccountService;
 
     @Autowired
     private KafkaClient kafkaClient;
 
     @Autowired
-    private CacheManager cacheManager;
-    
-    private Cache cache;
+    private GroupCommitWriter groupCommitWriter;
+
+    @Autowired
+    private BalanceCache balanceCache;
+
+    @Autowired
+    private SingleFlightLoader<Integer, Long> amountLoader;
+
+    @Autowired
+    private PartitionCoordinator partitionCoordinator;
+
+    @Autowired
+    private WriteBehindTable writeBehindTable;
+
+    private ExecutorService callbackExecutorService;
 
     //-------------------Constructors---------------------------------------------
     //-------------------Getters and setters--------------------------------------
     //-------------------Methods--------------------------------------------------
     /**
      * Retrieves current balance or zero if addAmount() method was not called before for specified.
+     * Not transactional: cache hit takes no database connection, on cache miss balance is read
+     * in its own read-only transaction. Concurrent misses of the same id share one load.
+     * In write-behind mode balance, which isn't flushed yet, is served from write-behind table.
      *
      * @param id balance identifier.
      * @return current balance or zero if addAmount() method was not called before for specified.
      */
     @Override
-    @Transactional(readOnly = true)
     // @Cacheable(ACCOUNT_CACHE_NAME)
-    public Long getAmount(Integer id) {
+    public Long getAmount(final Integer id) {
         notNull(id, ID_NPE_MESSAGE);
         inclusiveBetween(0, Integer.MAX_VALUE, id, ID_IAE_MESSAGE);
-        Long amount;
-        amount = cache.get(id, Long.class);
-        if (amount != null) {
+        long amount = getCachedAmount(id);
+        if (amount != ABSENT_AMOUNT) {
+            return amount;
+        }
+        return amountLoader.load(id, new Callable<Long>() {
+
+            @Override
+            public Long call() {
+                // previous load of id may complete after cache miss
+                long amount = getCachedAmount(id);
+                if (amount != ABSENT_AMOUNT) {
+                    return amount;
+                }
+                AmountsSnapshot amountsSnapshot = batchAccountService.readAmounts(
+                        Collections.singleton(id));
+                return cacheAmount(id, amountsSnapshot);
+            }
+        });
+    }
+
+    // Returns balance, which isn't flushed, or cached one. Balance of write-behind table is
+    // newer than committed one.
+    private long getCachedAmount(int id) {
+        if (writeBehindTable.isStarted()) {
+            long amount = writeBehindTable.getAmount(kafkaClient.partitionFor(id), id,
+                    ABSENT_AMOUNT);
+            if (amount != ABSENT_AMOUNT) {
+                return amount;
+            }
+        }
+        return balanceCache.getAmount(id, ABSENT_AMOUNT);
+    }
+
+    // Caches read balance versioned by offset of its partition, returns cached balance, which
+    // may be newer than read one. Balance read before the last commit of its partition is not
+    // cached. Balance of partition owned by other node is not cached: this node doesn't see its
+    // updates.
+    private long cacheAmount(int id, AmountsSnapshot amountsSnapshot) {
+        long amount = amountsSnapshot.getAmount(id);
+        int partition = kafkaClient.partitionFor(id);
+        if (!partitionCoordinator.isOwned(partition)) {
+            return amount;
+        }
+        long version = amountsSnapshot.getOffset(partition);
+        if (balanceCache.putReadAmount(partition, id, amount, version)) {
             return amount;
         }
-        Account account = accountRepository.findOne(id);
-        amount = (account == null) ? 0 : account.getAmount();
-        cache.putIfAbsent(id, amount);
-        return amount;
+        long cachedAmount = balanceCache.getAmount(id, ABSENT_AMOUNT);
+        return (cachedAmount == ABSENT_AMOUNT) ? amount : cachedAmount;
     }
 
     /**
@@ -76,15 +162,163 @@ public class AccountServiceImpl implements AccountService {
      */
     @Override
     public void addAmount(Integer id, Long value) {
+        AddOperation addOperation = createAddOperation(id, value);
+        // blocks until batch with operation is acknowledged
+        groupCommitWriter.write(addOperation);
+    }
+
+    /**
+     * Increases balance or set if addAmount() method was called first time. Does not block.
+     *
+     * @param id balance identifier.
+     * @param value positive or negative value, which must be added to current balance.
+     * @return future, which completes when operation is durably stored.
+     */
+    @Override
+    public ListenableFuture<Void> addAmountAsync(Integer id, Long value) {
+        return groupCommitWriter.submit(createAddOperation(id, value));
+    }
+
+    /**
+     * Increases balance or set if addAmount() method was called first time. Returns without
+     * waiting for operation to be durably stored, result is reported to callback.
+     *
+     * @param id balance identifier.
+     * @param value positive or negative value, which must be added to current balance.
+     * @param callback exported remote callback, which receives operation result.
+     */
+    @Override
+    public void addAmountAsync(final Integer id, final Long value,
+            final AddAmountCallback callback) {
+        AddOperation addOperation = createAddOperation(id, value);
+        notNull(callback, CALLBACK_NPE_MESSAGE);
+        groupCommitWriter.submit(addOperation).addCallback(new ListenableFutureCallback<Void>() {
+
+            @Override
+            public void onSuccess(Void result) {
+                notifyCallback(callback, id, value, null);
+            }
+
+            @Override
+            public void onFailure(Throwable ex) {
+                notifyCallback(callback, id, value, String.valueOf(ex.getMessage()));
+            }
+        });
+    }
+
+    /**
+     * Retrieves current balances of several accounts. Cached balances are served from cache,
+     * all other are loaded by findByIdIn() queries, each in its own read-only transaction.
+     *
+     * @param ids balance identifiers.
+     * @return current balances in order of ids, zero for balances not added before.
+     */
+    @Override
+    public long[] getAmounts(int[] ids) {
+        notNull(ids, IDS_NPE_MESSAGE);
+        for (int id : ids) {
+            inclusiveBetween(0, Integer.MAX_VALUE, id, ID_IAE_MESSAGE);
+        }
+        long[] amounts = new long[ids.length];
+        Set<Integer> missedIds = new HashSet<>();
+        for (int i = 0; i < ids.length; i++) {
+            long amount = getCachedAmount(ids[i]);
+            if (amount == ABSENT_AMOUNT) {
+                missedIds.add(ids[i]);
+            } else {
+                amounts[i] = amount;
+            }
+        }
+        if (missedIds.isEmpty()) {
+            return amounts;
+        }
+        Map<Integer, Long> loadedAmounts = loadAmounts(missedIds);
+        for (int i = 0; i < ids.length; i++) {
+            Long amount = loadedAmounts.get(ids[i]);
+            if (amount != null) {
+                amounts[i] = amount;
+            }
+        }
+        return amounts;
+    }
+
+    // Loads balances by IN queries of bounded size and caches them.
+    private Map<Integer, Long> loadAmounts(Set<Integer> ids) {
+        Map<Integer, Long> amounts = new HashMap<>(ids.size() * 2);
+        Set<Integer> chunk = new HashSet<>();
+        Iterator<Integer> iterator = ids.iterator();
+        while (iterator.hasNext()) {
+            chunk.add(iterator.next());
+            if (chunk.size() == MAX_IN_IDS_NUM || !iterator.hasNext()) {
+                AmountsSnapshot amountsSnapshot = batchAccountService.readAmounts(chunk);
+                for (Integer id : chunk) {
+                    amounts.put(id, cacheAmount(id, amountsSnapshot));
+                }
+                chunk = new HashSet<>();
+            }
+        }
+        return amounts;
+    }
+
+    /**
+     * Increases several balances. Operations are written to Kafka partitions as one group
+     * commit batch, so whole call costs about one Kafka round trip.
+     *
+     * @param ids balance identifiers.
+     * @param values positive or negative values, must have the same length as ids.
+     */
+    @Override
+    public void addAmounts(int[] ids, long[] values) {
+        notNull(ids, IDS_NPE_MESSAGE);
+        notNull(values, VALUES_NPE_MESSAGE);
+        isTrue(ids.length == values.length, LENGTH_IAE_MESSAGE);
+        List<AddOperation> addOperations = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            inclusiveBetween(0, Integer.MAX_VALUE, ids[i], ID_IAE_MESSAGE);
+            addOperations.add(new AddOperation(ids[i], values[i]));
+        }
+        if (addOperations.isEmpty()) {
+            return;
+        }
+        // blocks until batch with operations is acknowledged
+        groupCommitWriter.writeAll(addOperations);
+    }
+
+    private AddOperation createAddOperation(Integer id, Long value) {
         notNull(id, ID_NPE_MESSAGE);
         notNull(value, VALUE_NPE_MESSAGE);
         inclusiveBetween(0, Integer.MAX_VALUE, id, ID_IAE_MESSAGE);
-        AddOperation addOperation = new AddOperation(id, value);
-        kafkaClient.write(addOperation);
+        return new AddOperation(id, value);
+    }
+
+    // Remote call must not be done by Kafka producer thread, which completes write futures.
+    private void notifyCallback(final AddAmountCallback callback, final Integer id,
+            final Long value, final String failureMessage) {
+        callbackExecutorService.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    if (failureMessage == null) {
+                        callback.onSuccess(id, value);
+                    } else {
+                        callback.onFailure(id, value, failureMessage);
+                    }
+                } catch (RemoteException ex) {
+                    logger.warn("Can't notify addAmountAsync callback for id=" + id, ex);
+                }
+            }
+        });
     }
-    
+
     @PostConstruct
     private void postConstruct() {
-        cache = cacheManager.getCache(ACCOUNT_CACHE_NAME);
+        callbackExecutorService = Executors.newFixedThreadPool(CALLBACK_THREADS_NUM);
+    }
+
+    @PreDestroy
+    private void preDestroy() throws InterruptedException {
+        callbackExecutorService.shutdown();
+        callbackExecutorService.awaitTermination(1, TimeUnit.DAYS);
     }
 }
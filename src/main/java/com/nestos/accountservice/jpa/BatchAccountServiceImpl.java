@@ -2,21 +2,55 @@ package com.nestos.accountservice.jpa;
 
 import com.nestos.accountservice.domain.Account;
 import com.nestos.accountservice.domain.AddOperation;
+import com.nestos.accountservice.domain.AddOperationArray;
+import com.nestos.accountservice.domain.AmountsSnapshot;
 import com.nestos.accountservice.domain.Partition;
+import com.nestos.accountservice.domain.PartitionShard;
+import com.nestos.accountservice.domain.QuarantinedMessage;
 import com.nestos.accountservice.repository.AccountRepository;
 import com.nestos.accountservice.repository.PartitionRepository;
+import com.nestos.accountservice.repository.PartitionRepositoryImpl;
+import com.nestos.accountservice.repository.PartitionShardRepository;
+import com.nestos.accountservice.repository.QuarantineRepository;
 import com.nestos.accountservice.service.BatchAccountService;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
 
 /**
  * Implementation of account service batch interface.
+ * <p>
+ * Batches bypass persistence context: balances and partition offsets are written by JDBC
+ * upserts, so no entity is loaded, snapshotted and dirty-checked at flush.
+ * <p>
+ * Large batch of partition may be applied in parallel by {@link ParallelApplyPool}: net
+ * accounts are split by id hash into disjoint shards, and each shard is upserted in own
+ * transaction together with its shard offset. Operations of account are in one shard, so they
+ * are applied in order. Partition offset is committed, when all shards are committed. If batch
+ * fails after some of its shards are committed, shard offsets are ahead of partition offset,
+ * and these shards are skipped, when batch is applied again.
+ * <p>
+ * Offsets are saved only if partition is still at offset, which batch starts from, see
+ * {@link PartitionRepository#saveOffsets(Map, Map) saveOffsets}: pull, which lost partition to
+ * other node, fails its commit instead of applying batch twice. Shard transactions check
+ * partition offset before they apply.
  *
  * @author Roman Osipov
  */
@@ -25,6 +59,9 @@ public class BatchAccountServiceImpl implements BatchAccountService {
     //-------------------Logger---------------------------------------------------
 
     //-------------------Constants------------------------------------------------
+    public static final String QUARANTINED_MESSAGE_IAE_MESSAGE
+            = "Quarantined message not found: ";
+
     //-------------------Fields---------------------------------------------------
     @Autowired
     private AccountRepository accountRepository;
@@ -32,6 +69,22 @@ public class BatchAccountServiceImpl implements BatchAccountService {
     @Autowired
     private PartitionRepository partitionRepository;
 
+    @Autowired
+    private QuarantineRepository quarantineRepository;
+
+    @Autowired
+    private PartitionShardRepository partitionShardRepository;
+
+    @Autowired(required = false)
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired(required = false)
+    private ParallelApplyPool parallelApplyPool;
+
+    // Partitions, which shards may be ahead of partition offset.
+    private final Set<Integer> aheadPartitions
+            = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
     //-------------------Constructors---------------------------------------------
     //-------------------Getters and setters--------------------------------------
     //-------------------Methods--------------------------------------------------
@@ -40,48 +93,334 @@ public class BatchAccountServiceImpl implements BatchAccountService {
      *
      * @param addOperations list of add operations.
      * @param partitionId kafka working partition.
+     * @param fromOffset partition offset, which batch starts from.
      * @param lastReadedOffset partition last read offset.
      * @return map of updated accounts. Key - account id, value - account.
      */
     @Override
     @Transactional
     public Map<Integer, Account> addAmounts(List<AddOperation> addOperations, int partitionId,
-            long lastReadedOffset) {
+            long fromOffset, long lastReadedOffset) {
+        return addAmounts(AddOperationArray.of(addOperations), partitionId, fromOffset,
+                lastReadedOffset, Collections.<QuarantinedMessage>emptyList());
+    }
+
+    /**
+     * Executes batch of add operations and stores messages, which batch skips, in the same
+     * transaction. Operations are read from primitive array, no object per operation is created.
+     * Deltas are netted per account and added by set-based upsert in ascending id order, see
+     * {@link AccountRepository#addAmounts(int[], long[], int) addAmounts}. Large batch is
+     * applied by shards in parallel, if parallel apply is on.
+     *
+     * @param addOperations array of add operations.
+     * @param partitionId kafka working partition.
+     * @param fromOffset partition offset, which batch starts from.
+     * @param lastReadedOffset partition last read offset.
+     * @param quarantinedMessages messages skipped by this commit.
+     * @return map of updated accounts. Key - account id, value - account.
+     */
+    @Override
+    @Transactional
+    public Map<Integer, Account> addAmounts(AddOperationArray addOperations, int partitionId,
+            long fromOffset, long lastReadedOffset, List<QuarantinedMessage> quarantinedMessages) {
+        boolean sharded = (parallelApplyPool != null && parallelApplyPool.getShardsNum() > 1)
+                || aheadPartitions.contains(partitionId);
+        if (!sharded) {
+            return addAmounts(addOperations, Collections.singletonMap(partitionId, fromOffset),
+                    Collections.singletonMap(partitionId, lastReadedOffset), quarantinedMessages);
+        }
+        if (addOperations == null) {
+            throw new NullPointerException("addOperations can't be null");
+        }
+        if (quarantinedMessages == null) {
+            throw new NullPointerException("quarantinedMessages can't be null");
+        }
+        // shards committed by failed apply of this batch
+        int shardsNum = (parallelApplyPool == null) ? 1 : parallelApplyPool.getShardsNum();
+        Set<Integer> appliedShards = new HashSet<>();
+        for (PartitionShard partitionShard
+                : partitionShardRepository.findByPartitionId(partitionId)) {
+            if (partitionShard.getOffset() >= lastReadedOffset) {
+                appliedShards.add(partitionShard.getShard());
+                shardsNum = partitionShard.getShardsNum();
+            }
+        }
+        if (appliedShards.isEmpty()) {
+            aheadPartitions.remove(partitionId);
+        }
+        int[] ids = new int[addOperations.size()];
+        long[] deltas = new long[addOperations.size()];
+        int count = net(addOperations, ids, deltas);
+        Map<Integer, Account> accountMap = new HashMap<>();
+        if (appliedShards.isEmpty()
+                && (parallelApplyPool == null || !parallelApplyPool.isParallel(count))) {
+            putAccounts(accountRepository.addAmounts(ids, deltas, count), accountMap);
+        } else {
+            applyShards(partitionId, fromOffset, lastReadedOffset, shardsNum, appliedShards, ids,
+                    deltas, count, accountMap);
+        }
+        if (!quarantinedMessages.isEmpty()) {
+            quarantineRepository.save(quarantinedMessages);
+        }
+        partitionRepository.saveOffsets(Collections.singletonMap(partitionId, fromOffset),
+                Collections.singletonMap(partitionId, lastReadedOffset));
+        return accountMap;
+    }
+
+    /**
+     * Executes add operations of several partitions, for example flush of write-behind table,
+     * and stores their offsets and skipped messages in the same transaction. Offsets are
+     * saved in ascending partition order, if partitions are still at their start offsets.
+     *
+     * @param addOperations array of add operations.
+     * @param fromOffsets partition offsets, which operations start from. Key - partition id,
+     * value - offset.
+     * @param partitionOffsets partition last read offsets. Key - partition id, value - offset.
+     * @param quarantinedMessages messages skipped by this commit.
+     * @return map of updated accounts. Key - account id, value - account.
+     */
+    @Override
+    @Transactional
+    public Map<Integer, Account> addAmounts(AddOperationArray addOperations,
+            Map<Integer, Long> fromOffsets, Map<Integer, Long> partitionOffsets,
+            List<QuarantinedMessage> quarantinedMessages) {
+        if (fromOffsets == null) {
+            throw new NullPointerException("fromOffsets can't be null");
+        }
+        if (partitionOffsets == null) {
+            throw new NullPointerException("partitionOffsets can't be null");
+        }
+        if (quarantinedMessages == null) {
+            throw new NullPointerException("quarantinedMessages can't be null");
+        }
+        if (!quarantinedMessages.isEmpty()) {
+            quarantineRepository.save(quarantinedMessages);
+        }
         // result map
         Map<Integer, Account> accountMap = new HashMap<>();
         if (addOperations == null) {
             throw new NullPointerException("addOperations can't be null");
         }
-        if (addOperations.isEmpty()) {
-            return accountMap;
+        if (!addOperations.isEmpty()) {
+            applyAddOperations(addOperations, accountMap);
         }
-        // ids for request existing accounts. Not use lambda because project source version 1.7.
-        Set<Integer> ids = new HashSet<>();
-        for (AddOperation addOperation : addOperations) {
-            ids.add(addOperation.getId());
+        // update read offsets in kafka partitions
+        partitionRepository.saveOffsets(fromOffsets, partitionOffsets);
+        return accountMap;
+    }
+
+    /**
+     * Reads the lowest offset, which shards of partition are applied up to ahead of partition
+     * offset. Batch, which is applied again from partition offset, must end at this offset:
+     * then each ahead shard covers the whole batch and is skipped, while shard, which is ahead
+     * at lower offset than batch end, would be applied twice.
+     *
+     * @param partitionId kafka working partition.
+     * @return the lowest offset of ahead shards, -1 if no shard is ahead.
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public long readShardsOffset(int partitionId) {
+        Partition partition = partitionRepository.findOne(partitionId);
+        long offset = (partition == null) ? 0 : partition.getOffset();
+        long shardsOffset = -1;
+        for (PartitionShard partitionShard
+                : partitionShardRepository.findByPartitionId(partitionId)) {
+            if (partitionShard.getOffset() > offset && (shardsOffset < 0
+                    || partitionShard.getOffset() < shardsOffset)) {
+                shardsOffset = partitionShard.getOffset();
+            }
+        }
+        // ahead shards are checked by batches, even if parallel apply is off
+        if (shardsOffset >= 0) {
+            aheadPartitions.add(partitionId);
+        } else {
+            aheadPartitions.remove(partitionId);
         }
-        List<Account> accounts = accountRepository.findByIdIn(ids);
+        return shardsOffset;
+    }
 
-        for (Account account : accounts) {
-            accountMap.put(account.getId(), account);
+    /**
+     * Applies operations of quarantined message and deletes it from quarantine in one
+     * transaction. Partition offset isn't changed: it's already past the message.
+     *
+     * @param id quarantined message id.
+     * @return map of updated accounts. Key - account id, value - account.
+     */
+    @Override
+    @Transactional
+    public Map<Integer, Account> replayQuarantined(long id) {
+        QuarantinedMessage quarantinedMessage = quarantineRepository.findOne(id);
+        if (quarantinedMessage == null) {
+            throw new IllegalArgumentException(QUARANTINED_MESSAGE_IAE_MESSAGE + id);
+        }
+        AddOperationArray addOperations = new AddOperationArray();
+        AddOperation.decodeAll(ByteBuffer.wrap(quarantinedMessage.getPayload()), addOperations);
+        Map<Integer, Account> accountMap = new HashMap<>();
+        if (!addOperations.isEmpty()) {
+            applyAddOperations(addOperations, accountMap);
         }
-        for (AddOperation addOperation : addOperations) {
-            Account findAccount = accountMap.get(addOperation.getId());
-            if (findAccount == null) {
-                findAccount = accountRepository.newAccountInstance();
-                findAccount.setId(addOperation.getId());
-                findAccount.setAmount(addOperation.getValue());
-                accountMap.put(addOperation.getId(), findAccount);
+        quarantineRepository.delete(quarantinedMessage);
+        return accountMap;
+    }
+
+    /**
+     * Reads account balances together with partition offsets in one read-only transaction.
+     * Offsets are read first: batch commits balances and offset atomically, so balances are
+     * at least as new as read offsets even without snapshot isolation.
+     *
+     * @param ids account ids.
+     * @return balances and partition offsets.
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public AmountsSnapshot readAmounts(Set<Integer> ids) {
+        if (ids == null) {
+            throw new NullPointerException("ids can't be null");
+        }
+        Map<Integer, Long> partitionOffsets = new HashMap<>();
+        for (Partition partition : partitionRepository.findAll()) {
+            partitionOffsets.put(partition.getId(), partition.getOffset());
+        }
+        Map<Integer, Long> amounts = new HashMap<>();
+        for (Account account : accountRepository.findByIdIn(ids)) {
+            amounts.put(account.getId(), account.getAmount());
+        }
+        return new AmountsSnapshot(amounts, partitionOffsets);
+    }
+
+    // Nets deltas per account and upserts them in ascending id order.
+    private void applyAddOperations(AddOperationArray addOperations,
+            Map<Integer, Account> accountMap) {
+        int[] ids = new int[addOperations.size()];
+        long[] deltas = new long[addOperations.size()];
+        int count = net(addOperations, ids, deltas);
+        putAccounts(accountRepository.addAmounts(ids, deltas, count), accountMap);
+    }
+
+    // Commits not applied shards concurrently, each with its shard offset.
+    private void applyShards(final int partitionId, final long fromOffset, final long nextOffset,
+            final int shardsNum, Set<Integer> appliedShards, int[] ids, long[] deltas, int count,
+            Map<Integer, Account> accountMap) {
+        int[] shardSizes = new int[shardsNum];
+        for (int i = 0; i < count; i++) {
+            shardSizes[PartitionShard.shardFor(ids[i], shardsNum)]++;
+        }
+        int[][] shardIds = new int[shardsNum][];
+        long[][] shardDeltas = new long[shardsNum][];
+        for (int shard = 0; shard < shardsNum; shard++) {
+            shardIds[shard] = new int[shardSizes[shard]];
+            shardDeltas[shard] = new long[shardSizes[shard]];
+            shardSizes[shard] = 0;
+        }
+        // shards keep ascending id order
+        for (int i = 0; i < count; i++) {
+            int shard = PartitionShard.shardFor(ids[i], shardsNum);
+            shardIds[shard][shardSizes[shard]] = ids[i];
+            shardDeltas[shard][shardSizes[shard]] = deltas[i];
+            shardSizes[shard]++;
+        }
+        final TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        transaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        List<TransactionCallback<Map<Integer, Long>>> shardCallbacks = new ArrayList<>();
+        Set<Integer> skippedIds = new HashSet<>();
+        for (int shard = 0; shard < shardsNum; shard++) {
+            if (shardIds[shard].length == 0) {
+                continue;
+            }
+            if (appliedShards.contains(shard)) {
+                for (int id : shardIds[shard]) {
+                    skippedIds.add(id);
+                }
+                continue;
+            }
+            final int shardNum = shard;
+            final int[] idsOfShard = shardIds[shard];
+            final long[] deltasOfShard = shardDeltas[shard];
+            shardCallbacks.add(new TransactionCallback<Map<Integer, Long>>() {
+
+                @Override
+                public Map<Integer, Long> doInTransaction(TransactionStatus status) {
+                    checkOffset(partitionId, fromOffset);
+                    Map<Integer, Long> amounts = accountRepository.addAmounts(idsOfShard,
+                            deltasOfShard, idsOfShard.length);
+                    partitionShardRepository.save(new PartitionShard(partitionId, shardNum,
+                            shardsNum, nextOffset));
+                    return amounts;
+                }
+            });
+        }
+        List<Map<Integer, Long>> results;
+        if (parallelApplyPool != null) {
+            List<Callable<Map<Integer, Long>>> tasks = new ArrayList<>();
+            for (final TransactionCallback<Map<Integer, Long>> shardCallback : shardCallbacks) {
+                tasks.add(new Callable<Map<Integer, Long>>() {
+
+                    @Override
+                    public Map<Integer, Long> call() {
+                        return transaction.execute(shardCallback);
+                    }
+                });
+            }
+            results = parallelApplyPool.invokeAll(tasks);
+        } else {
+            // parallel apply is off, ahead shards are still skipped
+            results = new ArrayList<>();
+            for (TransactionCallback<Map<Integer, Long>> shardCallback : shardCallbacks) {
+                results.add(transaction.execute(shardCallback));
+            }
+        }
+        for (Map<Integer, Long> amounts : results) {
+            putAccounts(amounts, accountMap);
+        }
+        // balances of skipped shards are already committed, they are read for cache
+        if (!skippedIds.isEmpty()) {
+            for (Account account : accountRepository.findByIdIn(skippedIds)) {
+                accountMap.put(account.getId(), account);
+            }
+        }
+    }
+
+    // Fails shard of pull, which lost partition to other node, before it applies.
+    private void checkOffset(int partitionId, long fromOffset) {
+        Partition partition = partitionRepository.findOne(partitionId);
+        long offset = (partition == null) ? 0 : partition.getOffset();
+        if (offset != fromOffset) {
+            throw new OptimisticLockingFailureException(
+                    PartitionRepositoryImpl.OFFSET_CONFLICT_MESSAGE + partitionId);
+        }
+    }
+
+    // Nets deltas per account into ids and deltas in ascending id order, returns their count.
+    private static int net(AddOperationArray addOperations, int[] ids, long[] deltas) {
+        int size = addOperations.size();
+        // id in high bits, operation index in low bits: primitive sort orders operations by id
+        long[] order = new long[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = ((long) addOperations.getId(i) << 32) | i;
+        }
+        Arrays.sort(order);
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            int id = (int) (order[i] >>> 32);
+            long value = addOperations.getValue((int) order[i]);
+            if (count > 0 && ids[count - 1] == id) {
+                deltas[count - 1] += value;
             } else {
-                findAccount.setAmount(findAccount.getAmount() + addOperation.getValue());
+                ids[count] = id;
+                deltas[count] = value;
+                count++;
             }
         }
-        accountRepository.save(accountMap.values());
-        // update read offset in kafka partition
-        Partition partition = new Partition();
-        partition.setId(partitionId);
-        partition.setOffset(lastReadedOffset);
-        partitionRepository.save(partition);
-        return accountMap;
+        return count;
+    }
+
+    private void putAccounts(Map<Integer, Long> amounts, Map<Integer, Account> accountMap) {
+        for (Map.Entry<Integer, Long> amount : amounts.entrySet()) {
+            Account account = accountRepository.newAccountInstance();
+            account.setId(amount.getKey());
+            account.setAmount(amount.getValue());
+            accountMap.put(amount.getKey(), account);
+        }
     }
 }
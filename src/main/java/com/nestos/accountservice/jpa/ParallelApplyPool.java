@@ -0,0 +1,148 @@
+package com.nestos.accountservice.jpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
+import static org.apache.commons.lang3.Validate.inclusiveBetween;
+import static org.apache.commons.lang3.Validate.notNull;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Bounded pool, which applies account shards of large batch concurrently, see
+ * {@link BatchAccountServiceImpl}. Each shard is committed in own transaction, so pool threads
+ * take database connections besides connections of partition processors.
+ *
+ * @author Roman Osipov
+ */
+@ManagedResource(objectName = "accountService:name=ParallelApplyPool")
+public class ParallelApplyPool {
+
+    //-------------------Logger---------------------------------------------------
+    //-------------------Constants------------------------------------------------
+    public static final int DEFAULT_SHARDS_NUM = 1;
+    public static final int DEFAULT_MIN_ACCOUNTS = 1000;
+    public static final String SHARDS_NUM_IAE_MESSAGE = "shardsNum must be positive.";
+    public static final String THREADS_NUM_IAE_MESSAGE = "threadsNum must be positive.";
+    public static final String MIN_ACCOUNTS_IAE_MESSAGE = "minAccounts must be positive.";
+    public static final String TASKS_NPE_MESSAGE = "tasks can't be null.";
+
+    //-------------------Fields---------------------------------------------------
+    // Number of shards, which large batch is split into, 1 - parallel apply is off.
+    private final int shardsNum;
+
+    private final ExecutorService executorService;
+
+    // Number of net accounts, which batch is applied in parallel from.
+    private int minAccounts = DEFAULT_MIN_ACCOUNTS;
+
+    private final AtomicLong parallelAppliesNum = new AtomicLong();
+
+    //-------------------Constructors---------------------------------------------
+    /**
+     * Constructs a new ParallelApplyPool.
+     *
+     * @param shardsNum number of shards, 1 - parallel apply is off.
+     * @param threadsNum number of pool threads shared by all partitions.
+     */
+    public ParallelApplyPool(int shardsNum, int threadsNum) {
+        inclusiveBetween(1, Integer.MAX_VALUE, shardsNum, SHARDS_NUM_IAE_MESSAGE);
+        inclusiveBetween(1, Integer.MAX_VALUE, threadsNum, THREADS_NUM_IAE_MESSAGE);
+        this.shardsNum = shardsNum;
+        this.executorService = Executors.newFixedThreadPool(threadsNum);
+    }
+
+    //-------------------Getters and setters--------------------------------------
+    @ManagedAttribute(description = "Number of shards, which large batch is split into, 1 - "
+            + "parallel apply is off.")
+    public int getShardsNum() {
+        return shardsNum;
+    }
+
+    @ManagedAttribute(description = "Number of net accounts, which batch is applied in parallel "
+            + "from.")
+    public int getMinAccounts() {
+        return minAccounts;
+    }
+
+    /**
+     * Set number of net accounts, which batch is applied in parallel from.
+     *
+     * @param minAccounts number of accounts.
+     */
+    @ManagedAttribute
+    public void setMinAccounts(int minAccounts) {
+        inclusiveBetween(1, Integer.MAX_VALUE, minAccounts, MIN_ACCOUNTS_IAE_MESSAGE);
+        this.minAccounts = minAccounts;
+    }
+
+    @ManagedAttribute(description = "Number of batches applied in parallel.")
+    public long getParallelAppliesNum() {
+        return parallelAppliesNum.get();
+    }
+
+    /**
+     * Returns true if batch should be applied in parallel.
+     *
+     * @param accountsNum number of net accounts of batch.
+     * @return true if parallel apply is on and batch is large enough.
+     */
+    public boolean isParallel(int accountsNum) {
+        return shardsNum > 1 && accountsNum >= minAccounts;
+    }
+
+    //-------------------Methods--------------------------------------------------
+    /**
+     * Runs shard tasks concurrently and waits until all of them complete, so no shard
+     * transaction is running, when caller fails.
+     *
+     * @param <T> task result type.
+     * @param tasks shard tasks.
+     * @return results in order of tasks.
+     * @throws RuntimeException the first failure of tasks.
+     */
+    public <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        notNull(tasks, TASKS_NPE_MESSAGE);
+        parallelAppliesNum.incrementAndGet();
+        List<Future<T>> futures;
+        try {
+            futures = executorService.invokeAll(tasks);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Parallel apply is interrupted.", ex);
+        }
+        List<T> results = new ArrayList<>(futures.size());
+        RuntimeException failure = null;
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException ex) {
+                if (failure == null) {
+                    failure = (ex.getCause() instanceof RuntimeException)
+                            ? (RuntimeException) ex.getCause()
+                            : new IllegalStateException(ex.getCause());
+                }
+            } catch (InterruptedException ex) {
+                // invokeAll returns completed futures
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    @PreDestroy
+    public void preDestroy() throws InterruptedException {
+        executorService.shutdown();
+        executorService.awaitTermination(1, TimeUnit.DAYS);
+    }
+}
@@ -0,0 +1,17 @@
+package com.nestos.accountservice.kafka;
+
+/**
+ * Listener of fetched partition batches.
+ *
+ * @author Roman Osipov
+ */
+public interface BatchListener {
+
+    /**
+     * Invoked by fetcher thread, when batch of partition is fetched and ready to read.
+     * Implementation must not block.
+     *
+     * @param partition partition number.
+     */
+    public void batchFetched(int partition);
+}
@@ -0,0 +1,188 @@
+package com.nestos.accountservice.kafka;
+
+import java.util.ArrayList;
+import java.util.List;
+import kafka.api.FetchRequestBuilder;
+import kafka.common.ErrorMapping;
+import kafka.javaapi.FetchResponse;
+import kafka.javaapi.consumer.SimpleConsumer;
+import org.apache.log4j.Logger;
+
+/**
+ * Fetches all partitions led by one broker with one fetch request per round and dispatches
+ * fetched message sets to partition buffers. Round starts as soon as any buffer is free and
+ * fetches all free buffers. Full buffers, which processors haven't taken yet, are left out, so
+ * slow partition doesn't hold back other partitions of the broker. Fetch is long-poll: broker
+ * answers as soon as any partition has fetchMinBytes. Fetch size of each partition is sized by
+ * its lag, see {@link FetchSizer}.
+ * <p>
+ * Partition leadership errors make client reassign partitions to fetchers of new leaders.
+ * Partition, which fetch fails, is paused with exponential backoff, so errors don't spin fetcher.
+ *
+ * @author Roman Osipov
+ */
+class BrokerFetcher implements Runnable {
+
+    //-------------------Logger---------------------------------------------------
+    private final static Logger logger = Logger.getLogger(BrokerFetcher.class.getName());
+
+    //-------------------Constants------------------------------------------------
+    private final static String CLIENT_NAME = "accountService";
+    // Pause (ms) after failed fetch.
+    private final static long ERROR_PAUSE_MS = 100;
+    // Maximum pause (ms) of partition, which fetch fails repeatedly.
+    private final static long MAX_ERROR_PAUSE_MS = 10000;
+
+    //-------------------Fields---------------------------------------------------
+    private final KafkaClient kafkaClient;
+    private final SimpleConsumer consumer;
+    private final String topicName;
+    // Buffers of all partitions, fetcher serves buffers, which refer to it.
+    private final PartitionBuffer[] buffers;
+    // Notified when buffer is taken or reassigned.
+    private final Object signal = new Object();
+    // Current backoff (ms) and its end time by partition, used by fetcher thread only.
+    private final long[] errorPauses;
+    private final long[] pausedUntil;
+
+    //-------------------Constructors---------------------------------------------
+    BrokerFetcher(KafkaClient kafkaClient, SimpleConsumer consumer, String topicName,
+            PartitionBuffer[] buffers) {
+        this.kafkaClient = kafkaClient;
+        this.consumer = consumer;
+        this.topicName = topicName;
+        this.buffers = buffers;
+        this.errorPauses = new long[buffers.length];
+        this.pausedUntil = new long[buffers.length];
+    }
+
+    //-------------------Getters and setters--------------------------------------
+    SimpleConsumer getConsumer() {
+        return consumer;
+    }
+
+    //-------------------Methods--------------------------------------------------
+    /**
+     * Wakes fetcher, which waits for free buffers.
+     */
+    void signal() {
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                awaitBuffers(kafkaClient.getFetchMaxWaitMs());
+                fetchRound();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Waits until any assigned buffer is free, positioned and not paused. Rechecks buffers at
+    // least every maxWaitMs.
+    private void awaitBuffers(long maxWaitMs) throws InterruptedException {
+        synchronized (signal) {
+            while (true) {
+                long now = System.currentTimeMillis();
+                long waitMs = Math.max(1, maxWaitMs);
+                for (PartitionBuffer buffer : buffers) {
+                    if (buffer.getFetcher() != this || buffer.fetchPosition() == null) {
+                        continue;
+                    }
+                    long pauseMs = pausedUntil[buffer.getPartition()] - now;
+                    if (pauseMs <= 0) {
+                        return;
+                    }
+                    waitMs = Math.min(waitMs, pauseMs);
+                }
+                signal.wait(waitMs);
+            }
+        }
+    }
+
+    private void fetchRound() throws InterruptedException {
+        List<PartitionBuffer> fetchedBuffers = new ArrayList<>();
+        List<long[]> positions = new ArrayList<>();
+        FetchRequestBuilder builder = new FetchRequestBuilder()
+                .clientId(CLIENT_NAME)
+                .maxWait(kafkaClient.getFetchMaxWaitMs())
+                .minBytes(kafkaClient.getFetchMinBytes());
+        long now = System.currentTimeMillis();
+        for (PartitionBuffer buffer : buffers) {
+            long[] position = (buffer.getFetcher() == this
+                    && pausedUntil[buffer.getPartition()] <= now) ? buffer.fetchPosition() : null;
+            if (position != null) {
+                builder.addFetch(topicName, buffer.getPartition(), position[0],
+                        kafkaClient.getFetchSize(buffer.getPartition()));
+                fetchedBuffers.add(buffer);
+                positions.add(position);
+            }
+        }
+        if (fetchedBuffers.isEmpty()) {
+            return;
+        }
+        FetchResponse fetchResponse;
+        try {
+            fetchResponse = consumer.fetch(builder.build());
+        } catch (RuntimeException ex) {
+            logger.error("Error fetching kafka data from " + consumer.host() + ":"
+                    + consumer.port(), ex);
+            Thread.sleep(ERROR_PAUSE_MS);
+            kafkaClient.refreshLeaders();
+            return;
+        }
+        boolean leaderChanged = false;
+        for (int i = 0; i < fetchedBuffers.size(); i++) {
+            PartitionBuffer buffer = fetchedBuffers.get(i);
+            long[] position = positions.get(i);
+            short errorCode = fetchResponse.errorCode(topicName, buffer.getPartition());
+            if (errorCode == ErrorMapping.NoError()) {
+                errorPauses[buffer.getPartition()] = 0;
+                OperationBatch batch = kafkaClient.decode(buffer.getPartition(),
+                        fetchResponse.messageSet(topicName, buffer.getPartition()), position[0]);
+                // high watermark gives partition lag without offset request
+                kafkaClient.fetched(buffer.getPartition(), batch.getSizeInBytes(),
+                        batch.getNextOffset() - position[0],
+                        fetchResponse.highWatermark(topicName, buffer.getPartition())
+                        - batch.getNextOffset());
+                if (buffer.offer(batch, position)) {
+                    kafkaClient.batchFetched(buffer.getPartition());
+                } else {
+                    kafkaClient.recycle(buffer.getPartition(), batch);
+                }
+            } else if (errorCode == ErrorMapping.NotLeaderForPartitionCode()
+                    || errorCode == ErrorMapping.LeaderNotAvailableCode()
+                    || errorCode == ErrorMapping.UnknownTopicOrPartitionCode()) {
+                leaderChanged = true;
+                // election may be in progress, new leader may be unknown yet
+                pause(buffer.getPartition());
+            } else if (errorCode == ErrorMapping.OffsetOutOfRangeCode()) {
+                // log was truncated or is behind committed offset, operations can't be skipped
+                logger.error("Offset " + position[0] + " is out of range of partition "
+                        + buffer.getPartition() + ". Fetch of partition is paused for "
+                        + pause(buffer.getPartition()) + " ms.");
+            } else {
+                logger.error("Error fetching kafka data of partition " + buffer.getPartition()
+                        + ". Reason: " + errorCode + ". Fetch of partition is paused for "
+                        + pause(buffer.getPartition()) + " ms.");
+            }
+        }
+        if (leaderChanged) {
+            kafkaClient.refreshLeaders();
+        }
+    }
+
+    // Pauses fetch of partition, doubling pause of repeated failures. Returns pause (ms).
+    private long pause(int partition) {
+        long pauseMs = (errorPauses[partition] == 0) ? ERROR_PAUSE_MS
+                : Math.min(MAX_ERROR_PAUSE_MS, errorPauses[partition] * 2);
+        errorPauses[partition] = pauseMs;
+        pausedUntil[partition] = System.currentTimeMillis() + pauseMs;
+        return pauseMs;
+    }
+}
@@ -0,0 +1,90 @@
+package com.nestos.accountservice.kafka;
+
+/**
+ * Sizes fetches of one partition by partition lag and apply rate. While lag can be applied
+ * within target apply latency, fetch covers just the lag: caught up partition reserves small
+ * fetch buffers and still gets all available messages in one batch. When lag exceeds it,
+ * partition is catching up and fetch has maximum size, so each commit carries as many messages
+ * as possible. Lag is measured in messages from high watermark of fetch response, message size
+ * and apply rate (bytes per ms) are smoothed over recent batches.
+ * <p>
+ * Fetch size is never smaller than minimum fetch size, which holds the largest record.
+ *
+ * @author Roman Osipov
+ */
+class FetchSizer {
+
+    //-------------------Logger---------------------------------------------------
+    //-------------------Constants------------------------------------------------
+    // Weight of the newest sample in smoothed values.
+    private static final double SMOOTHING = 0.25;
+
+    //-------------------Fields---------------------------------------------------
+    private final int minFetchSize;
+    private final int maxFetchSize;
+    private final long targetApplyLatencyMs;
+    // Smoothed values, zero until measured.
+    private double messageBytes;
+    private double applyBytesPerMs;
+    // Messages after the last fetched batch.
+    private volatile long lag;
+    private volatile int fetchSize;
+
+    //-------------------Constructors---------------------------------------------
+    FetchSizer(int minFetchSize, int maxFetchSize, long targetApplyLatencyMs) {
+        this.minFetchSize = minFetchSize;
+        this.maxFetchSize = maxFetchSize;
+        this.targetApplyLatencyMs = targetApplyLatencyMs;
+        this.fetchSize = minFetchSize;
+    }
+
+    //-------------------Getters and setters--------------------------------------
+    int getFetchSize() {
+        return fetchSize;
+    }
+
+    long getLag() {
+        return lag;
+    }
+
+    //-------------------Methods--------------------------------------------------
+    /**
+     * Records fetch result.
+     *
+     * @param bytes size of fetched message set.
+     * @param messages number of fetched messages.
+     * @param lag number of messages after fetched ones.
+     */
+    synchronized void fetched(int bytes, long messages, long lag) {
+        if (messages > 0) {
+            messageBytes = smooth(messageBytes, (double) bytes / messages);
+        }
+        this.lag = Math.max(0, lag);
+        resize();
+    }
+
+    /**
+     * Records apply of fetched batch.
+     *
+     * @param bytes size of applied message set.
+     * @param latencyMs apply time (ms).
+     */
+    synchronized void applied(int bytes, long latencyMs) {
+        if (bytes > 0) {
+            applyBytesPerMs = smooth(applyBytesPerMs, (double) bytes / Math.max(1, latencyMs));
+        }
+        resize();
+    }
+
+    private void resize() {
+        double lagBytes = lag * messageBytes;
+        // until apply rate is measured lag is fetched as it is
+        double size = (applyBytesPerMs == 0
+                || lagBytes <= applyBytesPerMs * targetApplyLatencyMs) ? lagBytes : maxFetchSize;
+        fetchSize = (int) Math.max(minFetchSize, Math.min(maxFetchSize, size));
+    }
+
+    private static double smooth(double average, double sample) {
+        return (average == 0) ? sample : average + SMOOTHING * (sample - average);
+    }
+}
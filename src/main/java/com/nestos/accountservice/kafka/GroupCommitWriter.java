@@ -0,0 +1,455 @@
+package com.nestos.accountservice.kafka;
+
+import com.nestos.accountservice.domain.AddOperation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.apache.commons.lang3.Validate.inclusiveBetween;
+import static org.apache.commons.lang3.Validate.notNull;
+import static org.apache.commons.lang3.Validate.validState;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+/**
+ * Group commit stage of add operations write path. Concurrently submitted operations are queued
+ * and single flusher thread writes them to Kafka as one batch, when batch reaches maxBatchSize
+ * operations or its oldest operation waits maxWaitMs. Submitter is released when all records,
+ * which carry its operations, are acknowledged, so durability is the same as for single
+ * synchronous write. Failed record fails only submitters of its operations, others must not
+ * retry already written operations.
+ * <p>
+ * In coalescing mode operations of one batch are netted per account id before write, so
+ * frequently updated accounts cost one record per batch. maxWaitMs is the netting window.
+ *
+ * @author Roman Osipov
+ */
+@ManagedResource(objectName = "accountService:name=GroupCommitWriter")
+public class GroupCommitWriter implements InitializingBean, DisposableBean {
+
+    //-------------------Logger---------------------------------------------------
+    private final static Logger logger = Logger.getLogger(GroupCommitWriter.class.getName());
+
+    //-------------------NestedClasses--------------------------------------------
+    // Queued operations of one submitter with its future.
+    private static class PendingOperation {
+
+        private final List<AddOperation> addOperations;
+        private final SettableListenableFuture<Void> future = new SettableListenableFuture<>();
+        private final long submitTime = System.nanoTime();
+
+        public PendingOperation(List<AddOperation> addOperations) {
+            this.addOperations = addOperations;
+        }
+    }
+
+    // Collects and flushes batches until interrupted.
+    private class Flusher implements Runnable {
+
+        @Override
+        public void run() {
+            List<PendingOperation> batch = new ArrayList<>();
+            try {
+                while (true) {
+                    collectBatch(batch);
+                    flush(batch);
+                    batch = new ArrayList<>();
+                }
+            } catch (InterruptedException ex) {
+                // operations submitted before shutdown must not hang
+                queue.drainTo(batch);
+                if (!batch.isEmpty()) {
+                    flush(batch);
+                }
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    //-------------------Constants------------------------------------------------
+    public static final String KAFKA_CLIENT_NPE_MESSAGE = "kafkaClient can't be null.";
+    public static final String ADD_OPERATION_NPE_MESSAGE = "addOperation can't be null.";
+    public static final String ADD_OPERATIONS_NPE_MESSAGE = "addOperations can't be null.";
+    public static final String MAX_BATCH_SIZE_IAE_MESSAGE = "maxBatchSize must be positive.";
+    public static final String MAX_WAIT_IAE_MESSAGE = "maxWaitMs can't be negative.";
+    public static final String ACKNOWLEDGE_TIMEOUT_IAE_MESSAGE
+            = "acknowledgeTimeoutMs must be positive.";
+    public static final String NOT_RUNNING_ISE_MESSAGE = "group commit writer is not running.";
+    public static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+    public static final long DEFAULT_MAX_WAIT_MS = 2;
+    public static final long DEFAULT_ACKNOWLEDGE_TIMEOUT_MS = 60000;
+    private static final String WRITE_FAILED_MESSAGE = "Can't write to topic.";
+
+    //-------------------Fields---------------------------------------------------
+    private final KafkaClient kafkaClient;
+    private final BlockingQueue<PendingOperation> queue = new LinkedBlockingQueue<>();
+    private ExecutorService flusherExecutorService;
+    // Guards running together with enqueue, so nothing is queued after the final drain.
+    private final Object submitLock = new Object();
+    private volatile boolean running;
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private volatile long maxWaitMs = DEFAULT_MAX_WAIT_MS;
+    private volatile boolean coalescing;
+    private volatile long acknowledgeTimeoutMs = DEFAULT_ACKNOWLEDGE_TIMEOUT_MS;
+
+    // Statistic.
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong operationCount = new AtomicLong();
+    // Operations written to Kafka, less than operationCount in coalescing mode.
+    private final AtomicLong writtenOperationCount = new AtomicLong();
+    // Sum of operations time in queue, from submit to flush.
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    // Sum of batches time from flush to acknowledge.
+    private final AtomicLong totalAcknowledgeNanos = new AtomicLong();
+
+    //-------------------Constructors---------------------------------------------
+    public GroupCommitWriter(KafkaClient kafkaClient) {
+        notNull(kafkaClient, KAFKA_CLIENT_NPE_MESSAGE);
+        this.kafkaClient = kafkaClient;
+    }
+
+    //-------------------Getters and setters--------------------------------------
+    @ManagedAttribute(description = "Maximum number of operations in one batch.")
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    @ManagedAttribute
+    public void setMaxBatchSize(int maxBatchSize) {
+        inclusiveBetween(1, Integer.MAX_VALUE, maxBatchSize, MAX_BATCH_SIZE_IAE_MESSAGE);
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @ManagedAttribute(description = "Maximum time (ms) operation waits for batch completion. "
+            + "Netting window in coalescing mode.")
+    public long getMaxWaitMs() {
+        return maxWaitMs;
+    }
+
+    @ManagedAttribute
+    public void setMaxWaitMs(long maxWaitMs) {
+        inclusiveBetween(0, Long.MAX_VALUE, maxWaitMs, MAX_WAIT_IAE_MESSAGE);
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    @ManagedAttribute(description = "Net operations of batch per account id before write.")
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    @ManagedAttribute
+    public void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+    }
+
+    @ManagedAttribute(description = "Maximum time (ms) blocking write waits for acknowledge.")
+    public long getAcknowledgeTimeoutMs() {
+        return acknowledgeTimeoutMs;
+    }
+
+    @ManagedAttribute
+    public void setAcknowledgeTimeoutMs(long acknowledgeTimeoutMs) {
+        inclusiveBetween(1, Long.MAX_VALUE, acknowledgeTimeoutMs,
+                ACKNOWLEDGE_TIMEOUT_IAE_MESSAGE);
+        this.acknowledgeTimeoutMs = acknowledgeTimeoutMs;
+    }
+
+    @ManagedAttribute(description = "Number of flushed batches.")
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of flushed operations.")
+    public long getOperationCount() {
+        return operationCount.get();
+    }
+
+    @ManagedAttribute(description = "Number of operations written to Kafka.")
+    public long getWrittenOperationCount() {
+        return writtenOperationCount.get();
+    }
+
+    @ManagedAttribute(description = "Flushed to written operations ratio.")
+    public double getCoalescingRatio() {
+        long written = writtenOperationCount.get();
+        return (written == 0) ? 0 : (double) operationCount.get() / written;
+    }
+
+    @ManagedAttribute(description = "Average number of operations in batch.")
+    public double getAverageBatchSize() {
+        long batches = batchCount.get();
+        return (batches == 0) ? 0 : (double) operationCount.get() / batches;
+    }
+
+    @ManagedAttribute(description = "Average time (us) operation waits in queue before flush.")
+    public long getAverageWaitMicros() {
+        long operations = operationCount.get();
+        return (operations == 0) ? 0
+                : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos.get() / operations);
+    }
+
+    @ManagedAttribute(description = "Average time (us) from batch flush to its acknowledge.")
+    public long getAverageAcknowledgeMicros() {
+        long batches = batchCount.get();
+        return (batches == 0) ? 0
+                : TimeUnit.NANOSECONDS.toMicros(totalAcknowledgeNanos.get() / batches);
+    }
+
+    //-------------------Bean lifecycle methods----------------------------------
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        flusherExecutorService = Executors.newSingleThreadExecutor();
+        running = true;
+        flusherExecutorService.submit(new Flusher());
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        synchronized (submitLock) {
+            running = false;
+        }
+        if (flusherExecutorService != null) {
+            flusherExecutorService.shutdownNow();
+            flusherExecutorService.awaitTermination(1, TimeUnit.DAYS);
+        }
+        // flusher may die before its final drain, queued operations must not hang
+        List<PendingOperation> leftovers = new ArrayList<>();
+        queue.drainTo(leftovers);
+        fail(leftovers, new IllegalStateException(NOT_RUNNING_ISE_MESSAGE));
+    }
+
+    //-------------------Methods--------------------------------------------------
+    /**
+     * Submit add operation to the next batch.
+     *
+     * @param addOperation operation to write.
+     * @return future, which completes when record with operation is acknowledged.
+     */
+    public ListenableFuture<Void> submit(AddOperation addOperation) {
+        notNull(addOperation, ADD_OPERATION_NPE_MESSAGE);
+        return submitAll(Collections.singletonList(addOperation));
+    }
+
+    /**
+     * Submit add operations to the next batch. Operations are never split between batches,
+     * so batch may exceed maxBatchSize.
+     *
+     * @param addOperations operations to write.
+     * @return future, which completes when records with operations are acknowledged.
+     */
+    public ListenableFuture<Void> submitAll(List<AddOperation> addOperations) {
+        notNull(addOperations, ADD_OPERATIONS_NPE_MESSAGE);
+        PendingOperation pendingOperation = new PendingOperation(addOperations);
+        synchronized (submitLock) {
+            validState(running, NOT_RUNNING_ISE_MESSAGE);
+            queue.add(pendingOperation);
+        }
+        return pendingOperation.future;
+    }
+
+    /**
+     * Write add operation as part of the next batch. Blocks until its record is acknowledged
+     * or acknowledgeTimeoutMs passes.
+     *
+     * @param addOperation operation to write.
+     */
+    public void write(AddOperation addOperation) {
+        awaitAcknowledge(submit(addOperation));
+    }
+
+    /**
+     * Write add operations as part of the next batch. Blocks until their records are
+     * acknowledged or acknowledgeTimeoutMs passes.
+     *
+     * @param addOperations operations to write.
+     */
+    public void writeAll(List<AddOperation> addOperations) {
+        awaitAcknowledge(submitAll(addOperations));
+    }
+
+    private void awaitAcknowledge(ListenableFuture<Void> result) {
+        try {
+            result.get(acknowledgeTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(WRITE_FAILED_MESSAGE, ex);
+        } catch (ExecutionException ex) {
+            throw new RuntimeException(WRITE_FAILED_MESSAGE, ex.getCause());
+        } catch (TimeoutException ex) {
+            throw new RuntimeException(WRITE_FAILED_MESSAGE, ex);
+        }
+    }
+
+    /**
+     * Reset statistic.
+     */
+    @ManagedOperation(description = "Reset statistic.")
+    public void reset() {
+        batchCount.set(0);
+        operationCount.set(0);
+        writtenOperationCount.set(0);
+        totalWaitNanos.set(0);
+        totalAcknowledgeNanos.set(0);
+    }
+
+    // Collects operations to batch, which holds collected operations even if interrupted.
+    private void collectBatch(List<PendingOperation> batch) throws InterruptedException {
+        PendingOperation next = queue.take();
+        int batchSize = maxBatchSize;
+        long deadline = next.submitTime + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        int size = 0;
+        while (true) {
+            batch.add(next);
+            size += next.addOperations.size();
+            if (size >= batchSize) {
+                break;
+            }
+            next = queue.poll();
+            if (next == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next == null) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void flush(final List<PendingOperation> batch) {
+        final long flushTime = System.nanoTime();
+        List<AddOperation> addOperations = new ArrayList<>(batch.size());
+        long waitNanos = 0;
+        for (PendingOperation pendingOperation : batch) {
+            addOperations.addAll(pendingOperation.addOperations);
+            waitNanos += (flushTime - pendingOperation.submitTime)
+                    * pendingOperation.addOperations.size();
+        }
+        batchCount.incrementAndGet();
+        operationCount.addAndGet(addOperations.size());
+        totalWaitNanos.addAndGet(waitNanos);
+        // index of written operation, which carries flushed operation
+        int[] writtenOperations = null;
+        List<AddOperation> writtenAddOperations = addOperations;
+        if (coalescing) {
+            writtenOperations = new int[addOperations.size()];
+            writtenAddOperations = coalesce(addOperations, writtenOperations);
+        }
+        writtenOperationCount.addAndGet(writtenAddOperations.size());
+        int[] operationRecords = new int[writtenAddOperations.size()];
+        List<ListenableFuture<Void>> records;
+        try {
+            records = kafkaClient.writeRecordsAsync(writtenAddOperations, operationRecords);
+        } catch (RuntimeException ex) {
+            logger.error(ex);
+            fail(batch, ex);
+            return;
+        }
+        final AtomicInteger pendingRecords = new AtomicInteger(records.size());
+        // invoked by Kafka producer thread
+        ListenableFutureCallback<Void> batchCallback = new ListenableFutureCallback<Void>() {
+
+            @Override
+            public void onSuccess(Void value) {
+                if (pendingRecords.decrementAndGet() == 0) {
+                    totalAcknowledgeNanos.addAndGet(System.nanoTime() - flushTime);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable ex) {
+                logger.error(ex);
+            }
+        };
+        for (ListenableFuture<Void> record : records) {
+            record.addCallback(batchCallback);
+        }
+        int first = 0;
+        for (PendingOperation pendingOperation : batch) {
+            Set<Integer> recordIndexes = new TreeSet<>();
+            for (int i = first; i < first + pendingOperation.addOperations.size(); i++) {
+                int written = coalescing ? writtenOperations[i] : i;
+                recordIndexes.add(operationRecords[written]);
+            }
+            first += pendingOperation.addOperations.size();
+            complete(pendingOperation, records, recordIndexes);
+        }
+    }
+
+    // Sums values per account id, order of first occurrence is kept. Fills netOperations with
+    // index of net operation, which carries each operation.
+    private static List<AddOperation> coalesce(List<AddOperation> addOperations,
+            int[] netOperations) {
+        Map<Integer, Integer> indexes = new HashMap<>(addOperations.size() * 2);
+        List<AddOperation> results = new ArrayList<>(addOperations.size());
+        for (int i = 0; i < addOperations.size(); i++) {
+            AddOperation addOperation = addOperations.get(i);
+            Integer index = indexes.get(addOperation.getId());
+            if (index == null) {
+                index = results.size();
+                indexes.put(addOperation.getId(), index);
+                results.add(addOperation);
+            } else {
+                results.set(index, new AddOperation(addOperation.getId(),
+                        results.get(index).getValue() + addOperation.getValue()));
+            }
+            netOperations[i] = index;
+        }
+        return results;
+    }
+
+    // Completes operation when all records carrying its operations are acknowledged, fails it on
+    // the first failure of them.
+    private static void complete(final PendingOperation pendingOperation,
+            List<ListenableFuture<Void>> records, Set<Integer> recordIndexes) {
+        if (recordIndexes.isEmpty()) {
+            pendingOperation.future.set(null);
+            return;
+        }
+        final AtomicInteger pendingRecords = new AtomicInteger(recordIndexes.size());
+        ListenableFutureCallback<Void> callback = new ListenableFutureCallback<Void>() {
+
+            @Override
+            public void onSuccess(Void value) {
+                if (pendingRecords.decrementAndGet() == 0) {
+                    pendingOperation.future.set(null);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable ex) {
+                pendingOperation.future.setException(ex);
+            }
+        };
+        for (int recordIndex : recordIndexes) {
+            records.get(recordIndex).addCallback(callback);
+        }
+    }
+
+    private static void fail(List<PendingOperation> batch, Throwable ex) {
+        for (PendingOperation pendingOperation : batch) {
+            pendingOperation.future.setException(ex);
+        }
+    }
+}
@@ -1,33 +1,52 @@
 package com.nestos.accountservice.kafka;
 
 import com.nestos.accountservice.domain.AddOperation;
+import com.nestos.accountservice.domain.AddOperationArray;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import kafka.admin.AdminUtils;
-import kafka.api.FetchRequest;
-import kafka.api.FetchRequestBuilder;
 import kafka.api.PartitionOffsetRequestInfo;
+import kafka.cluster.Broker;
 import kafka.common.TopicAndPartition;
-import kafka.javaapi.FetchResponse;
 import kafka.javaapi.OffsetResponse;
+import kafka.javaapi.PartitionMetadata;
+import kafka.javaapi.TopicMetadata;
+import kafka.javaapi.TopicMetadataRequest;
+import kafka.javaapi.TopicMetadataResponse;
 import kafka.javaapi.consumer.SimpleConsumer;
+import kafka.javaapi.message.ByteBufferMessageSet;
+import kafka.message.Message;
 import kafka.message.MessageAndOffset;
+import kafka.message.MessageSet;
 import kafka.utils.ZKStringSerializer$;
 import kafka.utils.ZkUtils;
 import org.I0Itec.zkclient.ZkClient;
+import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.utils.Utils;
+import static org.apache.commons.lang3.Validate.inclusiveBetween;
 import org.apache.log4j.Logger;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
 
 /**
  * Kafka client.
@@ -39,26 +58,147 @@ public class KafkaClient {
 
     private final static Logger logger = Logger.getLogger(KafkaClient.class.getName());
 
+    //-------------------NestedClasses--------------------------------------------
+    // Collects operations and message boundaries of decoded message set.
+    private static class BatchDecoder {
+
+        private final AddOperationArray operations;
+        private long[] messageOffsets;
+        private int[] firstOperations;
+        private int messagesNum;
+        private List<OperationBatch.RejectedMessage> rejectedMessages = Collections.emptyList();
+
+        public BatchDecoder(AddOperationArray operations, int messagesCapacity) {
+            this.operations = operations;
+            this.messageOffsets = new long[Math.max(1, messagesCapacity)];
+            this.firstOperations = new int[Math.max(1, messagesCapacity)];
+        }
+
+        // Decodes operations of message payload, null payload is message without value.
+        public void message(long messageOffset, ByteBuffer payload) {
+            if (messagesNum == messageOffsets.length) {
+                messageOffsets = Arrays.copyOf(messageOffsets, 2 * messagesNum);
+                firstOperations = Arrays.copyOf(firstOperations, 2 * messagesNum);
+            }
+            messageOffsets[messagesNum] = messageOffset;
+            firstOperations[messagesNum] = operations.size();
+            messagesNum++;
+            if (payload == null) {
+                reject(messageOffset, new byte[0], NULL_PAYLOAD_MESSAGE);
+                return;
+            }
+            try {
+                AddOperation.decodeAll(payload, operations);
+            } catch (RuntimeException ex) {
+                // envelope may be decoded partially
+                operations.truncate(firstOperations[messagesNum - 1]);
+                reject(messageOffset, toBytes(payload), ex.toString());
+            }
+        }
+
+        public OperationBatch toBatch(long nextOffset, int sizeInBytes) {
+            // boundaries are presized by number of entries, so copy is rare
+            if (messagesNum < messageOffsets.length) {
+                messageOffsets = Arrays.copyOf(messageOffsets, messagesNum);
+                firstOperations = Arrays.copyOf(firstOperations, messagesNum);
+            }
+            return new OperationBatch(operations, nextOffset, sizeInBytes, messageOffsets,
+                    firstOperations, rejectedMessages);
+        }
+
+        private void reject(long messageOffset, byte[] payload, String reason) {
+            if (rejectedMessages.isEmpty()) {
+                rejectedMessages = new ArrayList<>();
+            }
+            rejectedMessages.add(new OperationBatch.RejectedMessage(messageOffset, payload,
+                    reason));
+        }
+    }
+
+    // Completes future when all records are acknowledged, or fails it on first error.
+    private static class AcknowledgeCallback implements Callback {
+
+        private final SettableListenableFuture<Void> future = new SettableListenableFuture<>();
+        private final AtomicInteger pending;
+
+        public AcknowledgeCallback(int recordsNum) {
+            pending = new AtomicInteger(recordsNum);
+            if (recordsNum == 0) {
+                future.set(null);
+            }
+        }
+
+        @Override
+        public void onCompletion(RecordMetadata metadata, Exception exception) {
+            if (exception != null) {
+                future.setException(exception);
+            } else if (pending.decrementAndGet() == 0) {
+                future.set(null);
+            }
+        }
+    }
+
     //-------------------Constants------------------------------------------------
    
     private final static String CLIENT_NAME = "accountService";
     private final static int SESSION_TIMEOUT_MS = 10000;
     private final static int CONNECTION_TIMEOUT_MS = 10000;
-    public final static int PARTITIONS_NUM = 5;
+    // Number of partitions of created topic.
+    public final static int DEFAULT_PARTITIONS_NUM = 5;
     private final static int REPLICATION_FACTOR = 1;
     private final static int CLIENT_BUFFER_SIZE = 64 * 1024;
     private final static int CLIENT_TIMEOUT = 100000;
-    private final static int CLIENT_FETCH_SIZE = 100000;
+    public final static int DEFAULT_FETCH_MAX_WAIT_MS = 500;
+    public final static int DEFAULT_FETCH_MIN_BYTES = 1;
+    private final static int MAX_ENVELOPE_OPERATIONS = 1000;
+    // Partition fetch must hold the largest record, envelope, otherwise it can't be fetched.
+    public final static int MIN_FETCH_SIZE = AddOperation.envelopeSize(MAX_ENVELOPE_OPERATIONS)
+            + MessageSet.LogOverhead() + Message.MinHeaderSize();
+    public final static int DEFAULT_MAX_FETCH_SIZE = 1024 * 1024;
+    public final static long DEFAULT_TARGET_APPLY_LATENCY_MS = 100;
+    private final static String NULL_PAYLOAD_MESSAGE = "Message has no value.";
+    // Fields of Kafka message entry: offset and size, then message header.
+    private final static int ENTRY_SIZE_OFFSET = 8;
+    private final static int ATTRIBUTES_OFFSET = MessageSet.LogOverhead()
+            + Message.AttributesOffset();
+    private final static int KEY_SIZE_OFFSET = MessageSet.LogOverhead() + Message.KeySizeOffset();
 
     //-------------------Fields---------------------------------------------------
     private String topicName;
     private ZkClient zkClient;
     private KafkaProducer<String, byte[]> kafkaProducer;
+    // Bootstrap consumer, discovers partition leaders.
     private SimpleConsumer kafkaConsumer;
+    // Fetched batches by partition.
+    private PartitionBuffer[] buffers;
+    // Fetchers by leader broker "host:port", guarded by client monitor.
+    private final Map<String, BrokerFetcher> fetchers = new HashMap<>();
+    private ExecutorService fetcherExecutorService;
     private String zooHost;
     private int zooPort;
     private String kafkaHost;
     private int kafkaPort;
+    private AddOperation.WireFormat wireFormat = AddOperation.WireFormat.BINARY;
+    private int fetchMaxWaitMs = DEFAULT_FETCH_MAX_WAIT_MS;
+    private int fetchMinBytes = DEFAULT_FETCH_MIN_BYTES;
+    private int minFetchSize = MIN_FETCH_SIZE;
+    private int maxFetchSize = DEFAULT_MAX_FETCH_SIZE;
+    private long targetApplyLatencyMs = DEFAULT_TARGET_APPLY_LATENCY_MS;
+    // Fetch sizes by partition.
+    private FetchSizer[] fetchSizers;
+    // Operation arrays of applied batches by partition, reused by the next decode.
+    private AtomicReferenceArray<AddOperationArray> freeOperationArrays;
+    // Number of partitions of created topic, then number of topic partitions.
+    private int partitionsNum = DEFAULT_PARTITIONS_NUM;
+    private volatile BatchListener batchListener;
+    // Per-thread encode buffer. Producer copies record value into its batch inside send() call,
+    // so buffer can be reused as soon as send() returns.
+    private final ThreadLocal<ByteBuffer> encodeBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(AddOperation.BINARY_SIZE);
+        }
+    };
 
     //-------------------Constructors---------------------------------------------
     public KafkaClient() {
@@ -74,6 +214,160 @@ public class KafkaClient {
     }
 
     //-------------------Getters and setters--------------------------------------
+    public String getTopicName() {
+        return topicName;
+    }
+
+    /**
+     * Returns ZooKeeper client, which is connected on start.
+     *
+     * @return ZooKeeper client with string serializer.
+     */
+    public ZkClient getZkClient() {
+        return zkClient;
+    }
+
+    public AddOperation.WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    /**
+     * Set wire format for written records. Records of both formats are readable regardless of
+     * this setting, so during rolling upgrade keep SERIALIZED until all instances are upgraded.
+     *
+     * @param wireFormat wire format for written records.
+     */
+    public void setWireFormat(AddOperation.WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+    }
+
+    public int getFetchMaxWaitMs() {
+        return fetchMaxWaitMs;
+    }
+
+    /**
+     * Set maximum time (ms) broker holds fetch request, while partition has less than
+     * fetchMinBytes to return. Must be less than consumer socket timeout.
+     *
+     * @param fetchMaxWaitMs maximum fetch wait time (ms).
+     */
+    public void setFetchMaxWaitMs(int fetchMaxWaitMs) {
+        inclusiveBetween(0, CLIENT_TIMEOUT / 2, fetchMaxWaitMs);
+        this.fetchMaxWaitMs = fetchMaxWaitMs;
+    }
+
+    /**
+     * Returns number of topic partitions, read from topic metadata on start.
+     *
+     * @return number of topic partitions.
+     */
+    public int getPartitionsNum() {
+        return partitionsNum;
+    }
+
+    /**
+     * Set number of partitions of topic, which is created on start. Existing topic keeps its
+     * partitions.
+     *
+     * @param partitionsNum number of partitions of created topic.
+     */
+    public void setPartitionsNum(int partitionsNum) {
+        inclusiveBetween(1, Integer.MAX_VALUE, partitionsNum);
+        this.partitionsNum = partitionsNum;
+    }
+
+    public int getMinFetchSize() {
+        return minFetchSize;
+    }
+
+    /**
+     * Set minimum bytes fetched from partition in one request, fetch of caught up partition.
+     *
+     * @param minFetchSize minimum partition fetch size, not less than MIN_FETCH_SIZE.
+     */
+    public void setMinFetchSize(int minFetchSize) {
+        inclusiveBetween(MIN_FETCH_SIZE, Integer.MAX_VALUE, minFetchSize);
+        this.minFetchSize = minFetchSize;
+    }
+
+    public int getMaxFetchSize() {
+        return maxFetchSize;
+    }
+
+    /**
+     * Set maximum bytes fetched from partition in one request, fetch of catching up partition.
+     *
+     * @param maxFetchSize maximum partition fetch size, not less than MIN_FETCH_SIZE.
+     */
+    public void setMaxFetchSize(int maxFetchSize) {
+        inclusiveBetween(MIN_FETCH_SIZE, Integer.MAX_VALUE, maxFetchSize);
+        this.maxFetchSize = maxFetchSize;
+    }
+
+    public long getTargetApplyLatencyMs() {
+        return targetApplyLatencyMs;
+    }
+
+    /**
+     * Set target time (ms) of batch apply. Partition, which lag can be applied within target
+     * time, fetches its lag, other partitions fetch maximum size.
+     *
+     * @param targetApplyLatencyMs target apply time (ms).
+     */
+    public void setTargetApplyLatencyMs(long targetApplyLatencyMs) {
+        inclusiveBetween(1, Long.MAX_VALUE, targetApplyLatencyMs);
+        this.targetApplyLatencyMs = targetApplyLatencyMs;
+    }
+
+    /**
+     * Returns current bytes fetched from partition in one request.
+     *
+     * @param partition partition number.
+     * @return partition fetch size.
+     */
+    public int getFetchSize(int partition) {
+        return fetchSizers[partition].getFetchSize();
+    }
+
+    /**
+     * Returns number of partition messages after the last fetched batch, reported by high
+     * watermark of the last fetch response.
+     *
+     * @param partition partition number.
+     * @return partition lag in messages.
+     */
+    public long getLag(int partition) {
+        return fetchSizers[partition].getLag();
+    }
+
+    public BatchListener getBatchListener() {
+        return batchListener;
+    }
+
+    /**
+     * Set listener, which is notified when partition batch is fetched.
+     *
+     * @param batchListener listener or null.
+     */
+    public void setBatchListener(BatchListener batchListener) {
+        this.batchListener = batchListener;
+    }
+
+    public int getFetchMinBytes() {
+        return fetchMinBytes;
+    }
+
+    /**
+     * Set minimum number of bytes broker accumulates before answering fetch request. With 1
+     * fetch returns as soon as any message arrives.
+     *
+     * @param fetchMinBytes minimum fetch size in bytes.
+     */
+    public void setFetchMinBytes(int fetchMinBytes) {
+        inclusiveBetween(0, Integer.MAX_VALUE, fetchMinBytes);
+        this.fetchMinBytes = fetchMinBytes;
+    }
+
     //-------------------Methods--------------------------------------------------
     private Properties createProducerConfigProperties() {
         Properties props = new Properties();
@@ -81,7 +375,7 @@ public class KafkaClient {
         props.setProperty(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, broker);
         props.put("value.serializer", "org.apache.kafka.common.serialization.ByteArraySerializer");
         props.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
-        props.put("request.required.acks", "all");
+        props.put(ProducerConfig.ACKS_CONFIG, "all");
         // use key hashCode for select partition
         props.setProperty("partitioner.class", "kafka.producer.DefaultPartitioner");
         return props;
@@ -92,10 +386,117 @@ public class KafkaClient {
      * @param addOperation operation to write.
      */
     public void write(AddOperation addOperation) {
+        ProducerRecord<String, byte[]> producerRecord = new ProducerRecord<>(
+                topicName, "" + addOperation.getId(), encode(addOperation));
+        awaitAcknowledge(kafkaProducer.send(producerRecord));
+    }
+
+    /**
+     * Submit add operations to kafka server. Operations are grouped by partition and each group
+     * is packed into envelope records, so burst of operations costs one message per partition.
+     * Blocks until all records are acknowledged.
+     *
+     * @param addOperations operations to write.
+     */
+    public void write(List<AddOperation> addOperations) {
+        awaitAcknowledge(writeAsync(addOperations));
+    }
+
+    /**
+     * Submit add operations to kafka server without blocking. Records are the same as
+     * {@link #write(java.util.List) write} produces.
+     *
+     * @param addOperations operations to write.
+     * @return future, which completes when all records are acknowledged or any record fails.
+     */
+    public ListenableFuture<Void> writeAsync(List<AddOperation> addOperations) {
+        List<ProducerRecord<String, byte[]>> records = createRecords(addOperations, null);
+        AcknowledgeCallback callback = new AcknowledgeCallback(records.size());
+        for (ProducerRecord<String, byte[]> producerRecord : records) {
+            kafkaProducer.send(producerRecord, callback);
+        }
+        return callback.future;
+    }
+
+    /**
+     * Submit add operations to kafka server without blocking and report every record
+     * separately, so caller can complete each operation by the record which carries it.
+     * Records are the same as {@link #write(java.util.List) write} produces.
+     *
+     * @param addOperations operations to write.
+     * @param operationRecords filled with index of record, which carries operation with the
+     * same index.
+     * @return futures of records, each completes when its record is acknowledged or fails.
+     */
+    public List<ListenableFuture<Void>> writeRecordsAsync(List<AddOperation> addOperations,
+            int[] operationRecords) {
+        List<ProducerRecord<String, byte[]>> records = createRecords(addOperations,
+                operationRecords);
+        List<ListenableFuture<Void>> results = new ArrayList<>(records.size());
+        for (ProducerRecord<String, byte[]> producerRecord : records) {
+            AcknowledgeCallback callback = new AcknowledgeCallback(1);
+            kafkaProducer.send(producerRecord, callback);
+            results.add(callback.future);
+        }
+        return results;
+    }
+
+    // Fills operationRecords, if it is not null, with index of record carrying each operation.
+    private List<ProducerRecord<String, byte[]>> createRecords(List<AddOperation> addOperations,
+            int[] operationRecords) {
+        List<ProducerRecord<String, byte[]>> results = new ArrayList<>();
+        if (wireFormat == AddOperation.WireFormat.SERIALIZED) {
+            // previous service versions can't read envelopes
+            for (int i = 0; i < addOperations.size(); i++) {
+                AddOperation addOperation = addOperations.get(i);
+                if (operationRecords != null) {
+                    operationRecords[i] = results.size();
+                }
+                results.add(new ProducerRecord<>(topicName, "" + addOperation.getId(),
+                        addOperation.toByteArray(wireFormat)));
+            }
+        } else {
+            for (Map.Entry<Integer, List<Integer>> entry
+                    : groupByPartition(addOperations).entrySet()) {
+                List<Integer> indexes = entry.getValue();
+                List<AddOperation> group = new ArrayList<>(indexes.size());
+                for (int index : indexes) {
+                    group.add(addOperations.get(index));
+                }
+                for (int from = 0; from < group.size(); from += MAX_ENVELOPE_OPERATIONS) {
+                    int to = Math.min(group.size(), from + MAX_ENVELOPE_OPERATIONS);
+                    if (operationRecords != null) {
+                        for (int i = from; i < to; i++) {
+                            operationRecords[indexes.get(i)] = results.size();
+                        }
+                    }
+                    ByteBuffer buffer = ByteBuffer.allocate(AddOperation.envelopeSize(to - from));
+                    AddOperation.writeEnvelope(group, from, to, buffer);
+                    results.add(new ProducerRecord<>(
+                            topicName, entry.getKey(), (String) null, buffer.array()));
+                }
+            }
+        }
+        return results;
+    }
+
+    // Groups indexes of operations by partition.
+    private Map<Integer, List<Integer>> groupByPartition(List<AddOperation> addOperations) {
+        Map<Integer, List<Integer>> groups = new HashMap<>();
+        for (int i = 0; i < addOperations.size(); i++) {
+            int partition = partitionFor(addOperations.get(i).getId());
+            List<Integer> group = groups.get(partition);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(partition, group);
+            }
+            group.add(i);
+        }
+        return groups;
+    }
+
+    private void awaitAcknowledge(Future<?> result) {
         try {
-            ProducerRecord<String, byte[]> producerRecord = new ProducerRecord<>(
-                    topicName, "" + addOperation.getId(), addOperation.toByteArray());
-            Future<RecordMetadata> result = kafkaProducer.send(producerRecord);
             // make call synchronous for durability garanties
             result.get();
         } catch (InterruptedException | ExecutionException ex) {
@@ -104,29 +505,274 @@ public class KafkaClient {
     }
 
     /**
-     * Read from specified partition and return list of add operations.
+     * Returns partition for operations of specified account. Matches producer partitioner choice
+     * for record key, so single and envelope records of one account always share partition.
+     *
+     * @param id account identifier.
+     * @return partition number.
+     */
+    public int partitionFor(int id) {
+        int partitionsNum = kafkaProducer.partitionsFor(topicName).size();
+        byte[] key = Integer.toString(id).getBytes(StandardCharsets.UTF_8);
+        return Utils.abs(Utils.murmur2(key)) % partitionsNum;
+    }
+
+    private byte[] encode(AddOperation addOperation) {
+        if (wireFormat == AddOperation.WireFormat.SERIALIZED) {
+            return addOperation.toByteArray(wireFormat);
+        }
+        ByteBuffer buffer = encodeBuffer.get();
+        buffer.clear();
+        addOperation.writeTo(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Read from specified partition and return add operations. Envelope records are expanded.
+     * Partitions are fetched by one fetcher per leader broker, which fetches all its partitions
+     * with one long-poll request and buffers one batch per partition ahead. Doesn't wait: if
+     * batch is not fetched yet, empty batch is returned and batch listener is notified later.
+     *
+     * @param partition partition number.
+     * @param offset offset in partition.
+     * @return read add operations and offset of the next unread message.
+     */
+    public OperationBatch read(int partition, long offset) {
+        return read(partition, offset, 0);
+    }
+
+    /**
+     * Read from specified partition like {@link #read(int, long) read}, but wait for batch
+     * fetch at most timeoutMs.
      *
      * @param partition partition number.
      * @param offset offset in partition.
-     * @return list of add operations, consists up to maxItemsToRead elements.
+     * @param timeoutMs maximum wait time (ms).
+     * @return read add operations and offset of the next unread message.
+     */
+    public OperationBatch read(int partition, long offset, long timeoutMs) {
+        PartitionBuffer buffer = buffers[partition];
+        if (buffer.getFetcher() == null) {
+            refreshLeaders();
+        }
+        try {
+            return buffer.take(offset, timeoutMs);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while reading kafka data.");
+        }
+    }
+
+    /**
+     * Returns true if batch of partition is fetched and not read yet.
+     *
+     * @param partition partition number.
+     * @return true if read of partition returns fetched batch.
+     */
+    public boolean isBatchReady(int partition) {
+        return buffers[partition].isFull();
+    }
+
+    /**
+     * Reports apply of batch read from partition. Apply time sizes next fetches of partition.
+     * Operation array of applied batch is reused by the next fetch of partition, so batch
+     * mustn't be used after this call.
+     *
+     * @param partition partition number.
+     * @param operationBatch applied batch.
+     * @param latencyMs apply time (ms).
      */
-    public List<AddOperation> read(int partition, long offset) {
-        List<AddOperation> addOperations = new ArrayList<>();
-        FetchRequest req = new FetchRequestBuilder()
-                .clientId(CLIENT_NAME)
-                .addFetch(topicName, partition, offset, CLIENT_FETCH_SIZE)
-                .build();
-        FetchResponse fetchResponse = kafkaConsumer.fetch(req);
-        if (fetchResponse.hasError()) {
-            throw new RuntimeException("Error fetching kafka data.");
+    public void batchApplied(int partition, OperationBatch operationBatch, long latencyMs) {
+        fetchSizers[partition].applied(operationBatch.getSizeInBytes(), latencyMs);
+        recycle(partition, operationBatch);
+    }
+
+    /**
+     * Stops prefetch of partition, which is not processed anymore, and drops its buffered
+     * batch. Prefetch restarts on the next read.
+     *
+     * @param partition partition number.
+     */
+    public void release(int partition) {
+        buffers[partition].release();
+    }
+
+    // Invoked by fetcher, when batch is put into partition buffer.
+    void batchFetched(int partition) {
+        BatchListener listener = batchListener;
+        if (listener != null) {
+            listener.batchFetched(partition);
+        }
+    }
+
+    /**
+     * Discovers partition leaders and assigns partitions to fetchers of leader brokers.
+     * Fetcher of newly seen broker is started.
+     */
+    synchronized void refreshLeaders() {
+        TopicMetadataResponse response;
+        try {
+            response = kafkaConsumer.send(
+                    new TopicMetadataRequest(Collections.singletonList(topicName)));
+        } catch (RuntimeException ex) {
+            logger.error("Can't discover partition leaders.", ex);
+            return;
+        }
+        for (TopicMetadata topicMetadata : response.topicsMetadata()) {
+            for (PartitionMetadata partitionMetadata : topicMetadata.partitionsMetadata()) {
+                int partition = partitionMetadata.partitionId();
+                if (partition >= buffers.length) {
+                    continue;
+                }
+                Broker leader = partitionMetadata.leader();
+                buffers[partition].setFetcher((leader == null) ? null : fetcherFor(leader));
+            }
+        }
+    }
+
+    private BrokerFetcher fetcherFor(Broker broker) {
+        String key = broker.host() + ":" + broker.port();
+        BrokerFetcher fetcher = fetchers.get(key);
+        if (fetcher == null) {
+            SimpleConsumer consumer = new SimpleConsumer(broker.host(), broker.port(),
+                    CLIENT_TIMEOUT, CLIENT_BUFFER_SIZE, CLIENT_NAME);
+            fetcher = new BrokerFetcher(this, consumer, topicName, buffers);
+            fetchers.put(key, fetcher);
+            fetcherExecutorService.submit(fetcher);
+        }
+        return fetcher;
+    }
+
+    // Invoked by fetcher with fetched message set size, messages number and remaining lag.
+    void fetched(int partition, int bytes, long messages, long lag) {
+        fetchSizers[partition].fetched(bytes, messages, lag);
+    }
+
+    // Decodes fetched message set of partition into reused operation array.
+    OperationBatch decode(int partition, ByteBufferMessageSet messageSet, long offset) {
+        AddOperationArray operations = freeOperationArrays.getAndSet(partition, null);
+        return decode(messageSet, offset,
+                (operations == null) ? new AddOperationArray() : operations);
+    }
+
+    // Keeps operation array of batch, which isn't used anymore, for the next decode.
+    void recycle(int partition, OperationBatch operationBatch) {
+        AddOperationArray operations = operationBatch.getOperations();
+        operations.clear();
+        freeOperationArrays.set(partition, operations);
+    }
+
+    /**
+     * Decode add operations from message set into new operation array, see
+     * {@link #decode(ByteBufferMessageSet, long, AddOperationArray) decode}.
+     *
+     * @param messageSet fetched message set.
+     * @param offset requested offset.
+     * @return decoded add operations, message boundaries and offset of the next unread message.
+     */
+    static OperationBatch decode(ByteBufferMessageSet messageSet, long offset) {
+        return decode(messageSet, offset, new AddOperationArray());
+    }
+
+    /**
+     * Decode add operations from message set, skipping messages before specified offset.
+     * Message, which can't be decoded, is kept in batch as rejected message.
+     * <p>
+     * Message entries are parsed directly from fetched buffer and payloads are decoded in place
+     * into primitive operation array, so decode of uncompressed message set creates no object
+     * per message or operation. Compressed entries are decompressed by Kafka message set.
+     * Partial message at the end of fetch is left for the next fetch.
+     *
+     * @param messageSet fetched message set.
+     * @param offset requested offset.
+     * @param operations empty array for decoded operations.
+     * @return decoded add operations, message boundaries and offset of the next unread message.
+     */
+    static OperationBatch decode(ByteBufferMessageSet messageSet, long offset,
+            AddOperationArray operations) {
+        ByteBuffer buffer = messageSet.getBuffer();
+        BatchDecoder decoder = new BatchDecoder(operations, countEntries(buffer));
+        // payload view is moved over buffer instead of slice per message
+        ByteBuffer payload = buffer.duplicate();
+        int start = buffer.position();
+        int position = start;
+        int end = start;
+        long nextOffset = offset;
+        while (buffer.limit() - position >= MessageSet.LogOverhead()) {
+            long messageOffset = buffer.getLong(position);
+            int size = buffer.getInt(position + ENTRY_SIZE_OFFSET);
+            if (size < Message.MinHeaderSize()
+                    || size > buffer.limit() - position - MessageSet.LogOverhead()) {
+                // partial message at the end of fetch
+                break;
+            }
+            int entryStart = position;
+            position += MessageSet.LogOverhead() + size;
+            end = position;
+            if ((buffer.get(entryStart + ATTRIBUTES_OFFSET) & Message.CompressionCodeMask())
+                    != 0) {
+                nextOffset = decodeCompressed(buffer, entryStart, position, offset, nextOffset,
+                        decoder);
+                continue;
+            }
+            if (messageOffset < offset) {
+                continue;
+            }
+            int keySize = buffer.getInt(entryStart + KEY_SIZE_OFFSET);
+            int valueSizeStart = entryStart + KEY_SIZE_OFFSET + Message.KeySizeLength()
+                    + Math.max(0, keySize);
+            int valueSize = buffer.getInt(valueSizeStart);
+            if (valueSize < 0) {
+                decoder.message(messageOffset, null);
+            } else {
+                payload.clear();
+                payload.limit(valueSizeStart + Message.ValueSizeLength() + valueSize);
+                payload.position(valueSizeStart + Message.ValueSizeLength());
+                decoder.message(messageOffset, payload);
+            }
+            nextOffset = messageOffset + 1;
         }
-        for (MessageAndOffset messageAndOffset : fetchResponse.messageSet(topicName, partition)) {
-            ByteBuffer byteBuffer = messageAndOffset.message().payload();
-            byte[] bytes = new byte[byteBuffer.limit()];
-            byteBuffer.get(bytes);
-            addOperations.add(AddOperation.valueOf(bytes));
+        return decoder.toBatch(nextOffset, end - start);
+    }
+
+    // Counts complete entries of message set by entry headers.
+    private static int countEntries(ByteBuffer buffer) {
+        int entriesNum = 0;
+        int position = buffer.position();
+        while (buffer.limit() - position >= MessageSet.LogOverhead()) {
+            int size = buffer.getInt(position + ENTRY_SIZE_OFFSET);
+            if (size < Message.MinHeaderSize()
+                    || size > buffer.limit() - position - MessageSet.LogOverhead()) {
+                break;
+            }
+            position += MessageSet.LogOverhead() + size;
+            entriesNum++;
         }
-        return addOperations;
+        return entriesNum;
+    }
+
+    // Decodes messages of compressed entry, returns offset of the next message.
+    private static long decodeCompressed(ByteBuffer buffer, int entryStart, int entryEnd,
+            long offset, long nextOffset, BatchDecoder decoder) {
+        ByteBuffer entry = buffer.duplicate();
+        entry.limit(entryEnd);
+        entry.position(entryStart);
+        for (MessageAndOffset messageAndOffset : new ByteBufferMessageSet(entry.slice())) {
+            // compressed message set may start before requested offset
+            if (messageAndOffset.offset() < offset) {
+                continue;
+            }
+            decoder.message(messageAndOffset.offset(), messageAndOffset.message().payload());
+            nextOffset = messageAndOffset.nextOffset();
+        }
+        return nextOffset;
+    }
+
+    // Copies remaining bytes.
+    private static byte[] toBytes(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        return bytes;
     }
 
     @PostConstruct
@@ -139,13 +785,24 @@ public class KafkaClient {
             if (!zkClient.exists(topicPath)) {
                 Properties props = new Properties();
                 AdminUtils.createTopic(zkClient, topicName,
-                        PARTITIONS_NUM, REPLICATION_FACTOR, props);
+                        partitionsNum, REPLICATION_FACTOR, props);
             }
             // producer creation
             kafkaProducer = new KafkaProducer<>(createProducerConfigProperties());
-            // consumer creation - single leader without replication
+            // producer waits for topic metadata
+            partitionsNum = kafkaProducer.partitionsFor(topicName).size();
+            // bootstrap consumer creation, fetchers are created on first read
             kafkaConsumer = new SimpleConsumer(kafkaHost, kafkaPort, CLIENT_TIMEOUT,
                     CLIENT_BUFFER_SIZE, CLIENT_NAME);
+            buffers = new PartitionBuffer[partitionsNum];
+            fetchSizers = new FetchSizer[partitionsNum];
+            freeOperationArrays = new AtomicReferenceArray<>(partitionsNum);
+            int maxSize = Math.max(minFetchSize, maxFetchSize);
+            for (int i = 0; i < partitionsNum; i++) {
+                buffers[i] = new PartitionBuffer(i);
+                fetchSizers[i] = new FetchSizer(minFetchSize, maxSize, targetApplyLatencyMs);
+            }
+            fetcherExecutorService = Executors.newCachedThreadPool();
 
         } catch (org.I0Itec.zkclient.exception.ZkTimeoutException ex) {
             System.out.println("Could not establish connection to ZooKeeper server."
@@ -156,7 +813,7 @@ public class KafkaClient {
     }
 
     /**
-     * Return last offset in partition.
+     * Return last offset in partition. Asks partition leader, if it is known.
      * @param partition partition number.
      * @return last offset in partition.
      */
@@ -167,7 +824,9 @@ public class KafkaClient {
                 new PartitionOffsetRequestInfo(kafka.api.OffsetRequest.LatestTime(), 1));
         kafka.javaapi.OffsetRequest request = new kafka.javaapi.OffsetRequest(
                 requestInfo, kafka.api.OffsetRequest.CurrentVersion(), CLIENT_NAME);
-        OffsetResponse response = kafkaConsumer.getOffsetsBefore(request);
+        BrokerFetcher fetcher = buffers[partition].getFetcher();
+        SimpleConsumer consumer = (fetcher == null) ? kafkaConsumer : fetcher.getConsumer();
+        OffsetResponse response = consumer.getOffsetsBefore(request);
         if (response.hasError()) {
             logger.error("Error fetching data Offset Data the Broker. Reason: " 
                     + response.errorCode(topicName, partition) );
@@ -182,6 +841,20 @@ public class KafkaClient {
         if (kafkaProducer != null) {
             kafkaProducer.close();
         }
+        if (fetcherExecutorService != null) {
+            fetcherExecutorService.shutdownNow();
+            try {
+                fetcherExecutorService.awaitTermination(CLIENT_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            for (BrokerFetcher fetcher : fetchers.values()) {
+                fetcher.getConsumer().close();
+            }
+            fetchers.clear();
+        }
         if (kafkaConsumer != null) {
             kafkaConsumer.close();
         }
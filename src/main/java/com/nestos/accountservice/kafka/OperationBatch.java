@@ -0,0 +1,204 @@
+package com.nestos.accountservice.kafka;
+
+import com.nestos.accountservice.domain.AddOperation;
+import com.nestos.accountservice.domain.AddOperationArray;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.apache.commons.lang3.Validate.isTrue;
+import static org.apache.commons.lang3.Validate.notNull;
+
+/**
+ * Result of partition read: decoded add operations and offset of the next unread message.
+ * Because one message may carry several operations, number of operations is not related
+ * to number of read offsets. Operations are kept in primitive array, list of operations is a
+ * view for callers, which aren't on processing path.
+ * <p>
+ * Batch decoded from message set knows message boundaries, so it can be sliced into batches of
+ * whole messages, and keeps messages, which can't be decoded. Batch without boundaries is one
+ * message.
+ *
+ * @author Roman Osipov
+ */
+public class OperationBatch {
+
+    //-------------------NestedClasses--------------------------------------------
+    /**
+     * Message, which can't be decoded or applied, with raw payload and failure reason.
+     */
+    public static class RejectedMessage {
+
+        private final long offset;
+        private final byte[] payload;
+        private final String reason;
+
+        public RejectedMessage(long offset, byte[] payload, String reason) {
+            this.offset = offset;
+            this.payload = payload;
+            this.reason = reason;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+    }
+
+    //-------------------Logger---------------------------------------------------
+    //-------------------Constants------------------------------------------------
+    public static final String ADD_OPERATIONS_NPE_MESSAGE = "addOperations can't be null.";
+    public static final String REJECTED_MESSAGES_NPE_MESSAGE = "rejectedMessages can't be null.";
+    public static final String BOUNDARIES_IAE_MESSAGE
+            = "messageOffsets and firstOperations must have the same length.";
+    public static final String SLICE_IAE_MESSAGE = "Invalid message range.";
+
+    //-------------------Fields---------------------------------------------------
+    private final AddOperationArray operations;
+
+    // Offset of the next unread message in partition.
+    private final long nextOffset;
+
+    // Size of fetched message set, which operations are decoded from.
+    private final int sizeInBytes;
+
+    // Offsets of messages and indexes of their first operations, null if batch is one message.
+    private final long[] messageOffsets;
+    private final int[] firstOperations;
+
+    private final List<RejectedMessage> rejectedMessages;
+
+    //-------------------Constructors---------------------------------------------
+    public OperationBatch(List<AddOperation> addOperations, long nextOffset) {
+        this(addOperations, nextOffset, 0);
+    }
+
+    public OperationBatch(List<AddOperation> addOperations, long nextOffset, int sizeInBytes) {
+        this(addOperations, nextOffset, sizeInBytes, null, null,
+                Collections.<RejectedMessage>emptyList());
+    }
+
+    public OperationBatch(List<AddOperation> addOperations, long nextOffset, int sizeInBytes,
+            long[] messageOffsets, int[] firstOperations,
+            List<RejectedMessage> rejectedMessages) {
+        this(AddOperationArray.of(notNull(addOperations, ADD_OPERATIONS_NPE_MESSAGE)),
+                nextOffset, sizeInBytes, messageOffsets, firstOperations, rejectedMessages);
+    }
+
+    /**
+     * Constructs batch with message boundaries.
+     *
+     * @param operations decoded operations.
+     * @param nextOffset offset of the next unread message.
+     * @param sizeInBytes size of fetched message set.
+     * @param messageOffsets offsets of read messages, null if batch is one message.
+     * @param firstOperations indexes of the first operations of messages.
+     * @param rejectedMessages read messages, which can't be decoded.
+     */
+    public OperationBatch(AddOperationArray operations, long nextOffset, int sizeInBytes,
+            long[] messageOffsets, int[] firstOperations,
+            List<RejectedMessage> rejectedMessages) {
+        notNull(operations, ADD_OPERATIONS_NPE_MESSAGE);
+        notNull(rejectedMessages, REJECTED_MESSAGES_NPE_MESSAGE);
+        isTrue((messageOffsets == null) == (firstOperations == null)
+                && (messageOffsets == null || messageOffsets.length == firstOperations.length),
+                BOUNDARIES_IAE_MESSAGE);
+        this.operations = operations;
+        this.nextOffset = nextOffset;
+        this.sizeInBytes = sizeInBytes;
+        this.messageOffsets = messageOffsets;
+        this.firstOperations = firstOperations;
+        this.rejectedMessages = rejectedMessages;
+    }
+
+    //-------------------Getters and setters--------------------------------------
+    public AddOperationArray getOperations() {
+        return operations;
+    }
+
+    public List<AddOperation> getAddOperations() {
+        return operations.asList();
+    }
+
+    public long getNextOffset() {
+        return nextOffset;
+    }
+
+    public int getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public List<RejectedMessage> getRejectedMessages() {
+        return rejectedMessages;
+    }
+
+    /**
+     * Returns number of messages, which batch can be sliced into.
+     *
+     * @return number of messages, 1 if boundaries are unknown.
+     */
+    public int getMessagesNum() {
+        return (messageOffsets == null) ? 1 : messageOffsets.length;
+    }
+
+    //-------------------Methods--------------------------------------------------
+    /**
+     * Returns batch of messages, which offsets are less than specified offset.
+     *
+     * @param toOffset offset of the first excluded message.
+     * @return this batch, if it ends before toOffset or has no boundaries, otherwise slice of
+     * its first messages.
+     */
+    public OperationBatch headBefore(long toOffset) {
+        if (nextOffset <= toOffset || messageOffsets == null) {
+            return this;
+        }
+        int toMessage = 0;
+        while (toMessage < messageOffsets.length && messageOffsets[toMessage] < toOffset) {
+            toMessage++;
+        }
+        return (toMessage == 0) ? this : slice(0, toMessage);
+    }
+
+    /**
+     * Returns batch of messages fromMessage..toMessage-1. Operations are copied, so slice stays
+     * valid, when array of this batch is reused.
+     *
+     * @param fromMessage index of the first message, inclusive.
+     * @param toMessage index of the last message, exclusive.
+     * @return batch, which next offset is offset of toMessage or next offset of this batch.
+     */
+    public OperationBatch slice(int fromMessage, int toMessage) {
+        int messagesNum = getMessagesNum();
+        isTrue(0 <= fromMessage && fromMessage < toMessage && toMessage <= messagesNum,
+                SLICE_IAE_MESSAGE);
+        if (messageOffsets == null) {
+            return this;
+        }
+        int fromOperation = firstOperations[fromMessage];
+        int toOperation = (toMessage < messagesNum)
+                ? firstOperations[toMessage] : operations.size();
+        long sliceNextOffset = (toMessage < messagesNum) ? messageOffsets[toMessage] : nextOffset;
+        int[] sliceFirstOperations = Arrays.copyOfRange(firstOperations, fromMessage, toMessage);
+        for (int i = 0; i < sliceFirstOperations.length; i++) {
+            sliceFirstOperations[i] -= fromOperation;
+        }
+        List<RejectedMessage> sliceRejectedMessages = new ArrayList<>();
+        for (RejectedMessage rejectedMessage : rejectedMessages) {
+            if (rejectedMessage.getOffset() >= messageOffsets[fromMessage]
+                    && rejectedMessage.getOffset() < sliceNextOffset) {
+                sliceRejectedMessages.add(rejectedMessage);
+            }
+        }
+        return new OperationBatch(operations.copyOfRange(fromOperation, toOperation),
+                sliceNextOffset, 0, Arrays.copyOfRange(messageOffsets, fromMessage, toMessage),
+                sliceFirstOperations, sliceRejectedMessages);
+    }
+}
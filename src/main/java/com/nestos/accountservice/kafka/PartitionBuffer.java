@@ -0,0 +1,153 @@
+package com.nestos.accountservice.kafka;
+
+import com.nestos.accountservice.domain.AddOperation;
+import java.util.Collections;
+
+/**
+ * Hands fetched batches of one partition from broker fetcher to partition processor. Holds at
+ * most one batch, so fetch of the next batch overlaps apply of the current one, while prefetch
+ * memory stays bounded. Processor reads from any offset: if buffered batch does not start at
+ * read offset (previous apply failed), buffer is repositioned and batch is discarded.
+ *
+ * @author Roman Osipov
+ */
+class PartitionBuffer {
+
+    //-------------------Logger---------------------------------------------------
+    //-------------------Constants------------------------------------------------
+    // Fetch offset of partition, which processor has not read yet.
+    static final long NOT_POSITIONED = -1;
+
+    //-------------------Fields---------------------------------------------------
+    private final int partition;
+
+    // Fetcher of partition leader, null if leader is unknown.
+    private volatile BrokerFetcher fetcher;
+
+    // Offset of the next fetch.
+    private long fetchOffset = NOT_POSITIONED;
+
+    // Incremented on reposition, so fetch started before reposition is dropped.
+    private long epoch;
+
+    // Fetched batch, null if buffer is free.
+    private OperationBatch batch;
+
+    private long batchOffset;
+
+    //-------------------Constructors---------------------------------------------
+    PartitionBuffer(int partition) {
+        this.partition = partition;
+    }
+
+    //-------------------Getters and setters--------------------------------------
+    int getPartition() {
+        return partition;
+    }
+
+    BrokerFetcher getFetcher() {
+        return fetcher;
+    }
+
+    void setFetcher(BrokerFetcher fetcher) {
+        this.fetcher = fetcher;
+        signalFetcher();
+    }
+
+    //-------------------Methods--------------------------------------------------
+    /**
+     * Takes batch, which starts at offset. Waits for fetch at most timeoutMs.
+     *
+     * @param offset offset of the first message of batch.
+     * @param timeoutMs maximum wait time (ms).
+     * @return fetched batch, or empty batch if nothing is fetched in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    OperationBatch take(long offset, long timeoutMs) throws InterruptedException {
+        boolean repositioned = false;
+        synchronized (this) {
+            if (batch == null ? fetchOffset != offset : batchOffset != offset) {
+                batch = null;
+                fetchOffset = offset;
+                epoch++;
+                repositioned = true;
+            }
+        }
+        // outside of buffer monitor: fetcher checks buffers holding its own monitor
+        if (repositioned) {
+            signalFetcher();
+        }
+        OperationBatch result;
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            long remaining = timeoutMs;
+            while (batch == null && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            result = batch;
+            batch = null;
+        }
+        signalFetcher();
+        return (result == null)
+                ? new OperationBatch(Collections.<AddOperation>emptyList(), offset) : result;
+    }
+
+    /**
+     * Drops buffered batch and stops fetch of partition until it is taken again.
+     */
+    void release() {
+        synchronized (this) {
+            batch = null;
+            fetchOffset = NOT_POSITIONED;
+            epoch++;
+        }
+        signalFetcher();
+    }
+
+    /**
+     * Returns fetch position, if buffer is free and positioned.
+     *
+     * @return offset and epoch of the next fetch, or null if nothing to fetch.
+     */
+    synchronized long[] fetchPosition() {
+        return (batch == null && fetchOffset != NOT_POSITIONED)
+                ? new long[]{fetchOffset, epoch} : null;
+    }
+
+    /**
+     * Returns true if buffer holds batch, which processor has not taken yet.
+     *
+     * @return true if buffer is full.
+     */
+    synchronized boolean isFull() {
+        return batch != null;
+    }
+
+    /**
+     * Puts fetched batch. Batch is dropped if it is empty or buffer was repositioned since
+     * fetch position was taken.
+     *
+     * @param fetchedBatch fetched batch.
+     * @param position fetch position, which batch was fetched from.
+     * @return true if batch is put.
+     */
+    synchronized boolean offer(OperationBatch fetchedBatch, long[] position) {
+        if (position[1] != epoch || batch != null
+                || fetchedBatch.getNextOffset() == position[0]) {
+            return false;
+        }
+        batch = fetchedBatch;
+        batchOffset = position[0];
+        fetchOffset = fetchedBatch.getNextOffset();
+        notifyAll();
+        return true;
+    }
+
+    private void signalFetcher() {
+        BrokerFetcher currentFetcher = fetcher;
+        if (currentFetcher != null) {
+            currentFetcher.signal();
+        }
+    }
+}
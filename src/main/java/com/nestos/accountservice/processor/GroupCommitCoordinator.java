@@ -0,0 +1,385 @@
+package com.nestos.accountservice.processor;
+
+import com.nestos.accountservice.domain.Account;
+import com.nestos.accountservice.domain.AddOperationArray;
+import com.nestos.accountservice.domain.QuarantinedMessage;
+import com.nestos.accountservice.service.BatchAccountService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.apache.commons.lang3.Validate.inclusiveBetween;
+import static org.apache.commons.lang3.Validate.notNull;
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+/**
+ * Group commit of partition batches. Processors of several partitions submit ready batches,
+ * single committer thread gathers batches submitted within maxWaitMs window and writes them
+ * with offsets of all their partitions and quarantined messages in one transaction, then
+ * releases processors. So database commits per second drop by number of partitions in group.
+ * <p>
+ * Processor is blocked until its batch is committed, so group has at most one batch of
+ * partition. If group commit fails, batches of group are committed one by one, so failure is
+ * reported to processor of failing batch only, which retries or bisects it as usual. Batch of
+ * partition, which other node committed past its start offset, fails the same way.
+ *
+ * @author Roman Osipov
+ */
+@ManagedResource(objectName = "accountService:name=GroupCommitCoordinator")
+public class GroupCommitCoordinator implements InitializingBean, DisposableBean {
+
+    //-------------------Logger---------------------------------------------------
+    private final static Logger logger
+            = Logger.getLogger(GroupCommitCoordinator.class.getName());
+
+    //-------------------NestedClasses--------------------------------------------
+    // Batch of partition with future of its committed accounts.
+    private static class PendingBatch {
+
+        private final int partitionId;
+        private final AddOperationArray addOperations;
+        private final long fromOffset;
+        private final long nextOffset;
+        private final List<QuarantinedMessage> quarantinedMessages;
+        private final SettableListenableFuture<Map<Integer, Account>> future
+                = new SettableListenableFuture<>();
+        private final long submitTime = System.nanoTime();
+
+        public PendingBatch(int partitionId, AddOperationArray addOperations, long fromOffset,
+                long nextOffset, List<QuarantinedMessage> quarantinedMessages) {
+            this.partitionId = partitionId;
+            this.addOperations = addOperations;
+            this.fromOffset = fromOffset;
+            this.nextOffset = nextOffset;
+            this.quarantinedMessages = quarantinedMessages;
+        }
+    }
+
+    // Collects and commits groups until interrupted or failed.
+    private class Committer implements Runnable {
+
+        @Override
+        public void run() {
+            List<PendingBatch> group = new ArrayList<>();
+            try {
+                while (true) {
+                    collectGroup(group);
+                    commitGroup(group);
+                    group = new ArrayList<>();
+                }
+            } catch (InterruptedException ex) {
+                // processors blocked before shutdown must not hang
+                queue.drainTo(group);
+                if (!group.isEmpty()) {
+                    commitGroup(group);
+                }
+                Thread.currentThread().interrupt();
+            } catch (Throwable ex) {
+                // dead committer must not leave processors blocked
+                logger.error("Group committer failed, batches are committed by processors", ex);
+                synchronized (submitLock) {
+                    running = false;
+                }
+                queue.drainTo(group);
+                for (PendingBatch pendingBatch : group) {
+                    fail(pendingBatch, ex);
+                }
+                throw ex;
+            }
+        }
+    }
+
+    //-------------------Constants------------------------------------------------
+    public static final String BATCH_ACCOUNT_SERVICE_NPE_MESSAGE
+            = "batchAccountService can't be null.";
+    public static final String ADD_OPERATIONS_NPE_MESSAGE = "addOperations can't be null.";
+    public static final String QUARANTINED_MESSAGES_NPE_MESSAGE
+            = "quarantinedMessages can't be null.";
+    public static final String MAX_WAIT_IAE_MESSAGE = "maxWaitMs can't be negative.";
+    public static final String MAX_OPERATIONS_IAE_MESSAGE = "maxOperations must be positive.";
+    public static final long DEFAULT_MAX_WAIT_MS = 2;
+    public static final int DEFAULT_MAX_OPERATIONS = 100000;
+
+    //-------------------Fields---------------------------------------------------
+    private final BatchAccountService batchAccountService;
+    private final BlockingQueue<PendingBatch> queue = new LinkedBlockingQueue<>();
+    private ExecutorService committerExecutorService;
+    // Guards running together with enqueue, so nothing is queued after the final drain.
+    private final Object submitLock = new Object();
+    private volatile boolean running;
+    private volatile long maxWaitMs = DEFAULT_MAX_WAIT_MS;
+    private volatile int maxOperations = DEFAULT_MAX_OPERATIONS;
+
+    // Statistic.
+    private final AtomicLong commitsNum = new AtomicLong();
+    private final AtomicLong batchesNum = new AtomicLong();
+    // Groups committed one batch per transaction after group failure.
+    private final AtomicLong failedGroupsNum = new AtomicLong();
+    // Sum of batches time in queue, from submit to commit.
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+
+    //-------------------Constructors---------------------------------------------
+    public GroupCommitCoordinator(BatchAccountService batchAccountService) {
+        notNull(batchAccountService, BATCH_ACCOUNT_SERVICE_NPE_MESSAGE);
+        this.batchAccountService = batchAccountService;
+    }
+
+    //-------------------Getters and setters--------------------------------------
+    @ManagedAttribute(description = "Maximum time (ms) batch waits for batches of other "
+            + "partitions.")
+    public long getMaxWaitMs() {
+        return maxWaitMs;
+    }
+
+    @ManagedAttribute
+    public void setMaxWaitMs(long maxWaitMs) {
+        inclusiveBetween(0, Long.MAX_VALUE, maxWaitMs, MAX_WAIT_IAE_MESSAGE);
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    @ManagedAttribute(description = "Number of operations, which group is committed from "
+            + "without waiting.")
+    public int getMaxOperations() {
+        return maxOperations;
+    }
+
+    @ManagedAttribute
+    public void setMaxOperations(int maxOperations) {
+        inclusiveBetween(1, Integer.MAX_VALUE, maxOperations, MAX_OPERATIONS_IAE_MESSAGE);
+        this.maxOperations = maxOperations;
+    }
+
+    @ManagedAttribute(description = "Number of group commits.")
+    public long getCommitsNum() {
+        return commitsNum.get();
+    }
+
+    @ManagedAttribute(description = "Number of committed batches.")
+    public long getBatchesNum() {
+        return batchesNum.get();
+    }
+
+    @ManagedAttribute(description = "Number of groups committed batch by batch after failure.")
+    public long getFailedGroupsNum() {
+        return failedGroupsNum.get();
+    }
+
+    @ManagedAttribute(description = "Average number of batches in group.")
+    public double getAverageGroupSize() {
+        long commits = commitsNum.get();
+        return (commits == 0) ? 0 : (double) batchesNum.get() / commits;
+    }
+
+    @ManagedAttribute(description = "Average time (us) batch waits in queue before commit.")
+    public long getAverageWaitMicros() {
+        long batches = batchesNum.get();
+        return (batches == 0) ? 0
+                : TimeUnit.NANOSECONDS.toMicros(totalWaitNanos.get() / batches);
+    }
+
+    //-------------------Bean lifecycle methods----------------------------------
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        committerExecutorService = Executors.newSingleThreadExecutor();
+        running = true;
+        committerExecutorService.submit(new Committer());
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        synchronized (submitLock) {
+            running = false;
+        }
+        if (committerExecutorService != null) {
+            committerExecutorService.shutdownNow();
+            committerExecutorService.awaitTermination(1, TimeUnit.DAYS);
+        }
+        // committer may die before its final drain, blocked processors must not hang
+        List<PendingBatch> leftovers = new ArrayList<>();
+        queue.drainTo(leftovers);
+        if (!leftovers.isEmpty()) {
+            commitGroup(leftovers);
+        }
+    }
+
+    //-------------------Methods--------------------------------------------------
+    /**
+     * Commits batch of partition as part of the next group. Blocks until batch is committed,
+     * batch is committed by caller, if coordinator is stopped.
+     *
+     * @param partitionId kafka working partition.
+     * @param addOperations operations of batch.
+     * @param fromOffset partition offset, which batch starts from.
+     * @param nextOffset offset of the next message after batch.
+     * @param quarantinedMessages messages, which batch skips.
+     * @return committed accounts of batch.
+     */
+    public Map<Integer, Account> commit(int partitionId, AddOperationArray addOperations,
+            long fromOffset, long nextOffset, List<QuarantinedMessage> quarantinedMessages) {
+        notNull(addOperations, ADD_OPERATIONS_NPE_MESSAGE);
+        notNull(quarantinedMessages, QUARANTINED_MESSAGES_NPE_MESSAGE);
+        PendingBatch pendingBatch = new PendingBatch(partitionId, addOperations, fromOffset,
+                nextOffset, quarantinedMessages);
+        boolean queued;
+        synchronized (submitLock) {
+            queued = running && queue.add(pendingBatch);
+        }
+        if (!queued) {
+            return batchAccountService.addAmounts(addOperations, partitionId, fromOffset,
+                    nextOffset, quarantinedMessages);
+        }
+        return awaitCommit(pendingBatch);
+    }
+
+    /**
+     * Reset statistic.
+     */
+    @ManagedOperation(description = "Reset statistic.")
+    public void reset() {
+        commitsNum.set(0);
+        batchesNum.set(0);
+        failedGroupsNum.set(0);
+        totalWaitNanos.set(0);
+    }
+
+    // Offset of batch must be known by processor, so interrupt doesn't stop waiting. Batch,
+    // which is queued, is always completed: by committer or by its shutdown.
+    private Map<Integer, Account> awaitCommit(PendingBatch pendingBatch) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return pendingBatch.future.get();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    if (ex.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) ex.getCause();
+                    }
+                    throw new IllegalStateException(ex.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Collects batches to group, which holds collected batches even if interrupted.
+    private void collectGroup(List<PendingBatch> group) throws InterruptedException {
+        PendingBatch next = queue.take();
+        int groupOperations = maxOperations;
+        long deadline = next.submitTime + TimeUnit.MILLISECONDS.toNanos(maxWaitMs);
+        int size = 0;
+        while (true) {
+            group.add(next);
+            size += next.addOperations.size();
+            if (size >= groupOperations) {
+                break;
+            }
+            next = queue.poll();
+            if (next == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                if (next == null) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void commitGroup(List<PendingBatch> group) {
+        long commitTime = System.nanoTime();
+        long waitNanos = 0;
+        for (PendingBatch pendingBatch : group) {
+            waitNanos += commitTime - pendingBatch.submitTime;
+        }
+        totalWaitNanos.addAndGet(waitNanos);
+        batchesNum.addAndGet(group.size());
+        if (group.size() == 1) {
+            // single batch may be applied by shards
+            commitAlone(group.get(0));
+            commitsNum.incrementAndGet();
+            return;
+        }
+        int size = 0;
+        for (PendingBatch pendingBatch : group) {
+            size += pendingBatch.addOperations.size();
+        }
+        AddOperationArray addOperations = new AddOperationArray(size);
+        Map<Integer, Long> fromOffsets = new HashMap<>();
+        Map<Integer, Long> partitionOffsets = new HashMap<>();
+        List<QuarantinedMessage> quarantinedMessages = new ArrayList<>();
+        for (PendingBatch pendingBatch : group) {
+            for (int i = 0; i < pendingBatch.addOperations.size(); i++) {
+                addOperations.add(pendingBatch.addOperations.getId(i),
+                        pendingBatch.addOperations.getValue(i));
+            }
+            fromOffsets.put(pendingBatch.partitionId, pendingBatch.fromOffset);
+            partitionOffsets.put(pendingBatch.partitionId, pendingBatch.nextOffset);
+            quarantinedMessages.addAll(pendingBatch.quarantinedMessages);
+        }
+        Map<Integer, Account> accountMap;
+        try {
+            accountMap = batchAccountService.addAmounts(addOperations, fromOffsets,
+                    partitionOffsets, quarantinedMessages);
+            commitsNum.incrementAndGet();
+        } catch (Throwable ex) {
+            // failure is attributed to its batch
+            failedGroupsNum.incrementAndGet();
+            logger.warn("Group of " + group.size() + " batches is committed batch by batch: "
+                    + ex);
+            for (PendingBatch pendingBatch : group) {
+                commitAlone(pendingBatch);
+                commitsNum.incrementAndGet();
+            }
+            return;
+        }
+        // partitions own disjoint accounts, processor caches accounts of its batch only
+        for (PendingBatch pendingBatch : group) {
+            Map<Integer, Account> batchAccountMap = new HashMap<>();
+            for (int i = 0; i < pendingBatch.addOperations.size(); i++) {
+                int id = pendingBatch.addOperations.getId(i);
+                Account account = accountMap.get(id);
+                if (account != null) {
+                    batchAccountMap.put(id, account);
+                }
+            }
+            pendingBatch.future.set(batchAccountMap);
+        }
+    }
+
+    private void commitAlone(PendingBatch pendingBatch) {
+        try {
+            pendingBatch.future.set(batchAccountService.addAmounts(pendingBatch.addOperations,
+                    pendingBatch.partitionId, pendingBatch.fromOffset, pendingBatch.nextOffset,
+                    pendingBatch.quarantinedMessages));
+        } catch (Throwable ex) {
+            // processor must not wait forever, even for error
+            fail(pendingBatch, ex);
+        }
+    }
+
+    // Future returns error as value instead of throwing it, so error is wrapped.
+    private static void fail(PendingBatch pendingBatch, Throwable ex) {
+        pendingBatch.future.setException(ex instanceof Exception ? ex
+                : new IllegalStateException(ex));
+    }
+}
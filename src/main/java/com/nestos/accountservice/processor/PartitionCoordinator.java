@@ -0,0 +1,312 @@
+package com.nestos.accountservice.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import static org.apache.commons.lang3.Validate.inclusiveBetween;
+import static org.apache.commons.lang3.Validate.notNull;
+import org.I0Itec.zkclient.IZkChildListener;
+import org.I0Itec.zkclient.IZkStateListener;
+import org.I0Itec.zkclient.ZkClient;
+import org.I0Itec.zkclient.exception.ZkNodeExistsException;
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+/**
+ * Coordinates partition ownership of several service nodes through ZooKeeper. Node registers
+ * ephemeral member node and owns partition while it holds ephemeral lease node of partition,
+ * so leases of failed node expire together with its session. Partitions are split round-robin
+ * between sorted member ids. When nodes join or leave, every node releases partitions, which
+ * are assigned to other nodes, and acquires assigned partitions as soon as their leases are
+ * free.
+ * <p>
+ * Release is handoff: ownership listener first waits until in-flight batches are committed
+ * together with partition offsets, then lease is deleted, so the next owner continues from
+ * committed offset. Partitions are not owned while ZooKeeper connection is lost, because
+ * session may expire and leases may be taken by other nodes. Pull, which is already running,
+ * commits only if partition offset is still at its batch start, so it can't overwrite
+ * progress of the next owner.
+ * <p>
+ * Coordinator constructed without ZooKeeper client owns all partitions (single node).
+ *
+ * @author Roman Osipov
+ */
+@ManagedResource(objectName = "accountService:name=PartitionCoordinator")
+public class PartitionCoordinator {
+
+    //-------------------Logger---------------------------------------------------
+    private final static Logger logger = Logger.getLogger(PartitionCoordinator.class.getName());
+
+    //-------------------Constants------------------------------------------------
+    public static final String ZK_CLIENT_NPE_MESSAGE = "zkClient can't be null.";
+    public static final String ROOT_PATH_NPE_MESSAGE = "rootPath can't be null.";
+    public static final String NODE_ID_NPE_MESSAGE = "nodeId can't be null.";
+    public static final String LISTENER_NPE_MESSAGE = "listener can't be null.";
+    public static final String PARTITIONS_NUM_IAE_MESSAGE = "partitionsNum must be positive.";
+    public static final String STANDALONE_NODE_ID = "standalone";
+
+    //-------------------Fields---------------------------------------------------
+    private final ZkClient zkClient;
+    // Parent of ephemeral member nodes, named by node id.
+    private final String nodesPath;
+    // Parent of ephemeral partition leases, named by partition number, data is owner node id.
+    private final String ownersPath;
+    private final String nodeId;
+    // Guarded by coordinator monitor.
+    private boolean started;
+    private int partitionsNum;
+    private PartitionOwnershipListener listener;
+    // Owned partitions, read by pulls without coordinator monitor.
+    private final Set<Integer> ownedPartitions
+            = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private volatile boolean connected = true;
+
+    private final IZkChildListener childListener = new IZkChildListener() {
+
+        @Override
+        public void handleChildChange(String parentPath, List<String> currentChilds) {
+            try {
+                rebalance();
+            } catch (RuntimeException ex) {
+                logger.error("Can't rebalance partitions.", ex);
+            }
+        }
+    };
+
+    private final IZkStateListener stateListener = new IZkStateListener() {
+
+        @Override
+        public void handleStateChanged(KeeperState state) {
+            connected = (state == KeeperState.SyncConnected);
+            if (!connected) {
+                logger.warn("ZooKeeper connection state " + state
+                        + ", owned partitions are paused.");
+            }
+        }
+
+        @Override
+        public void handleNewSession() {
+            // leases expired with previous session and may be taken by other nodes already
+            try {
+                renewSession();
+            } catch (RuntimeException ex) {
+                logger.error("Can't rejoin partition coordination.", ex);
+            }
+        }
+
+        @Override
+        public void handleSessionEstablishmentError(Throwable error) {
+            logger.error("Can't establish ZooKeeper session.", error);
+        }
+    };
+
+    //-------------------Constructors---------------------------------------------
+    /**
+     * Constructs coordinator of single node, which owns all partitions.
+     */
+    public PartitionCoordinator() {
+        this.zkClient = null;
+        this.nodesPath = null;
+        this.ownersPath = null;
+        this.nodeId = STANDALONE_NODE_ID;
+    }
+
+    /**
+     * Constructs coordinator, which shares partitions with other nodes.
+     *
+     * @param zkClient ZooKeeper client with string serializer.
+     * @param rootPath ZooKeeper path of coordination, the same for all nodes of topic.
+     * @param nodeId node identifier, unique among nodes.
+     */
+    public PartitionCoordinator(ZkClient zkClient, String rootPath, String nodeId) {
+        notNull(zkClient, ZK_CLIENT_NPE_MESSAGE);
+        notNull(rootPath, ROOT_PATH_NPE_MESSAGE);
+        notNull(nodeId, NODE_ID_NPE_MESSAGE);
+        this.zkClient = zkClient;
+        this.nodesPath = rootPath + "/nodes";
+        this.ownersPath = rootPath + "/owners";
+        this.nodeId = nodeId;
+    }
+
+    //-------------------Getters and setters--------------------------------------
+    @ManagedAttribute(description = "Identifier of this node.")
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @ManagedAttribute(description = "Partitions owned by this node.")
+    public int[] getOwnedPartitions() {
+        Set<Integer> partitions = new TreeSet<>(ownedPartitions);
+        int[] result = new int[partitions.size()];
+        int i = 0;
+        for (Integer partition : partitions) {
+            result[i++] = partition;
+        }
+        return result;
+    }
+
+    @ManagedAttribute(description = "True if ZooKeeper connection is alive.")
+    public boolean isConnected() {
+        return connected;
+    }
+
+    //-------------------Methods--------------------------------------------------
+    /**
+     * Returns true if node may process partition. Doesn't block.
+     *
+     * @param partition partition number.
+     * @return true if partition is owned and its lease is alive.
+     */
+    public boolean isOwned(int partition) {
+        return (zkClient == null) || (connected && ownedPartitions.contains(partition));
+    }
+
+    /**
+     * Joins coordination and acquires assigned partitions. Listener is notified synchronously
+     * about initially acquired partitions and by ZooKeeper event thread later.
+     *
+     * @param partitionsNum number of topic partitions.
+     * @param listener ownership listener.
+     */
+    public synchronized void start(int partitionsNum, PartitionOwnershipListener listener) {
+        inclusiveBetween(1, Integer.MAX_VALUE, partitionsNum, PARTITIONS_NUM_IAE_MESSAGE);
+        notNull(listener, LISTENER_NPE_MESSAGE);
+        if (started) {
+            return;
+        }
+        this.partitionsNum = partitionsNum;
+        this.listener = listener;
+        started = true;
+        if (zkClient == null) {
+            Set<Integer> partitions = new TreeSet<>();
+            for (int i = 0; i < partitionsNum; i++) {
+                partitions.add(i);
+            }
+            ownedPartitions.addAll(partitions);
+            listener.partitionsAssigned(partitions);
+            return;
+        }
+        zkClient.createPersistent(nodesPath, true);
+        zkClient.createPersistent(ownersPath, true);
+        zkClient.subscribeStateChanges(stateListener);
+        zkClient.subscribeChildChanges(nodesPath, childListener);
+        zkClient.subscribeChildChanges(ownersPath, childListener);
+        register();
+        rebalance();
+    }
+
+    /**
+     * Hands off owned partitions and leaves coordination.
+     */
+    public synchronized void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        if (zkClient != null) {
+            zkClient.unsubscribeChildChanges(ownersPath, childListener);
+            zkClient.unsubscribeChildChanges(nodesPath, childListener);
+            zkClient.unsubscribeStateChanges(stateListener);
+        }
+        release(new TreeSet<>(ownedPartitions), true);
+        if (zkClient != null) {
+            zkClient.delete(nodesPath + "/" + nodeId);
+        }
+    }
+
+    /**
+     * Releases partitions assigned to other nodes and acquires free assigned partitions.
+     */
+    synchronized void rebalance() {
+        if (!started) {
+            return;
+        }
+        List<String> nodes = new ArrayList<>(zkClient.getChildren(nodesPath));
+        Collections.sort(nodes);
+        Set<Integer> assigned = assign(nodes, nodeId, partitionsNum);
+        Set<Integer> revoked = new TreeSet<>(ownedPartitions);
+        revoked.removeAll(assigned);
+        release(revoked, true);
+        Set<Integer> acquired = new TreeSet<>();
+        for (Integer partition : assigned) {
+            if (!ownedPartitions.contains(partition) && tryAcquire(partition)) {
+                acquired.add(partition);
+            }
+        }
+        if (!acquired.isEmpty()) {
+            ownedPartitions.addAll(acquired);
+            logger.info("Node " + nodeId + " acquired partitions " + acquired);
+            listener.partitionsAssigned(acquired);
+        }
+    }
+
+    private synchronized void renewSession() {
+        if (!started) {
+            return;
+        }
+        release(new TreeSet<>(ownedPartitions), false);
+        register();
+        rebalance();
+    }
+
+    // Member node of previous session with the same id is replaced.
+    private void register() {
+        String memberPath = nodesPath + "/" + nodeId;
+        zkClient.delete(memberPath);
+        zkClient.createEphemeral(memberPath, nodeId);
+    }
+
+    private boolean tryAcquire(int partition) {
+        try {
+            zkClient.createEphemeral(ownersPath + "/" + partition, nodeId);
+            return true;
+        } catch (ZkNodeExistsException ex) {
+            // previous owner still hands partition off, lease deletion triggers rebalance
+            return false;
+        }
+    }
+
+    private void release(Set<Integer> partitions, boolean deleteLeases) {
+        if (partitions.isEmpty()) {
+            return;
+        }
+        ownedPartitions.removeAll(partitions);
+        // blocks until in-flight batches and offsets are committed
+        listener.partitionsRevoked(partitions);
+        if (deleteLeases) {
+            for (Integer partition : partitions) {
+                String leasePath = ownersPath + "/" + partition;
+                if (nodeId.equals(zkClient.<String>readData(leasePath, true))) {
+                    zkClient.delete(leasePath);
+                }
+            }
+        }
+        logger.info("Node " + nodeId + " released partitions " + partitions);
+    }
+
+    /**
+     * Splits partitions round-robin between nodes.
+     *
+     * @param sortedNodes sorted node identifiers.
+     * @param nodeId node identifier.
+     * @param partitionsNum number of partitions.
+     * @return partitions assigned to node, empty if node is not a member.
+     */
+    static Set<Integer> assign(List<String> sortedNodes, String nodeId, int partitionsNum) {
+        Set<Integer> partitions = new TreeSet<>();
+        int index = sortedNodes.indexOf(nodeId);
+        if (index < 0) {
+            return partitions;
+        }
+        for (int partition = index; partition < partitionsNum;
+                partition += sortedNodes.size()) {
+            partitions.add(partition);
+        }
+        return partitions;
+    }
+}
@@ -0,0 +1,26 @@
+package com.nestos.accountservice.processor;
+
+import java.util.Set;
+
+/**
+ * Listener of partition ownership changes made by {@link PartitionCoordinator}.
+ *
+ * @author Roman Osipov
+ */
+public interface PartitionOwnershipListener {
+
+    /**
+     * Invoked when node acquires partitions. Processing of partitions may start.
+     *
+     * @param partitions acquired partition numbers.
+     */
+    public void partitionsAssigned(Set<Integer> partitions);
+
+    /**
+     * Invoked before node releases partitions. Must block until in-flight batches of
+     * partitions are committed together with their offsets and no new pulls are started.
+     *
+     * @param partitions released partition numbers.
+     */
+    public void partitionsRevoked(Set<Integer> partitions);
+}
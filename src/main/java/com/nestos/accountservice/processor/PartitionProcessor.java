@@ -1,53 +1,141 @@
 package com.nestos.accountservice.processor;
 
+import com.nestos.accountservice.cache.BalanceCache;
 import com.nestos.accountservice.domain.Account;
 import com.nestos.accountservice.domain.AddOperation;
+import com.nestos.accountservice.domain.AddOperationArray;
 import com.nestos.accountservice.domain.Partition;
-import com.nestos.accountservice.jpa.AccountServiceImpl;
+import com.nestos.accountservice.domain.QuarantinedMessage;
 import com.nestos.accountservice.kafka.KafkaClient;
+import com.nestos.accountservice.kafka.OperationBatch;
+import com.nestos.accountservice.kafka.OperationBatch.RejectedMessage;
 import com.nestos.accountservice.repository.PartitionRepository;
 import com.nestos.accountservice.service.BatchAccountService;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import static org.apache.commons.lang3.Validate.inclusiveBetween;
 import static org.apache.commons.lang3.Validate.notNull;
 import org.apache.log4j.Logger;
-import org.springframework.cache.Cache;
-import org.springframework.cache.CacheManager;
+import org.springframework.dao.NonTransientDataAccessResourceException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.transaction.CannotCreateTransactionException;
 
 /**
- * Partition processor. Periodically in cycle pull partition for new records and apply pulled data
- * to account repository. Pull period defined by CYCLE_PAUSE constant. If pull result list is empty,
- * then set isIdle value to true. Process of each partition confined in separate thread.
+ * Partition processor. Each pull takes batch of partition, which Kafka client fetched, and
+ * applies it to account repository. If Kafka client has no fetched batch, then set isIdle value
+ * to true. Pulls are scheduled by {@link PartitionProcessorPool}, which never runs two pulls of
+ * the same partition at once.
+ * <p>
+ * Fetch and apply are pipelined: while pulled batch commits, Kafka client already fetches the
+ * next batch. Pull reads from committed partition offset, so batch fetched after failed commit
+ * is discarded and records are applied in order and exactly once.
+ * <p>
+ * Committed offset is read from partition repository once and then kept in memory. Each
+ * commit saves offset only if partition is still at offset, which batch starts from, so pull,
+ * which still runs after its node lost partition, fails its commit instead of applying batch
+ * twice. After failed pull offset is read again, because it's unknown whether failed commit
+ * was applied.
+ * <p>
+ * When partition lag reaches catch-up threshold (backlog after restart), processor replays
+ * in catch-up mode: pull takes consecutive batches, nets their operations per account and
+ * commits net deltas with the last offset in one transaction, so many messages cost one
+ * commit and one row write per account. Processor returns to per-batch pulls, when lag falls
+ * below threshold. Replay rate and ETA of catch-up are reported.
+ * <p>
+ * Transient database failures (deadlock, lock timeout) are retried within pull with doubling
+ * backoff. Other failures of batch at the same offset are counted and, after quarantine
+ * attempts, batch is bisected by messages: good halves are committed, and the single message,
+ * which still fails, is stored in quarantine together with offset commit, which skips it.
+ * Messages, which can't be decoded, are quarantined with the batch they arrive in. So one bad
+ * record can't stall partition, and quarantined messages may be replayed later.
+ * <p>
+ * In write-behind mode pull applies batch to {@link WriteBehindTable} instead of database,
+ * batches are committed by table flush. Offset, which isn't known, is then taken from table
+ * first: partition is replayed from database offset only, if table of partition is dropped.
+ * Table, which flush keeps failing, is dropped, and pull commits batches up to its applied
+ * offset itself, so failing batch is bisected and quarantined.
+ * <p>
+ * Large batch may be applied by account shards in parallel, see
+ * {@link BatchAccountService#readShardsOffset(int) readShardsOffset}. When some shards of
+ * failed batch are committed ahead of partition offset, processor replays batches, which end
+ * at the lowest offset of ahead shards, so committed shards are recognized and skipped.
+ * Shards offset is read again after each such batch, until no shard is ahead. Such batches
+ * are committed by pulls also in write-behind mode.
+ * <p>
+ * With {@link GroupCommitCoordinator} pull commits batch together with batches of other
+ * partitions in one transaction, pull is blocked until group is committed.
  *
  * @author Roman Osipov
  */
-public class PartitionProcessor implements Runnable {
+public class PartitionProcessor {
 
     //-------------------Logger---------------------------------------------------
     private final static Logger logger = Logger.getLogger(PartitionProcessor.class.getName());
 
     //-------------------Constants------------------------------------------------
-    // Pause between cycle iterations (ms). TO DO  -  must be set in configuration file. 
-    private static final int CYCLE_PAUSE = 100;
+    // Pause bounds (ms) between pulls of idle or failed partition.
+    static final long MIN_IDLE_PAUSE_MS = 10;
+    static final long MAX_IDLE_PAUSE_MS = 100;
+    // Maximum wait (ms) for the next batch in catch-up pull.
+    private static final long CATCH_UP_READ_WAIT_MS = 100;
+    public static final long DEFAULT_CATCH_UP_LAG = 100000;
+    public static final int DEFAULT_CATCH_UP_MAX_OPERATIONS = 100000;
+    public static final int DEFAULT_TRANSIENT_RETRIES = 3;
+    public static final int DEFAULT_QUARANTINE_ATTEMPTS = 3;
+    // First backoff (ms) before retry of transient failure, doubled by each retry.
+    static final long MIN_RETRY_BACKOFF_MS = 10;
+    // Offset, which must be read from partition repository.
+    public static final long UNKNOWN_OFFSET = -1;
     public static final String KAFKA_CLIENT_NPE_MESSAGE = "kafkaClient can't be null.";
     public static final String PARTITION_REPOSITORY_NPE_MESSAGE
             = "partitionRepository can't be null.";
-    public static final String CACHE_MANAGER_NPE_MESSAGE = "cacheManager can't be null.";
+    public static final String BALANCE_CACHE_NPE_MESSAGE = "balanceCache can't be null.";
     public static final String BATCH_ACCOUNT_SERVICE_NPE_MESSAGE
             = "batchAccountService can't be null.";
     public static final String IS_IDLE_NPE_MESSAGE = "isIdle can't be null.";
-    public static final String CACHE_NPE_MESSAGE = "cant't find cache "
-            + AccountServiceImpl.ACCOUNT_CACHE_NAME;
 
     //-------------------Fields---------------------------------------------------
     private final int partitionId;
     private final KafkaClient kafkaClient;
     private final PartitionRepository partitionRepository;
     private final BatchAccountService batchAccountService;
-    private final Cache cache;
+    private final BalanceCache balanceCache;
     private final AtomicBoolean isIdle;
+    // Committed partition offset, written only by pulls, which never overlap.
+    private volatile long offset = UNKNOWN_OFFSET;
+    // Lag (messages), which starts catch-up mode, 0 - catch-up mode is off.
+    private long catchUpLag = DEFAULT_CATCH_UP_LAG;
+    // Maximum number of operations netted in one catch-up pull.
+    private int catchUpMaxOperations = DEFAULT_CATCH_UP_MAX_OPERATIONS;
+    // Catch-up statistic, written only by pulls.
+    private volatile boolean catchingUp;
+    private volatile long catchUpStartTime;
+    private volatile long replayedMessages;
+    // Number of retries of commit after transient failure.
+    private int transientRetries = DEFAULT_TRANSIENT_RETRIES;
+    // Failed pulls at the same offset before bisection, 0 - quarantine is off.
+    private int quarantineAttempts = DEFAULT_QUARANTINE_ATTEMPTS;
+    // Offset of the last failed batch and number of its consecutive failures.
+    private long failedOffset = UNKNOWN_OFFSET;
+    private int failuresNum;
+    // Failure statistic, written only by pulls.
+    private volatile long quarantinedMessagesNum;
+    private volatile long transientRetriesNum;
+    private volatile long bisectionsNum;
+    // Table of write-behind mode, null - batches are committed by pulls.
+    private WriteBehindTable writeBehindTable;
+    // Offset, which shards of failed batch are committed up to, read with committed offset.
+    private long shardsOffset = UNKNOWN_OFFSET;
+    // Commits batches of several partitions in one transaction, null - pull commits alone.
+    private GroupCommitCoordinator groupCommitCoordinator;
 
     //-------------------Constructors---------------------------------------------
     /**
@@ -57,17 +145,17 @@ public class PartitionProcessor implements Runnable {
      * @param kafkaClient client to Kafka server.
      * @param partitionRepository partition CRUD repository.
      * @param batchAccountService account batch service.
-     * @param cacheManager cache manager.
+     * @param balanceCache account balances cache.
      * @param isIdle value holder for idle flag.
      */
     public PartitionProcessor(int partitionId, KafkaClient kafkaClient,
             PartitionRepository partitionRepository, BatchAccountService batchAccountService,
-            CacheManager cacheManager, AtomicBoolean isIdle) {
+            BalanceCache balanceCache, AtomicBoolean isIdle) {
         // validate arguments
-        inclusiveBetween(0, KafkaClient.PARTITIONS_NUM - 1, partitionId);
+        inclusiveBetween(0, Integer.MAX_VALUE, partitionId);
         notNull(kafkaClient, "kafkaClient can't be null");
         notNull(partitionRepository, "partitionRepository can't be null");
-        notNull(cacheManager, "cacheManager can't be null");
+        notNull(balanceCache, BALANCE_CACHE_NPE_MESSAGE);
         notNull(batchAccountService, "batchAccountService can't be null");
         notNull(isIdle, "isIdle can't be null");
         // apply arguments
@@ -76,42 +164,393 @@ public class PartitionProcessor implements Runnable {
         this.partitionRepository = partitionRepository;
         this.batchAccountService = batchAccountService;
         this.isIdle = isIdle;
-        this.cache = cacheManager.getCache(AccountServiceImpl.ACCOUNT_CACHE_NAME);
-        notNull(cache, "cant't find cache " + AccountServiceImpl.ACCOUNT_CACHE_NAME);
+        this.balanceCache = balanceCache;
     }
 
     //-------------------Getters and setters--------------------------------------
-    //-------------------Methods--------------------------------------------------
-    void pullFromPartitionAndSaveToAccountRepository() {
-        Partition partition = partitionRepository.findOne(partitionId);
-        long offset = (partition == null) ? 0 : partition.getOffset();
-        List<AddOperation> addOperations = kafkaClient.read(partitionId, offset);
-        if (addOperations.isEmpty()) {
-            isIdle.set(true);
-            return;
-        }
-        isIdle.set(false);
-        Map<Integer, Account> accountMap = batchAccountService.addAmounts(
-                addOperations, partitionId, offset + addOperations.size());
-        for (Account account : accountMap.values()) {
-            cache.put(account.getId(), account.getAmount());
+    public int getPartitionId() {
+        return partitionId;
+    }
+
+    /**
+     * Returns committed partition offset kept in memory.
+     *
+     * @return offset or UNKNOWN_OFFSET if it must be read from partition repository.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getCatchUpLag() {
+        return catchUpLag;
+    }
+
+    /**
+     * Set partition lag, which starts catch-up mode.
+     *
+     * @param catchUpLag lag in messages, 0 - catch-up mode is off.
+     */
+    public void setCatchUpLag(long catchUpLag) {
+        inclusiveBetween(0, Long.MAX_VALUE, catchUpLag);
+        this.catchUpLag = catchUpLag;
+    }
+
+    public int getCatchUpMaxOperations() {
+        return catchUpMaxOperations;
+    }
+
+    /**
+     * Set maximum number of operations netted in one catch-up commit.
+     *
+     * @param catchUpMaxOperations maximum number of operations.
+     */
+    public void setCatchUpMaxOperations(int catchUpMaxOperations) {
+        inclusiveBetween(1, Integer.MAX_VALUE, catchUpMaxOperations);
+        this.catchUpMaxOperations = catchUpMaxOperations;
+    }
+
+    public int getTransientRetries() {
+        return transientRetries;
+    }
+
+    /**
+     * Set number of commit retries after transient database failure.
+     *
+     * @param transientRetries number of retries, 0 - failure isn't retried.
+     */
+    public void setTransientRetries(int transientRetries) {
+        inclusiveBetween(0, Integer.MAX_VALUE, transientRetries);
+        this.transientRetries = transientRetries;
+    }
+
+    public int getQuarantineAttempts() {
+        return quarantineAttempts;
+    }
+
+    /**
+     * Set number of failed pulls at the same offset, after which batch is bisected and failing
+     * message is quarantined.
+     *
+     * @param quarantineAttempts number of failed pulls, 0 - quarantine is off.
+     */
+    public void setQuarantineAttempts(int quarantineAttempts) {
+        inclusiveBetween(0, Integer.MAX_VALUE, quarantineAttempts);
+        this.quarantineAttempts = quarantineAttempts;
+    }
+
+    public WriteBehindTable getWriteBehindTable() {
+        return writeBehindTable;
+    }
+
+    /**
+     * Set table of write-behind mode.
+     *
+     * @param writeBehindTable started table, null - batches are committed by pulls.
+     */
+    public void setWriteBehindTable(WriteBehindTable writeBehindTable) {
+        this.writeBehindTable = writeBehindTable;
+    }
+
+    public GroupCommitCoordinator getGroupCommitCoordinator() {
+        return groupCommitCoordinator;
+    }
+
+    /**
+     * Set coordinator of group commit.
+     *
+     * @param groupCommitCoordinator coordinator, null - each batch is committed alone.
+     */
+    public void setGroupCommitCoordinator(GroupCommitCoordinator groupCommitCoordinator) {
+        this.groupCommitCoordinator = groupCommitCoordinator;
+    }
+
+    public long getQuarantinedMessagesNum() {
+        return quarantinedMessagesNum;
+    }
+
+    public long getTransientRetriesNum() {
+        return transientRetriesNum;
+    }
+
+    public long getBisectionsNum() {
+        return bisectionsNum;
+    }
+
+    public boolean isCatchingUp() {
+        return catchingUp;
+    }
+
+    /**
+     * Returns replay rate of current catch-up.
+     *
+     * @return replayed messages per second, 0 if partition is not catching up.
+     */
+    public double getReplayRate() {
+        if (!catchingUp) {
+            return 0;
         }
+        long elapsedMs = Math.max(1, System.currentTimeMillis() - catchUpStartTime);
+        return replayedMessages * 1000.0 / elapsedMs;
     }
 
-    @Override
-    public void run() {
+    /**
+     * Returns estimated time until partition catches up.
+     *
+     * @return seconds, -1 if partition is not catching up or rate is not measured yet.
+     */
+    public long getCatchUpEtaSeconds() {
+        double replayRate = getReplayRate();
+        return (replayRate == 0) ? -1 : (long) (kafkaClient.getLag(partitionId) / replayRate);
+    }
+
+    //-------------------Methods--------------------------------------------------
+    /**
+     * Forgets offset kept in memory. Called when partition is handed off to other node, which
+     * advances partition offset, so the next pull reads offset from partition repository.
+     */
+    void resetOffset() {
+        offset = UNKNOWN_OFFSET;
+    }
+
+    // Returns true if pulled records were applied.
+    boolean pullFromPartitionAndSaveToAccountRepository() {
         try {
-            while (true) {
-                Thread.sleep(CYCLE_PAUSE);
+            if (offset == UNKNOWN_OFFSET && writeBehindTable != null) {
+                offset = writeBehindTable.getAppliedOffset(partitionId);
+            }
+            if (offset == UNKNOWN_OFFSET) {
+                Partition partition = partitionRepository.findOne(partitionId);
+                offset = (partition == null) ? 0 : partition.getOffset();
+                shardsOffset = batchAccountService.readShardsOffset(partitionId);
+            }
+            boolean shardsAhead = offset < shardsOffset;
+            if (writeBehindTable != null && writeBehindTable.isFull()) {
+                // waits for flush, partition is not idle
+                isIdle.set(false);
+                return false;
+            }
+            // failing batch is pulled as it is, so it can be bisected by messages
+            boolean catchUp = (failuresNum == 0) && (catchUpLag > 0) && !shardsAhead
+                    && (kafkaClient.getLag(partitionId) >= catchUpLag);
+            updateCatchUpMode(catchUp);
+            OperationBatch operationBatch = catchUp
+                    ? readNettedBatches() : kafkaClient.read(partitionId, offset);
+            if (shardsAhead) {
+                // committed shards are skipped by batch, which ends at their offset
+                operationBatch = operationBatch.headBefore(shardsOffset);
+            }
+            if (operationBatch.getNextOffset() == offset) {
+                isIdle.set(true);
+                return false;
+            }
+            isIdle.set(false);
+            long startTime = System.currentTimeMillis();
+            // one message may carry several operations, so commit offset reported by read
+            Map<Integer, Account> accountMap = Collections.emptyMap();
+            if (writeBehindTable != null && !shardsAhead
+                    && !writeBehindTable.isBypassed(partitionId, offset)) {
+                // applied balances are cached by flush
+                writeBehindTable.apply(partitionId, offset, operationBatch);
+                quarantinedMessagesNum += operationBatch.getRejectedMessages().size();
+            } else {
                 try {
-                    pullFromPartitionAndSaveToAccountRepository();
+                    accountMap = (quarantineAttempts > 0 && failuresNum >= quarantineAttempts)
+                            ? commitOrBisect(operationBatch, offset)
+                            : commit(operationBatch, offset);
                 } catch (RuntimeException ex) {
-                    ex.printStackTrace();
-                    isIdle.set(true); // not doing helpful work
+                    if (isBatchFailure(ex)) {
+                        failuresNum = (failedOffset == offset) ? failuresNum + 1 : 1;
+                        failedOffset = offset;
+                    }
+                    throw ex;
+                }
+                // balances read before commit must not be cached after it
+                balanceCache.advanceWatermark(partitionId, operationBatch.getNextOffset());
+            }
+            failuresNum = 0;
+            if (catchUp) {
+                replayedMessages += operationBatch.getNextOffset() - offset;
+            }
+            offset = operationBatch.getNextOffset();
+            if (shardsAhead) {
+                // other shards may be ahead at higher offsets
+                shardsOffset = batchAccountService.readShardsOffset(partitionId);
+            }
+            // apply time sizes next fetches of partition
+            kafkaClient.batchApplied(partitionId, operationBatch,
+                    System.currentTimeMillis() - startTime);
+            // committed balances reflect next offset, older balances read concurrently can't win
+            for (Account account : accountMap.values()) {
+                balanceCache.putIfNewer(account.getId(), account.getAmount(), offset);
+            }
+            return true;
+        } catch (RuntimeException ex) {
+            offset = UNKNOWN_OFFSET;
+            isIdle.set(true); // not doing helpful work
+            throw ex;
+        }
+    }
+
+    private Map<Integer, Account> commit(OperationBatch operationBatch, long fromOffset) {
+        return commit(operationBatch.getOperations(), fromOffset, operationBatch.getNextOffset(),
+                operationBatch.getRejectedMessages());
+    }
+
+    // Commits operations, offset and rejected messages, retrying transient failures.
+    private Map<Integer, Account> commit(AddOperationArray addOperations, long fromOffset,
+            long nextOffset, List<RejectedMessage> rejectedMessages) {
+        long backoffMs = MIN_RETRY_BACKOFF_MS;
+        for (int retry = 0;; retry++) {
+            try {
+                // entities are created by each attempt: failed one may keep generated id
+                List<QuarantinedMessage> quarantinedMessages = rejectedMessages.isEmpty()
+                        ? Collections.<QuarantinedMessage>emptyList()
+                        : new ArrayList<QuarantinedMessage>();
+                for (RejectedMessage rejectedMessage : rejectedMessages) {
+                    quarantinedMessages.add(new QuarantinedMessage(partitionId,
+                            rejectedMessage.getOffset(), rejectedMessage.getPayload(),
+                            rejectedMessage.getReason()));
                 }
+                Map<Integer, Account> accountMap;
+                if (groupCommitCoordinator != null && offset >= shardsOffset) {
+                    accountMap = groupCommitCoordinator.commit(partitionId, addOperations,
+                            fromOffset, nextOffset, quarantinedMessages);
+                } else {
+                    // batch, which ends at ahead shards, is applied by shards alone
+                    accountMap = batchAccountService.addAmounts(addOperations, partitionId,
+                            fromOffset, nextOffset, quarantinedMessages);
+                }
+                if (!quarantinedMessages.isEmpty()) {
+                    quarantinedMessagesNum += quarantinedMessages.size();
+                    logger.warn("Partition " + partitionId + " quarantined "
+                            + quarantinedMessages.size() + " messages before offset "
+                            + nextOffset);
+                }
+                return accountMap;
+            } catch (OptimisticLockingFailureException ex) {
+                // offset was moved by other node, retry can't succeed
+                logger.warn("Partition " + partitionId + " offset moved past " + fromOffset
+                        + " by other commit");
+                throw ex;
+            } catch (TransientDataAccessException | RecoverableDataAccessException ex) {
+                if (retry >= transientRetries) {
+                    throw ex;
+                }
+                transientRetriesNum++;
+                logger.warn("Partition " + partitionId + " retries commit in " + backoffMs
+                        + " ms: " + ex);
+                try {
+                    Thread.sleep(backoffMs);
+                } catch (InterruptedException iex) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+                backoffMs *= 2;
             }
-        } catch (InterruptedException ex) {
-            Thread.currentThread().interrupt();
         }
     }
+
+    // Commits batch or, if it fails, its halves, and quarantines single failing message.
+    private Map<Integer, Account> commitOrBisect(OperationBatch operationBatch,
+            long fromOffset) {
+        try {
+            return commit(operationBatch, fromOffset);
+        } catch (RuntimeException ex) {
+            if (!isBatchFailure(ex) || operationBatch.getOperations().isEmpty()) {
+                throw ex;
+            }
+            int messagesNum = operationBatch.getMessagesNum();
+            if (messagesNum == 1) {
+                return quarantine(operationBatch, fromOffset, ex);
+            }
+            bisectionsNum++;
+            OperationBatch head = operationBatch.slice(0, messagesNum / 2);
+            OperationBatch tail = operationBatch.slice(messagesNum / 2, messagesNum);
+            // tail is applied after head, so its accounts are newer
+            Map<Integer, Account> accountMap = new HashMap<>(commitOrBisect(head, fromOffset));
+            accountMap.putAll(commitOrBisect(tail, head.getNextOffset()));
+            return accountMap;
+        }
+    }
+
+    // Skips message, its operations are stored in quarantine as one envelope.
+    private Map<Integer, Account> quarantine(OperationBatch message, long messageOffset,
+            RuntimeException ex) {
+        logger.error("Partition " + partitionId + " quarantines message at offset "
+                + messageOffset, ex);
+        AddOperationArray addOperations = message.getOperations();
+        ByteBuffer payload = ByteBuffer.allocate(AddOperation.envelopeSize(addOperations.size()));
+        AddOperation.writeEnvelope(addOperations, payload);
+        List<RejectedMessage> rejectedMessages = new ArrayList<>(message.getRejectedMessages());
+        rejectedMessages.add(new RejectedMessage(messageOffset, payload.array(), ex.toString()));
+        return commit(new AddOperationArray(0), messageOffset, message.getNextOffset(),
+                rejectedMessages);
+    }
+
+    // Failures of database resource, transient failures and commits fenced by other node aren't
+    // caused by batch content.
+    private static boolean isBatchFailure(RuntimeException ex) {
+        return !(ex instanceof TransientDataAccessException
+                || ex instanceof RecoverableDataAccessException
+                || ex instanceof NonTransientDataAccessResourceException
+                || ex instanceof CannotCreateTransactionException);
+    }
+
+    private void updateCatchUpMode(boolean catchUp) {
+        if (catchUp && !catchingUp) {
+            replayedMessages = 0;
+            catchUpStartTime = System.currentTimeMillis();
+            catchingUp = true;
+            logger.info("Partition " + partitionId + " catches up from offset " + offset
+                    + ", lag " + kafkaClient.getLag(partitionId));
+        } else if (!catchUp && catchingUp) {
+            catchingUp = false;
+            logger.info("Partition " + partitionId + " caught up at offset " + offset
+                    + ", replayed " + replayedMessages + " messages in "
+                    + (System.currentTimeMillis() - catchUpStartTime) + " ms");
+        }
+    }
+
+    // Takes consecutive batches and nets their operations per account.
+    private OperationBatch readNettedBatches() {
+        Map<Integer, Long> deltas = new LinkedHashMap<>();
+        List<RejectedMessage> rejectedMessages = new ArrayList<>();
+        long nextOffset = offset;
+        int operationsNum = 0;
+        int sizeInBytes = 0;
+        while (operationsNum < catchUpMaxOperations) {
+            // backlog is fetched without long-poll, so the next batch arrives soon
+            OperationBatch batch = kafkaClient.read(partitionId, nextOffset,
+                    (nextOffset == offset) ? 0 : CATCH_UP_READ_WAIT_MS);
+            if (batch.getNextOffset() == nextOffset) {
+                break;
+            }
+            AddOperationArray operations = batch.getOperations();
+            for (int i = 0; i < operations.size(); i++) {
+                Long delta = deltas.get(operations.getId(i));
+                deltas.put(operations.getId(i), (delta == null)
+                        ? operations.getValue(i) : delta + operations.getValue(i));
+            }
+            rejectedMessages.addAll(batch.getRejectedMessages());
+            operationsNum += operations.size();
+            sizeInBytes += batch.getSizeInBytes();
+            nextOffset = batch.getNextOffset();
+        }
+        AddOperationArray addOperations = new AddOperationArray(deltas.size());
+        for (Map.Entry<Integer, Long> delta : deltas.entrySet()) {
+            addOperations.add(delta.getKey(), delta.getValue());
+        }
+        return new OperationBatch(addOperations, nextOffset, sizeInBytes, null, null,
+                rejectedMessages);
+    }
+
+    /**
+     * Returns pause before next pull of idle partition.
+     *
+     * @param idlePauseMs previous pause (ms), zero if previous pull applied records.
+     * @return doubled previous pause within MIN_IDLE_PAUSE_MS..MAX_IDLE_PAUSE_MS.
+     */
+    static long nextIdlePause(long idlePauseMs) {
+        return Math.min(MAX_IDLE_PAUSE_MS, Math.max(MIN_IDLE_PAUSE_MS, 2 * idlePauseMs));
+    }
 }
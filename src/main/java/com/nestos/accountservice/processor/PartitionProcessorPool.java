@@ -1,27 +1,170 @@
 package com.nestos.accountservice.processor;
 
+import com.nestos.accountservice.cache.BalanceCache;
+import com.nestos.accountservice.domain.Account;
+import com.nestos.accountservice.domain.Partition;
+import com.nestos.accountservice.domain.QuarantinedMessage;
+import com.nestos.accountservice.kafka.BatchListener;
 import com.nestos.accountservice.kafka.KafkaClient;
 import com.nestos.accountservice.repository.PartitionRepository;
+import com.nestos.accountservice.repository.QuarantineRepository;
 import com.nestos.accountservice.service.BatchAccountService;
-import java.util.concurrent.ExecutorService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import static org.apache.commons.lang3.Validate.inclusiveBetween;
+import org.apache.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cache.CacheManager;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
 
 /**
- * Process Kafka partitions. To start process call {@link #start() start} method. 
- * Starts one fetching thread per partition.
+ * Process Kafka partitions. To start process call {@link #start() start} method.
+ * Number of partitions is read from topic metadata. Partitions are processed by bounded
+ * work-stealing pool: pull of partition is scheduled when Kafka client fetches its batch, so
+ * workers serve partitions, which have data, and idle workers steal queued pulls. Pull of idle
+ * or failed partition is also rescheduled after pause. Partition offsets are exposed by JMX.
+ * <p>
+ * Only partitions owned by this node are processed, ownership is given by
+ * {@link PartitionCoordinator}. Before partition is handed off, its running pull completes, so
+ * batch and offset are committed, and balances cached by this node are evicted: other node
+ * updates them from now on.
+ * <p>
+ * Partitions with large backlog are replayed in catch-up mode, see {@link PartitionProcessor}.
+ * Replay rate and ETA are exposed by JMX.
+ * <p>
+ * Messages, which can't be decoded or applied, are quarantined by processors. Quarantine
+ * counters are exposed by JMX, quarantined messages may be listed and replayed by JMX
+ * operations.
+ * <p>
+ * In write-behind mode processors apply batches to {@link WriteBehindTable}, which is flushed
+ * every flush interval and when maximum number of dirty accounts is reached. Revoked partitions
+ * are flushed before handoff, if ZooKeeper connection is alive, otherwise they are dropped and
+ * replayed by the next owner.
+ * <p>
+ * In group commit mode batches pulled by workers at the same time are committed in one
+ * transaction by {@link GroupCommitCoordinator}, so keep worker threads not fewer than owned
+ * partitions.
  *
  * @author Roman Osipov.
  */
+@ManagedResource(objectName = "accountService:name=PartitionProcessorPool")
 public class PartitionProcessorPool {
   //-------------------Logger---------------------------------------------------
+    private final static Logger logger = Logger.getLogger(PartitionProcessorPool.class.getName());
+
+    //-------------------NestedClasses--------------------------------------------
+    // Schedules pulls of one partition: at most one pull is queued or running, so batches of
+    // partition are applied in order.
+    private class PartitionTask implements Runnable {
+
+        private final PartitionProcessor partitionProcessor;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // True while partition is owned, pulls run holding task monitor.
+        private volatile boolean active;
+        // Pause (ms) before next pull of idle partition, accessed by pulls only.
+        private long idlePauseMs;
+        private final Runnable scheduleCall = new Runnable() {
+
+            @Override
+            public void run() {
+                schedule();
+            }
+        };
+
+        public PartitionTask(PartitionProcessor partitionProcessor) {
+            this.partitionProcessor = partitionProcessor;
+        }
+
+        public void activate() {
+            active = true;
+            schedule();
+        }
+
+        // Blocks until running pull completes, queued pulls are skipped.
+        public void deactivate() {
+            active = false;
+            synchronized (this) {
+                partitionProcessor.resetOffset();
+            }
+        }
+
+        public void schedule() {
+            if (active && scheduled.compareAndSet(false, true)) {
+                try {
+                    workerPool.execute(this);
+                } catch (RejectedExecutionException ex) {
+                    // pool is stopped
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean applied = false;
+            synchronized (this) {
+                if (!active) {
+                    scheduled.set(false);
+                    return;
+                }
+                // lease may be paused by lost ZooKeeper connection, then pull is retried
+                if (partitionCoordinator.isOwned(partitionProcessor.getPartitionId())) {
+                    try {
+                        applied = partitionProcessor.pullFromPartitionAndSaveToAccountRepository();
+                    } catch (RuntimeException ex) {
+                        logger.error("Can't process partition "
+                                + partitionProcessor.getPartitionId(), ex);
+                    }
+                }
+            }
+            scheduled.set(false);
+            if (writeBehind && writeBehindTable.isFlushDue()) {
+                requestFlush();
+            }
+            if (applied) {
+                // backlog may remain, pull again after queued pulls of other partitions
+                idlePauseMs = 0;
+                schedule();
+            } else if (kafkaClient.isBatchReady(partitionProcessor.getPartitionId())) {
+                // batch is fetched, while pull was scheduled
+                schedule();
+            } else {
+                idlePauseMs = PartitionProcessor.nextIdlePause(idlePauseMs);
+                try {
+                    retryExecutorService.schedule(scheduleCall, idlePauseMs,
+                            TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException ex) {
+                    // pool is stopped
+                }
+            }
+        }
+    }
 
     //-------------------Constants------------------------------------------------
+    public static final String WORKER_THREADS_IAE_MESSAGE = "workerThreads can't be negative.";
+    public static final String CATCH_UP_LAG_IAE_MESSAGE = "catchUpLag can't be negative.";
+    public static final String CATCH_UP_MAX_OPERATIONS_IAE_MESSAGE
+            = "catchUpMaxOperations must be positive.";
+    public static final String TRANSIENT_RETRIES_IAE_MESSAGE
+            = "transientRetries can't be negative.";
+    public static final String QUARANTINE_ATTEMPTS_IAE_MESSAGE
+            = "quarantineAttempts can't be negative.";
+    public static final String FLUSH_INTERVAL_IAE_MESSAGE = "flushIntervalMs must be positive.";
+    public static final long DEFAULT_FLUSH_INTERVAL_MS = 1000;
+
     //-------------------Fields---------------------------------------------------
     @Autowired
     private KafkaClient kafkaClient;
@@ -33,56 +176,540 @@ public class PartitionProcessorPool {
     private BatchAccountService accountServiceBatch;
 
     @Autowired
-    private CacheManager cacheManager;
+    private BalanceCache balanceCache;
 
-    private ExecutorService executorService;
+    @Autowired
+    private PartitionCoordinator partitionCoordinator;
+
+    @Autowired
+    private QuarantineRepository quarantineRepository;
+
+    @Autowired
+    private WriteBehindTable writeBehindTable;
+
+    @Autowired
+    private GroupCommitCoordinator groupCommitCoordinator;
+
+    // Number of worker threads, 0 - number of available processors.
+    private int workerThreads;
+
+    private long catchUpLag = PartitionProcessor.DEFAULT_CATCH_UP_LAG;
+
+    private int catchUpMaxOperations = PartitionProcessor.DEFAULT_CATCH_UP_MAX_OPERATIONS;
+
+    private int transientRetries = PartitionProcessor.DEFAULT_TRANSIENT_RETRIES;
+
+    private int quarantineAttempts = PartitionProcessor.DEFAULT_QUARANTINE_ATTEMPTS;
+
+    // True - batches are applied to write-behind table and committed by its flushes.
+    private boolean writeBehind;
+
+    private long flushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+
+    // True - batches of several partitions are committed in one transaction.
+    private boolean groupCommit;
+
+    private ForkJoinPool workerPool;
+
+    // Reschedules pulls of idle partitions, evicts balances of revoked partitions.
+    private ScheduledExecutorService retryExecutorService;
+
+    // Flushes write-behind table, flushes are serialized by table.
+    private ScheduledExecutorService flushExecutorService;
+
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private final Runnable flushCall = new Runnable() {
+
+        @Override
+        public void run() {
+            flushRequested.set(false);
+            flushOwned();
+        }
+    };
 
     private AtomicBoolean[] idleFlags;
 
+    private volatile PartitionProcessor[] partitionProcessors;
+
     //-------------------Constructors---------------------------------------------
     //-------------------Getters and setters--------------------------------------
+    @ManagedAttribute(description = "Number of worker threads.")
+    public int getWorkerThreads() {
+        return (workerPool == null) ? workerThreads : workerPool.getParallelism();
+    }
+
+    /**
+     * Set number of worker threads. Takes effect on bean initialization.
+     *
+     * @param workerThreads number of worker threads, 0 - number of available processors.
+     */
+    public void setWorkerThreads(int workerThreads) {
+        inclusiveBetween(0, Integer.MAX_VALUE, workerThreads, WORKER_THREADS_IAE_MESSAGE);
+        this.workerThreads = workerThreads;
+    }
+
+    @ManagedAttribute(description = "Partition lag (messages), which starts catch-up mode, "
+            + "0 - catch-up mode is off.")
+    public long getCatchUpLag() {
+        return catchUpLag;
+    }
+
+    /**
+     * Set partition lag, which starts catch-up mode. Takes effect on start.
+     *
+     * @param catchUpLag lag in messages, 0 - catch-up mode is off.
+     */
+    public void setCatchUpLag(long catchUpLag) {
+        inclusiveBetween(0, Long.MAX_VALUE, catchUpLag, CATCH_UP_LAG_IAE_MESSAGE);
+        this.catchUpLag = catchUpLag;
+    }
+
+    @ManagedAttribute(description = "Maximum number of operations netted in one catch-up "
+            + "commit.")
+    public int getCatchUpMaxOperations() {
+        return catchUpMaxOperations;
+    }
+
+    /**
+     * Set maximum number of operations netted in one catch-up commit. Takes effect on start.
+     *
+     * @param catchUpMaxOperations maximum number of operations.
+     */
+    public void setCatchUpMaxOperations(int catchUpMaxOperations) {
+        inclusiveBetween(1, Integer.MAX_VALUE, catchUpMaxOperations,
+                CATCH_UP_MAX_OPERATIONS_IAE_MESSAGE);
+        this.catchUpMaxOperations = catchUpMaxOperations;
+    }
+
+    @ManagedAttribute(description = "Number of commit retries after transient database "
+            + "failure.")
+    public int getTransientRetries() {
+        return transientRetries;
+    }
+
+    /**
+     * Set number of commit retries after transient database failure. Takes effect on start.
+     *
+     * @param transientRetries number of retries, 0 - failure isn't retried.
+     */
+    public void setTransientRetries(int transientRetries) {
+        inclusiveBetween(0, Integer.MAX_VALUE, transientRetries, TRANSIENT_RETRIES_IAE_MESSAGE);
+        this.transientRetries = transientRetries;
+    }
+
+    @ManagedAttribute(description = "Failed pulls at the same offset before failing message is "
+            + "quarantined, 0 - quarantine is off.")
+    public int getQuarantineAttempts() {
+        return quarantineAttempts;
+    }
+
+    /**
+     * Set number of failed pulls at the same offset, after which failing message is
+     * quarantined. Takes effect on start.
+     *
+     * @param quarantineAttempts number of failed pulls, 0 - quarantine is off.
+     */
+    public void setQuarantineAttempts(int quarantineAttempts) {
+        inclusiveBetween(0, Integer.MAX_VALUE, quarantineAttempts,
+                QUARANTINE_ATTEMPTS_IAE_MESSAGE);
+        this.quarantineAttempts = quarantineAttempts;
+    }
+
+    @ManagedAttribute(description = "True if batches are applied to write-behind table.")
+    public boolean isWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Set write-behind mode. Takes effect on start.
+     *
+     * @param writeBehind true - batches are applied to write-behind table and committed by its
+     * flushes.
+     */
+    public void setWriteBehind(boolean writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    @ManagedAttribute(description = "Interval (ms) between flushes of write-behind table.")
+    public long getFlushIntervalMs() {
+        return flushIntervalMs;
+    }
+
+    /**
+     * Set interval between flushes of write-behind table. Takes effect on start.
+     *
+     * @param flushIntervalMs interval in milliseconds.
+     */
+    public void setFlushIntervalMs(long flushIntervalMs) {
+        inclusiveBetween(1, Long.MAX_VALUE, flushIntervalMs, FLUSH_INTERVAL_IAE_MESSAGE);
+        this.flushIntervalMs = flushIntervalMs;
+    }
+
+    @ManagedAttribute(description = "True if batches of several partitions are committed in "
+            + "one transaction.")
+    public boolean isGroupCommit() {
+        return groupCommit;
+    }
+
+    /**
+     * Set group commit of batches. Takes effect on start.
+     *
+     * @param groupCommit true - batches are committed by {@link GroupCommitCoordinator}.
+     */
+    public void setGroupCommit(boolean groupCommit) {
+        this.groupCommit = groupCommit;
+    }
+
+    @ManagedAttribute(description = "Number of accounts, which aren't flushed.")
+    public int getDirtyAccountsNum() {
+        return writeBehindTable.getDirtyAccountsNum();
+    }
+
+    @ManagedAttribute(description = "Number of write-behind flushes.")
+    public long getFlushesNum() {
+        return writeBehindTable.getFlushesNum();
+    }
+
+    @ManagedAttribute(description = "Number of failed write-behind flushes.")
+    public long getFailedFlushesNum() {
+        return writeBehindTable.getFailedFlushesNum();
+    }
+
+    @ManagedAttribute(description = "Number of accounts written by write-behind flushes.")
+    public long getFlushedAccountsNum() {
+        return writeBehindTable.getFlushedAccountsNum();
+    }
+
+    @ManagedAttribute(description = "Number of partition tables dropped by failing flushes, "
+            + "their batches were committed by processors.")
+    public long getDroppedByFailuresNum() {
+        return writeBehindTable.getDroppedByFailuresNum();
+    }
+
+    @ManagedAttribute(description = "Number of messages quarantined by this node.")
+    public long getQuarantinedMessagesNum() {
+        long quarantinedMessagesNum = 0;
+        PartitionProcessor[] processors = partitionProcessors;
+        if (processors != null) {
+            for (PartitionProcessor processor : processors) {
+                quarantinedMessagesNum += processor.getQuarantinedMessagesNum();
+            }
+        }
+        return quarantinedMessagesNum;
+    }
+
+    @ManagedAttribute(description = "Number of commit retries after transient failures.")
+    public long getTransientRetriesNum() {
+        long transientRetriesNum = 0;
+        PartitionProcessor[] processors = partitionProcessors;
+        if (processors != null) {
+            for (PartitionProcessor processor : processors) {
+                transientRetriesNum += processor.getTransientRetriesNum();
+            }
+        }
+        return transientRetriesNum;
+    }
+
+    @ManagedAttribute(description = "Number of failed batches split in halves.")
+    public long getBisectionsNum() {
+        long bisectionsNum = 0;
+        PartitionProcessor[] processors = partitionProcessors;
+        if (processors != null) {
+            for (PartitionProcessor processor : processors) {
+                bisectionsNum += processor.getBisectionsNum();
+            }
+        }
+        return bisectionsNum;
+    }
+
+    @ManagedAttribute(description = "Number of messages in quarantine.")
+    public long getQuarantineSize() {
+        return quarantineRepository.count();
+    }
+
+    @ManagedAttribute(description = "True for partitions in catch-up mode.")
+    public boolean[] getCatchingUp() {
+        PartitionProcessor[] processors = partitionProcessors;
+        if (processors == null) {
+            return new boolean[0];
+        }
+        boolean[] catchingUp = new boolean[processors.length];
+        for (int i = 0; i < catchingUp.length; i++) {
+            catchingUp[i] = processors[i].isCatchingUp();
+        }
+        return catchingUp;
+    }
+
+    @ManagedAttribute(description = "Replayed messages per second of catching up partitions.")
+    public double[] getReplayRates() {
+        PartitionProcessor[] processors = partitionProcessors;
+        if (processors == null) {
+            return new double[0];
+        }
+        double[] rates = new double[processors.length];
+        for (int i = 0; i < rates.length; i++) {
+            rates[i] = processors[i].getReplayRate();
+        }
+        return rates;
+    }
+
+    @ManagedAttribute(description = "Seconds until catching up partitions catch up, -1 if "
+            + "partition is not catching up.")
+    public long[] getCatchUpEtaSeconds() {
+        PartitionProcessor[] processors = partitionProcessors;
+        if (processors == null) {
+            return new long[0];
+        }
+        long[] etas = new long[processors.length];
+        for (int i = 0; i < etas.length; i++) {
+            etas[i] = processors[i].getCatchUpEtaSeconds();
+        }
+        return etas;
+    }
+
+    @ManagedAttribute(description = "Number of pulls stolen by idle workers.")
+    public long getStealCount() {
+        return (workerPool == null) ? 0 : workerPool.getStealCount();
+    }
+
+    @ManagedAttribute(description = "Partition offsets kept in memory by processors, -1 if "
+            + "offset is not read yet.")
+    public long[] getProcessedOffsets() {
+        PartitionProcessor[] processors = partitionProcessors;
+        if (processors == null) {
+            return new long[0];
+        }
+        long[] offsets = new long[processors.length];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = processors[i].getOffset();
+        }
+        return offsets;
+    }
+
+    @ManagedAttribute(description = "Partition offsets committed in database.")
+    public long[] getCommittedOffsets() {
+        long[] offsets = new long[kafkaClient.getPartitionsNum()];
+        for (Partition partition : partitionRepository.findAll()) {
+            if (partition.getId() < offsets.length) {
+                offsets[partition.getId()] = partition.getOffset();
+            }
+        }
+        return offsets;
+    }
+
     //-------------------Methods--------------------------------------------------
     /**
-     * Blocks thread while at most one PartitionProcessor not idle (has messages to consume).
+     * Blocks thread until all PartitionProcessors are idle (have no messages to consume).
      *
      * @throws java.lang.InterruptedException
      */
     public void awaitIdle() throws InterruptedException {
+        if (idleFlags == null) {
+            return;
+        }
         boolean idle;
         do {
             Thread.sleep(1000);
             idle = true;
-            for (int i = 0; i < KafkaClient.PARTITIONS_NUM; i++) {
-                if (!idleFlags[i].get()) {
+            for (AtomicBoolean idleFlag : idleFlags) {
+                if (!idleFlag.get()) {
                     idle = false;
                     break;
                 }
             }
-        } while (idle = false);
+        } while (!idle);
+    }
+
+    /**
+     * Lists the oldest quarantined messages.
+     *
+     * @param max maximum number of listed messages.
+     * @return descriptions of quarantined messages.
+     */
+    @ManagedOperation(description = "List the oldest quarantined messages.")
+    public String[] listQuarantined(int max) {
+        List<String> messages = new ArrayList<>();
+        for (QuarantinedMessage quarantinedMessage : quarantineRepository.findAll(
+                new PageRequest(0, Math.max(1, max), Sort.Direction.ASC, "id"))) {
+            messages.add("id=" + quarantinedMessage.getId()
+                    + " partition=" + quarantinedMessage.getPartitionId()
+                    + " offset=" + quarantinedMessage.getMessageOffset()
+                    + " time=" + quarantinedMessage.getQuarantineTime()
+                    + " reason=" + quarantinedMessage.getReason());
+        }
+        return messages.toArray(new String[messages.size()]);
+    }
+
+    /**
+     * Applies operations of quarantined message and removes it from quarantine. Message must be
+     * fixed first: replay fails, if message still can't be decoded or applied.
+     *
+     * @param id quarantined message id.
+     * @return number of updated accounts.
+     */
+    @ManagedOperation(description = "Apply quarantined message and remove it from quarantine.")
+    public int replayQuarantined(long id) {
+        Map<Integer, Account> accountMap = accountServiceBatch.replayQuarantined(id);
+        // replayed balances aren't ordered by partition offset, so they're reloaded
+        for (Integer accountId : accountMap.keySet()) {
+            balanceCache.evictAmount(accountId);
+        }
+        logger.info("Quarantined message " + id + " replayed, " + accountMap.size()
+                + " accounts updated");
+        return accountMap.size();
+    }
+
+    /**
+     * Flushes write-behind table of owned partitions.
+     *
+     * @return number of flushed accounts.
+     */
+    @ManagedOperation(description = "Flush write-behind table.")
+    public int flushOwned() {
+        if (!writeBehind || idleFlags == null) {
+            return 0;
+        }
+        List<Integer> partitions = new ArrayList<>();
+        for (int i = 0; i < idleFlags.length; i++) {
+            // table of partition, which isn't owned while connection is lost, is kept
+            if (partitionCoordinator.isOwned(i)) {
+                partitions.add(i);
+            }
+        }
+        try {
+            return writeBehindTable.flush(partitions);
+        } catch (RuntimeException ex) {
+            logger.error("Can't flush write-behind table", ex);
+            return 0;
+        }
+    }
+
+    private void requestFlush() {
+        if (flushRequested.compareAndSet(false, true)) {
+            try {
+                flushExecutorService.execute(flushCall);
+            } catch (RejectedExecutionException ex) {
+                // pool is stopped
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    // Flushes revoked partitions, while lease is held, and drops their tables.
+    private void handOffWriteBehind(Set<Integer> partitions) {
+        if (partitionCoordinator.isConnected()) {
+            try {
+                writeBehindTable.flush(partitions);
+            } catch (RuntimeException ex) {
+                logger.error("Can't flush revoked partitions " + partitions
+                        + ", they are replayed from flushed offsets", ex);
+            }
+        }
+        for (Integer partition : partitions) {
+            writeBehindTable.drop(partition);
+        }
     }
 
     /**
-     * Start execution of partition processors. 
+     * Start execution of partition processors.
      */
     public void start() {
-        idleFlags = new AtomicBoolean[KafkaClient.PARTITIONS_NUM];
-        for (int i = 0; i < KafkaClient.PARTITIONS_NUM; i++) {
-            idleFlags[i] = new AtomicBoolean();
-            PartitionProcessor partitionProcessor = new PartitionProcessor(i, kafkaClient,
-                    partitionRepository, accountServiceBatch, cacheManager, idleFlags[i]);
-            executorService.submit(partitionProcessor);
+        int partitionsNum = kafkaClient.getPartitionsNum();
+        idleFlags = new AtomicBoolean[partitionsNum];
+        PartitionProcessor[] processors = new PartitionProcessor[partitionsNum];
+        final PartitionTask[] tasks = new PartitionTask[partitionsNum];
+        for (int i = 0; i < partitionsNum; i++) {
+            // partition, which is not owned, is idle
+            idleFlags[i] = new AtomicBoolean(true);
+            processors[i] = new PartitionProcessor(i, kafkaClient,
+                    partitionRepository, accountServiceBatch, balanceCache, idleFlags[i]);
+            processors[i].setCatchUpLag(catchUpLag);
+            processors[i].setCatchUpMaxOperations(catchUpMaxOperations);
+            processors[i].setTransientRetries(transientRetries);
+            processors[i].setQuarantineAttempts(quarantineAttempts);
+            if (writeBehind) {
+                processors[i].setWriteBehindTable(writeBehindTable);
+            }
+            if (groupCommit) {
+                processors[i].setGroupCommitCoordinator(groupCommitCoordinator);
+            }
+            tasks[i] = new PartitionTask(processors[i]);
         }
+        partitionProcessors = processors;
+        if (writeBehind) {
+            writeBehindTable.start(partitionsNum);
+            flushExecutorService.scheduleWithFixedDelay(flushCall, flushIntervalMs,
+                    flushIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        kafkaClient.setBatchListener(new BatchListener() {
+
+            @Override
+            public void batchFetched(int partition) {
+                tasks[partition].schedule();
+            }
+        });
+        partitionCoordinator.start(partitionsNum, new PartitionOwnershipListener() {
+
+            @Override
+            public void partitionsAssigned(Set<Integer> partitions) {
+                for (Integer partition : partitions) {
+                    idleFlags[partition].set(false);
+                    tasks[partition].activate();
+                }
+            }
+
+            @Override
+            public void partitionsRevoked(final Set<Integer> partitions) {
+                for (Integer partition : partitions) {
+                    tasks[partition].deactivate();
+                    kafkaClient.release(partition);
+                    idleFlags[partition].set(true);
+                }
+                if (writeBehind) {
+                    handOffWriteBehind(partitions);
+                }
+                // balances of revoked partitions are updated by other node, cache scan hashes
+                // each id, so it doesn't hold up ZooKeeper event thread
+                retryExecutorService.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        balanceCache.evictIf(new BalanceCache.IdFilter() {
+
+                            @Override
+                            public boolean matches(int id) {
+                                return partitions.contains(kafkaClient.partitionFor(id));
+                            }
+                        });
+                    }
+                });
+            }
+        });
     }
 
     @PostConstruct
     public void postConstruct() {
-        executorService = Executors.newFixedThreadPool(KafkaClient.PARTITIONS_NUM);
+        int parallelism = (workerThreads == 0)
+                ? Runtime.getRuntime().availableProcessors() : workerThreads;
+        // asynchronous mode: pulls are event-style tasks, which are never joined
+        workerPool = new ForkJoinPool(parallelism,
+                ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        retryExecutorService = Executors.newSingleThreadScheduledExecutor();
+        flushExecutorService = Executors.newSingleThreadScheduledExecutor();
     }
 
     @PreDestroy
     public void preDestroy() throws InterruptedException {
-        executorService.shutdownNow();
-        executorService.awaitTermination(1, TimeUnit.DAYS);
+        // hand off partitions, while workers are running
+        partitionCoordinator.stop();
+        kafkaClient.setBatchListener(null);
+        retryExecutorService.shutdownNow();
+        workerPool.shutdownNow();
+        workerPool.awaitTermination(1, TimeUnit.DAYS);
+        // partitions are flushed by handoff
+        flushExecutorService.shutdownNow();
+        flushExecutorService.awaitTermination(1, TimeUnit.DAYS);
     }
 
 }
@@ -0,0 +1,582 @@
+package com.nestos.accountservice.processor;
+
+import com.nestos.accountservice.cache.BalanceCache;
+import com.nestos.accountservice.domain.Account;
+import com.nestos.accountservice.domain.AddOperationArray;
+import com.nestos.accountservice.domain.AmountsSnapshot;
+import com.nestos.accountservice.domain.QuarantinedMessage;
+import com.nestos.accountservice.kafka.OperationBatch;
+import com.nestos.accountservice.kafka.OperationBatch.RejectedMessage;
+import com.nestos.accountservice.service.BatchAccountService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import static org.apache.commons.lang3.Validate.inclusiveBetween;
+import static org.apache.commons.lang3.Validate.isTrue;
+import static org.apache.commons.lang3.Validate.notNull;
+import org.apache.log4j.Logger;
+
+/**
+ * In-memory balance table of write-behind mode. Partition processors apply batches to dirty
+ * balances of table instead of database, and table is flushed periodically: net deltas of
+ * dirty accounts are upserted together with offsets of partitions, which cover them, and
+ * quarantined messages in one transaction. So hot account costs one row write per flush, not
+ * one per batch.
+ * <p>
+ * Dirty balance keeps current balance, which is served to readers, and delta, which isn't
+ * flushed yet. Flush moves dirty balances of partition to flushing ones, so processor keeps
+ * applying, while flush commits. Committed balances are put to balance cache before flushing
+ * balances are dropped, so reader finds balance either in table or in cache. Failed flush
+ * returns its deltas to dirty balances, they are committed by the next flush. Partition, which
+ * failed maxFlushFailures flushes in a row, is flushed alone, and if it still fails, its table
+ * is dropped: processor replays partition from flushed offset by its own commits, which bisect
+ * and quarantine failing batch, and returns to table after the dropped applied offset.
+ * <p>
+ * Kafka is durable log: database keeps balances and offsets of the last flush, so table of
+ * partition may be dropped at any time (crash, lost ownership) and partition is replayed from
+ * flushed offset. Flush saves offset of partition only if database is still at flushed offset,
+ * so table of partition, which other node has taken over, can't commit its deltas. Processor
+ * and flush of partition use partition table monitor, reads don't lock.
+ *
+ * @author Roman Osipov
+ */
+public class WriteBehindTable {
+
+    //-------------------Logger---------------------------------------------------
+    private final static Logger logger = Logger.getLogger(WriteBehindTable.class.getName());
+
+    //-------------------NestedClasses--------------------------------------------
+    // Balance, which isn't flushed. Delta is accessed under partition table monitor.
+    private static class DirtyBalance {
+
+        private volatile long amount;
+        private long delta;
+
+        public DirtyBalance(long amount) {
+            this.amount = amount;
+        }
+    }
+
+    // Dirty balances and offsets of one partition.
+    private static class PartitionTable {
+
+        private volatile Map<Integer, DirtyBalance> dirty = new ConcurrentHashMap<>();
+        private volatile Map<Integer, DirtyBalance> flushing = Collections.emptyMap();
+        private List<RejectedMessage> rejectedMessages = new ArrayList<>();
+        private List<RejectedMessage> flushingRejectedMessages = Collections.emptyList();
+        // Offset of the next message to apply.
+        private long appliedOffset;
+        // Offset committed by the last flush.
+        private long flushedOffset;
+        // Offset committed by running flush.
+        private long flushingOffset;
+        // Set when table is dropped, processor must not apply to it.
+        private boolean dropped;
+
+        public PartitionTable(long offset) {
+            this.appliedOffset = offset;
+            this.flushedOffset = offset;
+        }
+    }
+
+    //-------------------Constants------------------------------------------------
+    public static final int DEFAULT_MAX_DIRTY_ACCOUNTS = 100000;
+    public static final int DEFAULT_MAX_FLUSH_FAILURES = 3;
+    // Marks not cached balance.
+    private static final long ABSENT_AMOUNT = Long.MIN_VALUE;
+    public static final String BATCH_ACCOUNT_SERVICE_NPE_MESSAGE
+            = "batchAccountService can't be null.";
+    public static final String BALANCE_CACHE_NPE_MESSAGE = "balanceCache can't be null.";
+    public static final String PARTITIONS_NUM_IAE_MESSAGE = "partitionsNum must be positive.";
+    public static final String MAX_DIRTY_ACCOUNTS_IAE_MESSAGE
+            = "maxDirtyAccounts must be positive.";
+    public static final String MAX_FLUSH_FAILURES_IAE_MESSAGE
+            = "maxFlushFailures must be positive.";
+    public static final String OFFSET_IAE_MESSAGE
+            = "Batch must be applied from applied offset of partition.";
+    public static final String NOT_STARTED_ISE_MESSAGE = "Table is not started.";
+    public static final String DROPPED_ISE_MESSAGE = "Table of partition is dropped.";
+
+    //-------------------Fields---------------------------------------------------
+    private final BatchAccountService batchAccountService;
+    private final BalanceCache balanceCache;
+    // Number of dirty accounts, which flush is requested at.
+    private int maxDirtyAccounts = DEFAULT_MAX_DIRTY_ACCOUNTS;
+    // Number of failed flushes in a row, after which partition is flushed alone.
+    private int maxFlushFailures = DEFAULT_MAX_FLUSH_FAILURES;
+    // Partition tables, null element if partition has no table.
+    private volatile AtomicReferenceArray<PartitionTable> partitionTables;
+    // Number of dirty balances, not counting flushing ones.
+    private final AtomicInteger dirtyAccountsNum = new AtomicInteger();
+    // Serializes flushes and drops.
+    private final Object flushLock = new Object();
+    // Failed flushes in a row by partition, guarded by flush lock.
+    private int[] flushFailures;
+    // Applied offsets of tables dropped by failing flushes, processor commits partition itself
+    // below them.
+    private volatile AtomicLongArray bypassOffsets;
+    // Set for partition, which table was dropped by failing flushes, until its processor reads
+    // offset again: processor still keeps dropped applied offset, table can't start from it.
+    private volatile AtomicIntegerArray staleOffsets;
+    // Flush statistic, written under flush lock.
+    private volatile long flushesNum;
+    private volatile long failedFlushesNum;
+    private volatile long flushedAccountsNum;
+    private volatile long droppedByFailuresNum;
+
+    //-------------------Constructors---------------------------------------------
+    /**
+     * Constructs a new WriteBehindTable.
+     *
+     * @param batchAccountService account batch service, which flushes are committed by.
+     * @param balanceCache account balances cache, which receives flushed balances.
+     */
+    public WriteBehindTable(BatchAccountService batchAccountService, BalanceCache balanceCache) {
+        notNull(batchAccountService, BATCH_ACCOUNT_SERVICE_NPE_MESSAGE);
+        notNull(balanceCache, BALANCE_CACHE_NPE_MESSAGE);
+        this.batchAccountService = batchAccountService;
+        this.balanceCache = balanceCache;
+    }
+
+    //-------------------Getters and setters--------------------------------------
+    public int getMaxDirtyAccounts() {
+        return maxDirtyAccounts;
+    }
+
+    /**
+     * Set number of dirty accounts, which flush is requested at. Processors stop applying at
+     * twice this number, until flush completes.
+     *
+     * @param maxDirtyAccounts number of dirty accounts.
+     */
+    public void setMaxDirtyAccounts(int maxDirtyAccounts) {
+        inclusiveBetween(1, Integer.MAX_VALUE, maxDirtyAccounts, MAX_DIRTY_ACCOUNTS_IAE_MESSAGE);
+        this.maxDirtyAccounts = maxDirtyAccounts;
+    }
+
+    public int getMaxFlushFailures() {
+        return maxFlushFailures;
+    }
+
+    /**
+     * Set number of failed flushes in a row, after which partition is flushed alone. Table of
+     * partition, which fails alone too, is dropped.
+     *
+     * @param maxFlushFailures number of failed flushes.
+     */
+    public void setMaxFlushFailures(int maxFlushFailures) {
+        inclusiveBetween(1, Integer.MAX_VALUE, maxFlushFailures, MAX_FLUSH_FAILURES_IAE_MESSAGE);
+        this.maxFlushFailures = maxFlushFailures;
+    }
+
+    public boolean isStarted() {
+        return partitionTables != null;
+    }
+
+    public int getDirtyAccountsNum() {
+        return dirtyAccountsNum.get();
+    }
+
+    public long getFlushesNum() {
+        return flushesNum;
+    }
+
+    public long getFailedFlushesNum() {
+        return failedFlushesNum;
+    }
+
+    public long getFlushedAccountsNum() {
+        return flushedAccountsNum;
+    }
+
+    public long getDroppedByFailuresNum() {
+        return droppedByFailuresNum;
+    }
+
+    /**
+     * Returns true if dirty accounts should be flushed now.
+     *
+     * @return true if number of dirty accounts reached maximum.
+     */
+    public boolean isFlushDue() {
+        return dirtyAccountsNum.get() >= maxDirtyAccounts;
+    }
+
+    /**
+     * Returns true if processors must wait for flush before applying more batches.
+     *
+     * @return true if number of dirty accounts reached twice maximum.
+     */
+    public boolean isFull() {
+        return dirtyAccountsNum.get() >= 2L * maxDirtyAccounts;
+    }
+
+    /**
+     * Returns offset of the next message to apply to partition table. Called by processor of
+     * partition, when it reads offset again, so table may start from offset read after it.
+     *
+     * @param partition partition number.
+     * @return offset or UNKNOWN_OFFSET if partition has no table.
+     */
+    public long getAppliedOffset(int partition) {
+        PartitionTable partitionTable = getPartitionTable(partition);
+        if (partitionTable == null) {
+            AtomicIntegerArray stale = staleOffsets;
+            if (stale != null) {
+                stale.set(partition, 0);
+            }
+            return PartitionProcessor.UNKNOWN_OFFSET;
+        }
+        synchronized (partitionTable) {
+            return partitionTable.appliedOffset;
+        }
+    }
+
+    /**
+     * Returns balance, which isn't flushed yet.
+     *
+     * @param partition partition of account.
+     * @param id account id.
+     * @param absentValue value returned, if account isn't dirty.
+     * @return dirty balance or absentValue.
+     */
+    public long getAmount(int partition, int id, long absentValue) {
+        PartitionTable partitionTable = getPartitionTable(partition);
+        if (partitionTable == null) {
+            return absentValue;
+        }
+        // flushing balances are dropped after dirty ones are moved, so read order matters
+        DirtyBalance balance = partitionTable.dirty.get(id);
+        if (balance == null) {
+            balance = partitionTable.flushing.get(id);
+        }
+        return (balance == null) ? absentValue : balance.amount;
+    }
+
+    /**
+     * Returns true if batch must be committed by processor instead of table: table of partition
+     * was dropped by failing flushes and batch is below its applied offset.
+     *
+     * @param partition partition number.
+     * @param fromOffset offset of the first message of batch.
+     * @return true if partition bypasses table.
+     */
+    public boolean isBypassed(int partition, long fromOffset) {
+        AtomicLongArray offsets = bypassOffsets;
+        return offsets != null && fromOffset < offsets.get(partition);
+    }
+
+    //-------------------Methods--------------------------------------------------
+    /**
+     * Starts table, partitions have no tables until their first batch.
+     *
+     * @param partitionsNum number of topic partitions.
+     */
+    public void start(int partitionsNum) {
+        inclusiveBetween(1, Integer.MAX_VALUE, partitionsNum, PARTITIONS_NUM_IAE_MESSAGE);
+        synchronized (flushLock) {
+            flushFailures = new int[partitionsNum];
+        }
+        bypassOffsets = new AtomicLongArray(partitionsNum);
+        staleOffsets = new AtomicIntegerArray(partitionsNum);
+        partitionTables = new AtomicReferenceArray<>(partitionsNum);
+    }
+
+    /**
+     * Applies batch to dirty balances of partition. Balances of accounts, which aren't dirty,
+     * are taken from balance cache or read from database first. Called by processor of
+     * partition only.
+     *
+     * @param partition partition number.
+     * @param fromOffset offset of the first message of batch.
+     * @param operationBatch batch.
+     */
+    public void apply(int partition, long fromOffset, OperationBatch operationBatch) {
+        AtomicReferenceArray<PartitionTable> tables = partitionTables;
+        if (tables == null) {
+            throw new IllegalStateException(NOT_STARTED_ISE_MESSAGE);
+        }
+        PartitionTable partitionTable = tables.get(partition);
+        if (partitionTable == null) {
+            if (staleOffsets.get(partition) != 0) {
+                // processor applies from offset of table dropped by failing flushes
+                throw new IllegalStateException(DROPPED_ISE_MESSAGE);
+            }
+            partitionTable = new PartitionTable(fromOffset);
+            tables.set(partition, partitionTable);
+        }
+        synchronized (partitionTable) {
+            if (partitionTable.dropped) {
+                // partition is replayed from flushed offset
+                throw new IllegalStateException(DROPPED_ISE_MESSAGE);
+            }
+            isTrue(partitionTable.appliedOffset == fromOffset, OFFSET_IAE_MESSAGE);
+            AddOperationArray operations = operationBatch.getOperations();
+            Map<Integer, Long> amounts = readAmounts(partitionTable, operations);
+            for (int i = 0; i < operations.size(); i++) {
+                int id = operations.getId(i);
+                long value = operations.getValue(i);
+                DirtyBalance balance = partitionTable.dirty.get(id);
+                if (balance == null) {
+                    DirtyBalance flushing = partitionTable.flushing.get(id);
+                    balance = new DirtyBalance(((flushing == null)
+                            ? amounts.get(id) : flushing.amount) + value);
+                    balance.delta = value;
+                    partitionTable.dirty.put(id, balance);
+                    dirtyAccountsNum.incrementAndGet();
+                } else {
+                    balance.amount += value;
+                    balance.delta += value;
+                }
+            }
+            partitionTable.rejectedMessages.addAll(operationBatch.getRejectedMessages());
+            partitionTable.appliedOffset = operationBatch.getNextOffset();
+        }
+    }
+
+    // Returns committed balances of accounts, which aren't in table.
+    private Map<Integer, Long> readAmounts(PartitionTable partitionTable,
+            AddOperationArray operations) {
+        Map<Integer, Long> amounts = new HashMap<>();
+        Set<Integer> missedIds = new HashSet<>();
+        for (int i = 0; i < operations.size(); i++) {
+            int id = operations.getId(i);
+            if (partitionTable.dirty.containsKey(id) || partitionTable.flushing.containsKey(id)
+                    || amounts.containsKey(id)) {
+                continue;
+            }
+            // account isn't dirty, so cached balance is committed one
+            long amount = balanceCache.getAmount(id, ABSENT_AMOUNT);
+            if (amount == ABSENT_AMOUNT) {
+                missedIds.add(id);
+            } else {
+                amounts.put(id, amount);
+            }
+        }
+        if (!missedIds.isEmpty()) {
+            AmountsSnapshot amountsSnapshot = batchAccountService.readAmounts(missedIds);
+            for (Integer id : missedIds) {
+                amounts.put(id, amountsSnapshot.getAmount(id));
+            }
+        }
+        return amounts;
+    }
+
+    /**
+     * Commits dirty balances, offsets and rejected messages of partitions in one transaction.
+     * Partitions, which failed maxFlushFailures flushes in a row, are committed in own
+     * transactions. Flushes are serialized.
+     *
+     * @param partitions partitions to flush.
+     * @return number of flushed accounts.
+     */
+    public int flush(Collection<Integer> partitions) {
+        notNull(partitions);
+        synchronized (flushLock) {
+            AtomicReferenceArray<PartitionTable> tables = partitionTables;
+            if (tables == null) {
+                return 0;
+            }
+            List<Integer> together = new ArrayList<>();
+            List<List<Integer>> groups = new ArrayList<>();
+            groups.add(together);
+            for (Integer partition : partitions) {
+                if (flushFailures[partition] >= maxFlushFailures) {
+                    // one failing partition must not fail flushes of others
+                    groups.add(Collections.singletonList(partition));
+                } else {
+                    together.add(partition);
+                }
+            }
+            int flushedNum = 0;
+            RuntimeException failure = null;
+            for (List<Integer> group : groups) {
+                try {
+                    flushedNum += flush(tables, group);
+                } catch (RuntimeException ex) {
+                    if (failure == null) {
+                        failure = ex;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return flushedNum;
+        }
+    }
+
+    // Commits partitions in one transaction. Called under flush lock.
+    private int flush(AtomicReferenceArray<PartitionTable> tables, List<Integer> partitions) {
+        Map<Integer, PartitionTable> flushingTables = new HashMap<>();
+        Map<Integer, Long> fromOffsets = new HashMap<>();
+        Map<Integer, Long> partitionOffsets = new HashMap<>();
+        AddOperationArray deltas = new AddOperationArray();
+        List<QuarantinedMessage> quarantinedMessages = new ArrayList<>();
+        for (Integer partition : partitions) {
+            PartitionTable partitionTable = tables.get(partition);
+            if (partitionTable == null) {
+                continue;
+            }
+            synchronized (partitionTable) {
+                if (partitionTable.appliedOffset == partitionTable.flushedOffset) {
+                    continue;
+                }
+                // reader looks for balance in dirty, then in flushing balances
+                partitionTable.flushing = partitionTable.dirty;
+                partitionTable.dirty = new ConcurrentHashMap<>();
+                partitionTable.flushingRejectedMessages = partitionTable.rejectedMessages;
+                partitionTable.rejectedMessages = new ArrayList<>();
+                partitionTable.flushingOffset = partitionTable.appliedOffset;
+                dirtyAccountsNum.addAndGet(-partitionTable.flushing.size());
+                for (Map.Entry<Integer, DirtyBalance> balance
+                        : partitionTable.flushing.entrySet()) {
+                    deltas.add(balance.getKey(), balance.getValue().delta);
+                }
+                for (RejectedMessage rejectedMessage
+                        : partitionTable.flushingRejectedMessages) {
+                    quarantinedMessages.add(new QuarantinedMessage(partition,
+                            rejectedMessage.getOffset(), rejectedMessage.getPayload(),
+                            rejectedMessage.getReason()));
+                }
+            }
+            fromOffsets.put(partition, partitionTable.flushedOffset);
+            partitionOffsets.put(partition, partitionTable.flushingOffset);
+            flushingTables.put(partition, partitionTable);
+        }
+        if (flushingTables.isEmpty()) {
+            return 0;
+        }
+        Map<Integer, Account> accountMap;
+        try {
+            accountMap = batchAccountService.addAmounts(deltas, fromOffsets, partitionOffsets,
+                    quarantinedMessages);
+        } catch (RuntimeException ex) {
+            for (Map.Entry<Integer, PartitionTable> flushingTable
+                    : flushingTables.entrySet()) {
+                restore(flushingTable.getValue());
+                int partition = flushingTable.getKey();
+                flushFailures[partition]++;
+                if (flushingTables.size() == 1
+                        && flushFailures[partition] > maxFlushFailures) {
+                    dropFailing(tables, partition);
+                }
+            }
+            failedFlushesNum++;
+            throw ex;
+        }
+        for (Map.Entry<Integer, PartitionTable> flushingTable : flushingTables.entrySet()) {
+            complete(flushingTable.getKey(), flushingTable.getValue(), accountMap);
+            flushFailures[flushingTable.getKey()] = 0;
+        }
+        flushesNum++;
+        flushedAccountsNum += deltas.size();
+        if (!quarantinedMessages.isEmpty()) {
+            logger.warn("Write-behind flush quarantined " + quarantinedMessages.size()
+                    + " messages");
+        }
+        return deltas.size();
+    }
+
+    // Caches committed balances, then drops flushing ones.
+    private void complete(int partition, PartitionTable partitionTable,
+            Map<Integer, Account> accountMap) {
+        synchronized (partitionTable) {
+            balanceCache.advanceWatermark(partition, partitionTable.flushingOffset);
+            for (Map.Entry<Integer, DirtyBalance> balance : partitionTable.flushing.entrySet()) {
+                Account account = accountMap.get(balance.getKey());
+                if (account == null) {
+                    continue;
+                }
+                balanceCache.putIfNewer(account.getId(), account.getAmount(),
+                        partitionTable.flushingOffset);
+                // committed balance corrects table, if database was changed besides table
+                DirtyBalance dirty = partitionTable.dirty.get(balance.getKey());
+                if (dirty != null) {
+                    dirty.amount += account.getAmount() - balance.getValue().amount;
+                }
+            }
+            partitionTable.flushedOffset = partitionTable.flushingOffset;
+            partitionTable.flushing = Collections.emptyMap();
+            partitionTable.flushingRejectedMessages = Collections.emptyList();
+        }
+    }
+
+    // Returns deltas and rejected messages of failed flush to dirty ones.
+    private void restore(PartitionTable partitionTable) {
+        synchronized (partitionTable) {
+            for (Map.Entry<Integer, DirtyBalance> balance : partitionTable.flushing.entrySet()) {
+                DirtyBalance dirty = partitionTable.dirty.get(balance.getKey());
+                if (dirty == null) {
+                    partitionTable.dirty.put(balance.getKey(), balance.getValue());
+                    dirtyAccountsNum.incrementAndGet();
+                } else {
+                    // dirty balance is newer, only delta is added
+                    dirty.delta += balance.getValue().delta;
+                }
+            }
+            partitionTable.flushingRejectedMessages.addAll(partitionTable.rejectedMessages);
+            partitionTable.rejectedMessages = partitionTable.flushingRejectedMessages;
+            partitionTable.flushing = Collections.emptyMap();
+            partitionTable.flushingRejectedMessages = Collections.emptyList();
+        }
+    }
+
+    // Drops table of partition, which flush fails alone, so its processor commits batches from
+    // flushed offset up to dropped applied offset itself. Called under flush lock.
+    private void dropFailing(AtomicReferenceArray<PartitionTable> tables, int partition) {
+        PartitionTable partitionTable = tables.get(partition);
+        synchronized (partitionTable) {
+            bypassOffsets.set(partition, partitionTable.appliedOffset);
+            staleOffsets.set(partition, 1);
+            logger.error("Write-behind flush of partition " + partition + " failed "
+                    + flushFailures[partition] + " times, partition is committed by processor"
+                    + " from offset " + partitionTable.flushedOffset + " to offset "
+                    + partitionTable.appliedOffset);
+        }
+        drop(tables, partition);
+        flushFailures[partition] = 0;
+        droppedByFailuresNum++;
+    }
+
+    /**
+     * Drops table of partition, which isn't flushed. Partition is replayed from flushed offset
+     * by its processor or by other node.
+     *
+     * @param partition partition number.
+     */
+    public void drop(int partition) {
+        synchronized (flushLock) {
+            AtomicReferenceArray<PartitionTable> tables = partitionTables;
+            if (tables != null) {
+                drop(tables, partition);
+            }
+        }
+    }
+
+    // Called under flush lock.
+    private void drop(AtomicReferenceArray<PartitionTable> tables, int partition) {
+        PartitionTable partitionTable = tables.getAndSet(partition, null);
+        if (partitionTable != null) {
+            synchronized (partitionTable) {
+                partitionTable.dropped = true;
+                dirtyAccountsNum.addAndGet(-partitionTable.dirty.size());
+            }
+        }
+    }
+
+    private PartitionTable getPartitionTable(int partition) {
+        AtomicReferenceArray<PartitionTable> tables = partitionTables;
+        return (tables == null) ? null : tables.get(partition);
+    }
+}
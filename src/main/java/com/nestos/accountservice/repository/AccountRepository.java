@@ -21,4 +21,6 @@ public interface AccountRepository extends CrudRepository<Account, Integer>,
 //            + "ON DUPLICATE KEY UPDATE "
 //            + "amount = amount + ?1", nativeQuery = true)
 //    void addAmount(Integer id, Long value);
+// Single row upserts lock rows in arrival order. Use addAmounts(), which upserts rows of whole
+// batch in ascending id order.
 }
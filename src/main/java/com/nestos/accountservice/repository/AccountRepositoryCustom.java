@@ -1,6 +1,7 @@
 package com.nestos.accountservice.repository;
 
 import com.nestos.accountservice.domain.Account;
+import java.util.Map;
 
 /**
  * This interface intend for add functionality to Account repository. 
@@ -12,4 +13,16 @@ public interface AccountRepositoryCustom {
      * @return instance of Account class.
      */
     Account newAccountInstance();
+
+    /**
+     * Adds deltas to account amounts by set-based upsert, missing accounts are created with
+     * delta amount. Rows are locked in ascending id order, so concurrent upserts can't deadlock.
+     * Runs in current transaction.
+     *
+     * @param ids account ids, ascending and unique.
+     * @param deltas added values, delta of ids[i] is deltas[i].
+     * @param count number of accounts.
+     * @return new amounts. Key - account id, value - amount.
+     */
+    Map<Integer, Long> addAmounts(int[] ids, long[] deltas, int count);
 }
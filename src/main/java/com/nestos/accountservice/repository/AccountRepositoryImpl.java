@@ -1,22 +1,168 @@
-package com.nestos.accountservice.repository;
-
-import com.nestos.accountservice.domain.Account;
-
-/**
- * This class intend for add functionality to Account repository. 
- * @author Roman Osipov.
- */
-public class AccountRepositoryImpl implements AccountRepositoryCustom {
-
-    //-------------------Logger---------------------------------------------------
-
-    //-------------------Constants------------------------------------------------
-    //-------------------Fields---------------------------------------------------
-    //-------------------Constructors---------------------------------------------
-    //-------------------Getters and setters--------------------------------------
-    //-------------------Methods--------------------------------------------------
-    @Override
-    public Account newAccountInstance() {
-        return new Account();
-    }    
-}
+package com.nestos.accountservice.repository;
+
+import com.nestos.accountservice.domain.Account;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import javax.sql.DataSource;
+import static org.apache.commons.lang3.Validate.isTrue;
+import static org.apache.commons.lang3.Validate.notNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+/**
+ * This class intend for add functionality to Account repository. 
+ * <p>
+ * Amounts are added by JDBC multi-row upserts: ON DUPLICATE KEY UPDATE for MySQL, MERGE for
+ * other databases (HSQLDB). Statements have fixed number of rows, so prepared statements are
+ * cached, full statements are sent as one JDBC batch. JDBC template takes connection of
+ * current JPA transaction, so upsert commits together with partition offset.
+ * @author Roman Osipov.
+ */
+public class AccountRepositoryImpl implements AccountRepositoryCustom {
+
+    //-------------------Logger---------------------------------------------------
+
+    //-------------------Constants------------------------------------------------
+    // Number of rows in one upsert or select statement.
+    public static final int ROWS_PER_STATEMENT = 100;
+    public static final String IDS_NPE_MESSAGE = "ids can't be null.";
+    public static final String DELTAS_NPE_MESSAGE = "deltas can't be null.";
+    public static final String COUNT_IAE_MESSAGE = "Invalid count.";
+
+    //-------------------Fields---------------------------------------------------
+    private JdbcTemplate jdbcTemplate;
+    // Database kind and statements of full chunks, detected on first use.
+    private volatile boolean mySql;
+    private volatile String fullUpsertSql;
+    private volatile String fullSelectSql;
+
+    //-------------------Constructors---------------------------------------------
+    //-------------------Getters and setters--------------------------------------
+    @Autowired
+    public void setDataSource(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    //-------------------Methods--------------------------------------------------
+    @Override
+    public Account newAccountInstance() {
+        return new Account();
+    }    
+
+    @Override
+    public Map<Integer, Long> addAmounts(final int[] ids, final long[] deltas, int count) {
+        notNull(ids, IDS_NPE_MESSAGE);
+        notNull(deltas, DELTAS_NPE_MESSAGE);
+        isTrue(count >= 0 && count <= ids.length && count <= deltas.length, COUNT_IAE_MESSAGE);
+        Map<Integer, Long> amounts = new HashMap<>(2 * count);
+        if (count == 0) {
+            return amounts;
+        }
+        initStatements();
+        final int fullChunks = count / ROWS_PER_STATEMENT;
+        if (fullChunks > 0) {
+            jdbcTemplate.batchUpdate(fullUpsertSql, new BatchPreparedStatementSetter() {
+
+                @Override
+                public void setValues(PreparedStatement ps, int i) throws SQLException {
+                    setRows(ps, ids, deltas, i * ROWS_PER_STATEMENT, ROWS_PER_STATEMENT);
+                }
+
+                @Override
+                public int getBatchSize() {
+                    return fullChunks;
+                }
+            });
+        }
+        final int tailFrom = fullChunks * ROWS_PER_STATEMENT;
+        final int tailRows = count - tailFrom;
+        if (tailRows > 0) {
+            jdbcTemplate.update(upsertSql(tailRows), new PreparedStatementSetter() {
+
+                @Override
+                public void setValues(PreparedStatement ps) throws SQLException {
+                    setRows(ps, ids, deltas, tailFrom, tailRows);
+                }
+            });
+        }
+        // rows are locked by upsert, so read amounts are amounts of this transaction
+        for (int from = 0; from < count; from += ROWS_PER_STATEMENT) {
+            selectAmounts(ids, from, Math.min(ROWS_PER_STATEMENT, count - from), amounts);
+        }
+        return amounts;
+    }
+
+    private void selectAmounts(final int[] ids, final int from, final int rows,
+            final Map<Integer, Long> amounts) {
+        String sql = (rows == ROWS_PER_STATEMENT) ? fullSelectSql : selectSql(rows);
+        jdbcTemplate.query(sql, new PreparedStatementSetter() {
+
+            @Override
+            public void setValues(PreparedStatement ps) throws SQLException {
+                for (int i = 0; i < rows; i++) {
+                    ps.setInt(i + 1, ids[from + i]);
+                }
+            }
+        }, new RowCallbackHandler() {
+
+            @Override
+            public void processRow(ResultSet rs) throws SQLException {
+                amounts.put(rs.getInt(1), rs.getLong(2));
+            }
+        });
+    }
+
+    private static void setRows(PreparedStatement ps, int[] ids, long[] deltas, int from,
+            int rows) throws SQLException {
+        for (int i = 0; i < rows; i++) {
+            ps.setInt(2 * i + 1, ids[from + i]);
+            ps.setLong(2 * i + 2, deltas[from + i]);
+        }
+    }
+
+    private void initStatements() {
+        if (fullSelectSql != null) {
+            return;
+        }
+        mySql = DatabaseProduct.isMySql(jdbcTemplate.getDataSource());
+        fullUpsertSql = upsertSql(ROWS_PER_STATEMENT);
+        fullSelectSql = selectSql(ROWS_PER_STATEMENT);
+    }
+
+    private String upsertSql(int rows) {
+        StringBuilder sql = new StringBuilder();
+        if (mySql) {
+            sql.append("INSERT INTO Account (id, amount) VALUES ");
+            appendRows(sql, "(?, ?)", rows);
+            sql.append(" ON DUPLICATE KEY UPDATE amount = amount + VALUES(amount)");
+        } else {
+            sql.append("MERGE INTO Account a USING (VALUES ");
+            appendRows(sql, "(CAST(? AS INT), CAST(? AS BIGINT))", rows);
+            sql.append(") AS v (id, amount) ON a.id = v.id")
+                    .append(" WHEN MATCHED THEN UPDATE SET a.amount = a.amount + v.amount")
+                    .append(" WHEN NOT MATCHED THEN INSERT (id, amount) VALUES (v.id, v.amount)");
+        }
+        return sql.toString();
+    }
+
+    private static String selectSql(int rows) {
+        StringBuilder sql = new StringBuilder("SELECT id, amount FROM Account WHERE id IN (");
+        appendRows(sql, "?", rows);
+        return sql.append(")").toString();
+    }
+
+    private static void appendRows(StringBuilder sql, String row, int rows) {
+        for (int i = 0; i < rows; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(row);
+        }
+    }
+}
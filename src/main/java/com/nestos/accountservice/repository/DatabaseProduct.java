@@ -0,0 +1,49 @@
+package com.nestos.accountservice.repository;
+
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+import org.springframework.jdbc.support.DatabaseMetaDataCallback;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
+
+/**
+ * Detects database product, so JDBC repositories choose SQL dialect: MySQL or other databases
+ * (HSQLDB).
+ *
+ * @author Roman Osipov
+ */
+final class DatabaseProduct {
+
+    //-------------------Constants------------------------------------------------
+    private static final String MYSQL_PRODUCT_NAME = "MySQL";
+
+    //-------------------Constructors---------------------------------------------
+    private DatabaseProduct() {
+    }
+
+    //-------------------Methods--------------------------------------------------
+    /**
+     * Returns true if data source connects to MySQL.
+     *
+     * @param dataSource data source.
+     * @return true for MySQL.
+     * @throws IllegalStateException if database metadata can't be read.
+     */
+    static boolean isMySql(DataSource dataSource) {
+        try {
+            String productName = (String) JdbcUtils.extractDatabaseMetaData(dataSource,
+                    new DatabaseMetaDataCallback() {
+
+                        @Override
+                        public Object processMetaData(DatabaseMetaData dbmd)
+                                throws SQLException {
+                            return dbmd.getDatabaseProductName();
+                        }
+                    });
+            return productName.startsWith(MYSQL_PRODUCT_NAME);
+        } catch (MetaDataAccessException ex) {
+            throw new IllegalStateException("Can't detect database product.", ex);
+        }
+    }
+}
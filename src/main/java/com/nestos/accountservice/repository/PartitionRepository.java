@@ -7,7 +7,8 @@ import org.springframework.data.repository.CrudRepository;
  * Repository for Partition. Uses Spring Data.
  * @author Roman Osipov.
  */
-public interface PartitionRepository  extends CrudRepository<Partition, Integer>{
+public interface PartitionRepository  extends CrudRepository<Partition, Integer>,
+        PartitionRepositoryCustom {
   //-------------------Logger---------------------------------------------------
 
   //-------------------Constants------------------------------------------------
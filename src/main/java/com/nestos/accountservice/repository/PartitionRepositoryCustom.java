@@ -0,0 +1,24 @@
+package com.nestos.accountservice.repository;
+
+import java.util.Map;
+
+/**
+ * This interface intend for add functionality to Partition repository.
+ *
+ * @author Roman Osipov.
+ */
+public interface PartitionRepositoryCustom {
+
+    /**
+     * Saves partition offsets by conditional JDBC updates in ascending partition order. Offset
+     * is saved only if partition is still at expected start offset, missing partition is
+     * created, if it's expected at offset 0. Partition entities aren't loaded, merged and
+     * dirty-checked. Runs in current transaction.
+     *
+     * @param fromOffsets expected start offsets. Key - partition id, value - offset.
+     * @param partitionOffsets offsets. Key - partition id, value - offset.
+     * @throws org.springframework.dao.OptimisticLockingFailureException if some partition
+     * isn't at its expected start offset.
+     */
+    void saveOffsets(Map<Integer, Long> fromOffsets, Map<Integer, Long> partitionOffsets);
+}
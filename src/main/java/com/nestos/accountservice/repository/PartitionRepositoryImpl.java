@@ -0,0 +1,101 @@
+package com.nestos.accountservice.repository;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.sql.DataSource;
+import static org.apache.commons.lang3.Validate.isTrue;
+import static org.apache.commons.lang3.Validate.notNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * This class intend for add functionality to Partition repository.
+ * <p>
+ * Offsets are saved by conditional JDBC updates, sent as one JDBC batch: row is updated only
+ * if it still holds expected start offset, so commit of pull, which lost partition to other
+ * node, fails instead of moving offset back. Missing partition is inserted, if it's expected
+ * at offset 0. JDBC template takes connection of current JPA transaction, so offsets commit
+ * together with account upserts, and persistence context of transaction stays empty.
+ *
+ * @author Roman Osipov.
+ */
+public class PartitionRepositoryImpl implements PartitionRepositoryCustom {
+
+    //-------------------Logger---------------------------------------------------
+    //-------------------Constants------------------------------------------------
+    public static final String PARTITION_OFFSETS_NPE_MESSAGE
+            = "partitionOffsets can't be null.";
+    public static final String FROM_OFFSETS_NPE_MESSAGE = "fromOffsets can't be null.";
+    public static final String FROM_OFFSETS_IAE_MESSAGE
+            = "fromOffsets must have offset of each saved partition.";
+    public static final String OFFSET_CONFLICT_MESSAGE
+            = "Offset was moved by other commit, partition ";
+    private static final String UPDATE_SQL
+            = "UPDATE kafkapartition SET offset = ? WHERE id = ? AND offset = ?";
+    private static final String INSERT_SQL
+            = "INSERT INTO kafkapartition (id, offset) VALUES (?, ?)";
+
+    //-------------------Fields---------------------------------------------------
+    private JdbcTemplate jdbcTemplate;
+
+    //-------------------Constructors---------------------------------------------
+    //-------------------Getters and setters--------------------------------------
+    @Autowired
+    public void setDataSource(DataSource dataSource) {
+        this.jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    //-------------------Methods--------------------------------------------------
+    @Override
+    public void saveOffsets(final Map<Integer, Long> fromOffsets,
+            Map<Integer, Long> partitionOffsets) {
+        notNull(fromOffsets, FROM_OFFSETS_NPE_MESSAGE);
+        notNull(partitionOffsets, PARTITION_OFFSETS_NPE_MESSAGE);
+        isTrue(fromOffsets.keySet().containsAll(partitionOffsets.keySet()),
+                FROM_OFFSETS_IAE_MESSAGE);
+        if (partitionOffsets.isEmpty()) {
+            return;
+        }
+        // rows are locked in ascending partition order, so group commits can't deadlock
+        final List<Map.Entry<Integer, Long>> offsets
+                = new ArrayList<>(new TreeMap<>(partitionOffsets).entrySet());
+        int[] counts = jdbcTemplate.batchUpdate(UPDATE_SQL, new BatchPreparedStatementSetter() {
+
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                ps.setLong(1, offsets.get(i).getValue());
+                ps.setInt(2, offsets.get(i).getKey());
+                ps.setLong(3, fromOffsets.get(offsets.get(i).getKey()));
+            }
+
+            @Override
+            public int getBatchSize() {
+                return offsets.size();
+            }
+        });
+        for (int i = 0; i < offsets.size(); i++) {
+            if (counts[i] != 0) {
+                continue;
+            }
+            int partitionId = offsets.get(i).getKey();
+            if (fromOffsets.get(partitionId) != 0) {
+                throw new OptimisticLockingFailureException(OFFSET_CONFLICT_MESSAGE
+                        + partitionId);
+            }
+            try {
+                jdbcTemplate.update(INSERT_SQL, partitionId, offsets.get(i).getValue());
+            } catch (DuplicateKeyException ex) {
+                // partition was created by other commit
+                throw new OptimisticLockingFailureException(OFFSET_CONFLICT_MESSAGE
+                        + partitionId, ex);
+            }
+        }
+    }
+}
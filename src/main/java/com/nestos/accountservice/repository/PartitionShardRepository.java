@@ -0,0 +1,21 @@
+package com.nestos.accountservice.repository;
+
+import com.nestos.accountservice.domain.PartitionShard;
+import java.util.List;
+import org.springframework.data.repository.CrudRepository;
+
+/**
+ * Repository for partition shard offsets. Uses Spring Data.
+ * @author Roman Osipov.
+ */
+public interface PartitionShardRepository
+        extends CrudRepository<PartitionShard, PartitionShard.Key> {
+  //-------------------Logger---------------------------------------------------
+
+  //-------------------Constants------------------------------------------------
+  //-------------------Fields---------------------------------------------------
+  //-------------------Constructors---------------------------------------------
+  //-------------------Getters and setters--------------------------------------
+  //-------------------Methods--------------------------------------------------
+  List<PartitionShard> findByPartitionId(Integer partitionId);
+}
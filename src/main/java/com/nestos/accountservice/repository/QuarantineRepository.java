@@ -0,0 +1,19 @@
+package com.nestos.accountservice.repository;
+
+import com.nestos.accountservice.domain.QuarantinedMessage;
+import org.springframework.data.repository.PagingAndSortingRepository;
+
+/**
+ * Repository for quarantined messages. Uses Spring Data.
+ * @author Roman Osipov.
+ */
+public interface QuarantineRepository
+        extends PagingAndSortingRepository<QuarantinedMessage, Long> {
+  //-------------------Logger---------------------------------------------------
+
+  //-------------------Constants------------------------------------------------
+  //-------------------Fields---------------------------------------------------
+  //-------------------Constructors---------------------------------------------
+  //-------------------Getters and setters--------------------------------------
+  //-------------------Methods--------------------------------------------------
+}
@@ -21,4 +21,31 @@ public interface AccountService {
      * @param value positive or negative value, which must be added to current balance.
      */
     void addAmount(Integer id, Long value);
+
+    /**
+     * Increases balance or set if addAmount() method was called first time. Returns without
+     * waiting for operation to be durably stored, result is reported to callback.
+     *
+     * @param id balance identifier.
+     * @param value positive or negative value, which must be added to current balance.
+     * @param callback exported remote callback, which receives operation result.
+     */
+    void addAmountAsync(Integer id, Long value, AddAmountCallback callback);
+
+    /**
+     * Retrieves current balances of several accounts in one call.
+     *
+     * @param ids balance identifiers.
+     * @return current balances in order of ids, zero for balances not added before.
+     */
+    long[] getAmounts(int[] ids);
+
+    /**
+     * Increases several balances in one call. ids[i] balance is increased by values[i].
+     * Returns when all operations are durably stored.
+     *
+     * @param ids balance identifiers.
+     * @param values positive or negative values, must have the same length as ids.
+     */
+    void addAmounts(int[] ids, long[] values);
 }
@@ -0,0 +1,32 @@
+package com.nestos.accountservice.service;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Remote callback of asynchronous addAmount operation. Client must export implementation as
+ * RMI remote object, for example by UnicastRemoteObject.exportObject(callback, 0).
+ *
+ * @author Roman Osipov
+ */
+public interface AddAmountCallback extends Remote {
+
+    /**
+     * Invoked when operation is durably stored and will be applied to balance.
+     *
+     * @param id balance identifier.
+     * @param value value, which was passed to addAmountAsync().
+     * @throws RemoteException if remote communication fails.
+     */
+    void onSuccess(Integer id, Long value) throws RemoteException;
+
+    /**
+     * Invoked when operation can't be stored. Balance is not changed.
+     *
+     * @param id balance identifier.
+     * @param value value, which was passed to addAmountAsync().
+     * @param message failure description.
+     * @throws RemoteException if remote communication fails.
+     */
+    void onFailure(Integer id, Long value, String message) throws RemoteException;
+}
@@ -0,0 +1,19 @@
+package com.nestos.accountservice.service;
+
+import org.springframework.util.concurrent.ListenableFuture;
+
+/**
+ * Account service with asynchronous operations for in-process callers.
+ * @author Roman Osipov
+ */
+public interface AsyncAccountService extends AccountService {
+
+    /**
+     * Increases balance or set if addAmount() method was called first time. Does not block.
+     *
+     * @param id balance identifier.
+     * @param value positive or negative value, which must be added to current balance.
+     * @return future, which completes when operation is durably stored.
+     */
+    ListenableFuture<Void> addAmountAsync(Integer id, Long value);
+}
@@ -2,8 +2,12 @@ package com.nestos.accountservice.service;
 
 import com.nestos.accountservice.domain.Account;
 import com.nestos.accountservice.domain.AddOperation;
+import com.nestos.accountservice.domain.AddOperationArray;
+import com.nestos.accountservice.domain.AmountsSnapshot;
+import com.nestos.accountservice.domain.QuarantinedMessage;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Interface for account service batch processing.
@@ -13,13 +17,78 @@ import java.util.Map;
 public interface BatchAccountService {
 
     /**
-     * Account service batch operation. 
+     * Account service batch operation. Batch is committed only if partition is still at
+     * offset, which batch starts from.
      *
      * @param addOperations list of add operations.
      * @param partitionId kafka working partition.
+     * @param fromOffset partition offset, which batch starts from.
      * @param lastReadedOffset  partition last read offset.
      * @return map of updated accounts. Key - account id, value - updated account.
+     * @throws org.springframework.dao.OptimisticLockingFailureException if partition offset
+     * was moved by other commit.
      */
     public Map<Integer, Account> addAmounts(List<AddOperation> addOperations, int partitionId,
-            long lastReadedOffset);
+            long fromOffset, long lastReadedOffset);
+
+    /**
+     * Account service batch operation over primitive operation array, which also stores
+     * quarantined messages of batch. Batch is committed only if partition is still at offset,
+     * which batch starts from.
+     *
+     * @param addOperations array of add operations.
+     * @param partitionId kafka working partition.
+     * @param fromOffset partition offset, which batch starts from.
+     * @param lastReadedOffset  partition last read offset.
+     * @param quarantinedMessages messages skipped by this commit.
+     * @return map of updated accounts. Key - account id, value - updated account.
+     * @throws org.springframework.dao.OptimisticLockingFailureException if partition offset
+     * was moved by other commit.
+     */
+    public Map<Integer, Account> addAmounts(AddOperationArray addOperations, int partitionId,
+            long fromOffset, long lastReadedOffset, List<QuarantinedMessage> quarantinedMessages);
+
+    /**
+     * Account service batch operation, which commits operations of several partitions
+     * together with their offsets and quarantined messages. Operations are committed only if
+     * each partition is still at offset, which its operations start from.
+     *
+     * @param addOperations array of add operations.
+     * @param fromOffsets partition offsets, which operations start from. Key - partition id,
+     * value - offset.
+     * @param partitionOffsets partition last read offsets. Key - partition id, value - offset.
+     * @param quarantinedMessages messages skipped by this commit.
+     * @return map of updated accounts. Key - account id, value - updated account.
+     * @throws org.springframework.dao.OptimisticLockingFailureException if offset of some
+     * partition was moved by other commit.
+     */
+    public Map<Integer, Account> addAmounts(AddOperationArray addOperations,
+            Map<Integer, Long> fromOffsets, Map<Integer, Long> partitionOffsets,
+            List<QuarantinedMessage> quarantinedMessages);
+
+    /**
+     * Reads the nearest offset, which some account shards of partition are applied up to
+     * ahead of partition offset by failed parallel apply. Shards may be ahead at different
+     * offsets, so it's read again after each commit, while shards are ahead.
+     *
+     * @param partitionId kafka working partition.
+     * @return the lowest offset of ahead shards, -1 if no shard is ahead.
+     */
+    public long readShardsOffset(int partitionId);
+
+    /**
+     * Applies operations of quarantined message and removes it from quarantine.
+     *
+     * @param id quarantined message id.
+     * @return map of updated accounts. Key - account id, value - updated account.
+     */
+    public Map<Integer, Account> replayQuarantined(long id);
+
+    /**
+     * Reads account balances together with partition offsets, which balances reflect.
+     *
+     * @param ids account ids.
+     * @return balances and partition offsets.
+     */
+    public AmountsSnapshot readAmounts(Set<Integer> ids);
 }
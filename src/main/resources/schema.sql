@@ -7,4 +7,19 @@ CREATE TABLE kafkapartition (
 	id INT NOT NULL,
 	offset BIGINT NOT NULL,
 	PRIMARY KEY (id)
+);
+CREATE TABLE partitionshard (
+	partitionId INT NOT NULL,
+	shard INT NOT NULL,
+	shardsNum INT NOT NULL,
+	offset BIGINT NOT NULL,
+	PRIMARY KEY (partitionId, shard)
+);
+CREATE TABLE quarantine (
+	id BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+	partitionId INT NOT NULL,
+	messageOffset BIGINT NOT NULL,
+	payload BLOB NOT NULL,
+	reason VARCHAR(1000),
+	quarantineTime BIGINT NOT NULL
 );
\ No newline at end of file
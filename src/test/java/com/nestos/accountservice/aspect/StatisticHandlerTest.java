@@ -1,9 +1,12 @@
 package com.nestos.accountservice.aspect;
 
 import com.nestos.accountservice.domain.Account;
+import com.nestos.accountservice.domain.AmountsSnapshot;
 import com.nestos.accountservice.javaconfig.UnitTestConfig;
 import com.nestos.accountservice.repository.AccountRepository;
 import com.nestos.accountservice.service.AccountService;
+import com.nestos.accountservice.service.BatchAccountService;
+import java.util.Collections;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.spi.LoggerRepository;
@@ -36,6 +39,9 @@ public class StatisticHandlerTest {
     @Autowired
     private AccountRepository mockAccountRepository;
 
+    @Autowired
+    private BatchAccountService mockBatchAccountService;
+
     @Autowired
     private AccountService sutAccountService;
 
@@ -63,11 +69,11 @@ public class StatisticHandlerTest {
     @Test
     public void getMethodInvocationCountShouldReturnTwoForTwoInvocationsGetAmount() {
         // arrange
-        Account stubAccount = new Account();
-        stubAccount.setId(VALID_ID);
-        stubAccount.setAmount(VALID_AMOUNT);
-        when(mockAccountRepository.findOne(VALID_ID))
-                .thenReturn(stubAccount);
+        AmountsSnapshot stubSnapshot = new AmountsSnapshot(
+                Collections.singletonMap(VALID_ID, VALID_AMOUNT),
+                Collections.<Integer, Long>emptyMap());
+        when(mockBatchAccountService.readAmounts(Collections.singleton(VALID_ID)))
+                .thenReturn(stubSnapshot);
         // act
         sutAccountService.getAmount(VALID_ID);
         sutAccountService.getAmount(VALID_ID);
@@ -93,11 +99,11 @@ public class StatisticHandlerTest {
     @Test
     public void getMethodInvocationCountShouldReturnOneForOnceInvocationsGetAndSetAmmount() {
         // arrange
-        Account stubAccount = new Account();
-        stubAccount.setId(VALID_ID);
-        stubAccount.setAmount(VALID_AMOUNT);
-        when(mockAccountRepository.findOne(VALID_ID))
-                .thenReturn(stubAccount);
+        AmountsSnapshot stubSnapshot = new AmountsSnapshot(
+                Collections.singletonMap(VALID_ID, VALID_AMOUNT),
+                Collections.<Integer, Long>emptyMap());
+        when(mockBatchAccountService.readAmounts(Collections.singleton(VALID_ID)))
+                .thenReturn(stubSnapshot);
         // act
         sutAccountService.addAmount(VALID_ID, VALID_INC_AMOUNT);
         sutAccountService.getAmount(VALID_ID);
@@ -126,11 +132,11 @@ public class StatisticHandlerTest {
     @Test
     public void resetShouldResetAllStatistic() {
         // arrange
-        Account stubAccount = new Account();
-        stubAccount.setId(VALID_ID);
-        stubAccount.setAmount(VALID_AMOUNT);
-        when(mockAccountRepository.findOne(VALID_ID))
-                .thenReturn(stubAccount);
+        AmountsSnapshot stubSnapshot = new AmountsSnapshot(
+                Collections.singletonMap(VALID_ID, VALID_AMOUNT),
+                Collections.<Integer, Long>emptyMap());
+        when(mockBatchAccountService.readAmounts(Collections.singleton(VALID_ID)))
+                .thenReturn(stubSnapshot);
         // act
         sutAccountService.addAmount(VALID_ID, VALID_INC_AMOUNT);
         sutAccountService.getAmount(VALID_ID);
@@ -0,0 +1,209 @@
+package com.nestos.accountservice.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.cache.Cache.ValueWrapper;
+
+/**
+ * BalanceCache tests.
+ *
+ * @author Roman Osipov
+ */
+public class BalanceCacheTest {
+
+    //-------------------Constants------------------------------------------------
+    private static final String CACHE_NAME = "testCache";
+    // Multiple of segments number, so each segment holds the same number of entries.
+    private static final int MAX_ENTRIES = 1024;
+    // Number of ids, which fit cache without eviction.
+    private static final int NOT_EVICTED_IDS_NUM = MAX_ENTRIES / 4;
+    private static final int VALID_ID = 47;
+    private static final long VALID_AMOUNT = 113;
+    private static final long VALID_AMOUNT2 = -257;
+    private static final long ABSENT_AMOUNT = Long.MIN_VALUE;
+    private static final long VALID_VERSION = 1000;
+    private static final int VALID_PARTITION = 3;
+
+    //--------------------Fields-----------------------------------------------
+    private BalanceCache sutBalanceCache;
+
+    //-------------------Constructors------------------------------------------
+    public BalanceCacheTest() {
+    }
+
+    //-------------------Methods-----------------------------------------------
+    @Before
+    public void setUp() {
+        sutBalanceCache = new BalanceCache(CACHE_NAME, MAX_ENTRIES, false);
+    }
+
+    @Test
+    public void getShouldReturnPutValue() {
+        // act
+        sutBalanceCache.putAmount(VALID_ID, VALID_AMOUNT);
+        sutBalanceCache.putAmount(VALID_ID + 1, VALID_AMOUNT2);
+        // assert
+        assertEquals(VALID_AMOUNT, sutBalanceCache.getAmount(VALID_ID, ABSENT_AMOUNT));
+        assertEquals(VALID_AMOUNT2, sutBalanceCache.getAmount(VALID_ID + 1, ABSENT_AMOUNT));
+        assertEquals(ABSENT_AMOUNT, sutBalanceCache.getAmount(VALID_ID + 2, ABSENT_AMOUNT));
+        assertEquals(2, sutBalanceCache.getSize());
+    }
+
+    @Test
+    public void putIfAbsentShouldKeepCachedValue() {
+        // arrange
+        sutBalanceCache.put((Integer) VALID_ID, (Long) VALID_AMOUNT);
+        // act
+        ValueWrapper existing = sutBalanceCache.putIfAbsent(VALID_ID, VALID_AMOUNT2);
+        ValueWrapper absent = sutBalanceCache.putIfAbsent(VALID_ID + 1, VALID_AMOUNT2);
+        // assert
+        assertEquals(VALID_AMOUNT, existing.get());
+        assertNull(absent);
+        assertEquals((Long) VALID_AMOUNT, sutBalanceCache.get(VALID_ID, Long.class));
+        assertEquals((Long) VALID_AMOUNT2, sutBalanceCache.get(VALID_ID + 1, Long.class));
+    }
+
+    @Test
+    public void putIfNewerShouldRejectOlderVersion() {
+        // arrange
+        sutBalanceCache.putIfNewer(VALID_ID, VALID_AMOUNT, VALID_VERSION);
+        // act
+        boolean olderPut = sutBalanceCache.putIfNewer(VALID_ID, VALID_AMOUNT2, VALID_VERSION - 1);
+        boolean samePut = sutBalanceCache.putIfNewer(VALID_ID, VALID_AMOUNT2, VALID_VERSION);
+        // assert
+        assertFalse(olderPut);
+        assertFalse(samePut);
+        assertEquals(VALID_AMOUNT, sutBalanceCache.getAmount(VALID_ID, ABSENT_AMOUNT));
+    }
+
+    @Test
+    public void putIfNewerShouldReplaceOlderVersion() {
+        // arrange
+        sutBalanceCache.putIfNewer(VALID_ID, VALID_AMOUNT, VALID_VERSION);
+        // act
+        boolean newerPut = sutBalanceCache.putIfNewer(VALID_ID, VALID_AMOUNT2, VALID_VERSION + 1);
+        boolean absentPut = sutBalanceCache.putIfNewer(VALID_ID + 1, VALID_AMOUNT, 0);
+        // assert
+        assertTrue(newerPut);
+        assertTrue(absentPut);
+        assertEquals(VALID_AMOUNT2, sutBalanceCache.getAmount(VALID_ID, ABSENT_AMOUNT));
+        assertEquals(VALID_AMOUNT, sutBalanceCache.getAmount(VALID_ID + 1, ABSENT_AMOUNT));
+    }
+
+    @Test
+    public void putReadAmountShouldRejectBalanceReadBeforeWatermark() {
+        // arrange
+        sutBalanceCache.advanceWatermark(VALID_PARTITION, VALID_VERSION);
+        sutBalanceCache.putIfNewer(VALID_ID, VALID_AMOUNT, VALID_VERSION);
+        // committed balance is evicted before read balance is cached
+        sutBalanceCache.evictAmount(VALID_ID);
+        // act
+        boolean olderPut = sutBalanceCache.putReadAmount(VALID_PARTITION, VALID_ID,
+                VALID_AMOUNT2, VALID_VERSION - 1);
+        boolean otherPartitionPut = sutBalanceCache.putReadAmount(VALID_PARTITION + 1,
+                VALID_ID + 1, VALID_AMOUNT2, VALID_VERSION - 1);
+        // assert
+        assertFalse(olderPut);
+        assertTrue(otherPartitionPut);
+        assertEquals(ABSENT_AMOUNT, sutBalanceCache.getAmount(VALID_ID, ABSENT_AMOUNT));
+        assertTrue(sutBalanceCache.putReadAmount(VALID_PARTITION, VALID_ID, VALID_AMOUNT2,
+                VALID_VERSION));
+    }
+
+    @Test
+    public void evictIfShouldRemoveOnlyMatchingEntries() {
+        // arrange
+        for (int id = 0; id < NOT_EVICTED_IDS_NUM; id++) {
+            sutBalanceCache.putAmount(id, id);
+        }
+        // act
+        int evicted = sutBalanceCache.evictIf(new BalanceCache.IdFilter() {
+
+            @Override
+            public boolean matches(int id) {
+                return id % 2 == 0;
+            }
+        });
+        // assert
+        assertEquals(NOT_EVICTED_IDS_NUM / 2, evicted);
+        assertEquals(NOT_EVICTED_IDS_NUM / 2, sutBalanceCache.getSize());
+        for (int id = 0; id < NOT_EVICTED_IDS_NUM; id++) {
+            assertEquals((id % 2 == 0) ? ABSENT_AMOUNT : id,
+                    sutBalanceCache.getAmount(id, ABSENT_AMOUNT));
+        }
+    }
+
+    @Test
+    public void evictShouldKeepOtherEntriesReachable() {
+        // arrange
+        for (int id = 0; id < NOT_EVICTED_IDS_NUM; id++) {
+            sutBalanceCache.putAmount(id, id);
+        }
+        // act
+        for (int id = 0; id < NOT_EVICTED_IDS_NUM; id += 2) {
+            sutBalanceCache.evictAmount(id);
+        }
+        // assert
+        for (int id = 0; id < NOT_EVICTED_IDS_NUM; id++) {
+            long expected = (id % 2 == 0) ? ABSENT_AMOUNT : id;
+            assertEquals(expected, sutBalanceCache.getAmount(id, ABSENT_AMOUNT));
+        }
+        assertEquals(NOT_EVICTED_IDS_NUM / 2, sutBalanceCache.getSize());
+        assertEquals(0, sutBalanceCache.getEvictionCount());
+    }
+
+    @Test
+    public void putShouldEvictEntriesWhenFull() {
+        // arrange
+        BalanceCache offHeapCache = new BalanceCache(CACHE_NAME, MAX_ENTRIES, true);
+        for (int id = 0; id < MAX_ENTRIES; id++) {
+            offHeapCache.putAmount(id, id);
+        }
+        offHeapCache.getAmount(VALID_ID, ABSENT_AMOUNT);
+        // act
+        for (int id = MAX_ENTRIES; id < 3 * MAX_ENTRIES; id++) {
+            offHeapCache.putAmount(id, id);
+        }
+        // assert
+        assertEquals(MAX_ENTRIES, offHeapCache.getSize());
+        assertEquals(2 * MAX_ENTRIES, offHeapCache.getEvictionCount());
+        assertEquals(3 * MAX_ENTRIES - 1,
+                offHeapCache.getAmount(3 * MAX_ENTRIES - 1, ABSENT_AMOUNT));
+    }
+
+    @Test
+    public void clearShouldRemoveAllEntries() {
+        // arrange
+        sutBalanceCache.putAmount(VALID_ID, VALID_AMOUNT);
+        // act
+        sutBalanceCache.clear();
+        // assert
+        assertNull(sutBalanceCache.get((Object) VALID_ID));
+        assertEquals(0, sutBalanceCache.getSize());
+    }
+
+    @Test
+    public void putShouldThrowExceptionForNotLongValue() {
+        try {
+            sutBalanceCache.put((Integer) VALID_ID, (Object) "value");
+            fail("put pass with not Long value.");
+        } catch (IllegalArgumentException e) {
+            assertEquals(BalanceCache.VALUE_IAE_MESSAGE, e.getMessage());
+        }
+    }
+
+    @Test
+    public void getShouldThrowExceptionForNegativeKey() {
+        try {
+            sutBalanceCache.getAmount(-1, ABSENT_AMOUNT);
+            fail("get pass with negative key.");
+        } catch (IllegalArgumentException e) {
+            assertEquals(BalanceCache.KEY_IAE_MESSAGE, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.nestos.accountservice.cache;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * SingleFlightLoader tests.
+ *
+ * @author Roman Osipov
+ */
+public class SingleFlightLoaderTest {
+
+    //-------------------Constants------------------------------------------------
+    private static final int VALID_KEY1 = 47;
+    private static final int VALID_KEY2 = 53;
+    private static final long VALID_VALUE = 113;
+    private static final long SHORT_TIMEOUT_MS = 50;
+    private static final long LONG_TIMEOUT_MS = 60000;
+    private static final long WAIT_MS = 5000;
+
+    //--------------------Fields-----------------------------------------------
+    private SingleFlightLoader<Integer, Long> sutLoader;
+
+    private ExecutorService executorService;
+
+    // Blocks load until released.
+    private CountDownLatch loadLatch;
+
+    private CountDownLatch loadStartedLatch;
+
+    private AtomicInteger loadCount;
+
+    private Callable<Long> stubLoader;
+
+    //-------------------Constructors------------------------------------------
+    public SingleFlightLoaderTest() {
+    }
+
+    //-------------------Methods-----------------------------------------------
+    @Before
+    public void setUp() {
+        sutLoader = new SingleFlightLoader<>(1);
+        sutLoader.setTimeoutMs(LONG_TIMEOUT_MS);
+        executorService = Executors.newCachedThreadPool();
+        loadLatch = new CountDownLatch(1);
+        loadStartedLatch = new CountDownLatch(1);
+        loadCount = new AtomicInteger();
+        stubLoader = new Callable<Long>() {
+
+            @Override
+            public Long call() throws Exception {
+                loadCount.incrementAndGet();
+                loadStartedLatch.countDown();
+                loadLatch.await();
+                return VALID_VALUE;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        loadLatch.countDown();
+        executorService.shutdownNow();
+    }
+
+    @Test
+    public void concurrentLoadsOfKeyShouldBeCollapsed() throws Exception {
+        // arrange
+        Future<Long> result1 = submitLoad(VALID_KEY1);
+        loadStartedLatch.await(WAIT_MS, TimeUnit.MILLISECONDS);
+        Future<Long> result2 = submitLoad(VALID_KEY1);
+        waitCollapsed(1);
+        // act
+        loadLatch.countDown();
+        // assert
+        assertEquals(VALID_VALUE, (long) result1.get(WAIT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(VALID_VALUE, (long) result2.get(WAIT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, loadCount.get());
+        assertEquals(1, sutLoader.getLoadCount());
+        assertEquals(0, sutLoader.getActiveLoads());
+    }
+
+    @Test
+    public void loadShouldFailIfNoLoadSlotWithinTimeout() throws Exception {
+        // arrange
+        submitLoad(VALID_KEY1);
+        loadStartedLatch.await(WAIT_MS, TimeUnit.MILLISECONDS);
+        sutLoader.setTimeoutMs(SHORT_TIMEOUT_MS);
+        // act
+        try {
+            sutLoader.load(VALID_KEY2, stubLoader);
+            fail("load pass without free load slot.");
+        } catch (RuntimeException e) {
+            // assert
+            assertEquals(SingleFlightLoader.TIMEOUT_MESSAGE, e.getMessage());
+        }
+        assertEquals(1, sutLoader.getTimeoutCount());
+    }
+
+    @Test
+    public void loadFailureShouldBeReportedToCollapsedCallers() throws Exception {
+        // arrange
+        final RuntimeException loadException = new IllegalStateException();
+        stubLoader = new Callable<Long>() {
+
+            @Override
+            public Long call() throws Exception {
+                loadStartedLatch.countDown();
+                loadLatch.await();
+                throw loadException;
+            }
+        };
+        Future<Long> result1 = submitLoad(VALID_KEY1);
+        loadStartedLatch.await(WAIT_MS, TimeUnit.MILLISECONDS);
+        Future<Long> result2 = submitLoad(VALID_KEY1);
+        waitCollapsed(1);
+        // act
+        loadLatch.countDown();
+        // assert
+        for (Future<Long> result : Arrays.asList(result1, result2)) {
+            try {
+                result.get(WAIT_MS, TimeUnit.MILLISECONDS);
+                fail("load pass after loader failure.");
+            } catch (ExecutionException e) {
+                assertEquals(loadException, e.getCause());
+            }
+        }
+    }
+
+    private Future<Long> submitLoad(final int key) {
+        return executorService.submit(new Callable<Long>() {
+
+            @Override
+            public Long call() throws Exception {
+                return sutLoader.load(key, stubLoader);
+            }
+        });
+    }
+
+    private void waitCollapsed(long collapsedCount) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (sutLoader.getCollapsedCount() < collapsedCount
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(collapsedCount, sutLoader.getCollapsedCount());
+    }
+}
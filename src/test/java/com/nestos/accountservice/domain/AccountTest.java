@@ -60,4 +60,19 @@ public class AccountTest {
         }
     }
 
+    @Test
+    public void accountsWithEqualFieldsShouldBeEqual() {
+        Account sutAccount = new Account();
+        sutAccount.setId(POSITIVE_INT_VALUE);
+        sutAccount.setAmount(POSITIVE_LONG_VALUE);
+        Account account = new Account();
+        account.setId(POSITIVE_INT_VALUE);
+        account.setAmount(POSITIVE_LONG_VALUE);
+        assertEquals(account, sutAccount);
+        assertEquals(account.hashCode(), sutAccount.hashCode());
+        account.setAmount(POSITIVE_LONG_VALUE + 1);
+        assertFalse("Accounts with different amounts are equal.", sutAccount.equals(account));
+        assertFalse("Account is equal to null.", sutAccount.equals(null));
+    }
+
 }
@@ -0,0 +1,66 @@
+package com.nestos.accountservice.domain;
+
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * AddOperationArray tests.
+ *
+ * @author Roman Osipov
+ */
+public class AddOperationArrayTest {
+
+    //-------------------Constants------------------------------------------------
+    private static final int OPERATIONS_NUM = 3 * AddOperationArray.DEFAULT_CAPACITY;
+    private static final long VALUE = 67;
+
+    //-------------------Constructors------------------------------------------
+    public AddOperationArrayTest() {
+    }
+
+    //-------------------Methods-----------------------------------------------
+    @Test
+    public void arrayShouldGrowAndKeepOperations() {
+        // arrange
+        AddOperationArray sutArray = new AddOperationArray(0);
+        // act
+        for (int i = 0; i < OPERATIONS_NUM; i++) {
+            sutArray.add(i, VALUE + i);
+        }
+        // assert
+        assertEquals(OPERATIONS_NUM, sutArray.size());
+        for (int i = 0; i < OPERATIONS_NUM; i++) {
+            assertEquals(i, sutArray.getId(i));
+            assertEquals(VALUE + i, sutArray.getValue(i));
+        }
+    }
+
+    @Test
+    public void clearedArrayShouldBeRefilled() {
+        // arrange
+        AddOperationArray sutArray = AddOperationArray.of(Arrays.asList(
+                new AddOperation(1, VALUE), new AddOperation(2, VALUE)));
+        // act
+        sutArray.clear();
+        sutArray.add(3, -VALUE);
+        // assert
+        assertEquals(Arrays.asList(new AddOperation(3, -VALUE)), sutArray.asList());
+    }
+
+    @Test
+    public void copyOfRangeShouldEqualArrayOfSublist() {
+        // arrange
+        List<AddOperation> addOperations = Arrays.asList(new AddOperation(1, VALUE),
+                new AddOperation(2, VALUE), new AddOperation(3, VALUE));
+        AddOperationArray sutArray = AddOperationArray.of(addOperations);
+        // act
+        AddOperationArray copy = sutArray.copyOfRange(1, 3);
+        sutArray.clear();
+        // assert
+        assertEquals(AddOperationArray.of(addOperations.subList(1, 3)), copy);
+        assertTrue(sutArray.isEmpty());
+    }
+}
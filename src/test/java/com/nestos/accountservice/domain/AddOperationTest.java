@@ -1,5 +1,10 @@
 package com.nestos.accountservice.domain;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.lang3.SerializationUtils;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -32,4 +37,106 @@ public class AddOperationTest {
             assertEquals(AddOperation.ID_IAE_MESSAGE, e.getMessage());
         }
     }
+
+    @Test
+    public void binaryEncodingShouldBeDecodable() {
+        AddOperation addOperation = new AddOperation(VALID_ID, VALUE);
+        byte[] data = addOperation.toByteArray();
+        assertEquals("Wrong binary size.", AddOperation.BINARY_SIZE, data.length);
+        assertEquals(addOperation, AddOperation.valueOf(data));
+    }
+
+    @Test
+    public void serializedEncodingShouldBeDecodable() {
+        AddOperation addOperation = new AddOperation(VALID_ID, VALUE);
+        byte[] data = addOperation.toByteArray(AddOperation.WireFormat.SERIALIZED);
+        assertArrayEquals(SerializationUtils.serialize(addOperation), data);
+        assertEquals(addOperation, AddOperation.valueOf(data));
+    }
+
+    @Test
+    public void valueOfShouldDecodeFromBufferPositionWithoutChangingIt() {
+        AddOperation addOperation = new AddOperation(VALID_ID, VALUE);
+        ByteBuffer buffer = ByteBuffer.allocate(AddOperation.BINARY_SIZE + 3);
+        buffer.position(3);
+        addOperation.writeTo(buffer);
+        buffer.position(3);
+        assertEquals(addOperation, AddOperation.valueOf(buffer));
+        assertEquals("Buffer position changed.", 3, buffer.position());
+    }
+
+    @Test
+    public void envelopeShouldBeDecodable() {
+        List<AddOperation> addOperations = Arrays.asList(new AddOperation(VALID_ID, VALUE),
+                new AddOperation(VALID_ID + 1, -VALUE), new AddOperation(VALID_ID, VALUE + 1));
+        ByteBuffer buffer = ByteBuffer.allocate(AddOperation.envelopeSize(2));
+        AddOperation.writeEnvelope(addOperations, 1, 3, buffer);
+        assertFalse("Envelope size mismatch.", buffer.hasRemaining());
+        buffer.flip();
+        List<AddOperation> decoded = new ArrayList<>();
+        AddOperation.decodeAll(buffer, decoded);
+        assertEquals(addOperations.subList(1, 3), decoded);
+    }
+
+    @Test
+    public void decodeAllShouldDecodeSingleRecord() {
+        AddOperation addOperation = new AddOperation(VALID_ID, VALUE);
+        List<AddOperation> decoded = new ArrayList<>();
+        AddOperation.decodeAll(ByteBuffer.wrap(addOperation.toByteArray()), decoded);
+        assertEquals(Arrays.asList(addOperation), decoded);
+    }
+
+    @Test
+    public void decodeAllShouldDecodeRecordsIntoArray() {
+        List<AddOperation> addOperations = Arrays.asList(new AddOperation(VALID_ID, VALUE),
+                new AddOperation(VALID_ID + 1, -VALUE));
+        ByteBuffer buffer = ByteBuffer.allocate(AddOperation.envelopeSize(2));
+        AddOperation.writeEnvelope(AddOperationArray.of(addOperations), buffer);
+        buffer.flip();
+        AddOperationArray decoded = new AddOperationArray(1);
+        AddOperation.decodeAll(buffer, decoded);
+        AddOperation addOperation = new AddOperation(VALID_ID + 2, VALUE);
+        AddOperation.decodeAll(ByteBuffer.wrap(addOperation.toByteArray()), decoded);
+        AddOperation.decodeAll(ByteBuffer.wrap(
+                addOperation.toByteArray(AddOperation.WireFormat.SERIALIZED)), decoded);
+        List<AddOperation> expected = new ArrayList<>(addOperations);
+        expected.add(addOperation);
+        expected.add(addOperation);
+        assertEquals(expected, decoded.asList());
+    }
+
+    @Test
+    public void decodeAllShouldThrowExceptionForTruncatedEnvelope() {
+        List<AddOperation> addOperations = Arrays.asList(new AddOperation(VALID_ID, VALUE));
+        ByteBuffer buffer = ByteBuffer.allocate(AddOperation.envelopeSize(1));
+        AddOperation.writeEnvelope(addOperations, 0, 1, buffer);
+        buffer.flip();
+        buffer.limit(buffer.limit() - 1);
+        try {
+            AddOperation.decodeAll(buffer, new ArrayList<AddOperation>());
+            fail("decodeAll pass with truncated envelope.");
+        } catch (IllegalArgumentException e) {
+            assertEquals(AddOperation.FORMAT_IAE_MESSAGE, e.getMessage());
+        }
+    }
+
+    @Test
+    public void valueOfShouldThrowExceptionForUnknownFormat() {
+        try {
+            AddOperation.valueOf(new byte[]{0x7F, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+            fail("valueOf pass with unknown format tag.");
+        } catch (IllegalArgumentException e) {
+            assertEquals(AddOperation.FORMAT_IAE_MESSAGE, e.getMessage());
+        }
+    }
+
+    @Test
+    public void valueOfShouldThrowExceptionForTruncatedRecord() {
+        try {
+            AddOperation.valueOf(new byte[]{AddOperation.BINARY_FORMAT_TAG, 0, 0});
+            fail("valueOf pass with truncated record.");
+        } catch (IllegalArgumentException e) {
+            assertEquals(AddOperation.FORMAT_IAE_MESSAGE, e.getMessage());
+        }
+    }
 }
@@ -1,20 +1,24 @@
 package com.nestos.accountservice.javaconfig;
 
 import com.nestos.accountservice.aspect.StatisticHandler;
+import com.nestos.accountservice.cache.BalanceCache;
+import com.nestos.accountservice.cache.SingleFlightLoader;
 import com.nestos.accountservice.jpa.AccountServiceImpl;
+import com.nestos.accountservice.kafka.GroupCommitWriter;
 import com.nestos.accountservice.kafka.KafkaClient;
+import com.nestos.accountservice.processor.PartitionCoordinator;
+import com.nestos.accountservice.processor.WriteBehindTable;
 import com.nestos.accountservice.repository.AccountRepository;
 import com.nestos.accountservice.repository.PartitionRepository;
-import com.nestos.accountservice.service.AccountService;
+import com.nestos.accountservice.service.AsyncAccountService;
 import com.nestos.accountservice.service.BatchAccountService;
+import java.util.Collections;
 import static org.mockito.Mockito.mock;
 import org.springframework.cache.annotation.EnableCaching;
-import org.springframework.cache.ehcache.EhCacheCacheManager;
-import org.springframework.cache.ehcache.EhCacheManagerFactoryBean;
+import org.springframework.cache.support.SimpleCacheManager;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
-import org.springframework.core.io.ClassPathResource;
 
 /**
  * Spring Java configuration file.
@@ -47,27 +51,49 @@ public class UnitTestConfig {
         return mock(KafkaClient.class);
     }
     
+    @Bean
+    public GroupCommitWriter groupCommitWriter() {
+        return mock(GroupCommitWriter.class);
+    }
+
     @Bean
     public AccountRepository accountRepository() {
         return mock(AccountRepository.class);
     }
 
     @Bean
-    public AccountService accountService() {
+    public AsyncAccountService accountService() {
         return new AccountServiceImpl();
     }
 
     @Bean
-    public EhCacheCacheManager cacheManager() {
-        return new EhCacheCacheManager(ehcache().getObject());
+    public SimpleCacheManager cacheManager() {
+        SimpleCacheManager cacheManager = new SimpleCacheManager();
+        cacheManager.setCaches(Collections.singletonList(balanceCache()));
+        return cacheManager;
+    }
+
+    @Bean
+    public BalanceCache balanceCache() {
+        return new BalanceCache(AccountServiceImpl.ACCOUNT_CACHE_NAME,
+                BalanceCache.DEFAULT_MAX_ENTRIES, false);
+    }
+
+    @Bean
+    public SingleFlightLoader<Integer, Long> amountLoader() {
+        return new SingleFlightLoader<>();
+    }
+
+    // Single node coordinator owns all partitions.
+    @Bean
+    public PartitionCoordinator partitionCoordinator() {
+        return new PartitionCoordinator();
     }
 
+    // Write-behind table, which is not started.
     @Bean
-    public EhCacheManagerFactoryBean ehcache() {
-        EhCacheManagerFactoryBean ecf = new EhCacheManagerFactoryBean();
-        ecf.setConfigLocation(new ClassPathResource("service-ehcache.xml"));
-        ecf.setCacheManagerName("accountServiceCacheManager");
-        return ecf;
+    public WriteBehindTable writeBehindTable() {
+        return new WriteBehindTable(batchAccountService(), balanceCache());
     }
 
     @Bean
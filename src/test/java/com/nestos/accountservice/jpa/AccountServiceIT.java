@@ -123,7 +123,7 @@ public class AccountServiceIT {
         LoggerRepository repository = x.getLoggerRepository();
         repository.setThreshold(Level.OFF);
         // kafka setup
-        for (int i = 0; i < KafkaClient.PARTITIONS_NUM; i++) {
+        for (int i = 0; i < kafkaClient.getPartitionsNum(); i++) {
             long offset = kafkaClient.getLastOffset(i);
             Partition partition = new Partition();
             partition.setId(i);
@@ -1,15 +1,24 @@
 package com.nestos.accountservice.jpa;
 
-import com.nestos.accountservice.domain.Account;
 import com.nestos.accountservice.domain.AddOperation;
+import com.nestos.accountservice.domain.AmountsSnapshot;
 import com.nestos.accountservice.javaconfig.UnitTestConfig;
-import com.nestos.accountservice.kafka.KafkaClient;
-import com.nestos.accountservice.repository.AccountRepository;
-import com.nestos.accountservice.service.AccountService;
+import com.nestos.accountservice.kafka.GroupCommitWriter;
+import com.nestos.accountservice.service.AddAmountCallback;
+import com.nestos.accountservice.service.AsyncAccountService;
+import com.nestos.accountservice.service.BatchAccountService;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.spi.LoggerRepository;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Before;
 import org.junit.Test;
@@ -20,6 +29,8 @@ import static org.mockito.Mockito.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.annotation.DirtiesContext.ClassMode;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
 
 /**
  * AccountService tests. This test not true unit test, because depends on Spring container.
@@ -33,17 +44,19 @@ public class AccountServiceImplTest {
 
     private static final int NEGATIVE_INT_VALUE = -43;
     private static final Integer VALID_ID = 47;
+    private static final Integer VALID_ID2 = 53;
     private static final Long VALID_AMOUNT = 113L;
     private static final Long VALID_INC_AMOUNT = 257L;
+    private static final int VERIFY_TIMEOUT_MS = 5000;
 
     @Autowired
-    private AccountRepository mockAccountRepository;
+    private BatchAccountService mockBatchAccountService;
 
     @Autowired
-    private AccountService sutAccountService;
+    private AsyncAccountService sutAccountService;
 
     @Autowired
-    private KafkaClient mockKafkaClient;
+    private GroupCommitWriter mockGroupCommitWriter;
 
     public AccountServiceImplTest() {
     }
@@ -81,41 +94,42 @@ public class AccountServiceImplTest {
     @Test
     public void getAmountShouldReturnZeroForUnknownId() {
         // arrange 
-
+        when(mockBatchAccountService.readAmounts(Collections.singleton(VALID_ID)))
+                .thenReturn(emptySnapshot());
         // act
         Long realAmount = sutAccountService.getAmount(VALID_ID);
         // assert
-        verify(mockAccountRepository, only()).findOne(VALID_ID);
+        verify(mockBatchAccountService, times(1))
+                .readAmounts(Collections.singleton(VALID_ID));
         assertEquals(0, (long) realAmount);
     }
 
     @Test
     public void getAmountShouldRequestRepositoryIfValueNotCached() {
         // arrange 
-        Account stubAccount = new Account();
-        stubAccount.setId(VALID_ID);
-        stubAccount.setAmount(VALID_AMOUNT);
-        when(mockAccountRepository.findOne(VALID_ID)).thenReturn(stubAccount);
+        AmountsSnapshot stubSnapshot = snapshotOf(VALID_ID, VALID_AMOUNT);
+        when(mockBatchAccountService.readAmounts(Collections.singleton(VALID_ID)))
+                .thenReturn(stubSnapshot);
         // act
         Long realAmount = sutAccountService.getAmount(VALID_ID);
         // assert
-        verify(mockAccountRepository, only()).findOne(VALID_ID);
+        verify(mockBatchAccountService, times(1))
+                .readAmounts(Collections.singleton(VALID_ID));
         assertEquals(VALID_AMOUNT, realAmount);
     }
 
     @Test
     public void getAmountShouldGetCachedValueIfInvokeTwice() {
         // arrange
-        Account stubAccount = new Account();
-        stubAccount.setId(VALID_ID);
-        stubAccount.setAmount(VALID_AMOUNT);
-        when(mockAccountRepository.findOne(VALID_ID))
-                .thenReturn(stubAccount);
+        AmountsSnapshot stubSnapshot = snapshotOf(VALID_ID, VALID_AMOUNT);
+        when(mockBatchAccountService.readAmounts(Collections.singleton(VALID_ID)))
+                .thenReturn(stubSnapshot);
         // act
         Long realAmount1 = sutAccountService.getAmount(VALID_ID);
         Long realAmount2 = sutAccountService.getAmount(VALID_ID);
         // assert
-        verify(mockAccountRepository, only()).findOne(VALID_ID);
+        verify(mockBatchAccountService, times(1))
+                .readAmounts(Collections.singleton(VALID_ID));
         assertEquals(VALID_AMOUNT, realAmount1);
         assertEquals(VALID_AMOUNT, realAmount2);
     }
@@ -171,13 +185,159 @@ public class AccountServiceImplTest {
     }
 
     @Test
-    public void addAmountShouldInvokeKafkaWrite() {
+    public void addAmountShouldInvokeGroupCommitWrite() {
         // arrange
         AddOperation stubAddOperation = new AddOperation(VALID_ID, VALID_INC_AMOUNT);
         // act
         sutAccountService.addAmount(VALID_ID, VALID_INC_AMOUNT);
         // assert
-        verify(mockKafkaClient, times(1)).write(stubAddOperation);
+        verify(mockGroupCommitWriter, times(1)).write(stubAddOperation);
+    }
+
+    //---------------getAmounts tests-----------------------------------------
+    @Test
+    public void getAmountsShouldRequestRepositoryOnlyForNotCachedIds() {
+        // arrange
+        AmountsSnapshot stubSnapshot1 = snapshotOf(VALID_ID, VALID_AMOUNT);
+        AmountsSnapshot stubSnapshot2 = snapshotOf(VALID_ID2, VALID_INC_AMOUNT);
+        when(mockBatchAccountService.readAmounts(Collections.singleton(VALID_ID)))
+                .thenReturn(stubSnapshot1);
+        when(mockBatchAccountService.readAmounts(Collections.singleton(VALID_ID2)))
+                .thenReturn(stubSnapshot2);
+        sutAccountService.getAmount(VALID_ID);
+        // act
+        long[] realAmounts = sutAccountService.getAmounts(new int[]{VALID_ID2, VALID_ID});
+        // assert
+        verify(mockBatchAccountService, times(1))
+                .readAmounts(Collections.singleton(VALID_ID2));
+        assertArrayEquals(new long[]{VALID_INC_AMOUNT, VALID_AMOUNT}, realAmounts);
+    }
+
+    @Test
+    public void getAmountsShouldReturnZeroAndCacheUnknownIds() {
+        // arrange
+        int[] ids = new int[]{VALID_ID, VALID_ID2, VALID_ID};
+        when(mockBatchAccountService.readAmounts(anySetOf(Integer.class)))
+                .thenReturn(emptySnapshot());
+        // act
+        long[] realAmounts1 = sutAccountService.getAmounts(ids);
+        long[] realAmounts2 = sutAccountService.getAmounts(ids);
+        // assert
+        verify(mockBatchAccountService, times(1))
+                .readAmounts(new HashSet<>(Arrays.asList(VALID_ID, VALID_ID2)));
+        assertArrayEquals(new long[3], realAmounts1);
+        assertArrayEquals(new long[3], realAmounts2);
+    }
+
+    @Test
+    public void getAmountsShouldThrowExceptionForNegativeId() {
+        try {
+            sutAccountService.getAmounts(new int[]{VALID_ID, NEGATIVE_INT_VALUE});
+            fail("getAmounts pass with negative id argument value.");
+        } catch (IllegalArgumentException e) {
+            assertEquals(AccountServiceImpl.ID_IAE_MESSAGE, e.getMessage());
+        }
+    }
+
+    //---------------addAmounts tests-----------------------------------------
+    @Test
+    public void addAmountsShouldWriteAllOperationsAtOnce() {
+        // act
+        sutAccountService.addAmounts(new int[]{VALID_ID, VALID_ID2},
+                new long[]{VALID_AMOUNT, VALID_INC_AMOUNT});
+        // assert
+        verify(mockGroupCommitWriter, times(1)).writeAll(Arrays.asList(
+                new AddOperation(VALID_ID, VALID_AMOUNT),
+                new AddOperation(VALID_ID2, VALID_INC_AMOUNT)));
+    }
+
+    @Test
+    public void addAmountsShouldThrowExceptionForDifferentLength() {
+        try {
+            sutAccountService.addAmounts(new int[]{VALID_ID, VALID_ID2},
+                    new long[]{VALID_AMOUNT});
+            fail("addAmounts pass with different length of ids and values.");
+        } catch (IllegalArgumentException e) {
+            assertEquals(AccountServiceImpl.LENGTH_IAE_MESSAGE, e.getMessage());
+        }
+        verify(mockGroupCommitWriter, never()).writeAll(anyListOf(AddOperation.class));
+    }
+
+    //---------------addAmountAsync tests-------------------------------------
+    @Test
+    public void addAmountAsyncShouldCompleteWhenOperationIsWritten() {
+        // arrange
+        AddOperation stubAddOperation = new AddOperation(VALID_ID, VALID_INC_AMOUNT);
+        SettableListenableFuture<Void> stubResult = new SettableListenableFuture<>();
+        when(mockGroupCommitWriter.submit(stubAddOperation)).thenReturn(stubResult);
+        // act
+        ListenableFuture<Void> result = sutAccountService.addAmountAsync(VALID_ID,
+                VALID_INC_AMOUNT);
+        // assert
+        assertFalse("Operation completed before write.", result.isDone());
+        stubResult.set(null);
+        assertTrue("Operation not completed after write.", result.isDone());
+    }
+
+    @Test
+    public void addAmountAsyncShouldThrowExceptionForNegativeId() {
+        try {
+            sutAccountService.addAmountAsync(NEGATIVE_INT_VALUE, VALID_AMOUNT);
+            fail("addAmountAsync pass with negative id argument value.");
+        } catch (IllegalArgumentException e) {
+            assertEquals(AccountServiceImpl.ID_IAE_MESSAGE, e.getMessage());
+        }
+    }
+
+    @Test
+    public void addAmountAsyncShouldNotifyCallbackOnSuccess() throws Exception {
+        // arrange
+        AddOperation stubAddOperation = new AddOperation(VALID_ID, VALID_INC_AMOUNT);
+        SettableListenableFuture<Void> stubResult = new SettableListenableFuture<>();
+        when(mockGroupCommitWriter.submit(stubAddOperation)).thenReturn(stubResult);
+        AddAmountCallback mockCallback = mock(AddAmountCallback.class);
+        // act
+        sutAccountService.addAmountAsync(VALID_ID, VALID_INC_AMOUNT, mockCallback);
+        stubResult.set(null);
+        // assert
+        verify(mockCallback, timeout(VERIFY_TIMEOUT_MS)).onSuccess(VALID_ID, VALID_INC_AMOUNT);
+        verify(mockCallback, never()).onFailure(anyInt(), anyLong(), anyString());
+    }
+
+    @Test
+    public void addAmountAsyncShouldNotifyCallbackOnFailure() throws Exception {
+        // arrange
+        AddOperation stubAddOperation = new AddOperation(VALID_ID, VALID_INC_AMOUNT);
+        SettableListenableFuture<Void> stubResult = new SettableListenableFuture<>();
+        when(mockGroupCommitWriter.submit(stubAddOperation)).thenReturn(stubResult);
+        AddAmountCallback mockCallback = mock(AddAmountCallback.class);
+        // act
+        sutAccountService.addAmountAsync(VALID_ID, VALID_INC_AMOUNT, mockCallback);
+        stubResult.setException(new RuntimeException("failure"));
+        // assert
+        verify(mockCallback, timeout(VERIFY_TIMEOUT_MS))
+                .onFailure(VALID_ID, VALID_INC_AMOUNT, "failure");
+        verify(mockCallback, never()).onSuccess(anyInt(), anyLong());
+    }
+
+    @Test
+    public void addAmountAsyncShouldThrowExceptionForNullCallback() {
+        try {
+            sutAccountService.addAmountAsync(VALID_ID, VALID_AMOUNT, null);
+            fail("addAmountAsync pass with null callback argument value.");
+        } catch (NullPointerException e) {
+            assertEquals(AccountServiceImpl.CALLBACK_NPE_MESSAGE, e.getMessage());
+        }
+    }
+
+    private static AmountsSnapshot emptySnapshot() {
+        return new AmountsSnapshot(new HashMap<Integer, Long>(), new HashMap<Integer, Long>());
+    }
+
+    private static AmountsSnapshot snapshotOf(Integer id, Long amount) {
+        Map<Integer, Long> amounts = new HashMap<>();
+        amounts.put(id, amount);
+        return new AmountsSnapshot(amounts, new HashMap<Integer, Long>());
     }
 
     /*
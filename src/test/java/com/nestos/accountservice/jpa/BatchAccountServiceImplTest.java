@@ -0,0 +1,207 @@
+package com.nestos.accountservice.jpa;
+
+import com.nestos.accountservice.domain.Account;
+import com.nestos.accountservice.domain.AddOperation;
+import com.nestos.accountservice.domain.AddOperationArray;
+import com.nestos.accountservice.domain.Partition;
+import com.nestos.accountservice.domain.PartitionShard;
+import com.nestos.accountservice.domain.QuarantinedMessage;
+import com.nestos.accountservice.repository.AccountRepository;
+import com.nestos.accountservice.repository.PartitionRepository;
+import com.nestos.accountservice.repository.PartitionShardRepository;
+import com.nestos.accountservice.repository.QuarantineRepository;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import static org.mockito.AdditionalMatchers.aryEq;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import static org.mockito.Mockito.*;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+
+/**
+ * BatchAccountServiceImpl tests.
+ *
+ * @author Roman Osipov
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class BatchAccountServiceImplTest {
+
+    //-------------------Constants------------------------------------------------
+    private static final int VALID_PARTITION_ID = 3;
+    private static final long VALID_FROM_OFFSET = 41;
+    private static final long VALID_NEXT_OFFSET = 43;
+    private static final int VALID_ACCOUNT_ID1 = 47;
+    private static final int VALID_ACCOUNT_ID2 = 53;
+    private static final long VALID_ACCOUNT_VALUE1 = 67;
+    private static final long VALID_ACCOUNT_VALUE2 = 73;
+
+    //--------------------Mocks------------------------------------------------
+    @Mock
+    private AccountRepository mockAccountRepository;
+
+    @Mock
+    private PartitionRepository mockPartitionRepository;
+
+    @Mock
+    private QuarantineRepository mockQuarantineRepository;
+
+    @Mock
+    private PartitionShardRepository mockPartitionShardRepository;
+
+    @Mock
+    private PlatformTransactionManager mockTransactionManager;
+
+    // accounts 47 and 53 are in shards 0 and 1
+    @Spy
+    private ParallelApplyPool spyParallelApplyPool = new ParallelApplyPool(2, 2);
+
+    @InjectMocks
+    private BatchAccountServiceImpl sutBatchAccountService;
+
+    //-------------------Constructors------------------------------------------
+    public BatchAccountServiceImplTest() {
+    }
+
+    //-------------------Methods-----------------------------------------------
+    @After
+    public void tearDown() throws InterruptedException {
+        spyParallelApplyPool.preDestroy();
+    }
+
+    @Test
+    public void addAmountsShouldUpsertNettedDeltasInIdOrder() {
+        // arrange
+        AddOperationArray addOperations = AddOperationArray.of(Arrays.asList(
+                new AddOperation(VALID_ACCOUNT_ID2, VALID_ACCOUNT_VALUE1),
+                new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE1),
+                new AddOperation(VALID_ACCOUNT_ID2, VALID_ACCOUNT_VALUE2)));
+        Map<Integer, Long> amounts = new HashMap<>();
+        amounts.put(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE1);
+        amounts.put(VALID_ACCOUNT_ID2, VALID_ACCOUNT_VALUE1 + VALID_ACCOUNT_VALUE2);
+        when(mockAccountRepository.addAmounts(any(int[].class), any(long[].class), eq(2)))
+                .thenReturn(amounts);
+        when(mockAccountRepository.newAccountInstance()).thenReturn(new Account(),
+                new Account());
+        // act
+        Map<Integer, Account> accountMap = sutBatchAccountService.addAmounts(
+                addOperations.asList(), VALID_PARTITION_ID, VALID_FROM_OFFSET, VALID_NEXT_OFFSET);
+        // assert
+        verify(mockAccountRepository).addAmounts(
+                aryEq(new int[]{VALID_ACCOUNT_ID1, VALID_ACCOUNT_ID2, 0}),
+                aryEq(new long[]{VALID_ACCOUNT_VALUE1, VALID_ACCOUNT_VALUE1
+                    + VALID_ACCOUNT_VALUE2, 0}), eq(2));
+        verify(mockPartitionRepository, only()).saveOffsets(
+                Collections.singletonMap(VALID_PARTITION_ID, VALID_FROM_OFFSET),
+                Collections.singletonMap(VALID_PARTITION_ID, VALID_NEXT_OFFSET));
+        verifyZeroInteractions(mockQuarantineRepository);
+        assertEquals(2, accountMap.size());
+        for (Map.Entry<Integer, Long> amount : amounts.entrySet()) {
+            assertEquals(amount.getValue(), accountMap.get(amount.getKey()).getAmount());
+        }
+    }
+
+    @Test
+    public void shardedAddAmountsShouldSkipShardsAppliedAheadOfPartition() {
+        // arrange
+        spyParallelApplyPool.setMinAccounts(1);
+        AddOperationArray addOperations = AddOperationArray.of(Arrays.asList(
+                new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE1),
+                new AddOperation(VALID_ACCOUNT_ID2, VALID_ACCOUNT_VALUE2)));
+        // shard 1 was committed by failed apply of this batch
+        when(mockPartitionShardRepository.findByPartitionId(VALID_PARTITION_ID))
+                .thenReturn(Arrays.asList(new PartitionShard(VALID_PARTITION_ID, 0, 2,
+                                        VALID_NEXT_OFFSET - 1),
+                                new PartitionShard(VALID_PARTITION_ID, 1, 2, VALID_NEXT_OFFSET)));
+        when(mockAccountRepository.addAmounts(any(int[].class), any(long[].class), eq(1)))
+                .thenReturn(Collections.singletonMap(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE1));
+        Account account = new Account();
+        account.setId(VALID_ACCOUNT_ID2);
+        account.setAmount(VALID_ACCOUNT_VALUE2);
+        when(mockAccountRepository.findByIdIn(Collections.singleton(VALID_ACCOUNT_ID2)))
+                .thenReturn(Collections.singletonList(account));
+        when(mockAccountRepository.newAccountInstance()).thenReturn(new Account());
+        when(mockPartitionRepository.findOne(VALID_PARTITION_ID))
+                .thenReturn(partition(VALID_FROM_OFFSET));
+        // act
+        Map<Integer, Account> accountMap = sutBatchAccountService.addAmounts(addOperations,
+                VALID_PARTITION_ID, VALID_FROM_OFFSET, VALID_NEXT_OFFSET,
+                Collections.<QuarantinedMessage>emptyList());
+        // assert
+        verify(mockAccountRepository).addAmounts(aryEq(new int[]{VALID_ACCOUNT_ID1}),
+                aryEq(new long[]{VALID_ACCOUNT_VALUE1}), eq(1));
+        verify(mockAccountRepository, times(1)).addAmounts(any(int[].class), any(long[].class),
+                anyInt());
+        verify(mockPartitionShardRepository).save(new PartitionShard(VALID_PARTITION_ID, 0, 2,
+                VALID_NEXT_OFFSET));
+        verify(mockTransactionManager).commit(any(TransactionStatus.class));
+        verify(mockPartitionRepository).saveOffsets(
+                Collections.singletonMap(VALID_PARTITION_ID, VALID_FROM_OFFSET),
+                Collections.singletonMap(VALID_PARTITION_ID, VALID_NEXT_OFFSET));
+        assertEquals(VALID_ACCOUNT_VALUE1, accountMap.get(VALID_ACCOUNT_ID1).getAmount()
+                .longValue());
+        assertEquals(VALID_ACCOUNT_VALUE2, accountMap.get(VALID_ACCOUNT_ID2).getAmount()
+                .longValue());
+    }
+
+    @Test
+    public void readShardsOffsetShouldReturnLowestOffsetOfAheadShards() {
+        // arrange
+        when(mockPartitionRepository.findOne(VALID_PARTITION_ID))
+                .thenReturn(partition(VALID_FROM_OFFSET));
+        // shard 2 isn't ahead, shards 0 and 1 are ahead at different offsets
+        when(mockPartitionShardRepository.findByPartitionId(VALID_PARTITION_ID))
+                .thenReturn(Arrays.asList(
+                                new PartitionShard(VALID_PARTITION_ID, 0, 3, VALID_NEXT_OFFSET + 1),
+                                new PartitionShard(VALID_PARTITION_ID, 1, 3, VALID_NEXT_OFFSET),
+                                new PartitionShard(VALID_PARTITION_ID, 2, 3, VALID_FROM_OFFSET)));
+        // act
+        long shardsOffset = sutBatchAccountService.readShardsOffset(VALID_PARTITION_ID);
+        // assert
+        // batch, which ends there, is covered by both ahead shards
+        assertEquals(VALID_NEXT_OFFSET, shardsOffset);
+    }
+
+    @Test
+    public void shardsOfBatchFromStaleOffsetShouldNotBeApplied() {
+        // arrange
+        spyParallelApplyPool.setMinAccounts(1);
+        AddOperationArray addOperations = AddOperationArray.of(Arrays.asList(
+                new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE1),
+                new AddOperation(VALID_ACCOUNT_ID2, VALID_ACCOUNT_VALUE2)));
+        // other node already committed partition past batch start
+        when(mockPartitionRepository.findOne(VALID_PARTITION_ID))
+                .thenReturn(partition(VALID_NEXT_OFFSET));
+        // act
+        try {
+            sutBatchAccountService.addAmounts(addOperations, VALID_PARTITION_ID,
+                    VALID_FROM_OFFSET, VALID_NEXT_OFFSET,
+                    Collections.<QuarantinedMessage>emptyList());
+            fail("Batch from stale offset must fail.");
+        } catch (OptimisticLockingFailureException ex) {
+            // expected
+        }
+        // assert
+        verify(mockAccountRepository, never()).addAmounts(any(int[].class), any(long[].class),
+                anyInt());
+        verify(mockPartitionShardRepository, never()).save(any(PartitionShard.class));
+        verify(mockPartitionRepository, never()).saveOffsets(anyMap(), anyMap());
+    }
+
+    private static Partition partition(long offset) {
+        Partition partition = new Partition();
+        partition.setId(VALID_PARTITION_ID);
+        partition.setOffset(offset);
+        return partition;
+    }
+}
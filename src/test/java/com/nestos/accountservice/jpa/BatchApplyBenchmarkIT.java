@@ -0,0 +1,317 @@
+package com.nestos.accountservice.jpa;
+
+import com.nestos.accountservice.domain.Account;
+import com.nestos.accountservice.domain.AddOperationArray;
+import com.nestos.accountservice.domain.Partition;
+import com.nestos.accountservice.domain.QuarantinedMessage;
+import com.nestos.accountservice.repository.AccountRepository;
+import com.nestos.accountservice.repository.PartitionRepository;
+import com.nestos.accountservice.service.BatchAccountService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.apache.commons.lang3.builder.HashCodeBuilder;
+import org.apache.log4j.Logger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.ImportResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Benchmark of batch apply. Compares current JDBC upsert of netted deltas with former JPA
+ * path, which loaded touched accounts, modified managed entities and saved them, by average
+ * batch latency on embedded database. Offsets saved by JDBC are compared with merged partition
+ * entities, field-based account equality with reflective one. Kafka server isn't needed.
+ *
+ * @author Roman Osipov
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = BatchApplyBenchmarkIT.BenchmarkConfig.class)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@ActiveProfiles("test")
+public class BatchApplyBenchmarkIT {
+
+    //-------------------Logger---------------------------------------------------
+    private final static Logger logger = Logger.getLogger(BatchApplyBenchmarkIT.class.getName());
+
+    //--------------------Nested classes----------------------------------------
+    // Persistence context with batch service only.
+    @Configuration
+    @ImportResource("classpath:datasource-tx-jpa.xml")
+    public static class BenchmarkConfig {
+
+        @Bean
+        public BatchAccountService batchAccountService() {
+            return new BatchAccountServiceImpl();
+        }
+    }
+
+    private interface Apply {
+
+        void apply(AddOperationArray addOperations, long nextOffset);
+    }
+
+    //--------------------Constants---------------------------------------------
+    private static final int PARTITION_ID = 0;
+    private static final int BATCH_SIZE = 1000;
+    private static final int REPEAT_COUNT = 300;
+    private static final int WARMUP_REPEAT_COUNT = 100;
+    private static final int ID_MAX_VALUE = 10000;
+    // Partitions of one group commit.
+    private static final int PARTITIONS_NUM = 5;
+    private static final int COMMIT_COUNT = 2000;
+    private static final int EQUALITY_REPEAT_COUNT = 100;
+
+    //--------------------Fields------------------------------------------------
+    @Autowired
+    private BatchAccountService batchAccountService;
+
+    @Autowired
+    private AccountRepository accountRepository;
+
+    @Autowired
+    private PartitionRepository partitionRepository;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Autowired
+    private DataSource dataSource;
+
+    private JdbcTemplate jdbcTemplate;
+
+    private long offset;
+
+    private long seed;
+
+    //--------------------Constructors-----------------------------------------
+    public BatchApplyBenchmarkIT() {
+    }
+
+    //--------------------Methods----------------------------------------------
+    @Before
+    public void setUp() {
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        seed = new Random().nextLong();
+    }
+
+    @Test
+    public void upsertShouldApplyBatchesFasterThanEntityUpdates() {
+        final TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        // former apply path: load-modify-save of managed entities
+        Apply entityApply = new Apply() {
+
+            @Override
+            public void apply(final AddOperationArray addOperations, final long nextOffset) {
+                transaction.execute(new TransactionCallbackWithoutResult() {
+
+                    @Override
+                    protected void doInTransactionWithoutResult(TransactionStatus status) {
+                        Set<Integer> ids = new HashSet<>();
+                        for (int i = 0; i < addOperations.size(); i++) {
+                            ids.add(addOperations.getId(i));
+                        }
+                        Map<Integer, Account> accountMap = new HashMap<>();
+                        for (Account account : accountRepository.findByIdIn(ids)) {
+                            accountMap.put(account.getId(), account);
+                        }
+                        for (int i = 0; i < addOperations.size(); i++) {
+                            Account account = accountMap.get(addOperations.getId(i));
+                            if (account == null) {
+                                account = new Account();
+                                account.setId(addOperations.getId(i));
+                                account.setAmount(addOperations.getValue(i));
+                                accountMap.put(account.getId(), account);
+                            } else {
+                                account.setAmount(account.getAmount()
+                                        + addOperations.getValue(i));
+                            }
+                        }
+                        accountRepository.save(accountMap.values());
+                        Partition partition = new Partition();
+                        partition.setId(PARTITION_ID);
+                        partition.setOffset(nextOffset);
+                        partitionRepository.save(partition);
+                    }
+                });
+            }
+        };
+        Apply upsertApply = new Apply() {
+
+            @Override
+            public void apply(AddOperationArray addOperations, long nextOffset) {
+                // entity warmup has moved partition to previous offset
+                batchAccountService.addAmounts(addOperations, PARTITION_ID, nextOffset - 1,
+                        nextOffset, Collections.<QuarantinedMessage>emptyList());
+            }
+        };
+
+        measure("warmup", entityApply, WARMUP_REPEAT_COUNT);
+        measure("warmup", upsertApply, WARMUP_REPEAT_COUNT);
+        long entityTotal = total();
+        long entityNs = measure("entity apply", entityApply, REPEAT_COUNT);
+        long entityDelta = total() - entityTotal;
+        long upsertTotal = total();
+        long upsertNs = measure("upsert apply", upsertApply, REPEAT_COUNT);
+        long upsertDelta = total() - upsertTotal;
+
+        logger.info(String.format("upsert/entity batch latency: %.2f",
+                (double) upsertNs / entityNs));
+        // the same seeded batches are applied by both paths
+        assertEquals(entityDelta, upsertDelta);
+        assertEquals(offset, partitionRepository.findOne(PARTITION_ID).getOffset().longValue());
+        assertTrue(upsertNs < entityNs);
+    }
+
+    @Test
+    public void jdbcOffsetsShouldBeSavedFasterThanMergedPartitions() {
+        final TransactionTemplate transaction = new TransactionTemplate(transactionManager);
+        // former offset path: merge of partition entities, which selects and dirty-checks them
+        Apply mergeApply = new Apply() {
+
+            @Override
+            public void apply(AddOperationArray addOperations, final long nextOffset) {
+                transaction.execute(new TransactionCallbackWithoutResult() {
+
+                    @Override
+                    protected void doInTransactionWithoutResult(TransactionStatus status) {
+                        for (int id = 0; id < PARTITIONS_NUM; id++) {
+                            Partition partition = new Partition();
+                            partition.setId(id);
+                            partition.setOffset(nextOffset);
+                            partitionRepository.save(partition);
+                        }
+                    }
+                });
+            }
+        };
+        Apply jdbcApply = new Apply() {
+
+            @Override
+            public void apply(AddOperationArray addOperations, final long nextOffset) {
+                transaction.execute(new TransactionCallbackWithoutResult() {
+
+                    @Override
+                    protected void doInTransactionWithoutResult(TransactionStatus status) {
+                        // merge warmup has moved partitions to previous offset
+                        Map<Integer, Long> fromOffsets = new HashMap<>();
+                        Map<Integer, Long> partitionOffsets = new HashMap<>();
+                        for (int id = 0; id < PARTITIONS_NUM; id++) {
+                            fromOffsets.put(id, nextOffset - 1);
+                            partitionOffsets.put(id, nextOffset);
+                        }
+                        partitionRepository.saveOffsets(fromOffsets, partitionOffsets);
+                    }
+                });
+            }
+        };
+
+        commit("warmup", mergeApply, COMMIT_COUNT);
+        commit("warmup", jdbcApply, COMMIT_COUNT);
+        long mergeNs = commit("merged offsets", mergeApply, COMMIT_COUNT);
+        long jdbcNs = commit("jdbc offsets", jdbcApply, COMMIT_COUNT);
+
+        logger.info(String.format("jdbc/merge commit latency: %.2f", (double) jdbcNs / mergeNs));
+        for (int id = 0; id < PARTITIONS_NUM; id++) {
+            assertEquals(offset, partitionRepository.findOne(id).getOffset().longValue());
+        }
+        assertTrue(jdbcNs < mergeNs);
+    }
+
+    @Test
+    public void fieldEqualityShouldBeFasterThanReflection() {
+        Account[] accounts = new Account[ID_MAX_VALUE];
+        Account[] copies = new Account[ID_MAX_VALUE];
+        for (int i = 0; i < ID_MAX_VALUE; i++) {
+            accounts[i] = account(i, i);
+            copies[i] = account(i, i);
+        }
+        long hash = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < EQUALITY_REPEAT_COUNT; r++) {
+            for (int i = 0; i < ID_MAX_VALUE; i++) {
+                hash += HashCodeBuilder.reflectionHashCode(accounts[i])
+                        + (EqualsBuilder.reflectionEquals(accounts[i], copies[i]) ? 1 : 0);
+            }
+        }
+        long reflectionNs = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int r = 0; r < EQUALITY_REPEAT_COUNT; r++) {
+            for (int i = 0; i < ID_MAX_VALUE; i++) {
+                hash -= accounts[i].hashCode() + (accounts[i].equals(copies[i]) ? 1 : 0);
+            }
+        }
+        long fieldNs = System.nanoTime() - start;
+        logger.info(String.format("reflection: %d ns/account, fields: %d ns/account, hash %d",
+                reflectionNs / EQUALITY_REPEAT_COUNT / ID_MAX_VALUE,
+                fieldNs / EQUALITY_REPEAT_COUNT / ID_MAX_VALUE, hash));
+        assertTrue(fieldNs < reflectionNs);
+    }
+
+    private static Account account(int id, long amount) {
+        Account account = new Account();
+        account.setId(id);
+        account.setAmount(amount);
+        return account;
+    }
+
+    // Runs commitCount commits, returns average commit latency (ns).
+    private long commit(String name, Apply apply, int commitCount) {
+        long start = System.nanoTime();
+        for (int i = 0; i < commitCount; i++) {
+            apply.apply(null, ++offset);
+        }
+        long elapsed = System.nanoTime() - start;
+        logger.info(String.format("%s: %d commits of %d partitions, %d us/commit", name,
+                commitCount, PARTITIONS_NUM, TimeUnit.NANOSECONDS.toMicros(elapsed)
+                / commitCount));
+        return elapsed / commitCount;
+    }
+
+    private long total() {
+        Long total = jdbcTemplate.queryForObject("SELECT SUM(amount) FROM Account", Long.class);
+        return (total == null) ? 0 : total;
+    }
+
+    // Applies repeatCount seeded random batches, returns average batch latency (ns).
+    private long measure(String name, Apply apply, int repeatCount) {
+        AddOperationArray[] batches = new AddOperationArray[repeatCount];
+        for (int i = 0; i < repeatCount; i++) {
+            Random batchRandom = new Random(seed + i);
+            batches[i] = new AddOperationArray(BATCH_SIZE);
+            for (int j = 0; j < BATCH_SIZE; j++) {
+                batches[i].add(batchRandom.nextInt(ID_MAX_VALUE), batchRandom.nextInt(100) - 50);
+            }
+        }
+        long start = System.nanoTime();
+        for (AddOperationArray batch : batches) {
+            apply.apply(batch, ++offset);
+        }
+        long elapsed = System.nanoTime() - start;
+        long operations = (long) repeatCount * BATCH_SIZE;
+        logger.info(String.format("%s: %d batches of %d operations, %d us/batch, %d ops/s",
+                name, repeatCount, BATCH_SIZE, TimeUnit.NANOSECONDS.toMicros(elapsed)
+                / repeatCount, TimeUnit.SECONDS.toNanos(operations) / elapsed));
+        return elapsed / repeatCount;
+    }
+}
@@ -0,0 +1,202 @@
+package com.nestos.accountservice.jpa;
+
+import com.nestos.accountservice.javaconfig.ServiceConfig;
+import com.nestos.accountservice.service.AccountService;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+import org.apache.log4j.Logger;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Benchmark of getAmount() cache hits. Compares current not transactional read path with
+ * former one, where each call was wrapped in read-only transaction, by average call latency
+ * and number of taken database connections. Before test run start Kafka server.
+ *
+ * @author Roman Osipov
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = GetAmountBenchmarkIT.BenchmarkConfig.class)
+@DirtiesContext(classMode = DirtiesContext.ClassMode.AFTER_EACH_TEST_METHOD)
+@ActiveProfiles("test")
+public class GetAmountBenchmarkIT {
+
+    //-------------------Logger---------------------------------------------------
+    private final static Logger logger = Logger.getLogger(GetAmountBenchmarkIT.class.getName());
+
+    //--------------------Nested classes----------------------------------------
+    // Service context with data source, which counts taken connections.
+    @Configuration
+    @Import(ServiceConfig.class)
+    public static class BenchmarkConfig {
+
+        @Bean
+        public static BeanPostProcessor connectionCountingPostProcessor() {
+            return new BeanPostProcessor() {
+
+                @Override
+                public Object postProcessBeforeInitialization(Object bean, String beanName)
+                        throws BeansException {
+                    return bean;
+                }
+
+                @Override
+                public Object postProcessAfterInitialization(Object bean, String beanName)
+                        throws BeansException {
+                    return (bean instanceof DataSource)
+                            ? new ConnectionCountingDataSource((DataSource) bean) : bean;
+                }
+            };
+        }
+    }
+
+    private static class ConnectionCountingDataSource extends DelegatingDataSource {
+
+        private static final AtomicLong connectionCount = new AtomicLong();
+
+        public ConnectionCountingDataSource(DataSource targetDataSource) {
+            super(targetDataSource);
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            connectionCount.incrementAndGet();
+            return super.getConnection();
+        }
+
+        @Override
+        public Connection getConnection(String username, String password)
+                throws SQLException {
+            connectionCount.incrementAndGet();
+            return super.getConnection(username, password);
+        }
+    }
+
+    //--------------------Constants---------------------------------------------
+    private static final int NUMBER_THREADS = 16;
+    private static final int REPEAT_COUNT = 100000;
+    private static final int WARMUP_REPEAT_COUNT = 20000;
+    private static final int ID_MAX_VALUE = 1000;
+
+    //--------------------Fields------------------------------------------------
+    @Autowired
+    @Qualifier("accountService")
+    private AccountService accountService;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    //--------------------Constructors-----------------------------------------
+    public GetAmountBenchmarkIT() {
+    }
+
+    //--------------------Methods----------------------------------------------
+    @Before
+    public void setUp() {
+        for (int id = 0; id < ID_MAX_VALUE; id++) {
+            accountService.getAmount(id);
+        }
+    }
+
+    @Test
+    public void cacheHitShouldNotTakeConnection() throws Exception {
+        final TransactionTemplate readOnlyTransaction = new TransactionTemplate(transactionManager);
+        readOnlyTransaction.setReadOnly(true);
+        // former read path: read-only transaction around each call
+        Callable<Long> transactionalHit = new Callable<Long>() {
+
+            @Override
+            public Long call() {
+                return readOnlyTransaction.execute(new TransactionCallback<Long>() {
+
+                    @Override
+                    public Long doInTransaction(TransactionStatus status) {
+                        return accountService.getAmount(randomId());
+                    }
+                });
+            }
+        };
+        Callable<Long> hit = new Callable<Long>() {
+
+            @Override
+            public Long call() {
+                return accountService.getAmount(randomId());
+            }
+        };
+
+        measure("warmup", hit, WARMUP_REPEAT_COUNT);
+        measure("warmup", transactionalHit, WARMUP_REPEAT_COUNT);
+        long transactionalConnections = measure("transactional hit", transactionalHit,
+                REPEAT_COUNT);
+        long connections = measure("hit", hit, REPEAT_COUNT);
+
+        assertEquals(NUMBER_THREADS * REPEAT_COUNT, transactionalConnections);
+        assertEquals(0, connections);
+    }
+
+    private static int randomId() {
+        return ThreadLocalRandom.current().nextInt(ID_MAX_VALUE);
+    }
+
+    // Runs call repeatCount times in each thread, returns number of taken connections.
+    private long measure(String name, final Callable<Long> call, final int repeatCount)
+            throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(NUMBER_THREADS);
+        List<Future<Long>> results = new ArrayList<>();
+        long connectionsBefore = ConnectionCountingDataSource.connectionCount.get();
+        long start = System.nanoTime();
+        for (int i = 0; i < NUMBER_THREADS; i++) {
+            results.add(executorService.submit(new Callable<Long>() {
+
+                @Override
+                public Long call() throws Exception {
+                    long sum = 0;
+                    for (int j = 0; j < repeatCount; j++) {
+                        sum += call.call();
+                    }
+                    return sum;
+                }
+            }));
+        }
+        for (Future<Long> result : results) {
+            result.get();
+        }
+        long elapsed = System.nanoTime() - start;
+        executorService.shutdown();
+        executorService.awaitTermination(1, TimeUnit.MINUTES);
+        long connections = ConnectionCountingDataSource.connectionCount.get() - connectionsBefore;
+        long calls = (long) NUMBER_THREADS * repeatCount;
+        logger.info(String.format("%s: %d calls, %d ns/call, %d ops/s, %d connections taken",
+                name, calls, elapsed * NUMBER_THREADS / calls,
+                TimeUnit.SECONDS.toNanos(calls) / elapsed, connections));
+        return connections;
+    }
+}
@@ -0,0 +1,117 @@
+package com.nestos.accountservice.kafka;
+
+import com.nestos.accountservice.domain.AddOperation;
+import com.nestos.accountservice.domain.AddOperationArray;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import kafka.javaapi.message.ByteBufferMessageSet;
+import kafka.message.Message;
+import kafka.message.MessageAndOffset;
+import org.apache.log4j.Logger;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Allocation benchmark of fetched message set decode. Compares decode into reused primitive
+ * operation array with former decode, which iterated Kafka messages and created operation
+ * object per record, by allocated bytes per decoded operation of processing thread.
+ *
+ * @author Roman Osipov
+ */
+public class DecodeAllocationBenchmarkIT {
+
+    //-------------------Logger---------------------------------------------------
+    private final static Logger logger
+            = Logger.getLogger(DecodeAllocationBenchmarkIT.class.getName());
+
+    //--------------------Constants---------------------------------------------
+    private static final int MESSAGES_NUM = 1000;
+    private static final int ENVELOPE_OPERATIONS = 10;
+    private static final int REPEAT_COUNT = 2000;
+    private static final int WARMUP_REPEAT_COUNT = 2000;
+
+    //--------------------Nested classes----------------------------------------
+    private interface Decode {
+
+        int decode(ByteBufferMessageSet messageSet);
+    }
+
+    //--------------------Fields------------------------------------------------
+    private ByteBufferMessageSet messageSet;
+
+    //--------------------Constructors-----------------------------------------
+    public DecodeAllocationBenchmarkIT() {
+    }
+
+    //--------------------Methods----------------------------------------------
+    @Before
+    public void setUp() {
+        List<AddOperation> addOperations = new ArrayList<>();
+        for (int i = 0; i < ENVELOPE_OPERATIONS; i++) {
+            addOperations.add(new AddOperation(i * 1000, i));
+        }
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < MESSAGES_NUM; i++) {
+            ByteBuffer envelope = ByteBuffer.allocate(AddOperation.envelopeSize(
+                    ENVELOPE_OPERATIONS));
+            AddOperation.writeEnvelope(addOperations, 0, ENVELOPE_OPERATIONS, envelope);
+            messages.add(new Message(envelope.array()));
+        }
+        messageSet = new ByteBufferMessageSet(messages);
+    }
+
+    @Test
+    public void decodeIntoReusedArrayShouldNotAllocatePerOperation() {
+        // former decode path: message objects and operation object per record
+        Decode objectDecode = new Decode() {
+
+            @Override
+            public int decode(ByteBufferMessageSet messageSet) {
+                List<AddOperation> addOperations = new ArrayList<>();
+                for (MessageAndOffset messageAndOffset : messageSet) {
+                    AddOperation.decodeAll(messageAndOffset.message().payload(), addOperations);
+                }
+                return addOperations.size();
+            }
+        };
+        // array of applied batch is reused by the next decode
+        final AddOperationArray operations = new AddOperationArray();
+        Decode arrayDecode = new Decode() {
+
+            @Override
+            public int decode(ByteBufferMessageSet messageSet) {
+                operations.clear();
+                return KafkaClient.decode(messageSet, 0, operations).getOperations().size();
+            }
+        };
+
+        measure("warmup", objectDecode, WARMUP_REPEAT_COUNT);
+        measure("warmup", arrayDecode, WARMUP_REPEAT_COUNT);
+        double objectBytes = measure("object decode", objectDecode, REPEAT_COUNT);
+        double arrayBytes = measure("array decode", arrayDecode, REPEAT_COUNT);
+
+        assertTrue(arrayBytes * 10 < objectBytes);
+    }
+
+    // Runs decode repeatCount times, returns allocated bytes per decoded operation.
+    private double measure(String name, Decode decode, int repeatCount) {
+        com.sun.management.ThreadMXBean threadMXBean
+                = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long operationsNum = 0;
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < repeatCount; i++) {
+            operationsNum += decode.decode(messageSet);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        double bytesPerOperation = (double) allocated / operationsNum;
+        logger.info(String.format("%s: %d operations, %d ns/operation, %.2f bytes/operation",
+                name, operationsNum, elapsed / operationsNum, bytesPerOperation));
+        return bytesPerOperation;
+    }
+}
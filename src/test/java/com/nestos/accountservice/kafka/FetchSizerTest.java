@@ -0,0 +1,63 @@
+package com.nestos.accountservice.kafka;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * FetchSizer tests.
+ *
+ * @author Roman Osipov
+ */
+public class FetchSizerTest {
+
+    //-------------------Constants------------------------------------------------
+    private static final int MIN_FETCH_SIZE = 1000;
+    private static final int MAX_FETCH_SIZE = 100000;
+    private static final long TARGET_APPLY_LATENCY_MS = 100;
+    // 100 bytes per message
+    private static final int BATCH_BYTES = 1000;
+    private static final long BATCH_MESSAGES = 10;
+    // 100 bytes per ms, 10000 bytes are applied within target latency
+    private static final long APPLY_LATENCY_MS = 10;
+
+    //--------------------Fields-----------------------------------------------
+    private FetchSizer sutFetchSizer;
+
+    //-------------------Constructors------------------------------------------
+    public FetchSizerTest() {
+    }
+
+    //-------------------Methods-----------------------------------------------
+    @Before
+    public void setUp() {
+        sutFetchSizer = new FetchSizer(MIN_FETCH_SIZE, MAX_FETCH_SIZE, TARGET_APPLY_LATENCY_MS);
+    }
+
+    @Test
+    public void caughtUpPartitionShouldFetchMinSize() {
+        // act
+        sutFetchSizer.fetched(BATCH_BYTES, BATCH_MESSAGES, 0);
+        sutFetchSizer.applied(BATCH_BYTES, APPLY_LATENCY_MS);
+        // assert
+        assertEquals(MIN_FETCH_SIZE, sutFetchSizer.getFetchSize());
+    }
+
+    @Test
+    public void lagWithinTargetLatencyShouldBeFetchedAsItIs() {
+        // act
+        sutFetchSizer.fetched(BATCH_BYTES, BATCH_MESSAGES, 50);
+        sutFetchSizer.applied(BATCH_BYTES, APPLY_LATENCY_MS);
+        // assert
+        assertEquals(5000, sutFetchSizer.getFetchSize());
+    }
+
+    @Test
+    public void catchingUpPartitionShouldFetchMaxSize() {
+        // act
+        sutFetchSizer.fetched(BATCH_BYTES, BATCH_MESSAGES, 500);
+        sutFetchSizer.applied(BATCH_BYTES, APPLY_LATENCY_MS);
+        // assert
+        assertEquals(MAX_FETCH_SIZE, sutFetchSizer.getFetchSize());
+    }
+}
@@ -0,0 +1,261 @@
+package com.nestos.accountservice.kafka;
+
+import com.nestos.accountservice.domain.AddOperation;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.Mockito.*;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+/**
+ * GroupCommitWriter tests.
+ *
+ * @author Roman Osipov
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class GroupCommitWriterTest {
+
+    //-------------------Constants------------------------------------------------
+    private static final int VALID_ACCOUNT_ID1 = 47;
+    private static final int VALID_ACCOUNT_ID2 = 53;
+    private static final long VALID_ACCOUNT_VALUE1 = 67;
+    private static final long VALID_ACCOUNT_VALUE2 = 73;
+    private static final long LONG_WAIT_MS = 60000;
+    private static final int VERIFY_TIMEOUT_MS = 5000;
+
+    //--------------------Mocks------------------------------------------------
+    @Mock
+    private KafkaClient mockKafkaClient;
+
+    //--------------------Fields-----------------------------------------------
+    private SettableListenableFuture<Void> stubWriteResult;
+
+    private GroupCommitWriter sutGroupCommitWriter;
+
+    //-------------------Constructors------------------------------------------
+    public GroupCommitWriterTest() {
+    }
+
+    //-------------------Methods-----------------------------------------------
+    @Before
+    public void setUp() throws Exception {
+        stubWriteResult = new SettableListenableFuture<>();
+        // all operations are carried by one record
+        when(mockKafkaClient.writeRecordsAsync(anyListOf(AddOperation.class), any(int[].class)))
+                .thenReturn(Arrays.<ListenableFuture<Void>>asList(stubWriteResult));
+        sutGroupCommitWriter = new GroupCommitWriter(mockKafkaClient);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        stubWriteResult.set(null);
+        sutGroupCommitWriter.destroy();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void operationsSubmittedTogetherShouldBeWrittenAsOneBatch() throws Exception {
+        // arrange
+        sutGroupCommitWriter.setMaxBatchSize(2);
+        sutGroupCommitWriter.setMaxWaitMs(LONG_WAIT_MS);
+        sutGroupCommitWriter.afterPropertiesSet();
+        AddOperation addOperation1 = new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE1);
+        AddOperation addOperation2 = new AddOperation(VALID_ACCOUNT_ID2, VALID_ACCOUNT_VALUE2);
+        // act
+        ListenableFuture<Void> result1 = sutGroupCommitWriter.submit(addOperation1);
+        ListenableFuture<Void> result2 = sutGroupCommitWriter.submit(addOperation2);
+        // assert
+        ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+        verify(mockKafkaClient, timeout(VERIFY_TIMEOUT_MS)).writeRecordsAsync(captor.capture(),
+                any(int[].class));
+        assertEquals(Arrays.asList(addOperation1, addOperation2), captor.getValue());
+        assertFalse("Operation released before acknowledge.", result1.isDone());
+        stubWriteResult.set(null);
+        result1.get();
+        result2.get();
+        assertEquals(1, sutGroupCommitWriter.getBatchCount());
+        assertEquals(2, sutGroupCommitWriter.getOperationCount());
+    }
+
+    @Test
+    public void submittedOperationsShouldNotBeSplitBetweenBatches() throws Exception {
+        // arrange
+        sutGroupCommitWriter.setMaxBatchSize(1);
+        sutGroupCommitWriter.setMaxWaitMs(LONG_WAIT_MS);
+        sutGroupCommitWriter.afterPropertiesSet();
+        List<AddOperation> addOperations = Arrays.asList(
+                new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE1),
+                new AddOperation(VALID_ACCOUNT_ID2, VALID_ACCOUNT_VALUE2));
+        // act
+        ListenableFuture<Void> result = sutGroupCommitWriter.submitAll(addOperations);
+        // assert
+        verify(mockKafkaClient, timeout(VERIFY_TIMEOUT_MS)).writeRecordsAsync(eq(addOperations),
+                any(int[].class));
+        stubWriteResult.set(null);
+        result.get();
+        assertEquals(1, sutGroupCommitWriter.getBatchCount());
+        assertEquals(2, sutGroupCommitWriter.getOperationCount());
+    }
+
+    @Test
+    public void coalescingShouldWriteNetOperationPerIdAndReleaseAllCallers() throws Exception {
+        // arrange
+        sutGroupCommitWriter.setCoalescing(true);
+        sutGroupCommitWriter.setMaxBatchSize(3);
+        sutGroupCommitWriter.setMaxWaitMs(LONG_WAIT_MS);
+        sutGroupCommitWriter.afterPropertiesSet();
+        // act
+        ListenableFuture<Void> result1 = sutGroupCommitWriter.submit(
+                new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE1));
+        ListenableFuture<Void> result2 = sutGroupCommitWriter.submit(
+                new AddOperation(VALID_ACCOUNT_ID2, VALID_ACCOUNT_VALUE2));
+        ListenableFuture<Void> result3 = sutGroupCommitWriter.submit(
+                new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE2));
+        // assert
+        verify(mockKafkaClient, timeout(VERIFY_TIMEOUT_MS)).writeRecordsAsync(eq(Arrays.asList(
+                new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE1 + VALID_ACCOUNT_VALUE2),
+                new AddOperation(VALID_ACCOUNT_ID2, VALID_ACCOUNT_VALUE2))), any(int[].class));
+        stubWriteResult.set(null);
+        result1.get();
+        result2.get();
+        result3.get();
+        assertEquals(3, sutGroupCommitWriter.getOperationCount());
+        assertEquals(2, sutGroupCommitWriter.getWrittenOperationCount());
+        assertEquals(1.5, sutGroupCommitWriter.getCoalescingRatio(), 0);
+    }
+
+    @Test
+    public void batchShouldBeWrittenAfterMaxWait() throws Exception {
+        // arrange
+        sutGroupCommitWriter.setMaxBatchSize(Integer.MAX_VALUE);
+        sutGroupCommitWriter.setMaxWaitMs(0);
+        sutGroupCommitWriter.afterPropertiesSet();
+        AddOperation addOperation = new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE1);
+        // act
+        ListenableFuture<Void> result = sutGroupCommitWriter.submit(addOperation);
+        // assert
+        verify(mockKafkaClient, timeout(VERIFY_TIMEOUT_MS)).writeRecordsAsync(
+                eq(Arrays.asList(addOperation)), any(int[].class));
+        stubWriteResult.set(null);
+        result.get();
+    }
+
+    @Test
+    public void writeFailureShouldBeReportedToAllOperationsOfBatch() throws Exception {
+        // arrange
+        sutGroupCommitWriter.setMaxBatchSize(2);
+        sutGroupCommitWriter.setMaxWaitMs(LONG_WAIT_MS);
+        sutGroupCommitWriter.afterPropertiesSet();
+        // act
+        ListenableFuture<Void> result1 = sutGroupCommitWriter.submit(
+                new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE1));
+        ListenableFuture<Void> result2 = sutGroupCommitWriter.submit(
+                new AddOperation(VALID_ACCOUNT_ID2, VALID_ACCOUNT_VALUE2));
+        stubWriteResult.setException(new RuntimeException());
+        // assert
+        for (ListenableFuture<Void> result : Arrays.asList(result1, result2)) {
+            try {
+                result.get();
+                fail("Operation succeeded after write failure.");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof RuntimeException);
+            }
+        }
+    }
+
+    @Test
+    public void failedRecordShouldFailOnlyOperationsItCarries() throws Exception {
+        // arrange
+        final SettableListenableFuture<Void> stubRecordResult1 = new SettableListenableFuture<>();
+        final SettableListenableFuture<Void> stubRecordResult2 = new SettableListenableFuture<>();
+        // each operation is carried by its own record
+        when(mockKafkaClient.writeRecordsAsync(anyListOf(AddOperation.class), any(int[].class)))
+                .thenAnswer(new Answer<List<ListenableFuture<Void>>>() {
+
+                    @Override
+                    public List<ListenableFuture<Void>> answer(InvocationOnMock invocation) {
+                        int[] operationRecords = (int[]) invocation.getArguments()[1];
+                        operationRecords[0] = 0;
+                        operationRecords[1] = 1;
+                        return Arrays.<ListenableFuture<Void>>asList(stubRecordResult1,
+                                stubRecordResult2);
+                    }
+                });
+        sutGroupCommitWriter.setMaxBatchSize(2);
+        sutGroupCommitWriter.setMaxWaitMs(LONG_WAIT_MS);
+        sutGroupCommitWriter.afterPropertiesSet();
+        // act
+        ListenableFuture<Void> result1 = sutGroupCommitWriter.submit(
+                new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE1));
+        ListenableFuture<Void> result2 = sutGroupCommitWriter.submit(
+                new AddOperation(VALID_ACCOUNT_ID2, VALID_ACCOUNT_VALUE2));
+        verify(mockKafkaClient, timeout(VERIFY_TIMEOUT_MS)).writeRecordsAsync(
+                anyListOf(AddOperation.class), any(int[].class));
+        stubRecordResult1.set(null);
+        stubRecordResult2.setException(new RuntimeException());
+        // assert
+        result1.get();
+        try {
+            result2.get();
+            fail("Operation succeeded after write failure.");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof RuntimeException);
+        }
+    }
+
+    @Test
+    public void writeFailureShouldBeRethrownWithCause() throws Exception {
+        // arrange
+        sutGroupCommitWriter.setMaxBatchSize(1);
+        sutGroupCommitWriter.afterPropertiesSet();
+        RuntimeException writeFailure = new RuntimeException();
+        stubWriteResult.setException(writeFailure);
+        // act
+        try {
+            sutGroupCommitWriter.write(new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE1));
+            fail("Write succeeded after write failure.");
+        } catch (RuntimeException ex) {
+            // assert
+            assertSame(writeFailure, ex.getCause());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void submitAfterDestroyShouldBeRejected() throws Exception {
+        // arrange
+        sutGroupCommitWriter.afterPropertiesSet();
+        sutGroupCommitWriter.destroy();
+        // act
+        sutGroupCommitWriter.submit(new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE1));
+    }
+
+    @Test
+    public void destroyShouldFlushSubmittedOperations() throws Exception {
+        // arrange
+        sutGroupCommitWriter.setMaxBatchSize(Integer.MAX_VALUE);
+        sutGroupCommitWriter.setMaxWaitMs(LONG_WAIT_MS);
+        sutGroupCommitWriter.afterPropertiesSet();
+        AddOperation addOperation = new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE1);
+        sutGroupCommitWriter.submit(addOperation);
+        // act
+        sutGroupCommitWriter.destroy();
+        // assert
+        verify(mockKafkaClient).writeRecordsAsync(eq(Arrays.asList(addOperation)),
+                any(int[].class));
+    }
+}
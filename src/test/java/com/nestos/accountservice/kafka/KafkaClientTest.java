@@ -0,0 +1,147 @@
+package com.nestos.accountservice.kafka;
+
+import com.nestos.accountservice.domain.AddOperation;
+import com.nestos.accountservice.domain.AddOperationArray;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import kafka.javaapi.message.ByteBufferMessageSet;
+import kafka.message.GZIPCompressionCodec$;
+import kafka.message.Message;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * KafkaClient message set decoding tests.
+ *
+ * @author Roman Osipov
+ */
+public class KafkaClientTest {
+
+    //-------------------Constants------------------------------------------------
+    private static final int VALID_ACCOUNT_ID1 = 47;
+    private static final int VALID_ACCOUNT_ID2 = 53;
+    private static final long VALID_ACCOUNT_VALUE1 = 67;
+    private static final long VALID_ACCOUNT_VALUE2 = -73;
+
+    //--------------------Fields-----------------------------------------------
+    private AddOperation stubSingleOperation;
+
+    private List<AddOperation> stubEnvelopeOperations;
+
+    private AddOperation stubLegacyOperation;
+
+    private List<Message> stubMessages;
+
+    //-------------------Constructors------------------------------------------
+    public KafkaClientTest() {
+    }
+
+    //-------------------Methods-----------------------------------------------
+    @Before
+    public void setUp() {
+        stubSingleOperation = new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE1);
+        stubEnvelopeOperations = Arrays.asList(
+                new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE2),
+                new AddOperation(VALID_ACCOUNT_ID2, VALID_ACCOUNT_VALUE1));
+        stubLegacyOperation = new AddOperation(VALID_ACCOUNT_ID2, VALID_ACCOUNT_VALUE2);
+
+        ByteBuffer envelope = ByteBuffer.allocate(
+                AddOperation.envelopeSize(stubEnvelopeOperations.size()));
+        AddOperation.writeEnvelope(stubEnvelopeOperations, 0, stubEnvelopeOperations.size(),
+                envelope);
+        stubMessages = Arrays.asList(
+                new Message(stubSingleOperation.toByteArray()),
+                new Message(envelope.array()),
+                new Message(stubLegacyOperation.toByteArray(AddOperation.WireFormat.SERIALIZED)));
+    }
+
+    @Test
+    public void decodeShouldExpandEnvelopesAndReturnNextOffset() {
+        // act
+        OperationBatch operationBatch = KafkaClient.decode(
+                new ByteBufferMessageSet(stubMessages), 0);
+        // assert
+        List<AddOperation> expected = new ArrayList<>();
+        expected.add(stubSingleOperation);
+        expected.addAll(stubEnvelopeOperations);
+        expected.add(stubLegacyOperation);
+        assertEquals(expected, operationBatch.getAddOperations());
+        assertEquals(stubMessages.size(), operationBatch.getNextOffset());
+    }
+
+    @Test
+    public void decodeShouldSkipMessagesBeforeRequestedOffset() {
+        // arrange - compressed message set is returned from its first message
+        ByteBufferMessageSet messageSet = new ByteBufferMessageSet(
+                GZIPCompressionCodec$.MODULE$, stubMessages);
+        // act
+        OperationBatch operationBatch = KafkaClient.decode(messageSet, 2);
+        // assert
+        assertEquals(Arrays.asList(stubLegacyOperation), operationBatch.getAddOperations());
+        assertEquals(stubMessages.size(), operationBatch.getNextOffset());
+    }
+
+    @Test
+    public void decodeShouldRejectUndecodableMessageAndKeepBoundaries() {
+        // arrange
+        byte[] badPayload = {(byte) 0x7F, 1, 2};
+        List<Message> messages = new ArrayList<>(stubMessages);
+        messages.add(1, new Message(badPayload));
+        // act
+        OperationBatch operationBatch = KafkaClient.decode(
+                new ByteBufferMessageSet(messages), 0);
+        // assert
+        assertEquals(messages.size(), operationBatch.getMessagesNum());
+        assertEquals(1, operationBatch.getRejectedMessages().size());
+        OperationBatch.RejectedMessage rejectedMessage = operationBatch.getRejectedMessages()
+                .get(0);
+        assertEquals(1, rejectedMessage.getOffset());
+        assertArrayEquals(badPayload, rejectedMessage.getPayload());
+        OperationBatch head = operationBatch.slice(0, 2);
+        assertEquals(Arrays.asList(stubSingleOperation), head.getAddOperations());
+        assertEquals(2, head.getNextOffset());
+        assertEquals(1, head.getRejectedMessages().size());
+        OperationBatch tail = operationBatch.slice(2, messages.size());
+        assertEquals(stubEnvelopeOperations.size() + 1, tail.getAddOperations().size());
+        assertEquals(messages.size(), tail.getNextOffset());
+        assertTrue(tail.getRejectedMessages().isEmpty());
+    }
+
+    @Test
+    public void decodeShouldParseKeyedMessagesIntoGivenArrayAndSkipPartialMessage() {
+        // arrange
+        byte[] key = {1, 2, 3};
+        ByteBufferMessageSet messageSet = new ByteBufferMessageSet(Arrays.asList(
+                new Message(stubSingleOperation.toByteArray(), key),
+                new Message(stubLegacyOperation.toByteArray())));
+        ByteBuffer buffer = messageSet.getBuffer();
+        int firstEntrySize = buffer.getInt(8) + 12;
+        // fetch ends inside the second message
+        buffer.limit(buffer.limit() - 1);
+        AddOperationArray operations = new AddOperationArray(0);
+        // act
+        OperationBatch operationBatch = KafkaClient.decode(
+                new ByteBufferMessageSet(buffer.slice()), 0, operations);
+        // assert
+        assertSame(operations, operationBatch.getOperations());
+        assertEquals(Arrays.asList(stubSingleOperation), operationBatch.getAddOperations());
+        assertEquals(1, operationBatch.getNextOffset());
+        assertEquals(firstEntrySize, operationBatch.getSizeInBytes());
+    }
+
+    @Test
+    public void decodeShouldReturnRequestedOffsetForEmptyMessageSet() {
+        // act
+        OperationBatch operationBatch = KafkaClient.decode(
+                new ByteBufferMessageSet(new ArrayList<Message>()), 5);
+        // assert
+        assertTrue(operationBatch.getAddOperations().isEmpty());
+        assertEquals(5, operationBatch.getNextOffset());
+    }
+}
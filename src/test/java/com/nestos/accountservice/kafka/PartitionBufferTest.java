@@ -0,0 +1,97 @@
+package com.nestos.accountservice.kafka;
+
+import com.nestos.accountservice.domain.AddOperation;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * PartitionBuffer tests.
+ *
+ * @author Roman Osipov
+ */
+public class PartitionBufferTest {
+
+    //-------------------Constants------------------------------------------------
+    private static final int VALID_PARTITION_ID = 3;
+    private static final long VALID_OFFSET = 42;
+    private static final long VALID_NEXT_OFFSET = VALID_OFFSET + 1;
+    private static final long NO_WAIT_MS = 0;
+    private static final long SHORT_WAIT_MS = 10;
+
+    //--------------------Fields-----------------------------------------------
+    private PartitionBuffer sutPartitionBuffer;
+
+    private OperationBatch stubOperationBatch;
+
+    //-------------------Constructors------------------------------------------
+    public PartitionBufferTest() {
+    }
+
+    //-------------------Methods-----------------------------------------------
+    @Before
+    public void setUp() {
+        sutPartitionBuffer = new PartitionBuffer(VALID_PARTITION_ID);
+        List<AddOperation> addOperations = Arrays.asList(new AddOperation(47, 67));
+        stubOperationBatch = new OperationBatch(addOperations, VALID_NEXT_OFFSET);
+    }
+
+    @Test
+    public void notReadPartitionShouldNotBeFetched() {
+        assertNull(sutPartitionBuffer.fetchPosition());
+    }
+
+    @Test
+    public void takeShouldReturnBatchFetchedFromReadOffset() throws InterruptedException {
+        // arrange
+        sutPartitionBuffer.take(VALID_OFFSET, NO_WAIT_MS);
+        long[] position = sutPartitionBuffer.fetchPosition();
+        // act
+        sutPartitionBuffer.offer(stubOperationBatch, position);
+        // assert
+        assertEquals(VALID_OFFSET, position[0]);
+        assertTrue(sutPartitionBuffer.isFull());
+        assertNull(sutPartitionBuffer.fetchPosition());
+        assertSame(stubOperationBatch, sutPartitionBuffer.take(VALID_OFFSET, NO_WAIT_MS));
+        assertEquals(VALID_NEXT_OFFSET, sutPartitionBuffer.fetchPosition()[0]);
+    }
+
+    @Test
+    public void takeFromOtherOffsetShouldDiscardBatch() throws InterruptedException {
+        // arrange
+        sutPartitionBuffer.take(VALID_OFFSET, NO_WAIT_MS);
+        sutPartitionBuffer.offer(stubOperationBatch, sutPartitionBuffer.fetchPosition());
+        sutPartitionBuffer.take(VALID_OFFSET, NO_WAIT_MS);
+        long[] stalePosition = sutPartitionBuffer.fetchPosition();
+        // act
+        // apply of taken batch failed, so partition is read again from the same offset
+        OperationBatch realBatch = sutPartitionBuffer.take(VALID_OFFSET, SHORT_WAIT_MS);
+        sutPartitionBuffer.offer(stubOperationBatch, stalePosition);
+        // assert
+        assertTrue(realBatch.getAddOperations().isEmpty());
+        assertEquals(VALID_OFFSET, realBatch.getNextOffset());
+        assertFalse("Batch fetched before reposition is dropped", sutPartitionBuffer.isFull());
+        assertEquals(VALID_OFFSET, sutPartitionBuffer.fetchPosition()[0]);
+    }
+
+    @Test
+    public void releasedBufferShouldDropBatchAndStopFetch() throws InterruptedException {
+        // arrange
+        sutPartitionBuffer.take(VALID_OFFSET, NO_WAIT_MS);
+        long[] position = sutPartitionBuffer.fetchPosition();
+        sutPartitionBuffer.offer(stubOperationBatch, position);
+        // act
+        sutPartitionBuffer.release();
+        // assert
+        assertFalse(sutPartitionBuffer.isFull());
+        assertNull(sutPartitionBuffer.fetchPosition());
+        assertFalse("Batch fetched before release is dropped",
+                sutPartitionBuffer.offer(stubOperationBatch, position));
+    }
+}
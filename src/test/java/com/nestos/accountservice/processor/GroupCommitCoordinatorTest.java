@@ -0,0 +1,213 @@
+package com.nestos.accountservice.processor;
+
+import com.nestos.accountservice.domain.Account;
+import com.nestos.accountservice.domain.AddOperation;
+import com.nestos.accountservice.domain.AddOperationArray;
+import com.nestos.accountservice.domain.QuarantinedMessage;
+import com.nestos.accountservice.service.BatchAccountService;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import static org.mockito.Mockito.*;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.dao.DataIntegrityViolationException;
+
+/**
+ * GroupCommitCoordinator tests.
+ *
+ * @author Roman Osipov
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class GroupCommitCoordinatorTest {
+
+    //-------------------Constants------------------------------------------------
+    private static final int PARTITION_ID1 = 1;
+    private static final int PARTITION_ID2 = 2;
+    private static final long FROM_OFFSET1 = 40;
+    private static final long FROM_OFFSET2 = 41;
+    private static final long NEXT_OFFSET1 = 42;
+    private static final long NEXT_OFFSET2 = 43;
+    private static final int ACCOUNT_ID1 = 47;
+    private static final int ACCOUNT_ID2 = 53;
+    private static final long ACCOUNT_VALUE1 = 67;
+    private static final long ACCOUNT_VALUE2 = 73;
+    private static final long LONG_WAIT_MS = 60000;
+    private static final List<QuarantinedMessage> NO_QUARANTINED_MESSAGES
+            = Collections.emptyList();
+
+    //--------------------Mocks------------------------------------------------
+    @Mock
+    private BatchAccountService mockBatchAccountService;
+
+    //--------------------Fields-----------------------------------------------
+    private ExecutorService processorExecutorService;
+
+    private GroupCommitCoordinator sutGroupCommitCoordinator;
+
+    //-------------------Constructors------------------------------------------
+    public GroupCommitCoordinatorTest() {
+    }
+
+    //-------------------Methods-----------------------------------------------
+    @Before
+    public void setUp() throws Exception {
+        processorExecutorService = Executors.newFixedThreadPool(2);
+        sutGroupCommitCoordinator = new GroupCommitCoordinator(mockBatchAccountService);
+        // group of two one-operation batches is committed at once
+        sutGroupCommitCoordinator.setMaxOperations(2);
+        sutGroupCommitCoordinator.setMaxWaitMs(LONG_WAIT_MS);
+        sutGroupCommitCoordinator.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sutGroupCommitCoordinator.destroy();
+        processorExecutorService.shutdownNow();
+    }
+
+    @Test
+    public void batchesOfPartitionsShouldBeCommittedInOneTransaction() throws Exception {
+        // arrange
+        Map<Integer, Account> accountMap = new HashMap<>();
+        accountMap.put(ACCOUNT_ID1, account(ACCOUNT_ID1, ACCOUNT_VALUE1));
+        accountMap.put(ACCOUNT_ID2, account(ACCOUNT_ID2, ACCOUNT_VALUE2));
+        when(mockBatchAccountService.addAmounts(any(AddOperationArray.class), anyMap(),
+                anyMap(), anyListOf(QuarantinedMessage.class))).thenReturn(accountMap);
+        // act
+        Future<Map<Integer, Account>> result1 = submit(PARTITION_ID1, ACCOUNT_ID1,
+                ACCOUNT_VALUE1, FROM_OFFSET1, NEXT_OFFSET1);
+        Future<Map<Integer, Account>> result2 = submit(PARTITION_ID2, ACCOUNT_ID2,
+                ACCOUNT_VALUE2, FROM_OFFSET2, NEXT_OFFSET2);
+        // assert
+        // each processor gets accounts of its batch
+        assertEquals(Collections.singleton(ACCOUNT_ID1), result1.get().keySet());
+        assertEquals(Collections.singleton(ACCOUNT_ID2), result2.get().keySet());
+        Map<Integer, Long> fromOffsets = new HashMap<>();
+        fromOffsets.put(PARTITION_ID1, FROM_OFFSET1);
+        fromOffsets.put(PARTITION_ID2, FROM_OFFSET2);
+        Map<Integer, Long> partitionOffsets = new HashMap<>();
+        partitionOffsets.put(PARTITION_ID1, NEXT_OFFSET1);
+        partitionOffsets.put(PARTITION_ID2, NEXT_OFFSET2);
+        verify(mockBatchAccountService).addAmounts(any(AddOperationArray.class),
+                eq(fromOffsets), eq(partitionOffsets), eq(NO_QUARANTINED_MESSAGES));
+        verifyNoMoreInteractions(mockBatchAccountService);
+        assertEquals(1, sutGroupCommitCoordinator.getCommitsNum());
+        assertEquals(2, sutGroupCommitCoordinator.getBatchesNum());
+    }
+
+    @Test
+    public void failedGroupShouldBeCommittedBatchByBatch() throws Exception {
+        // arrange
+        when(mockBatchAccountService.addAmounts(any(AddOperationArray.class), anyMap(),
+                anyMap(), anyListOf(QuarantinedMessage.class)))
+                .thenThrow(new DataIntegrityViolationException("poison"));
+        when(mockBatchAccountService.addAmounts(batch(ACCOUNT_ID1, ACCOUNT_VALUE1),
+                PARTITION_ID1, FROM_OFFSET1, NEXT_OFFSET1, NO_QUARANTINED_MESSAGES))
+                .thenReturn(Collections.singletonMap(ACCOUNT_ID1,
+                                account(ACCOUNT_ID1, ACCOUNT_VALUE1)));
+        when(mockBatchAccountService.addAmounts(batch(ACCOUNT_ID2, ACCOUNT_VALUE2),
+                PARTITION_ID2, FROM_OFFSET2, NEXT_OFFSET2, NO_QUARANTINED_MESSAGES))
+                .thenThrow(new DataIntegrityViolationException("poison"));
+        // act
+        Future<Map<Integer, Account>> result1 = submit(PARTITION_ID1, ACCOUNT_ID1,
+                ACCOUNT_VALUE1, FROM_OFFSET1, NEXT_OFFSET1);
+        Future<Map<Integer, Account>> result2 = submit(PARTITION_ID2, ACCOUNT_ID2,
+                ACCOUNT_VALUE2, FROM_OFFSET2, NEXT_OFFSET2);
+        // assert
+        assertEquals(Collections.singleton(ACCOUNT_ID1), result1.get().keySet());
+        try {
+            result2.get();
+            fail("Failure of batch must be thrown to its processor.");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof DataIntegrityViolationException);
+        }
+        assertEquals(1, sutGroupCommitCoordinator.getFailedGroupsNum());
+    }
+
+    @Test
+    public void errorOfCommitShouldFailBatchesAndKeepCommitter() throws Exception {
+        // arrange
+        Error error = new Error("broken");
+        when(mockBatchAccountService.addAmounts(any(AddOperationArray.class), anyMap(),
+                anyMap(), anyListOf(QuarantinedMessage.class)))
+                .thenThrow(error)
+                .thenReturn(Collections.<Integer, Account>emptyMap());
+        when(mockBatchAccountService.addAmounts(any(AddOperationArray.class), anyInt(),
+                anyLong(), anyLong(), anyListOf(QuarantinedMessage.class))).thenThrow(error);
+        // act
+        Future<Map<Integer, Account>> result1 = submit(PARTITION_ID1, ACCOUNT_ID1,
+                ACCOUNT_VALUE1, FROM_OFFSET1, NEXT_OFFSET1);
+        Future<Map<Integer, Account>> result2 = submit(PARTITION_ID2, ACCOUNT_ID2,
+                ACCOUNT_VALUE2, FROM_OFFSET2, NEXT_OFFSET2);
+        // assert
+        for (Future<Map<Integer, Account>> result : Arrays.asList(result1, result2)) {
+            try {
+                result.get();
+                fail("Error of commit must be thrown to processor.");
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof IllegalStateException);
+                assertEquals(error, ex.getCause().getCause());
+            }
+        }
+        // next group is still committed by committer
+        result1 = submit(PARTITION_ID1, ACCOUNT_ID1, ACCOUNT_VALUE1, FROM_OFFSET1,
+                NEXT_OFFSET1);
+        result2 = submit(PARTITION_ID2, ACCOUNT_ID2, ACCOUNT_VALUE2, FROM_OFFSET2,
+                NEXT_OFFSET2);
+        assertTrue(result1.get().isEmpty());
+        assertTrue(result2.get().isEmpty());
+        verify(mockBatchAccountService, times(2)).addAmounts(any(AddOperationArray.class),
+                anyMap(), anyMap(), anyListOf(QuarantinedMessage.class));
+    }
+
+    @Test
+    public void stoppedCoordinatorShouldCommitBatchAlone() throws Exception {
+        // arrange
+        sutGroupCommitCoordinator.destroy();
+        // act
+        sutGroupCommitCoordinator.commit(PARTITION_ID1, batch(ACCOUNT_ID1, ACCOUNT_VALUE1),
+                FROM_OFFSET1, NEXT_OFFSET1, NO_QUARANTINED_MESSAGES);
+        // assert
+        verify(mockBatchAccountService, only()).addAmounts(batch(ACCOUNT_ID1, ACCOUNT_VALUE1),
+                PARTITION_ID1, FROM_OFFSET1, NEXT_OFFSET1, NO_QUARANTINED_MESSAGES);
+    }
+
+    // Commits one-operation batch by processor thread.
+    private Future<Map<Integer, Account>> submit(final int partitionId, final int id,
+            final long value, final long fromOffset, final long nextOffset) {
+        return processorExecutorService.submit(new Callable<Map<Integer, Account>>() {
+
+            @Override
+            public Map<Integer, Account> call() {
+                return sutGroupCommitCoordinator.commit(partitionId, batch(id, value),
+                        fromOffset, nextOffset, NO_QUARANTINED_MESSAGES);
+            }
+        });
+    }
+
+    private static AddOperationArray batch(int id, long value) {
+        return AddOperationArray.of(Arrays.asList(new AddOperation(id, value)));
+    }
+
+    private static Account account(int id, long amount) {
+        Account account = new Account();
+        account.setId(id);
+        account.setAmount(amount);
+        return account;
+    }
+}
@@ -0,0 +1,204 @@
+package com.nestos.accountservice.processor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import kafka.utils.ZKStringSerializer$;
+import org.I0Itec.zkclient.ZkClient;
+import org.apache.zookeeper.server.NIOServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+import org.junit.After;
+import org.junit.AfterClass;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * PartitionCoordinator tests. Coordinators run against embedded ZooKeeper server.
+ *
+ * @author Roman Osipov
+ */
+public class PartitionCoordinatorTest {
+
+    //-------------------NestedClasses-----------------------------------------
+    // Logs ownership changes of all nodes in order.
+    private static class RecordingListener implements PartitionOwnershipListener {
+
+        private final String nodeId;
+        private final List<String> events;
+
+        public RecordingListener(String nodeId, List<String> events) {
+            this.nodeId = nodeId;
+            this.events = events;
+        }
+
+        @Override
+        public void partitionsAssigned(Set<Integer> partitions) {
+            for (Integer partition : partitions) {
+                events.add(nodeId + "+" + partition);
+            }
+        }
+
+        @Override
+        public void partitionsRevoked(Set<Integer> partitions) {
+            for (Integer partition : partitions) {
+                events.add(nodeId + "-" + partition);
+            }
+        }
+    }
+
+    //-------------------Constants---------------------------------------------
+    private static final String ROOT_PATH = "/accountService/testAccountTopic";
+    private static final String NODE_A = "nodeA";
+    private static final String NODE_B = "nodeB";
+    private static final int PARTITIONS_NUM = 5;
+    private static final int TICK_TIME_MS = 500;
+    private static final int SESSION_TIMEOUT_MS = 6000;
+    private static final int CONNECTION_TIMEOUT_MS = 10000;
+    private static final long AWAIT_TIMEOUT_MS = 10000;
+
+    //--------------------Fields-----------------------------------------------
+    @ClassRule
+    public static TemporaryFolder zooKeeperFolder = new TemporaryFolder();
+
+    private static NIOServerCnxnFactory serverFactory;
+
+    private ZkClient zkClientA;
+    private ZkClient zkClientB;
+    private PartitionCoordinator sutCoordinatorA;
+    private PartitionCoordinator sutCoordinatorB;
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    //-------------------Constructors------------------------------------------
+    public PartitionCoordinatorTest() {
+    }
+
+    //-------------------Methods-----------------------------------------------
+    @BeforeClass
+    public static void startZooKeeper() throws IOException, InterruptedException {
+        ZooKeeperServer server = new ZooKeeperServer(zooKeeperFolder.newFolder(),
+                zooKeeperFolder.newFolder(), TICK_TIME_MS);
+        serverFactory = new NIOServerCnxnFactory();
+        serverFactory.configure(new InetSocketAddress("127.0.0.1", 0), 100);
+        serverFactory.startup(server);
+    }
+
+    @AfterClass
+    public static void stopZooKeeper() {
+        serverFactory.shutdown();
+    }
+
+    @Before
+    public void setUp() {
+        zkClientA = newZkClient();
+        zkClientB = newZkClient();
+        sutCoordinatorA = new PartitionCoordinator(zkClientA, ROOT_PATH, NODE_A);
+        sutCoordinatorB = new PartitionCoordinator(zkClientB, ROOT_PATH, NODE_B);
+    }
+
+    @After
+    public void tearDown() {
+        sutCoordinatorB.stop();
+        sutCoordinatorA.stop();
+        zkClientB.close();
+        zkClientA.close();
+    }
+
+    @Test
+    public void assignShouldSplitPartitionsRoundRobin() {
+        List<String> nodes = Arrays.asList(NODE_A, NODE_B);
+        assertEquals(new TreeSet<>(Arrays.asList(0, 2, 4)),
+                PartitionCoordinator.assign(nodes, NODE_A, PARTITIONS_NUM));
+        assertEquals(new TreeSet<>(Arrays.asList(1, 3)),
+                PartitionCoordinator.assign(nodes, NODE_B, PARTITIONS_NUM));
+        assertTrue(PartitionCoordinator.assign(nodes, "nodeC", PARTITIONS_NUM).isEmpty());
+    }
+
+    @Test
+    public void standaloneCoordinatorShouldOwnAllPartitions() {
+        // arrange
+        PartitionCoordinator sutStandalone = new PartitionCoordinator();
+        // act
+        sutStandalone.start(PARTITIONS_NUM, new RecordingListener(NODE_A, events));
+        // assert
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4}, sutStandalone.getOwnedPartitions());
+        assertEquals(PARTITIONS_NUM, events.size());
+    }
+
+    @Test
+    public void singleNodeShouldOwnAllPartitions() {
+        // act
+        sutCoordinatorA.start(PARTITIONS_NUM, new RecordingListener(NODE_A, events));
+        // assert
+        assertArrayEquals(new int[]{0, 1, 2, 3, 4}, sutCoordinatorA.getOwnedPartitions());
+        assertTrue(sutCoordinatorA.isOwned(0));
+        assertEquals(NODE_A, zkClientB.<String>readData(ROOT_PATH + "/owners/0"));
+    }
+
+    @Test
+    public void joinedNodeShouldTakePartitionsAfterHandoff() throws InterruptedException {
+        // arrange
+        sutCoordinatorA.start(PARTITIONS_NUM, new RecordingListener(NODE_A, events));
+        // act
+        sutCoordinatorB.start(PARTITIONS_NUM, new RecordingListener(NODE_B, events));
+        // assert
+        awaitOwned(sutCoordinatorA, new int[]{0, 2, 4});
+        awaitOwned(sutCoordinatorB, new int[]{1, 3});
+        assertTrue("Partition is revoked before it is assigned to other node",
+                events.indexOf(NODE_A + "-1") < events.indexOf(NODE_B + "+1"));
+        assertTrue(events.indexOf(NODE_A + "-3") < events.indexOf(NODE_B + "+3"));
+        assertTrue(!sutCoordinatorA.isOwned(1) && sutCoordinatorB.isOwned(1));
+    }
+
+    @Test
+    public void stoppedNodeShouldHandPartitionsOff() throws InterruptedException {
+        // arrange
+        sutCoordinatorA.start(PARTITIONS_NUM, new RecordingListener(NODE_A, events));
+        sutCoordinatorB.start(PARTITIONS_NUM, new RecordingListener(NODE_B, events));
+        awaitOwned(sutCoordinatorB, new int[]{1, 3});
+        // act
+        sutCoordinatorB.stop();
+        // assert
+        awaitOwned(sutCoordinatorA, new int[]{0, 1, 2, 3, 4});
+        assertTrue(events.indexOf(NODE_B + "-1") < events.lastIndexOf(NODE_A + "+1"));
+    }
+
+    @Test
+    public void partitionsOfFailedNodeShouldBeTakenOver() throws InterruptedException {
+        // arrange
+        sutCoordinatorA.start(PARTITIONS_NUM, new RecordingListener(NODE_A, events));
+        sutCoordinatorB.start(PARTITIONS_NUM, new RecordingListener(NODE_B, events));
+        awaitOwned(sutCoordinatorB, new int[]{1, 3});
+        // act
+        // session ends without handoff, ephemeral member node and leases are deleted
+        zkClientB.close();
+        sutCoordinatorB = new PartitionCoordinator(); // nothing to stop in tearDown
+        // assert
+        awaitOwned(sutCoordinatorA, new int[]{0, 1, 2, 3, 4});
+    }
+
+    private static ZkClient newZkClient() {
+        return new ZkClient("127.0.0.1:" + serverFactory.getLocalPort(), SESSION_TIMEOUT_MS,
+                CONNECTION_TIMEOUT_MS, ZKStringSerializer$.MODULE$);
+    }
+
+    private static void awaitOwned(PartitionCoordinator coordinator, int[] partitions)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + AWAIT_TIMEOUT_MS;
+        while (!Arrays.equals(partitions, coordinator.getOwnedPartitions())
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertArrayEquals(partitions, coordinator.getOwnedPartitions());
+    }
+}
@@ -1,27 +1,35 @@
 package com.nestos.accountservice.processor;
 
+import com.nestos.accountservice.cache.BalanceCache;
 import com.nestos.accountservice.domain.Account;
 import com.nestos.accountservice.domain.AddOperation;
+import com.nestos.accountservice.domain.AddOperationArray;
 import com.nestos.accountservice.domain.Partition;
-import com.nestos.accountservice.jpa.AccountServiceImpl;
+import com.nestos.accountservice.domain.QuarantinedMessage;
 import com.nestos.accountservice.kafka.KafkaClient;
+import com.nestos.accountservice.kafka.OperationBatch;
+import com.nestos.accountservice.kafka.OperationBatch.RejectedMessage;
 import com.nestos.accountservice.repository.PartitionRepository;
 import com.nestos.accountservice.service.BatchAccountService;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Test;
 import org.junit.Before;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
-import org.springframework.cache.CacheManager;
 import static org.mockito.Mockito.*;
-import org.springframework.cache.Cache;
+import org.springframework.dao.DeadlockLoserDataAccessException;
+import org.springframework.dao.OptimisticLockingFailureException;
 
 /**
  * PartitionProcessor test.
@@ -40,6 +48,10 @@ public class PartitionProcessorTest {
     private static final long VALID_ACCOUNT_VALUE2 = 73;
     private static final List<AddOperation> EMPTY_ADD_OPERATIONS_LIST
             = new ArrayList<>();
+    private static final List<QuarantinedMessage> NO_QUARANTINED_MESSAGES
+            = Collections.emptyList();
+    // both operations are packed into one envelope message
+    private static final long VALID_NEXT_OFFSET = VALID_PARTITION_OFFSET + 1;
 
     //--------------------Mocks------------------------------------------------   
     @Mock
@@ -52,16 +64,17 @@ public class PartitionProcessorTest {
     private BatchAccountService mockBatchAccountService;
 
     @Mock
-    private CacheManager mockCacheManager;
-
-    @Mock
-    private Cache mockCache;
+    private BalanceCache mockBalanceCache;
 
     //--------------------Fields-----------------------------------------------
     private Partition stubPartition;
 
     List<AddOperation> stubAddOperations;
 
+    AddOperationArray stubOperations;
+
+    OperationBatch stubOperationBatch;
+
     Map<Integer, Account> stubAccountMap;
 
     AtomicBoolean stubIsIdle;
@@ -81,6 +94,8 @@ public class PartitionProcessorTest {
         stubAddOperations = new ArrayList<>();
         stubAddOperations.add(new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE1));
         stubAddOperations.add(new AddOperation(VALID_ACCOUNT_ID2, VALID_ACCOUNT_VALUE2));
+        stubOperations = AddOperationArray.of(stubAddOperations);
+        stubOperationBatch = new OperationBatch(stubAddOperations, VALID_NEXT_OFFSET);
 
         stubAccountMap = new HashMap<>();
         Account account = new Account();
@@ -93,9 +108,6 @@ public class PartitionProcessorTest {
         stubAccountMap.put(VALID_ACCOUNT_ID2, account);
 
         stubIsIdle = new AtomicBoolean();
-
-        when(mockCacheManager.getCache(AccountServiceImpl.ACCOUNT_CACHE_NAME))
-                .thenReturn(mockCache);
     }
 
     @Test
@@ -103,23 +115,32 @@ public class PartitionProcessorTest {
         // arrange 
         when(mockPartitionRepository.findOne(VALID_PARTITION_ID)).thenReturn(stubPartition);
         when(mockKafkaClient.read(VALID_PARTITION_ID, VALID_PARTITION_OFFSET))
-                .thenReturn(stubAddOperations);
-        when(mockBatchAccountService.addAmounts(stubAddOperations, VALID_PARTITION_ID,
-                VALID_PARTITION_OFFSET + stubAddOperations.size())).thenReturn(stubAccountMap);
+                .thenReturn(stubOperationBatch);
+        when(mockBatchAccountService.addAmounts(stubOperations, VALID_PARTITION_ID,
+                VALID_PARTITION_OFFSET, VALID_NEXT_OFFSET, NO_QUARANTINED_MESSAGES))
+                .thenReturn(stubAccountMap);
         PartitionProcessor sutPartitionProcessor = new PartitionProcessor(VALID_PARTITION_ID,
-                mockKafkaClient, mockPartitionRepository, mockBatchAccountService, mockCacheManager,
+                mockKafkaClient, mockPartitionRepository, mockBatchAccountService, mockBalanceCache,
                 stubIsIdle);
         // act
         sutPartitionProcessor.pullFromPartitionAndSaveToAccountRepository();
         // assert
         verify(mockPartitionRepository, only()).findOne(VALID_PARTITION_ID);
-        verify(mockKafkaClient, only()).read(VALID_PARTITION_ID, VALID_PARTITION_OFFSET);
-        verify(mockBatchAccountService, only()).addAmounts(stubAddOperations, VALID_PARTITION_ID,
-                VALID_PARTITION_OFFSET + stubAddOperations.size());
+        verify(mockKafkaClient).getLag(VALID_PARTITION_ID);
+        verify(mockKafkaClient).read(VALID_PARTITION_ID, VALID_PARTITION_OFFSET);
+        verify(mockKafkaClient).batchApplied(eq(VALID_PARTITION_ID), same(stubOperationBatch),
+                anyLong());
+        verifyNoMoreInteractions(mockKafkaClient);
+        verify(mockBatchAccountService).readShardsOffset(VALID_PARTITION_ID);
+        verify(mockBatchAccountService).addAmounts(stubOperations, VALID_PARTITION_ID,
+                VALID_PARTITION_OFFSET, VALID_NEXT_OFFSET, NO_QUARANTINED_MESSAGES);
+        verifyNoMoreInteractions(mockBatchAccountService);
+        verify(mockBalanceCache).advanceWatermark(VALID_PARTITION_ID, VALID_NEXT_OFFSET);
         for (Account account : stubAccountMap.values()) {
-            verify(mockCache).put(account.getId(), account.getAmount());
+            verify(mockBalanceCache).putIfNewer(account.getId(), account.getAmount(),
+                    VALID_NEXT_OFFSET);
         }
-        verifyNoMoreInteractions(mockCache);
+        verifyNoMoreInteractions(mockBalanceCache);
         assertFalse("Process do helpful work. It,s not idle", stubIsIdle.get());
     }
 
@@ -127,12 +148,12 @@ public class PartitionProcessorTest {
     public void whenPartitionNotFoundInRepositoryThenKafkaClientMustReadThisZeroOffset() {
         // arrange
         when(mockKafkaClient.read(VALID_PARTITION_ID, 0))
-                .thenReturn(stubAddOperations);
-        when(mockBatchAccountService.addAmounts(stubAddOperations, VALID_PARTITION_ID,
-                VALID_PARTITION_OFFSET + stubAddOperations.size())).thenReturn(stubAccountMap);
+                .thenReturn(new OperationBatch(stubAddOperations, stubAddOperations.size()));
+        when(mockBatchAccountService.addAmounts(stubOperations, VALID_PARTITION_ID, 0,
+                stubAddOperations.size(), NO_QUARANTINED_MESSAGES)).thenReturn(stubAccountMap);
 
         PartitionProcessor sutPartitionProcessor = new PartitionProcessor(VALID_PARTITION_ID,
-                mockKafkaClient, mockPartitionRepository, mockBatchAccountService, mockCacheManager,
+                mockKafkaClient, mockPartitionRepository, mockBatchAccountService, mockBalanceCache,
                 stubIsIdle);
         // act
         sutPartitionProcessor.pullFromPartitionAndSaveToAccountRepository();
@@ -145,16 +166,335 @@ public class PartitionProcessorTest {
         // arrange 
         when(mockPartitionRepository.findOne(VALID_PARTITION_ID)).thenReturn(stubPartition);
         when(mockKafkaClient.read(VALID_PARTITION_ID, VALID_PARTITION_OFFSET))
-                .thenReturn(EMPTY_ADD_OPERATIONS_LIST);
+                .thenReturn(new OperationBatch(EMPTY_ADD_OPERATIONS_LIST, VALID_PARTITION_OFFSET));
         PartitionProcessor sutPartitionProcessor = new PartitionProcessor(VALID_PARTITION_ID,
-                mockKafkaClient, mockPartitionRepository, mockBatchAccountService, mockCacheManager,
+                mockKafkaClient, mockPartitionRepository, mockBatchAccountService, mockBalanceCache,
                 stubIsIdle);
         // act
         sutPartitionProcessor.pullFromPartitionAndSaveToAccountRepository();
         // assert
+        verify(mockBatchAccountService).readShardsOffset(VALID_PARTITION_ID);
         verifyNoMoreInteractions(mockBatchAccountService);
-        verifyNoMoreInteractions(mockCache);
+        verifyNoMoreInteractions(mockBalanceCache);
         assertTrue("Process not do helpful work. It,s idle", stubIsIdle.get());
     }
 
+    @Test
+    public void nextPullShouldUseOffsetKeptInMemory() {
+        // arrange
+        when(mockPartitionRepository.findOne(VALID_PARTITION_ID)).thenReturn(stubPartition);
+        when(mockKafkaClient.read(VALID_PARTITION_ID, VALID_PARTITION_OFFSET))
+                .thenReturn(stubOperationBatch);
+        when(mockKafkaClient.read(VALID_PARTITION_ID, VALID_NEXT_OFFSET))
+                .thenReturn(new OperationBatch(EMPTY_ADD_OPERATIONS_LIST, VALID_NEXT_OFFSET));
+        when(mockBatchAccountService.addAmounts(stubOperations, VALID_PARTITION_ID,
+                VALID_PARTITION_OFFSET, VALID_NEXT_OFFSET, NO_QUARANTINED_MESSAGES))
+                .thenReturn(stubAccountMap);
+        PartitionProcessor sutPartitionProcessor = new PartitionProcessor(VALID_PARTITION_ID,
+                mockKafkaClient, mockPartitionRepository, mockBatchAccountService, mockBalanceCache,
+                stubIsIdle);
+        // act
+        sutPartitionProcessor.pullFromPartitionAndSaveToAccountRepository();
+        sutPartitionProcessor.pullFromPartitionAndSaveToAccountRepository();
+        // assert
+        verify(mockPartitionRepository, times(1)).findOne(VALID_PARTITION_ID);
+        verify(mockKafkaClient).read(VALID_PARTITION_ID, VALID_NEXT_OFFSET);
+        assertEquals(VALID_NEXT_OFFSET, sutPartitionProcessor.getOffset());
+    }
+
+    @Test
+    public void failedPullShouldReadOffsetFromRepositoryAgain() {
+        // arrange
+        when(mockPartitionRepository.findOne(VALID_PARTITION_ID)).thenReturn(stubPartition);
+        when(mockKafkaClient.read(VALID_PARTITION_ID, VALID_PARTITION_OFFSET))
+                .thenReturn(stubOperationBatch);
+        when(mockBatchAccountService.addAmounts(stubOperations, VALID_PARTITION_ID,
+                VALID_PARTITION_OFFSET, VALID_NEXT_OFFSET, NO_QUARANTINED_MESSAGES))
+                .thenThrow(new RuntimeException()).thenReturn(stubAccountMap);
+        PartitionProcessor sutPartitionProcessor = new PartitionProcessor(VALID_PARTITION_ID,
+                mockKafkaClient, mockPartitionRepository, mockBatchAccountService, mockBalanceCache,
+                stubIsIdle);
+        try {
+            sutPartitionProcessor.pullFromPartitionAndSaveToAccountRepository();
+            fail("pull pass after commit failure.");
+        } catch (RuntimeException e) {
+            assertEquals(PartitionProcessor.UNKNOWN_OFFSET, sutPartitionProcessor.getOffset());
+        }
+        // act
+        sutPartitionProcessor.pullFromPartitionAndSaveToAccountRepository();
+        // assert
+        verify(mockPartitionRepository, times(2)).findOne(VALID_PARTITION_ID);
+        verify(mockKafkaClient, times(2)).read(VALID_PARTITION_ID, VALID_PARTITION_OFFSET);
+        assertEquals(VALID_NEXT_OFFSET, sutPartitionProcessor.getOffset());
+    }
+
+    @Test
+    public void catchUpPullShouldNetOperationsOfSeveralBatches() {
+        // arrange
+        long secondNextOffset = VALID_NEXT_OFFSET + 1;
+        List<AddOperation> secondAddOperations = new ArrayList<>();
+        secondAddOperations.add(new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE2));
+        List<AddOperation> nettedAddOperations = new ArrayList<>();
+        nettedAddOperations.add(new AddOperation(VALID_ACCOUNT_ID1,
+                VALID_ACCOUNT_VALUE1 + VALID_ACCOUNT_VALUE2));
+        nettedAddOperations.add(new AddOperation(VALID_ACCOUNT_ID2, VALID_ACCOUNT_VALUE2));
+        when(mockPartitionRepository.findOne(VALID_PARTITION_ID)).thenReturn(stubPartition);
+        when(mockKafkaClient.getLag(VALID_PARTITION_ID))
+                .thenReturn(PartitionProcessor.DEFAULT_CATCH_UP_LAG);
+        when(mockKafkaClient.read(eq(VALID_PARTITION_ID), eq(VALID_PARTITION_OFFSET), anyLong()))
+                .thenReturn(stubOperationBatch);
+        when(mockKafkaClient.read(eq(VALID_PARTITION_ID), eq(VALID_NEXT_OFFSET), anyLong()))
+                .thenReturn(new OperationBatch(secondAddOperations, secondNextOffset));
+        when(mockKafkaClient.read(eq(VALID_PARTITION_ID), eq(secondNextOffset), anyLong()))
+                .thenReturn(new OperationBatch(EMPTY_ADD_OPERATIONS_LIST, secondNextOffset));
+        when(mockBatchAccountService.addAmounts(any(AddOperationArray.class),
+                eq(VALID_PARTITION_ID), eq(VALID_PARTITION_OFFSET), eq(secondNextOffset),
+                eq(NO_QUARANTINED_MESSAGES))).thenReturn(stubAccountMap);
+        PartitionProcessor sutPartitionProcessor = new PartitionProcessor(VALID_PARTITION_ID,
+                mockKafkaClient, mockPartitionRepository, mockBatchAccountService, mockBalanceCache,
+                stubIsIdle);
+        // act
+        sutPartitionProcessor.pullFromPartitionAndSaveToAccountRepository();
+        // assert
+        verify(mockBatchAccountService).readShardsOffset(VALID_PARTITION_ID);
+        verify(mockBatchAccountService).addAmounts(
+                AddOperationArray.of(nettedAddOperations), VALID_PARTITION_ID,
+                VALID_PARTITION_OFFSET, secondNextOffset, NO_QUARANTINED_MESSAGES);
+        verifyNoMoreInteractions(mockBatchAccountService);
+        assertEquals(secondNextOffset, sutPartitionProcessor.getOffset());
+        assertTrue(sutPartitionProcessor.isCatchingUp());
+        assertTrue(sutPartitionProcessor.getReplayRate() > 0);
+    }
+
+    @Test
+    public void transientFailureShouldBeRetriedWithinPull() {
+        // arrange
+        when(mockPartitionRepository.findOne(VALID_PARTITION_ID)).thenReturn(stubPartition);
+        when(mockKafkaClient.read(VALID_PARTITION_ID, VALID_PARTITION_OFFSET))
+                .thenReturn(stubOperationBatch);
+        when(mockBatchAccountService.addAmounts(stubOperations, VALID_PARTITION_ID,
+                VALID_PARTITION_OFFSET, VALID_NEXT_OFFSET, NO_QUARANTINED_MESSAGES))
+                .thenThrow(new DeadlockLoserDataAccessException("deadlock", null))
+                .thenReturn(stubAccountMap);
+        PartitionProcessor sutPartitionProcessor = new PartitionProcessor(VALID_PARTITION_ID,
+                mockKafkaClient, mockPartitionRepository, mockBatchAccountService, mockBalanceCache,
+                stubIsIdle);
+        // act
+        boolean applied = sutPartitionProcessor.pullFromPartitionAndSaveToAccountRepository();
+        // assert
+        assertTrue(applied);
+        verify(mockBatchAccountService, times(2)).addAmounts(stubOperations,
+                VALID_PARTITION_ID, VALID_PARTITION_OFFSET, VALID_NEXT_OFFSET,
+                NO_QUARANTINED_MESSAGES);
+        assertEquals(1, sutPartitionProcessor.getTransientRetriesNum());
+        assertEquals(VALID_NEXT_OFFSET, sutPartitionProcessor.getOffset());
+    }
+
+    @Test
+    public void commitFencedByOtherNodeShouldNotBeRetriedOrQuarantined() {
+        // arrange
+        when(mockPartitionRepository.findOne(VALID_PARTITION_ID)).thenReturn(stubPartition);
+        when(mockKafkaClient.read(VALID_PARTITION_ID, VALID_PARTITION_OFFSET))
+                .thenReturn(stubOperationBatch);
+        when(mockBatchAccountService.addAmounts(stubOperations, VALID_PARTITION_ID,
+                VALID_PARTITION_OFFSET, VALID_NEXT_OFFSET, NO_QUARANTINED_MESSAGES))
+                .thenThrow(new OptimisticLockingFailureException("fenced"));
+        PartitionProcessor sutPartitionProcessor = new PartitionProcessor(VALID_PARTITION_ID,
+                mockKafkaClient, mockPartitionRepository, mockBatchAccountService, mockBalanceCache,
+                stubIsIdle);
+        sutPartitionProcessor.setQuarantineAttempts(1);
+        // act
+        for (int i = 0; i < 2; i++) {
+            try {
+                sutPartitionProcessor.pullFromPartitionAndSaveToAccountRepository();
+                fail("Fenced commit must be thrown.");
+            } catch (OptimisticLockingFailureException ex) {
+                // expected
+            }
+        }
+        // assert
+        // each pull commits once, batch isn't bisected
+        verify(mockBatchAccountService, times(2)).addAmounts(any(AddOperationArray.class),
+                anyInt(), anyLong(), anyLong(), anyListOf(QuarantinedMessage.class));
+        assertEquals(0, sutPartitionProcessor.getTransientRetriesNum());
+        assertEquals(0, sutPartitionProcessor.getBisectionsNum());
+        assertEquals(PartitionProcessor.UNKNOWN_OFFSET, sutPartitionProcessor.getOffset());
+        verify(mockBalanceCache, never()).advanceWatermark(anyInt(), anyLong());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void repeatedlyFailingMessageShouldBeIsolatedAndQuarantined() {
+        // arrange - three messages, the second one can't be applied
+        AddOperation badAddOperation = new AddOperation(VALID_ACCOUNT_ID2, Long.MAX_VALUE);
+        List<AddOperation> addOperations = new ArrayList<>();
+        addOperations.add(stubAddOperations.get(0));
+        addOperations.add(badAddOperation);
+        addOperations.add(stubAddOperations.get(1));
+        long lastNextOffset = VALID_PARTITION_OFFSET + 3;
+        OperationBatch operationBatch = new OperationBatch(addOperations, lastNextOffset, 0,
+                new long[]{VALID_PARTITION_OFFSET, VALID_PARTITION_OFFSET + 1,
+                    VALID_PARTITION_OFFSET + 2}, new int[]{0, 1, 2},
+                new ArrayList<OperationBatch.RejectedMessage>());
+        RuntimeException poisonException = new IllegalStateException("poison");
+        when(mockPartitionRepository.findOne(VALID_PARTITION_ID)).thenReturn(stubPartition);
+        when(mockKafkaClient.read(VALID_PARTITION_ID, VALID_PARTITION_OFFSET))
+                .thenReturn(operationBatch);
+        when(mockBatchAccountService.addAmounts(AddOperationArray.of(addOperations),
+                VALID_PARTITION_ID, VALID_PARTITION_OFFSET, lastNextOffset,
+                NO_QUARANTINED_MESSAGES)).thenThrow(poisonException);
+        when(mockBatchAccountService.addAmounts(
+                AddOperationArray.of(addOperations.subList(1, 3)), VALID_PARTITION_ID,
+                VALID_PARTITION_OFFSET + 1, lastNextOffset, NO_QUARANTINED_MESSAGES))
+                .thenThrow(poisonException);
+        when(mockBatchAccountService.addAmounts(
+                AddOperationArray.of(addOperations.subList(1, 2)), VALID_PARTITION_ID,
+                VALID_PARTITION_OFFSET + 1, VALID_PARTITION_OFFSET + 2, NO_QUARANTINED_MESSAGES))
+                .thenThrow(poisonException);
+        PartitionProcessor sutPartitionProcessor = new PartitionProcessor(VALID_PARTITION_ID,
+                mockKafkaClient, mockPartitionRepository, mockBatchAccountService, mockBalanceCache,
+                stubIsIdle);
+        sutPartitionProcessor.setQuarantineAttempts(1);
+        try {
+            sutPartitionProcessor.pullFromPartitionAndSaveToAccountRepository();
+            fail("pull pass after commit failure.");
+        } catch (IllegalStateException e) {
+        }
+        // act
+        sutPartitionProcessor.pullFromPartitionAndSaveToAccountRepository();
+        // assert
+        verify(mockBatchAccountService).addAmounts(
+                AddOperationArray.of(addOperations.subList(0, 1)), VALID_PARTITION_ID,
+                VALID_PARTITION_OFFSET, VALID_PARTITION_OFFSET + 1, NO_QUARANTINED_MESSAGES);
+        verify(mockBatchAccountService).addAmounts(
+                AddOperationArray.of(addOperations.subList(2, 3)), VALID_PARTITION_ID,
+                VALID_PARTITION_OFFSET + 2, lastNextOffset, NO_QUARANTINED_MESSAGES);
+        ArgumentCaptor<List> quarantinedCaptor = ArgumentCaptor.forClass(List.class);
+        verify(mockBatchAccountService).addAmounts(eq(new AddOperationArray()),
+                eq(VALID_PARTITION_ID), eq(VALID_PARTITION_OFFSET + 1),
+                eq(VALID_PARTITION_OFFSET + 2), quarantinedCaptor.capture());
+        List<QuarantinedMessage> quarantinedMessages = quarantinedCaptor.getValue();
+        assertEquals(1, quarantinedMessages.size());
+        assertEquals(Long.valueOf(VALID_PARTITION_OFFSET + 1),
+                quarantinedMessages.get(0).getMessageOffset());
+        assertEquals(1, sutPartitionProcessor.getQuarantinedMessagesNum());
+        assertEquals(2, sutPartitionProcessor.getBisectionsNum());
+        assertEquals(lastNextOffset, sutPartitionProcessor.getOffset());
+    }
+
+    @Test
+    public void nextIdlePauseShouldDoubleWithinBounds() {
+        assertEquals(PartitionProcessor.MIN_IDLE_PAUSE_MS, PartitionProcessor.nextIdlePause(0));
+        assertEquals(2 * PartitionProcessor.MIN_IDLE_PAUSE_MS,
+                PartitionProcessor.nextIdlePause(PartitionProcessor.MIN_IDLE_PAUSE_MS));
+        assertEquals(PartitionProcessor.MAX_IDLE_PAUSE_MS,
+                PartitionProcessor.nextIdlePause(PartitionProcessor.MAX_IDLE_PAUSE_MS));
+    }
+
+    @Test
+    public void writeBehindPullShouldApplyBatchToTableWithoutCommit() {
+        // arrange
+        when(mockPartitionRepository.findOne(VALID_PARTITION_ID)).thenReturn(stubPartition);
+        when(mockKafkaClient.read(VALID_PARTITION_ID, VALID_PARTITION_OFFSET))
+                .thenReturn(stubOperationBatch);
+        WriteBehindTable mockWriteBehindTable = mock(WriteBehindTable.class);
+        when(mockWriteBehindTable.getAppliedOffset(VALID_PARTITION_ID))
+                .thenReturn(PartitionProcessor.UNKNOWN_OFFSET);
+        PartitionProcessor sutPartitionProcessor = new PartitionProcessor(VALID_PARTITION_ID,
+                mockKafkaClient, mockPartitionRepository, mockBatchAccountService, mockBalanceCache,
+                stubIsIdle);
+        sutPartitionProcessor.setWriteBehindTable(mockWriteBehindTable);
+        // act
+        boolean applied = sutPartitionProcessor.pullFromPartitionAndSaveToAccountRepository();
+        // assert
+        assertTrue(applied);
+        verify(mockWriteBehindTable).apply(VALID_PARTITION_ID, VALID_PARTITION_OFFSET,
+                stubOperationBatch);
+        verify(mockBatchAccountService).readShardsOffset(VALID_PARTITION_ID);
+        verifyNoMoreInteractions(mockBatchAccountService);
+        verifyZeroInteractions(mockBalanceCache);
+        assertEquals(VALID_NEXT_OFFSET, sutPartitionProcessor.getOffset());
+    }
+
+    @Test
+    public void batchShouldEndAtOffsetOfShardsAheadOfPartition() {
+        // arrange
+        long shardsOffset = VALID_NEXT_OFFSET + 1;
+        List<AddOperation> addOperations = new ArrayList<>(stubAddOperations);
+        addOperations.add(new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE2));
+        addOperations.add(new AddOperation(VALID_ACCOUNT_ID2, VALID_ACCOUNT_VALUE2));
+        // messages: 42 - two operations, 43 - the third one, 44 - the last one is not applied
+        OperationBatch operationBatch = new OperationBatch(addOperations, shardsOffset + 1, 0,
+                new long[]{VALID_PARTITION_OFFSET, VALID_NEXT_OFFSET, shardsOffset},
+                new int[]{0, 2, 3}, Collections.<RejectedMessage>emptyList());
+        when(mockPartitionRepository.findOne(VALID_PARTITION_ID)).thenReturn(stubPartition);
+        when(mockBatchAccountService.readShardsOffset(VALID_PARTITION_ID))
+                .thenReturn(shardsOffset);
+        when(mockKafkaClient.getLag(VALID_PARTITION_ID))
+                .thenReturn(PartitionProcessor.DEFAULT_CATCH_UP_LAG);
+        when(mockKafkaClient.read(VALID_PARTITION_ID, VALID_PARTITION_OFFSET))
+                .thenReturn(operationBatch);
+        when(mockBatchAccountService.addAmounts(any(AddOperationArray.class),
+                eq(VALID_PARTITION_ID), eq(VALID_PARTITION_OFFSET), eq(shardsOffset),
+                eq(NO_QUARANTINED_MESSAGES))).thenReturn(stubAccountMap);
+        WriteBehindTable mockWriteBehindTable = mock(WriteBehindTable.class);
+        when(mockWriteBehindTable.getAppliedOffset(VALID_PARTITION_ID))
+                .thenReturn(PartitionProcessor.UNKNOWN_OFFSET);
+        PartitionProcessor sutPartitionProcessor = new PartitionProcessor(VALID_PARTITION_ID,
+                mockKafkaClient, mockPartitionRepository, mockBatchAccountService, mockBalanceCache,
+                stubIsIdle);
+        sutPartitionProcessor.setWriteBehindTable(mockWriteBehindTable);
+        // act
+        sutPartitionProcessor.pullFromPartitionAndSaveToAccountRepository();
+        // assert
+        // batch is committed without catch-up and write-behind
+        verify(mockBatchAccountService).addAmounts(AddOperationArray.of(addOperations.subList(0,
+                3)), VALID_PARTITION_ID, VALID_PARTITION_OFFSET, shardsOffset,
+                NO_QUARANTINED_MESSAGES);
+        verify(mockWriteBehindTable, never()).apply(anyInt(), anyLong(),
+                any(OperationBatch.class));
+        assertFalse(sutPartitionProcessor.isCatchingUp());
+        assertEquals(shardsOffset, sutPartitionProcessor.getOffset());
+    }
+
+    @Test
+    public void batchesShouldEndAtEachOffsetOfShardsAheadAtDifferentOffsets() {
+        // arrange
+        long lowShardsOffset = VALID_NEXT_OFFSET;
+        long highShardsOffset = VALID_NEXT_OFFSET + 1;
+        List<AddOperation> addOperations = new ArrayList<>(stubAddOperations);
+        addOperations.add(new AddOperation(VALID_ACCOUNT_ID1, VALID_ACCOUNT_VALUE2));
+        // messages: 42, 43 and 44 with one operation each
+        OperationBatch operationBatch = new OperationBatch(addOperations,
+                highShardsOffset + 1, 0, new long[]{VALID_PARTITION_OFFSET, lowShardsOffset,
+                    highShardsOffset}, new int[]{0, 1, 2},
+                Collections.<RejectedMessage>emptyList());
+        when(mockPartitionRepository.findOne(VALID_PARTITION_ID)).thenReturn(stubPartition);
+        // one shard is ahead at 43, other one at 44
+        when(mockBatchAccountService.readShardsOffset(VALID_PARTITION_ID))
+                .thenReturn(lowShardsOffset, highShardsOffset, -1L);
+        when(mockKafkaClient.read(VALID_PARTITION_ID, VALID_PARTITION_OFFSET))
+                .thenReturn(operationBatch);
+        when(mockKafkaClient.read(VALID_PARTITION_ID, lowShardsOffset))
+                .thenReturn(operationBatch.slice(1, 3));
+        when(mockBatchAccountService.addAmounts(any(AddOperationArray.class),
+                eq(VALID_PARTITION_ID), anyLong(), anyLong(), eq(NO_QUARANTINED_MESSAGES)))
+                .thenReturn(stubAccountMap);
+        PartitionProcessor sutPartitionProcessor = new PartitionProcessor(VALID_PARTITION_ID,
+                mockKafkaClient, mockPartitionRepository, mockBatchAccountService, mockBalanceCache,
+                stubIsIdle);
+        // act
+        sutPartitionProcessor.pullFromPartitionAndSaveToAccountRepository();
+        sutPartitionProcessor.pullFromPartitionAndSaveToAccountRepository();
+        // assert
+        // each batch ends at the nearest ahead shards, which cover it
+        verify(mockBatchAccountService).addAmounts(AddOperationArray.of(addOperations.subList(0,
+                1)), VALID_PARTITION_ID, VALID_PARTITION_OFFSET, lowShardsOffset,
+                NO_QUARANTINED_MESSAGES);
+        verify(mockBatchAccountService).addAmounts(AddOperationArray.of(addOperations.subList(1,
+                2)), VALID_PARTITION_ID, lowShardsOffset, highShardsOffset,
+                NO_QUARANTINED_MESSAGES);
+        verify(mockBatchAccountService, times(3)).readShardsOffset(VALID_PARTITION_ID);
+        assertEquals(highShardsOffset, sutPartitionProcessor.getOffset());
+    }
 }
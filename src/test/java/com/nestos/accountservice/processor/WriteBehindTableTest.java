@@ -0,0 +1,229 @@
+package com.nestos.accountservice.processor;
+
+import com.nestos.accountservice.cache.BalanceCache;
+import com.nestos.accountservice.domain.Account;
+import com.nestos.accountservice.domain.AddOperation;
+import com.nestos.accountservice.domain.AddOperationArray;
+import com.nestos.accountservice.domain.AmountsSnapshot;
+import com.nestos.accountservice.domain.QuarantinedMessage;
+import com.nestos.accountservice.kafka.OperationBatch;
+import com.nestos.accountservice.service.BatchAccountService;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import static org.mockito.Mockito.*;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DeadlockLoserDataAccessException;
+
+/**
+ * WriteBehindTable test.
+ *
+ * @author Roman Osipov
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class WriteBehindTableTest {
+
+    //-------------------Constants------------------------------------------------
+    private static final int PARTITION_ID = 3;
+    private static final long OFFSET = 42;
+    private static final int ACCOUNT_ID1 = 47;
+    private static final int ACCOUNT_ID2 = 53;
+    private static final long CACHED_AMOUNT = 1000;
+    private static final long COMMITTED_AMOUNT = 2000;
+    private static final long ABSENT_AMOUNT = Long.MIN_VALUE;
+
+    //--------------------Mocks------------------------------------------------
+    @Mock
+    private BatchAccountService mockBatchAccountService;
+
+    @Mock
+    private BalanceCache mockBalanceCache;
+
+    //--------------------Fields-----------------------------------------------
+    private WriteBehindTable sutWriteBehindTable;
+
+    //-------------------Constructors------------------------------------------
+    public WriteBehindTableTest() {
+    }
+
+    //-------------------Methods-----------------------------------------------
+    @Before
+    public void setUp() {
+        when(mockBalanceCache.getAmount(anyInt(), anyLong())).thenReturn(ABSENT_AMOUNT);
+        when(mockBalanceCache.getAmount(ACCOUNT_ID1, ABSENT_AMOUNT)).thenReturn(CACHED_AMOUNT);
+        when(mockBatchAccountService.readAmounts(Collections.singleton(ACCOUNT_ID2)))
+                .thenReturn(new AmountsSnapshot(Collections.singletonMap(ACCOUNT_ID2,
+                        COMMITTED_AMOUNT), Collections.singletonMap(PARTITION_ID, OFFSET)));
+        sutWriteBehindTable = new WriteBehindTable(mockBatchAccountService, mockBalanceCache);
+        sutWriteBehindTable.start(PARTITION_ID + 1);
+    }
+
+    @Test
+    public void applyShouldUpdateBalancesInMemory() {
+        // act
+        sutWriteBehindTable.apply(PARTITION_ID, OFFSET, batch(OFFSET + 1,
+                new AddOperation(ACCOUNT_ID1, 10), new AddOperation(ACCOUNT_ID2, 20)));
+        sutWriteBehindTable.apply(PARTITION_ID, OFFSET + 1, batch(OFFSET + 2,
+                new AddOperation(ACCOUNT_ID1, 5), new AddOperation(ACCOUNT_ID2, -3)));
+        // assert
+        assertEquals(CACHED_AMOUNT + 15, sutWriteBehindTable.getAmount(PARTITION_ID,
+                ACCOUNT_ID1, ABSENT_AMOUNT));
+        assertEquals(COMMITTED_AMOUNT + 17, sutWriteBehindTable.getAmount(PARTITION_ID,
+                ACCOUNT_ID2, ABSENT_AMOUNT));
+        assertEquals(OFFSET + 2, sutWriteBehindTable.getAppliedOffset(PARTITION_ID));
+        assertEquals(2, sutWriteBehindTable.getDirtyAccountsNum());
+        // balances of dirty accounts are read once
+        verify(mockBatchAccountService, only()).readAmounts(anySetOf(Integer.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void flushShouldCommitNetDeltasWithOffsetAndCacheBalances() {
+        // arrange
+        sutWriteBehindTable.apply(PARTITION_ID, OFFSET, batch(OFFSET + 1,
+                new AddOperation(ACCOUNT_ID1, 10), new AddOperation(ACCOUNT_ID1, 7)));
+        when(mockBatchAccountService.addAmounts(any(AddOperationArray.class), anyMap(),
+                anyMap(), anyList())).thenReturn(accountMap(ACCOUNT_ID1, CACHED_AMOUNT + 17));
+        // act
+        int flushedNum = sutWriteBehindTable.flush(Collections.singleton(PARTITION_ID));
+        // assert
+        assertEquals(1, flushedNum);
+        verify(mockBatchAccountService).addAmounts(
+                AddOperationArray.of(Arrays.asList(new AddOperation(ACCOUNT_ID1, 17))),
+                Collections.singletonMap(PARTITION_ID, OFFSET),
+                Collections.singletonMap(PARTITION_ID, OFFSET + 1),
+                Collections.<QuarantinedMessage>emptyList());
+        verify(mockBalanceCache).putIfNewer(ACCOUNT_ID1, CACHED_AMOUNT + 17, OFFSET + 1);
+        assertEquals(ABSENT_AMOUNT, sutWriteBehindTable.getAmount(PARTITION_ID, ACCOUNT_ID1,
+                ABSENT_AMOUNT));
+        assertEquals(0, sutWriteBehindTable.getDirtyAccountsNum());
+        assertEquals(1, sutWriteBehindTable.getFlushesNum());
+        // nothing is applied since flush
+        assertEquals(0, sutWriteBehindTable.flush(Collections.singleton(PARTITION_ID)));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void failedFlushShouldKeepDeltasForNextFlush() {
+        // arrange
+        sutWriteBehindTable.apply(PARTITION_ID, OFFSET, batch(OFFSET + 1,
+                new AddOperation(ACCOUNT_ID1, 10)));
+        when(mockBatchAccountService.addAmounts(any(AddOperationArray.class), anyMap(),
+                anyMap(), anyList()))
+                .thenThrow(new DeadlockLoserDataAccessException("deadlock", null))
+                .thenReturn(accountMap(ACCOUNT_ID1, CACHED_AMOUNT + 15));
+        // act
+        try {
+            sutWriteBehindTable.flush(Collections.singleton(PARTITION_ID));
+            fail("Flush failure must be thrown.");
+        } catch (DeadlockLoserDataAccessException ex) {
+            // expected
+        }
+        sutWriteBehindTable.apply(PARTITION_ID, OFFSET + 1, batch(OFFSET + 2,
+                new AddOperation(ACCOUNT_ID1, 5)));
+        sutWriteBehindTable.flush(Collections.singleton(PARTITION_ID));
+        // assert
+        ArgumentCaptor<AddOperationArray> deltasCaptor
+                = ArgumentCaptor.forClass(AddOperationArray.class);
+        ArgumentCaptor<Map> fromOffsetsCaptor = ArgumentCaptor.forClass(Map.class);
+        ArgumentCaptor<Map> offsetsCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(mockBatchAccountService, times(2)).addAmounts(deltasCaptor.capture(),
+                fromOffsetsCaptor.capture(), offsetsCaptor.capture(), anyList());
+        assertEquals(AddOperationArray.of(Arrays.asList(new AddOperation(ACCOUNT_ID1, 15))),
+                deltasCaptor.getAllValues().get(1));
+        // failed flush didn't move database offset
+        assertEquals(Collections.singletonMap(PARTITION_ID, OFFSET),
+                fromOffsetsCaptor.getAllValues().get(1));
+        assertEquals(Collections.singletonMap(PARTITION_ID, OFFSET + 2),
+                offsetsCaptor.getAllValues().get(1));
+        assertEquals(1, sutWriteBehindTable.getFailedFlushesNum());
+        assertEquals(0, sutWriteBehindTable.getDirtyAccountsNum());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void partitionFailingAloneShouldBeDroppedAndCommittedByProcessor() {
+        // arrange
+        int otherPartitionId = PARTITION_ID - 1;
+        sutWriteBehindTable.setMaxFlushFailures(1);
+        sutWriteBehindTable.apply(PARTITION_ID, OFFSET, batch(OFFSET + 1,
+                new AddOperation(ACCOUNT_ID1, 10)));
+        sutWriteBehindTable.apply(otherPartitionId, OFFSET, batch(OFFSET + 1,
+                new AddOperation(ACCOUNT_ID2, 20)));
+        when(mockBatchAccountService.addAmounts(any(AddOperationArray.class), anyMap(),
+                anyMap(), anyList())).thenThrow(new DataIntegrityViolationException("poison"));
+        doReturn(accountMap(ACCOUNT_ID2, COMMITTED_AMOUNT + 20)).when(mockBatchAccountService)
+                .addAmounts(any(AddOperationArray.class),
+                        eq(Collections.singletonMap(otherPartitionId, OFFSET)),
+                        eq(Collections.singletonMap(otherPartitionId, OFFSET + 1)), anyList());
+        // act
+        for (int i = 0; i < 2; i++) {
+            try {
+                sutWriteBehindTable.flush(Arrays.asList(PARTITION_ID, otherPartitionId));
+                fail("Flush failure must be thrown.");
+            } catch (DataIntegrityViolationException ex) {
+                // expected
+            }
+        }
+        // assert
+        // other partition is flushed alone
+        assertEquals(1, sutWriteBehindTable.getFlushesNum());
+        assertEquals(OFFSET + 1, sutWriteBehindTable.getAppliedOffset(otherPartitionId));
+        // processor can't start table from dropped applied offset, it reads offset again
+        try {
+            sutWriteBehindTable.apply(PARTITION_ID, OFFSET + 1, batch(OFFSET + 2,
+                    new AddOperation(ACCOUNT_ID1, 10)));
+            fail("Apply from dropped applied offset must be rejected.");
+        } catch (IllegalStateException ex) {
+            assertEquals(WriteBehindTable.DROPPED_ISE_MESSAGE, ex.getMessage());
+        }
+        // failing partition is replayed from flushed offset by processor
+        assertEquals(PartitionProcessor.UNKNOWN_OFFSET,
+                sutWriteBehindTable.getAppliedOffset(PARTITION_ID));
+        assertTrue(sutWriteBehindTable.isBypassed(PARTITION_ID, OFFSET));
+        assertFalse(sutWriteBehindTable.isBypassed(PARTITION_ID, OFFSET + 1));
+        assertEquals(1, sutWriteBehindTable.getDroppedByFailuresNum());
+        assertEquals(0, sutWriteBehindTable.getDirtyAccountsNum());
+    }
+
+    @Test
+    public void droppedPartitionShouldHaveNoTable() {
+        // arrange
+        sutWriteBehindTable.apply(PARTITION_ID, OFFSET, batch(OFFSET + 1,
+                new AddOperation(ACCOUNT_ID1, 10)));
+        // act
+        sutWriteBehindTable.drop(PARTITION_ID);
+        // assert
+        assertEquals(PartitionProcessor.UNKNOWN_OFFSET,
+                sutWriteBehindTable.getAppliedOffset(PARTITION_ID));
+        assertEquals(ABSENT_AMOUNT, sutWriteBehindTable.getAmount(PARTITION_ID, ACCOUNT_ID1,
+                ABSENT_AMOUNT));
+        assertEquals(0, sutWriteBehindTable.getDirtyAccountsNum());
+        assertFalse(sutWriteBehindTable.isFlushDue());
+        assertTrue(sutWriteBehindTable.isStarted());
+    }
+
+    private static OperationBatch batch(long nextOffset, AddOperation... addOperations) {
+        return new OperationBatch(Arrays.asList(addOperations), nextOffset);
+    }
+
+    private static Map<Integer, Account> accountMap(int id, long amount) {
+        Account account = new Account();
+        account.setId(id);
+        account.setAmount(amount);
+        Map<Integer, Account> accountMap = new HashMap<>();
+        accountMap.put(id, account);
+        return accountMap;
+    }
+}
@@ -0,0 +1,86 @@
+package com.nestos.accountservice.repository;
+
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+
+/**
+ * AccountRepositoryImpl tests on embedded database.
+ *
+ * @author Roman Osipov
+ */
+public class AccountRepositoryImplTest {
+
+    //-------------------Constants------------------------------------------------
+    private static final int EXISTING_ACCOUNT_ID = 47;
+    private static final long EXISTING_AMOUNT = 100;
+    private static final long DELTA = 7;
+    // more rows than one statement takes
+    private static final int ACCOUNTS_NUM = 2 * AccountRepositoryImpl.ROWS_PER_STATEMENT + 3;
+
+    //--------------------Fields-----------------------------------------------
+    private EmbeddedDatabase database;
+
+    private AccountRepositoryImpl sutRepository;
+
+    //-------------------Constructors------------------------------------------
+    public AccountRepositoryImplTest() {
+    }
+
+    //-------------------Methods-----------------------------------------------
+    @Before
+    public void setUp() {
+        database = new EmbeddedDatabaseBuilder().addScript("classpath:schema.sql").build();
+        new JdbcTemplate(database).update("INSERT INTO Account (id, amount) VALUES (?, ?)",
+                EXISTING_ACCOUNT_ID, EXISTING_AMOUNT);
+        sutRepository = new AccountRepositoryImpl();
+        sutRepository.setDataSource(database);
+    }
+
+    @After
+    public void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    public void addAmountsShouldUpdateExistingAndCreateMissingAccounts() {
+        // arrange
+        int[] ids = new int[ACCOUNTS_NUM];
+        long[] deltas = new long[ACCOUNTS_NUM];
+        for (int i = 0; i < ACCOUNTS_NUM; i++) {
+            ids[i] = i;
+            deltas[i] = DELTA + i;
+        }
+        // act
+        sutRepository.addAmounts(ids, deltas, ACCOUNTS_NUM);
+        Map<Integer, Long> amounts = sutRepository.addAmounts(ids, deltas, ACCOUNTS_NUM);
+        // assert
+        assertEquals(ACCOUNTS_NUM, amounts.size());
+        for (int i = 0; i < ACCOUNTS_NUM; i++) {
+            long expected = 2 * deltas[i] + ((i == EXISTING_ACCOUNT_ID) ? EXISTING_AMOUNT : 0);
+            assertEquals(Long.valueOf(expected), amounts.get(i));
+        }
+        assertEquals(Long.valueOf(2 * deltas[EXISTING_ACCOUNT_ID] + EXISTING_AMOUNT),
+                new JdbcTemplate(database).queryForObject(
+                        "SELECT amount FROM Account WHERE id = ?", Long.class,
+                        EXISTING_ACCOUNT_ID));
+    }
+
+    @Test
+    public void addAmountsShouldUseOnlyCountAccounts() {
+        // act
+        Map<Integer, Long> amounts = sutRepository.addAmounts(
+                new int[]{EXISTING_ACCOUNT_ID, EXISTING_ACCOUNT_ID + 1},
+                new long[]{DELTA, DELTA}, 1);
+        // assert
+        assertEquals(1, amounts.size());
+        assertEquals(Long.valueOf(EXISTING_AMOUNT + DELTA), amounts.get(EXISTING_ACCOUNT_ID));
+        assertEquals(Integer.valueOf(1), new JdbcTemplate(database).queryForObject(
+                "SELECT COUNT(*) FROM Account", Integer.class));
+    }
+}
@@ -0,0 +1,96 @@
+package com.nestos.accountservice.repository;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+
+/**
+ * PartitionRepositoryImpl tests on embedded database.
+ *
+ * @author Roman Osipov
+ */
+public class PartitionRepositoryImplTest {
+
+    //-------------------Constants------------------------------------------------
+    private static final int EXISTING_PARTITION_ID = 3;
+    private static final long EXISTING_OFFSET = 42;
+    private static final int NEW_PARTITION_ID = 4;
+    private static final long NEXT_OFFSET = 47;
+
+    //--------------------Fields-----------------------------------------------
+    private EmbeddedDatabase database;
+
+    private PartitionRepositoryImpl sutRepository;
+
+    //-------------------Constructors------------------------------------------
+    public PartitionRepositoryImplTest() {
+    }
+
+    //-------------------Methods-----------------------------------------------
+    @Before
+    public void setUp() {
+        database = new EmbeddedDatabaseBuilder().addScript("classpath:schema.sql").build();
+        new JdbcTemplate(database).update("INSERT INTO kafkapartition (id, offset) VALUES (?, ?)",
+                EXISTING_PARTITION_ID, EXISTING_OFFSET);
+        sutRepository = new PartitionRepositoryImpl();
+        sutRepository.setDataSource(database);
+    }
+
+    @After
+    public void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    public void saveOffsetsShouldUpdateExistingAndCreateMissingPartitions() {
+        // arrange
+        Map<Integer, Long> fromOffsets = new HashMap<>();
+        fromOffsets.put(EXISTING_PARTITION_ID, EXISTING_OFFSET);
+        fromOffsets.put(NEW_PARTITION_ID, 0L);
+        Map<Integer, Long> partitionOffsets = new HashMap<>();
+        partitionOffsets.put(EXISTING_PARTITION_ID, NEXT_OFFSET);
+        partitionOffsets.put(NEW_PARTITION_ID, NEXT_OFFSET + 1);
+        // act
+        sutRepository.saveOffsets(fromOffsets, partitionOffsets);
+        // assert
+        assertEquals(Long.valueOf(NEXT_OFFSET), offset(EXISTING_PARTITION_ID));
+        assertEquals(Long.valueOf(NEXT_OFFSET + 1), offset(NEW_PARTITION_ID));
+    }
+
+    @Test
+    public void saveOffsetsFromStaleOffsetShouldFail() {
+        // arrange
+        // other node already committed partition past expected offset
+        long staleOffset = EXISTING_OFFSET - 1;
+        // act
+        try {
+            sutRepository.saveOffsets(Collections.singletonMap(EXISTING_PARTITION_ID,
+                    staleOffset), Collections.singletonMap(EXISTING_PARTITION_ID, NEXT_OFFSET));
+            fail("Commit from stale offset must fail.");
+        } catch (OptimisticLockingFailureException ex) {
+            // expected
+        }
+        // assert
+        assertEquals(Long.valueOf(EXISTING_OFFSET), offset(EXISTING_PARTITION_ID));
+    }
+
+    @Test(expected = OptimisticLockingFailureException.class)
+    public void saveOffsetsOfExistingPartitionFromZeroShouldFail() {
+        sutRepository.saveOffsets(Collections.singletonMap(EXISTING_PARTITION_ID, 0L),
+                Collections.singletonMap(EXISTING_PARTITION_ID, NEXT_OFFSET));
+    }
+
+    private Long offset(int partitionId) {
+        return new JdbcTemplate(database).queryForObject(
+                "SELECT offset FROM kafkapartition WHERE id = ?", Long.class, partitionId);
+    }
+}